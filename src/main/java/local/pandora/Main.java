@@ -25,14 +25,27 @@ import static java.lang.System.*;
                 "  pandora add                     Add a new password entry",
                 "  pandora get <name>              Retrieve password entry",
                 "  pandora list                    List all entries",
+                "  pandora list --tag a --tag b    List entries tagged a and b",
+                "  pandora list --folder work      List entries in work and below it",
+                "  pandora tag <name> --add prod   Tag an entry",
+                "  pandora search --user <user>    Find the entries of a username",
+                "  pandora find <part of name>     Find entries, typos forgiven",
+                "  source <(pandora completion)    Complete commands and entry names",
                 "  pandora update <name>           Update existing entry",
                 "  pandora delete <name>           Delete specific entry",
                 "  pandora delete --all            Delete all entries",
+                "  pandora history <name>          List earlier versions of an entry",
+                "  pandora revert <name> --to <n>  Restore an earlier version",
+                "  pandora changes --since <seq>   List entries changed since a sequence number",
                 "  pandora backup create           Create backup",
                 "  pandora backup list             List backups",
                 "  pandora backup restore <file>   Restore from backup",
+                "  pandora verify --backups        Check the vault and backups for damage",
+                "  pandora migrate --status        Show the format of the vault files",
                 "  pandora security generate       Generate secure password",
                 "  pandora security check <pass>  Check password strength",
+                "  pandora agent &                 Keep the vault key for later commands",
+                "  pandora passwd                  Change the master password",
                 "  pandora upload                  Upload to cloud storage",
                 "  pandora download <file-id>      Download from cloud storage"
         }
@@ -65,9 +78,20 @@ public class Main implements Callable<Integer> {
                .addSubcommand(new DeleteCommand())
                .addSubcommand(new UpdateCommand())
                .addSubcommand(new GetCommand())
+               .addSubcommand(new HistoryCommand())
+               .addSubcommand(new RevertCommand())
+               .addSubcommand(new ChangesCommand())
+               .addSubcommand(new TagCommand())
                .addSubcommand(new ListCommand())
+               .addSubcommand(new SearchCommand())
+               .addSubcommand(new FindCommand())
+               .addSubcommand(new CompletionCommand())
                .addSubcommand(new BackupCommand())
+               .addSubcommand(new VerifyCommand())
+               .addSubcommand(new MigrateCommand())
                .addSubcommand(new SecurityCommand())
+               .addSubcommand(new AgentCommand())
+               .addSubcommand(new PasswdCommand())
                .addSubcommand("upload", new UploadCommand())
                .addSubcommand("download", new DownloadCommand());
             
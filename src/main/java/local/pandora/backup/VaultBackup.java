@@ -2,22 +2,27 @@ package local.pandora.backup;
 
 import local.pandora.config.VaultConfig;
 import local.pandora.constant.PandoraConstant;
+import local.pandora.exception.InvalidMasterPasswordException;
 import local.pandora.exception.PandoraException;
 import local.pandora.logging.VaultLogger;
+import local.pandora.storage.Vault;
 import local.pandora.storage.VaultFile;
 import local.pandora.storage.VaultPaths;
+import local.pandora.storage.VaultVerifier;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Stream;
 
+import static java.lang.System.err;
 import static java.lang.System.out;
 
 public class VaultBackup {
@@ -41,6 +46,19 @@ public class VaultBackup {
             Path currentVault = VaultPaths.PANDORA_FILE;
             if (Files.exists(currentVault)) {
                 Files.copy(currentVault, backupPath);
+                // Changes not yet folded into the vault file live in its log
+                if (Files.exists(VaultPaths.PANDORA_LOG)) {
+                    Files.copy(VaultPaths.PANDORA_LOG, VaultPaths.logFileFor(backupPath));
+                }
+                // The data key of the vault, wrapped under the master password of the time
+                Path keyFile = VaultPaths.keyFileFor(currentVault);
+                if (Files.exists(keyFile)) {
+                    Files.copy(keyFile, VaultPaths.keyFileFor(backupPath));
+                }
+                // A sharded vault keeps its entries in the shard files
+                if (Files.isDirectory(VaultPaths.PANDORA_SHARDS)) {
+                    copyDirectory(VaultPaths.PANDORA_SHARDS, VaultPaths.shardDirectoryFor(backupPath));
+                }
                 VaultLogger.info("Created backup: " + backupFileName);
                 out.println(VaultConfig.getColoredMessage("✓ Backup created: " + backupFileName, "success"));
             }
@@ -53,7 +71,9 @@ public class VaultBackup {
         }
     }
     
-    public static void restoreBackup(String backupFileName, SecretKey key, byte[] salt) throws PandoraException {
+    // Returns whether the restored vault is still under the data key of the vault, or came with a key
+    // file of its own and now opens with the master password the backup was made under
+    public static boolean restoreBackup(String backupFileName, SecretKey key, byte[] salt) throws PandoraException {
         try {
             Path backupDir = Paths.get(VaultConfig.getBackupDirectory());
             Path backupPath = backupDir.resolve(backupFileName);
@@ -63,8 +83,20 @@ public class VaultBackup {
             }
             
             // Verify backup integrity before restoring
-            if (!verifyBackupIntegrity(backupPath)) {
-                throw new PandoraException("Backup file is corrupted or invalid: " + backupFileName);
+            boolean sameKey = true;
+            try {
+                if (!verifyBackupIntegrity(backupPath, key)) {
+                    throw new PandoraException("Backup file is corrupted or invalid: " + backupFileName);
+                }
+            } catch (InvalidMasterPasswordException e) {
+                // Under another data key, as from before the vault was initialized again: only the key file
+                // of the backup opens it, and only its structure can be checked
+                if (!Files.exists(VaultPaths.keyFileFor(backupPath))) {
+                    throw new PandoraException("Backup is not under the key of this vault and has no key file to open it: "
+                            + backupFileName);
+                }
+                VaultFile.loadVaultContainer(backupPath);
+                sameKey = false;
             }
             
             // Create backup of current vault before restoring
@@ -72,17 +104,68 @@ public class VaultBackup {
                 createBackup(key, salt);
             }
             
-            // Restore from backup
+            // Restore from backup. One that opened with the data key of the vault keeps the key file of the
+            // vault, and with it the current master password; any other brings its own key file along
+            if (!sameKey) {
+                Files.copy(VaultPaths.keyFileFor(backupPath), VaultPaths.keyFileFor(VaultPaths.PANDORA_FILE),
+                        java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
             Files.copy(backupPath, VaultPaths.PANDORA_FILE, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            Path backupLog = VaultPaths.logFileFor(backupPath);
+            if (Files.exists(backupLog)) {
+                Files.copy(backupLog, VaultPaths.PANDORA_LOG, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(VaultPaths.PANDORA_LOG);
+            }
+            deleteDirectory(VaultPaths.PANDORA_SHARDS);
+            Path backupShards = VaultPaths.shardDirectoryFor(backupPath);
+            if (Files.isDirectory(backupShards)) {
+                copyDirectory(backupShards, VaultPaths.PANDORA_SHARDS);
+            }
             
             VaultLogger.info("Restored backup: " + backupFileName);
             out.println(VaultConfig.getColoredMessage("✓ Backup restored: " + backupFileName, "success"));
+            return sameKey;
             
         } catch (IOException e) {
             throw new PandoraException("Failed to restore backup", e);
         }
     }
     
+    // Gives every backup under the data key of the vault the key file the vault has now, so a master
+    // password the vault no longer takes opens none of its backups either. Backups under another data
+    // key keep their key files. Returns how many backups were given the new one; those that could not
+    // be are named on stderr.
+    public static int rewrapBackups(SecretKey key) throws PandoraException {
+        Path keyFile = VaultPaths.keyFileFor(VaultPaths.PANDORA_FILE);
+        Path backupDir = Paths.get(VaultConfig.getBackupDirectory());
+        int rewrapped = 0;
+        for (String backupFileName : listBackups()) {
+            Path backupPath = backupDir.resolve(backupFileName);
+            try (Vault vault = VaultFile.decryptVault(VaultFile.loadVaultContainer(backupPath), key)) {
+                Path backupKey = VaultPaths.keyFileFor(backupPath);
+                Path temp = backupKey.resolveSibling(backupKey.getFileName() + ".tmp");
+                Files.copy(keyFile, temp, StandardCopyOption.REPLACE_EXISTING);
+                Files.move(temp, backupKey, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                rewrapped++;
+            } catch (InvalidMasterPasswordException e) {
+                // Under another data key, which the old password does not give away
+            } catch (PandoraException | IOException e) {
+                // Still opens with the old password, so it is not passed over quietly
+                VaultLogger.warn("Failed to move backup to the new master password: " + backupFileName);
+                err.println("Warning: backup " + backupFileName + " still opens with the old master password: "
+                        + e.getMessage());
+            }
+        }
+        return rewrapped;
+    }
+
+    // The backup files themselves, newest first, as listBackups names them
+    public static List<Path> backupPaths() throws PandoraException {
+        Path backupDir = Paths.get(VaultConfig.getBackupDirectory());
+        return listBackups().stream().map(backupDir::resolve).toList();
+    }
+
     public static List<String> listBackups() throws PandoraException {
         try {
             Path backupDir = Paths.get(VaultConfig.getBackupDirectory());
@@ -113,6 +196,10 @@ public class VaultBackup {
             }
             
             Files.delete(backupPath);
+            Files.deleteIfExists(VaultPaths.logFileFor(backupPath));
+            Files.deleteIfExists(VaultPaths.keyFileFor(backupPath));
+            Files.deleteIfExists(VaultPaths.lockFileFor(backupPath));
+            deleteDirectory(VaultPaths.shardDirectoryFor(backupPath));
             VaultLogger.info("Deleted backup: " + backupFileName);
             out.println(VaultConfig.getColoredMessage("✓ Backup deleted: " + backupFileName, "success"));
             
@@ -147,6 +234,10 @@ public class VaultBackup {
                   .forEach(path -> {
                       try {
                           Files.delete(path);
+                          Files.deleteIfExists(VaultPaths.logFileFor(path));
+                          Files.deleteIfExists(VaultPaths.keyFileFor(path));
+                          Files.deleteIfExists(VaultPaths.lockFileFor(path));
+                          deleteDirectory(VaultPaths.shardDirectoryFor(path));
                           VaultLogger.debug("Deleted old backup: " + path.getFileName());
                       } catch (IOException e) {
                           VaultLogger.warn("Failed to delete old backup: " + path.getFileName());
@@ -155,17 +246,47 @@ public class VaultBackup {
         }
     }
     
-    private static boolean verifyBackupIntegrity(Path backupPath) {
+    private static void copyDirectory(Path source, Path target) throws IOException {
+        Files.createDirectories(target);
+        try (Stream<Path> stream = Files.list(source)) {
+            for (Path file : stream.toList()) {
+                Files.copy(file, target.resolve(file.getFileName()), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> stream = Files.list(directory)) {
+            for (Path file : stream.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static boolean verifyBackupIntegrity(Path backupPath, SecretKey key) {
         try {
             // Basic integrity check - ensure file is not empty and has expected structure
             if (Files.size(backupPath) == 0) {
                 return false;
             }
             
-            // Try to load the vault container to verify it's valid
-            VaultFile.loadVaultContainer(backupPath);
+            // Every file of the backup is checked through, blocks, pages or entries
+            for (VaultVerifier.Result result : VaultVerifier.verify(backupPath, key, List.of(), false)) {
+                if (!result.isIntact()) {
+                    VaultLogger.warn("Backup integrity check failed for: " + result.file().getFileName() + ": "
+                            + String.join(", ", result.problems()));
+                    return false;
+                }
+            }
             return true;
             
+        } catch (InvalidMasterPasswordException e) {
+            // Under another data key; left to the caller
+            throw e;
         } catch (Exception e) {
             VaultLogger.warn("Backup integrity check failed for: " + backupPath.getFileName());
             return false;
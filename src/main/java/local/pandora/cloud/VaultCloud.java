@@ -18,6 +18,7 @@ public class VaultCloud {
 
     private static final String MIME_TYPE_OCTET_STREAM = "application/octet-stream";
 
+    // Uploads a vault bundle, see VaultBundle
     public static void uploadVault(Path vaultPath) throws PandoraException {
         validateUploadInputs(vaultPath);
         
@@ -25,7 +26,7 @@ public class VaultCloud {
             Drive drive = DriveService.getDriveService();
             
             File fileMetadata = new File();
-            fileMetadata.setName(PandoraConstant.VAULT_FILE_NAME);
+            fileMetadata.setName(PandoraConstant.VAULT_BUNDLE_NAME);
 
             java.io.File filePath = vaultPath.toFile();
             com.google.api.client.http.FileContent mediaContent =
@@ -10,6 +10,7 @@ import local.pandora.storage.VaultFile;
 import picocli.CommandLine;
 
 import java.io.Console;
+import java.util.List;
 
 import static java.lang.System.err;
 import static java.lang.System.out;
@@ -23,10 +24,15 @@ public class AddCommand extends BaseVaultCommand {
     @CommandLine.Option(names = {"--password-length"}, description = "Generated password length", defaultValue = "16")
     private int passwordLength;
 
+    @CommandLine.Option(names = "--tag", description = "Tag the entry; repeat for several tags")
+    private List<String> tags;
+
+    @CommandLine.Option(names = "--folder", description = "File the entry in this folder, a slash-separated path")
+    private String folder;
+
     @Override
     public Integer call() {
-        try {
-            VaultOperationResult result = authenticateAndLoadVault();
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
             if (result == null) {
                 return 1;
             }
@@ -40,7 +46,8 @@ public class AddCommand extends BaseVaultCommand {
             
             // Validate entry name
             if (!SecurityUtils.isValidEntryName(name)) {
-                err.println("Invalid entry name. Use alphanumeric characters, spaces, hyphens, underscores, and dots only.");
+                err.println("Invalid entry name. Use alphanumeric characters, spaces, hyphens, underscores, and dots only, "
+                        + "and slashes to put it in a namespace (team/name).");
                 return 1;
             }
 
@@ -51,32 +58,35 @@ public class AddCommand extends BaseVaultCommand {
 
             String username = console.readLine("Username: ");
             
-            String password;
+            char[] password;
             if (generatePassword) {
-                password = SecurityUtils.generateStrongPassword();
-                out.println("Generated password: " + password);
-                out.println("Strength: " + SecurityUtils.getPasswordStrengthDescription(password.toCharArray()));
+                password = SecurityUtils.generateStrongPassword().toCharArray();
+                out.print("Generated password: ");
+                out.println(password);
+                out.println("Strength: " + SecurityUtils.getPasswordStrengthDescription(password));
             } else {
-                char[] entryPassword = console.readPassword("Password: ");
-                password = new String(entryPassword);
+                password = console.readPassword("Password: ");
                 
                 // Check password strength
-                if (!SecurityUtils.validatePasswordStrength(entryPassword)) {
-                    String strength = SecurityUtils.getPasswordStrengthDescription(entryPassword);
+                if (!SecurityUtils.validatePasswordStrength(password)) {
+                    String strength = SecurityUtils.getPasswordStrengthDescription(password);
                     out.println("Password strength: " + strength);
                     
                     String confirm = console.readLine("Continue with weak password? (y/N): ");
                     if (!confirm.equalsIgnoreCase("y")) {
-                        SecurityUtils.secureClear(entryPassword);
+                        SecurityUtils.secureClear(password);
                         return 1;
                     }
                 }
-                SecurityUtils.secureClear(entryPassword);
             }
 
             // Add entry
-            result.getVault().addEntry(name, username, password);
-            VaultFile.saveVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+            try {
+                result.getVault().addEntry(name, username, password, tags, folder);
+            } finally {
+                SecurityUtils.secureClear(password);
+            }
+            VaultFile.commitVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
             
             VaultLogger.logDataModification("ADD_ENTRY", name);
             out.println(VaultConfig.getColoredMessage("Entry added: " + name, "success"));
@@ -0,0 +1,87 @@
+package local.pandora.command;
+
+import local.pandora.config.VaultConfig;
+import local.pandora.exception.PandoraException;
+import local.pandora.security.KeyAgent;
+import local.pandora.storage.VaultPaths;
+import picocli.CommandLine;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "agent", description = "Keep the vault key in memory so commands need not ask for the master password")
+public class AgentCommand implements Callable<Integer> {
+
+    @CommandLine.Option(names = "--idle-minutes", description = "Forget a key unused this long; defaults to key_cache_idle_minutes")
+    private Integer idleMinutes;
+
+    @CommandLine.Option(names = "--max-minutes", description = "Forget any key held this long; defaults to key_cache_max_minutes")
+    private Integer maxMinutes;
+
+    @CommandLine.Option(names = "--status", description = "Show whether an agent runs and how many keys it holds")
+    private boolean status;
+
+    @CommandLine.Option(names = "--lock", description = "Make the running agent forget its keys")
+    private boolean lock;
+
+    @CommandLine.Option(names = "--stop", description = "Stop the running agent, forgetting its keys")
+    private boolean stop;
+
+    @Override
+    public Integer call() {
+        try {
+            if (status) {
+                KeyAgent.Status agent = KeyAgent.status(VaultPaths.AGENT_SOCKET);
+                if (agent == null) {
+                    out.println("No agent is running.");
+                    return 1;
+                }
+                out.println("Agent running on " + VaultPaths.AGENT_SOCKET + ", holding " + agent.keys() + " key(s); "
+                        + "keys last " + agent.idle().toMinutes() + " minutes unused, " + agent.max().toMinutes() + " at most.");
+                if (!VaultConfig.isKeyCachingEnabled()) {
+                    out.println("Commands do not use it until cache_encryption_keys is set in config.yaml.");
+                }
+                return 0;
+            }
+            if (lock) {
+                Integer wiped = KeyAgent.lock(VaultPaths.AGENT_SOCKET);
+                if (wiped == null) {
+                    out.println("No agent is running.");
+                    return 1;
+                }
+                out.println(VaultConfig.getColoredMessage("Agent forgot " + wiped + " key(s).", "success"));
+                return 0;
+            }
+            if (stop) {
+                if (!KeyAgent.stop(VaultPaths.AGENT_SOCKET)) {
+                    out.println("No agent is running.");
+                    return 1;
+                }
+                out.println(VaultConfig.getColoredMessage("Agent stopped.", "success"));
+                return 0;
+            }
+
+            int idle = idleMinutes != null ? idleMinutes : VaultConfig.getKeyCacheIdleMinutes();
+            int max = maxMinutes != null ? maxMinutes : VaultConfig.getKeyCacheMaxMinutes();
+            if (idle <= 0 || max <= 0) {
+                err.println("Key lifetimes must be positive.");
+                return 1;
+            }
+            if (!VaultConfig.isKeyCachingEnabled()) {
+                err.println("Note: commands only use the agent once cache_encryption_keys is set in config.yaml.");
+            }
+            out.println("Agent listening on " + VaultPaths.AGENT_SOCKET + ". Stop it with: pandora agent --stop");
+            out.flush();
+            KeyAgent.serve(VaultPaths.AGENT_SOCKET, Duration.ofMinutes(idle), Duration.ofMinutes(max));
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
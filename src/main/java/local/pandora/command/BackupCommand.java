@@ -1,7 +1,11 @@
 package local.pandora.command;
 
 import local.pandora.backup.VaultBackup;
+import local.pandora.exception.InvalidMasterPasswordException;
 import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import local.pandora.storage.ChangeFeed;
+import local.pandora.storage.VaultPaths;
 import picocli.CommandLine;
 
 import static java.lang.System.err;
@@ -35,14 +39,15 @@ public class BackupCommand extends BaseVaultCommand {
                     return 1;
                 }
                 
-                VaultOperationResult result = authenticateAndLoadVault();
-                if (result == null) {
-                    return 1;
+                try (VaultOperationResult result = authenticateAndLoadVault()) {
+                    if (result == null) {
+                        return 1;
+                    }
+
+                    VaultBackup.createBackup(result.getKey(), result.getSalt());
+                    return 0;
                 }
                 
-                VaultBackup.createBackup(result.getKey(), result.getSalt());
-                return 0;
-                
             } catch (PandoraException e) {
                 err.println("Error: " + e.getMessage());
                 return 1;
@@ -66,14 +71,25 @@ public class BackupCommand extends BaseVaultCommand {
                     return 1;
                 }
                 
-                VaultOperationResult result = authenticateAndLoadVault();
-                if (result == null) {
-                    return 1;
+                try (VaultOperationResult result = authenticateAndLoadVault()) {
+                    if (result == null) {
+                        return 1;
+                    }
+
+                    if (!VaultBackup.restoreBackup(backupFileName, result.getKey(), result.getSalt())) {
+                        // The feed, under the key of the vault replaced, starts over on the next write
+                        out.println("The restored vault is under another key and opens with the master password the backup was made with.");
+                        return 0;
+                    }
+                    // Mirrors following the change feed start over from the restored entries
+                    try {
+                        ChangeFeed.reset(VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+                    } catch (PandoraException | InvalidMasterPasswordException e) {
+                        VaultLogger.warn("Failed to reset change feed: " + e.getMessage());
+                    }
+                    return 0;
                 }
                 
-                VaultBackup.restoreBackup(backupFileName, result.getKey(), result.getSalt());
-                return 0;
-                
             } catch (PandoraException e) {
                 err.println("Error: " + e.getMessage());
                 return 1;
@@ -1,19 +1,21 @@
 package local.pandora.command;
 
+import local.pandora.config.VaultConfig;
 import local.pandora.crypto.KeyDerivation;
 import local.pandora.exception.InvalidMasterPasswordException;
 import local.pandora.exception.PandoraException;
 import local.pandora.logging.VaultLogger;
+import local.pandora.security.KeyAgent;
 import local.pandora.security.SecurityUtils;
 import local.pandora.storage.Vault;
 import local.pandora.storage.VaultContainer;
 import local.pandora.storage.VaultFile;
+import local.pandora.storage.VaultKeyFile;
 import local.pandora.storage.VaultPaths;
 
 import javax.crypto.SecretKey;
 import java.io.Console;
 import java.nio.file.Files;
-import java.util.Base64;
 import java.util.concurrent.Callable;
 
 import static java.lang.System.*;
@@ -38,11 +40,65 @@ public abstract class BaseVaultCommand implements Callable<Integer> {
     }
 
     protected VaultOperationResult authenticateAndLoadVault() {
-        Console console = getConsoleOrFail();
-        if (console == null) {
+        return authenticateAndLoadVault(true);
+    }
+
+    // Without prompting, only a key the agent holds opens the vault, and null comes back silently without one
+    protected VaultOperationResult authenticateAndLoadVault(boolean prompt) {
+        VaultKey vaultKey = deriveVaultKey(prompt, true);
+        if (vaultKey == null) {
+            return null;
+        }
+
+        try {
+            return openVault(vaultKey, prompt);
+        } catch (PandoraException e) {
+            VaultLogger.error("Vault operation failed", e);
+            err.println("Error: " + e.getMessage());
+            return null;
+        } catch (Exception e) {
+            VaultLogger.error("Unexpected error during authentication", e);
+            err.println("Unexpected error during authentication: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private VaultOperationResult openVault(VaultKey vaultKey, boolean prompt) {
+        Vault vault;
+        try {
+            vault = VaultFile.decryptVault(vaultKey.container(), vaultKey.key());
+            SecurityUtils.recordSuccessfulAttempt();
+            VaultLogger.info("Authentication successful");
+        } catch (InvalidMasterPasswordException e) {
+            if (vaultKey.cached()) {
+                // Not a wrong password but a stale key in the agent, so ask for the password instead
+                VaultLogger.warn("Key agent returned a key the vault rejects");
+                VaultKey derived = prompt ? deriveVaultKey(true, false) : null;
+                return derived == null ? null : openVault(derived, true);
+            }
+            SecurityUtils.recordFailedAttempt();
+            VaultLogger.warn("Authentication failed: " + e.getMessage());
+            err.println(e.getMessage());
             return null;
         }
 
+        rememberKey(vaultKey);
+        return new VaultOperationResult(vault, vaultKey.key(), vaultKey.salt());
+    }
+
+    // Asks for the master password and derives the vault key from it without decrypting anything, so
+    // the caller is the one to find out whether the password was right and record the attempt. With
+    // key caching on, a running agent's key for the vault is taken instead, with no prompt at all.
+    protected VaultKey deriveVaultKey() {
+        return deriveVaultKey(true, true);
+    }
+
+    // Always asks for the master password, for commands that must know it was typed
+    protected VaultKey deriveVaultKeyFromPassword() {
+        return deriveVaultKey(true, false);
+    }
+
+    private VaultKey deriveVaultKey(boolean prompt, boolean useAgent) {
         if (!validateVaultExists()) {
             return null;
         }
@@ -54,31 +110,39 @@ public abstract class BaseVaultCommand implements Callable<Integer> {
             return null;
         }
 
-        char[] masterPassword = console.readPassword("Enter master password: ");
-        if (masterPassword == null) {
-            return null;
-        }
-
+        char[] masterPassword = null;
         try {
-            VaultLogger.logVaultAccess("Authentication attempt");
-            
             VaultContainer container = VaultFile.loadVaultContainer(VaultPaths.PANDORA_FILE);
-            byte[] salt = Base64.getDecoder().decode(container.getSalt());
-            SecretKey key = KeyDerivation.deriveKey(masterPassword, salt);
-            
-            Vault vault;
-            try {
-                vault = VaultFile.decryptVault(container, key);
-                SecurityUtils.recordSuccessfulAttempt();
-                VaultLogger.info("Authentication successful");
-            } catch (InvalidMasterPasswordException e) {
-                SecurityUtils.recordFailedAttempt();
-                VaultLogger.warn("Authentication failed: " + e.getMessage());
-                err.println(e.getMessage());
+            byte[] salt = container.getSalt();
+            if (useAgent && VaultConfig.isKeyCachingEnabled()) {
+                SecretKey key = KeyAgent.fetch(VaultPaths.AGENT_SOCKET, agentKeyId(container));
+                if (key != null) {
+                    VaultLogger.logVaultAccess("Authentication with cached key");
+                    return new VaultKey(container, key, salt, true);
+                }
+            }
+            if (!prompt) {
+                return null;
+            }
+
+            Console console = getConsoleOrFail();
+            if (console == null) {
+                return null;
+            }
+            masterPassword = console.readPassword("Enter master password: ");
+            if (masterPassword == null) {
                 return null;
             }
 
-            return new VaultOperationResult(vault, key, salt);
+            VaultLogger.logVaultAccess("Authentication attempt");
+            SecretKey key = VaultKeyFile.unlock(VaultPaths.PANDORA_FILE, container, masterPassword);
+            return new VaultKey(container, key, salt, false);
+        } catch (InvalidMasterPasswordException e) {
+            // The key file did not open, so the password is known to be wrong already
+            SecurityUtils.recordFailedAttempt();
+            VaultLogger.warn("Authentication failed: " + e.getMessage());
+            err.println(e.getMessage());
+            return null;
         } catch (PandoraException e) {
             VaultLogger.error("Vault operation failed", e);
             err.println("Error: " + e.getMessage());
@@ -88,11 +152,32 @@ public abstract class BaseVaultCommand implements Callable<Integer> {
             err.println("Unexpected error during authentication: " + e.getMessage());
             return null;
         } finally {
-            SecurityUtils.secureClear(masterPassword);
+            if (masterPassword != null) {
+                SecurityUtils.secureClear(masterPassword);
+            }
+        }
+    }
+
+    // Hands a key the vault accepted to the agent, if key caching is on and the key did not come from it
+    protected void rememberKey(VaultKey vaultKey) {
+        if (!vaultKey.cached() && VaultConfig.isKeyCachingEnabled()) {
+            KeyAgent.store(VaultPaths.AGENT_SOCKET, agentKeyId(vaultKey.container()), vaultKey.key());
         }
     }
 
-    protected static class VaultOperationResult {
+    // A key is only good for the vault file, and the salt and key derivation of the password it was unlocked with
+    private static String agentKeyId(VaultContainer container) {
+        VaultKeyFile.Kdf kdf = VaultKeyFile.kdf(VaultPaths.PANDORA_FILE, container);
+        KeyDerivation.Parameters parameters = kdf.parameters();
+        return VaultPaths.PANDORA_FILE.toAbsolutePath() + ":" + KeyDerivation.encodeSalt(kdf.salt())
+                + ":" + parameters.function() + ":" + parameters.iterations() + ":" + parameters.memoryKiB()
+                + ":" + parameters.lanes();
+    }
+
+    protected record VaultKey(VaultContainer container, SecretKey key, byte[] salt, boolean cached) {}
+
+    // Closing it wipes the passwords the vault decrypted meanwhile
+    protected static class VaultOperationResult implements AutoCloseable {
         private final Vault vault;
         private final SecretKey key;
         private final byte[] salt;
@@ -114,5 +199,10 @@ public abstract class BaseVaultCommand implements Callable<Integer> {
         public byte[] getSalt() {
             return salt;
         }
+
+        @Override
+        public void close() {
+            vault.close();
+        }
     }
 }
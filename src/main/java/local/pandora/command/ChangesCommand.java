@@ -0,0 +1,146 @@
+package local.pandora.command;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import local.pandora.security.SecurityUtils;
+import local.pandora.storage.ChangeFeed;
+import local.pandora.storage.VaultEntry;
+import local.pandora.storage.VaultPaths;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "changes", description = "List the entries changed since a sequence number, for mirroring the vault")
+public class ChangesCommand extends BaseVaultCommand {
+
+    @CommandLine.Option(names = "--since", description = "Sequence number the last run went up to; 0 lists every entry", defaultValue = "0")
+    private long since;
+
+    @CommandLine.Option(names = "--format", description = "Output format: text or jsonl", defaultValue = "text")
+    private String format;
+
+    @CommandLine.Option(names = "--show", description = "Print the passwords of the changed entries as well")
+    private boolean show;
+
+    @Override
+    public Integer call() {
+        try {
+            if (since < 0) {
+                err.println("--since must not be negative.");
+                return 1;
+            }
+            boolean jsonl = format.equalsIgnoreCase("jsonl");
+            if (!jsonl && !format.equalsIgnoreCase("text")) {
+                err.println("Unknown format: " + format + ". Use text or jsonl.");
+                return 1;
+            }
+
+            VaultKey vaultKey = deriveVaultKey();
+            if (vaultKey == null) {
+                return 1;
+            }
+
+            long[] count = {0};
+            try (JsonGenerator json = new JsonFactory().createGenerator(out)) {
+                // Leaves standard output open
+                json.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+                json.setRootValueSeparator(null);
+                ChangeFeed.read(VaultPaths.PANDORA_FILE, vaultKey.key(), vaultKey.salt(), since, change -> {
+                    try {
+                        if (jsonl) {
+                            writeJson(json, change);
+                        } else {
+                            writeText(change);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    count[0]++;
+                });
+                SecurityUtils.recordSuccessfulAttempt();
+                rememberKey(vaultKey);
+            } catch (InvalidMasterPasswordException e) {
+                SecurityUtils.recordFailedAttempt();
+                VaultLogger.warn("Authentication failed: " + e.getMessage());
+                err.println(e.getMessage());
+                return 1;
+            }
+            if (count[0] == 0 && !jsonl) {
+                out.println("No changes since " + since + ".");
+            }
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private void writeText(ChangeFeed.Change change) {
+        if (change.isClear()) {
+            out.println(change.sequence() + "  cleared");
+            return;
+        }
+        VaultEntry entry = change.entry();
+        if (entry == null) {
+            out.println(change.sequence() + "  deleted  " + change.name());
+            return;
+        }
+        out.print(change.sequence() + "  changed  " + change.name() + "  username: " + entry.getUsername());
+        if (show) {
+            char[] password = entry.getPassword();
+            try {
+                out.print("  password: ");
+                out.print(password);
+            } finally {
+                SecurityUtils.secureClear(password);
+            }
+        }
+        out.println();
+    }
+
+    // One object per line: {"seq", "cleared": true}, {"seq", "name", "deleted": true}, or
+    // {"seq", "name", "username", "tags", "folder"} with "password" for --show
+    private void writeJson(JsonGenerator json, ChangeFeed.Change change) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("seq", change.sequence());
+        VaultEntry entry = change.entry();
+        if (change.isClear()) {
+            json.writeBooleanField("cleared", true);
+        } else if (entry == null) {
+            json.writeStringField("name", change.name());
+            json.writeBooleanField("deleted", true);
+        } else {
+            json.writeStringField("name", change.name());
+            json.writeStringField("username", entry.getUsername());
+            if (show) {
+                char[] password = entry.getPassword();
+                try {
+                    json.writeFieldName("password");
+                    json.writeString(password, 0, password.length);
+                } finally {
+                    SecurityUtils.secureClear(password);
+                }
+            }
+            json.writeArrayFieldStart("tags");
+            for (String tag : entry.getTags()) {
+                json.writeString(tag);
+            }
+            json.writeEndArray();
+            if (entry.getFolder() != null) {
+                json.writeStringField("folder", entry.getFolder());
+            }
+        }
+        json.writeEndObject();
+        json.writeRaw('\n');
+        json.flush();
+    }
+}
@@ -0,0 +1,33 @@
+package local.pandora.command;
+
+import picocli.CommandLine;
+
+import java.util.concurrent.Callable;
+
+import static java.lang.System.out;
+
+@CommandLine.Command(name = "completion", description = "Print a bash completion script: source <(pandora completion)")
+public class CompletionCommand implements Callable<Integer> {
+
+    // Commands whose first parameter is an entry name, completed through find
+    private static final String ENTRY_COMMANDS = "get delete history revert tag";
+
+    @CommandLine.Spec
+    private CommandLine.Model.CommandSpec spec;
+
+    @Override
+    public Integer call() {
+        String commands = String.join(" ", spec.parent().subcommands().keySet());
+        out.println("_pandora() {");
+        out.println("    local cur=\"${COMP_WORDS[COMP_CWORD]}\"");
+        out.println("    if [ \"$COMP_CWORD\" -eq 1 ]; then");
+        out.println("        COMPREPLY=($(compgen -W \"" + commands + "\" -- \"$cur\"))");
+        out.println("    elif [ \"$COMP_CWORD\" -eq 2 ] && [[ \" " + ENTRY_COMMANDS + " \" == *\" ${COMP_WORDS[1]} \"* ]]; then");
+        out.println("        local IFS=$'\\n'");
+        out.println("        COMPREPLY=($(pandora find --complete --limit 50 \"$cur\" 2>/dev/null))");
+        out.println("    fi");
+        out.println("}");
+        out.println("complete -F _pandora pandora");
+        return 0;
+    }
+}
@@ -21,8 +21,7 @@ public class DeleteCommand extends BaseVaultCommand {
 
     @Override
     public Integer call() {
-        try {
-            VaultOperationResult result = authenticateAndLoadVault();
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
             if (result == null) {
                 return 1;
             }
@@ -44,7 +43,7 @@ public class DeleteCommand extends BaseVaultCommand {
                 }
 
                 result.getVault().clearEntries();
-                VaultFile.saveVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+                VaultFile.commitVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
                 out.println("All entries deleted successfully.");
                 return 0;
             }
@@ -54,13 +53,13 @@ public class DeleteCommand extends BaseVaultCommand {
                 return 1;
             }
 
-            if (result.getVault().getEntry(entryName) == null) {
+            if (!result.getVault().hasEntry(entryName)) {
                 err.println("No such entry: " + entryName);
                 return 1;
             }
 
             result.getVault().removeEntry(entryName);
-            VaultFile.saveVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+            VaultFile.commitVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
             out.println("Successfully deleted entry: " + entryName);
 
             return 0;
@@ -1,16 +1,24 @@
 package local.pandora.command;
 
 import local.pandora.cloud.VaultCloud;
+import local.pandora.config.VaultConfig;
+import local.pandora.constant.PandoraConstant;
 import local.pandora.exception.PandoraException;
+import local.pandora.security.KeyAgent;
+import local.pandora.storage.VaultBundle;
 import local.pandora.storage.VaultPaths;
 import picocli.CommandLine;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
 import static java.lang.System.*;
 
-@CommandLine.Command(name = "download", description = "Download pandora.enc from Google Drive")
+@CommandLine.Command(name = "download", description = "Download pandora.enc and its key file from Google Drive")
 public class DownloadCommand extends BaseVaultCommand {
 
-    @CommandLine.Parameters(index = "0", description = "Google Drive file ID of pandora.enc")
+    @CommandLine.Parameters(index = "0", description = "Google Drive file ID of the upload")
     private String fileId;
 
     @Override
@@ -20,7 +28,22 @@ public class DownloadCommand extends BaseVaultCommand {
                 return 1;
             }
 
-            VaultCloud.downloadPandora(VaultPaths.PANDORA_FILE, fileId);
+            // A bundle brings the key file of the vault along; uploads from before bundles are a bare vault file
+            Path download = VaultPaths.PANDORA_DIR.resolve(PandoraConstant.VAULT_BUNDLE_NAME);
+            try {
+                VaultCloud.downloadPandora(download, fileId);
+                if (VaultBundle.isBundle(download)) {
+                    VaultBundle.restore(download, VaultPaths.PANDORA_FILE);
+                } else {
+                    Files.move(download, VaultPaths.PANDORA_FILE, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(download);
+            }
+            // Keys cached for the vault replaced go as well
+            if (VaultConfig.isKeyCachingEnabled()) {
+                KeyAgent.lock(VaultPaths.AGENT_SOCKET);
+            }
             out.println("Pandora downloaded from Google Drive Successfully.");
             return 0;
         } catch (PandoraException e) {
@@ -0,0 +1,52 @@
+package local.pandora.command;
+
+import local.pandora.exception.PandoraException;
+import local.pandora.storage.EntryUsage;
+import local.pandora.storage.VaultPaths;
+import picocli.CommandLine;
+
+import java.util.List;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "find", description = "Find entries by any part of their names, near misses included, the most used first")
+public class FindCommand extends BaseVaultCommand {
+
+    @CommandLine.Parameters(index = "0", arity = "0..1", defaultValue = "", description = "Part of the entry name")
+    private String query;
+
+    @CommandLine.Option(names = "--limit", description = "Show at most this many entries", defaultValue = "20")
+    private int limit;
+
+    @CommandLine.Option(names = "--complete", description = "Only print the names, for shell completion")
+    private boolean complete;
+
+    @Override
+    public Integer call() {
+        // Completing never prompts: without a key in the agent it completes nothing
+        try (VaultOperationResult result = authenticateAndLoadVault(!complete)) {
+            if (result == null) {
+                return 1;
+            }
+
+            if (limit <= 0) {
+                err.println("--limit must be positive.");
+                return 1;
+            }
+
+            EntryUsage usage = EntryUsage.load(VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+            List<String> names = result.getVault().findEntries(query, limit, usage.scores());
+            names.forEach(out::println);
+            if (names.isEmpty() && !complete) {
+                err.println("No matching entries.");
+            }
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
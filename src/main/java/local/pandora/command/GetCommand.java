@@ -1,8 +1,16 @@
 package local.pandora.command;
 
 import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import local.pandora.security.SecurityUtils;
+import local.pandora.storage.EntryUsage;
+import local.pandora.storage.VaultPaths;
 import picocli.CommandLine;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
 import static java.lang.System.*;
 
 @CommandLine.Command(name = "get", description = "Retrieve username/password for an entry")
@@ -16,8 +24,7 @@ public class GetCommand extends BaseVaultCommand {
 
     @Override
     public Integer call() {
-        try {
-            VaultOperationResult result = authenticateAndLoadVault();
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
             if (result == null) {
                 return 1;
             }
@@ -28,12 +35,31 @@ public class GetCommand extends BaseVaultCommand {
                 return 1;
             }
 
-            if (copy) {
-                copyToClipboard(entry.getPassword());
-                out.println("Password copied to clipboard");
-            } else {
-                out.println("Username: " + entry.getUsername());
-                out.println("Password: " + entry.getPassword());
+            char[] password = entry.getPassword();
+            try {
+                if (copy) {
+                    copyToClipboard(password);
+                    out.println("Password copied to clipboard");
+                } else {
+                    out.println("Username: " + entry.getUsername());
+                    out.print("Password: ");
+                    out.println(password);
+                    if (!entry.getTags().isEmpty()) {
+                        out.println("Tags: " + String.join(", ", entry.getTags()));
+                    }
+                    if (entry.getFolder() != null) {
+                        out.println("Folder: " + entry.getFolder());
+                    }
+                }
+            } finally {
+                SecurityUtils.secureClear(password);
+            }
+
+            // Ranks the entry higher in find
+            try {
+                EntryUsage.load(VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt()).recordUse(entryName);
+            } catch (PandoraException e) {
+                VaultLogger.warn("Failed to record entry use: " + e.getMessage());
             }
 
             return 0;
@@ -46,7 +72,7 @@ public class GetCommand extends BaseVaultCommand {
         }
     }
 
-    public static void copyToClipboard(String text) throws Exception {
+    public static void copyToClipboard(char[] text) throws Exception {
         String os = getProperty("os.name").toLowerCase();
         Process p;
         if (os.contains("linux")) {
@@ -58,9 +84,15 @@ public class GetCommand extends BaseVaultCommand {
         } else {
             throw new PandoraException("Clipboard not supported on " + os);
         }
+        ByteBuffer encoded = Charset.defaultCharset().encode(CharBuffer.wrap(text));
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
         try (var osStream = p.getOutputStream()) {
-            osStream.write(text.getBytes());
+            osStream.write(bytes);
             osStream.flush();
+        } finally {
+            SecurityUtils.secureClear(bytes);
+            SecurityUtils.secureClear(encoded.array());
         }
         p.waitFor();
     }
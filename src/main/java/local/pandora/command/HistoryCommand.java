@@ -0,0 +1,67 @@
+package local.pandora.command;
+
+import local.pandora.exception.PandoraException;
+import local.pandora.security.SecurityUtils;
+import local.pandora.storage.EntryHistory;
+import picocli.CommandLine;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "history", description = "List the earlier versions of an entry")
+public class HistoryCommand extends BaseVaultCommand {
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    @CommandLine.Parameters(index = "0", description = "Entry name")
+    private String entryName;
+
+    @CommandLine.Option(names = "--show", description = "Print the passwords of the earlier versions as well")
+    private boolean show;
+
+    @Override
+    public Integer call() {
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
+            if (result == null) {
+                return 1;
+            }
+
+            List<EntryHistory.Revision> revisions = result.getVault().getHistory(entryName);
+            if (revisions == null) {
+                err.println("No such entry: " + entryName);
+                return 1;
+            }
+            if (revisions.isEmpty()) {
+                out.println("No earlier versions of " + entryName);
+                return 0;
+            }
+
+            for (EntryHistory.Revision revision : revisions) {
+                out.print(revision.number() + "  replaced " + TIMESTAMP_FORMAT.format(revision.replaced())
+                        + "  username: " + revision.entry().getUsername());
+                if (show) {
+                    char[] password = revision.entry().getPassword();
+                    try {
+                        out.print("  password: ");
+                        out.print(password);
+                    } finally {
+                        SecurityUtils.secureClear(password);
+                    }
+                }
+                out.println();
+            }
+            out.println("Run 'pandora revert " + entryName + " --to <n>' to restore a version.");
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
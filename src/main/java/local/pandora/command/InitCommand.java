@@ -1,15 +1,18 @@
 package local.pandora.command;
 
+import local.pandora.config.VaultConfig;
 import local.pandora.exception.PandoraException;
 import local.pandora.storage.VaultPaths;
 import picocli.CommandLine;
 import local.pandora.crypto.KeyDerivation;
 import local.pandora.storage.Vault;
 import local.pandora.storage.VaultFile;
+import local.pandora.storage.VaultKeyFile;
 
 import javax.crypto.SecretKey;
 import java.nio.file.Files;
 import java.io.Console;
+import java.time.Duration;
 import java.util.Arrays;
 
 import static java.lang.System.*;
@@ -38,14 +41,21 @@ public class InitCommand extends BaseVaultCommand {
 
             try {
                 byte[] salt = KeyDerivation.generateSalt();
-                SecretKey key = KeyDerivation.deriveKey(masterPassword, salt);
+                SecretKey key = VaultKeyFile.generateDataKey();
+
+                KeyDerivation.Parameters parameters = KeyDerivation.calibrate(
+                        KeyDerivation.functionNamed(VaultConfig.getKdf()),
+                        Duration.ofMillis(VaultConfig.getKdfTargetMillis()));
 
                 Files.createDirectories(VaultPaths.PANDORA_DIR);
+                // The key file first: a vault file without it would be taken for one keyed by the password
+                VaultKeyFile.wrap(VaultPaths.PANDORA_FILE, key, masterPassword, parameters);
 
                 Vault vault = new Vault();
                 VaultFile.saveVault(vault, VaultPaths.PANDORA_FILE, key, salt);
 
                 out.println("Vault initialized at vault.enc");
+                out.println("Key derivation: " + parameters.describe());
                 return 0;
             } finally {
                 Arrays.fill(masterPassword, '\0');
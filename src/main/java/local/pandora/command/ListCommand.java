@@ -2,21 +2,71 @@ package local.pandora.command;
 
 import picocli.CommandLine;
 
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.List;
+
 import static java.lang.System.*;
 
-@CommandLine.Command(name = "list", description = "List all entry names")
+@CommandLine.Command(name = "list", description = "List entry names in sorted order")
 public class ListCommand extends BaseVaultCommand {
 
+    @CommandLine.Option(names = "--namespace", description = "Only list entries named <namespace>/...")
+    private String namespace;
+
+    @CommandLine.Option(names = "--prefix", description = "Only list entries whose names start with this")
+    private String prefix;
+
+    @CommandLine.Option(names = "--tag", description = "Only list entries carrying this tag; repeat to require several")
+    private List<String> tags;
+
+    @CommandLine.Option(names = "--folder", description = "Only list entries in this folder or the folders below it")
+    private String folder;
+
+    @CommandLine.Option(names = "--after", description = "Start after this entry name, the last one of the previous page")
+    private String after;
+
+    @CommandLine.Option(names = "--limit", description = "List at most this many entries, 0 for all", defaultValue = "0")
+    private int limit;
+
     @Override
     public Integer call() {
         try {
-            VaultOperationResult result = authenticateAndLoadVault();
-            if (result == null) {
+            if (limit < 0) {
+                err.println("--limit cannot be negative.");
                 return 1;
             }
 
-            result.getVault().getAllEntries().keySet().forEach(out::println);
-            return 0;
+            try (VaultOperationResult result = authenticateAndLoadVault()) {
+                if (result == null) {
+                    return 1;
+                }
+
+                String namePrefix = namespace == null ? prefix : namespace + "/" + (prefix == null ? "" : prefix);
+                Iterator<String> names = result.getVault().getEntryNames(after, namePrefix, tags, folder);
+
+                // Names are printed as they are read; stdout is only flushed once the page is written
+                PrintWriter writer = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 64 * 1024));
+                String last = null;
+                int listed = 0;
+                while ((limit == 0 || listed < limit) && names.hasNext()) {
+                    last = names.next();
+                    writer.println(last);
+                    listed++;
+                }
+                writer.flush();
+
+                if (names.hasNext()) {
+                    err.println("More entries follow. Next page: --after \"" + last + "\"");
+                }
+                return 0;
+            }
         } catch (Exception e) {
             err.println("Unexpected error: " + e.getMessage());
             return 1;
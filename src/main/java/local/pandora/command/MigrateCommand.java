@@ -0,0 +1,92 @@
+package local.pandora.command;
+
+import local.pandora.config.VaultConfig;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import local.pandora.security.SecurityUtils;
+import local.pandora.storage.VaultCapability;
+import local.pandora.storage.VaultMigration;
+import local.pandora.storage.VaultPaths;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "migrate", description = "Convert the vault files to the format the configuration asks for")
+public class MigrateCommand extends BaseVaultCommand {
+
+    @CommandLine.Option(names = "--status", description = "Show the format of every vault file without converting any")
+    private boolean status;
+
+    @Override
+    public Integer call() {
+        try {
+            VaultKey vaultKey = deriveVaultKey();
+            if (vaultKey == null) {
+                return 1;
+            }
+
+            try {
+                if (status) {
+                    List<VaultMigration.FileFormat> formats = VaultMigration.status(VaultPaths.PANDORA_FILE, vaultKey.key());
+                    SecurityUtils.recordSuccessfulAttempt();
+                    rememberKey(vaultKey);
+                    for (VaultMigration.FileFormat format : formats) {
+                        String line = file(format.file()) + ": version " + format.version() + " ("
+                                + capabilities(format) + ")";
+                        out.println(format.current()
+                                ? VaultConfig.getColoredMessage("✓ " + line, "success")
+                                : VaultConfig.getColoredMessage("• " + line + ", to migrate", "warning"));
+                    }
+                    return 0;
+                }
+
+                List<VaultMigration.Migrated> migrated = VaultMigration.migrate(VaultPaths.PANDORA_FILE,
+                        vaultKey.key(), vaultKey.salt(), this::print);
+                SecurityUtils.recordSuccessfulAttempt();
+                rememberKey(vaultKey);
+                if (migrated.isEmpty()) {
+                    out.println("All vault files are in the current format.");
+                }
+                return 0;
+            } catch (InvalidMasterPasswordException e) {
+                SecurityUtils.recordFailedAttempt();
+                VaultLogger.warn("Authentication failed: " + e.getMessage());
+                err.println(e.getMessage());
+                return 1;
+            }
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private void print(VaultMigration.Migrated migrated) {
+        double seconds = Math.max(migrated.millis(), 1) / 1000.0;
+        out.println(VaultConfig.getColoredMessage(String.format("✓ %s: version %d → %d, %d entries, %.1f MB → %.1f MB in %d ms (%.1f MB/s)",
+                file(migrated.file()), migrated.fromVersion(), migrated.toVersion(), migrated.entries(),
+                migrated.bytesRead() / 1e6, migrated.bytesWritten() / 1e6, migrated.millis(),
+                migrated.bytesRead() / 1e6 / seconds), "success"));
+        VaultLogger.info("Migrated " + migrated.file() + " from version " + migrated.fromVersion() + " to "
+                + migrated.toVersion());
+    }
+
+    private static String file(Path file) {
+        return VaultPaths.PANDORA_DIR.relativize(file).toString();
+    }
+
+    private static String capabilities(VaultMigration.FileFormat format) {
+        if (format.capabilities().isEmpty()) {
+            return "JSON";
+        }
+        return format.capabilities().stream().map(VaultCapability::name).map(String::toLowerCase)
+                .collect(Collectors.joining(", "));
+    }
+}
@@ -0,0 +1,146 @@
+package local.pandora.command;
+
+import local.pandora.backup.VaultBackup;
+import local.pandora.config.VaultConfig;
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import local.pandora.security.KeyAgent;
+import local.pandora.security.SecurityUtils;
+import local.pandora.storage.Vault;
+import local.pandora.storage.VaultFile;
+import local.pandora.storage.VaultKeyFile;
+import local.pandora.storage.VaultPaths;
+import picocli.CommandLine;
+
+import java.io.Console;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "passwd", description = "Change the master password, or the key derivation it goes through")
+public class PasswdCommand extends BaseVaultCommand {
+
+    @CommandLine.Option(names = "--kdf", description = "argon2id or pbkdf2, calibrated for this host; defaults to kdf in config.yaml")
+    private String kdf;
+
+    @CommandLine.Option(names = "--target-ms", description = "Time the key derivation is calibrated to take; defaults to kdf_target_millis")
+    private Integer targetMillis;
+
+    @CommandLine.Option(names = "--iterations", description = "Use PBKDF2 with exactly this many iterations instead of calibrating")
+    private Integer iterations;
+
+    @Override
+    public Integer call() {
+        try {
+            if (iterations != null && iterations < KeyDerivation.DEFAULT_ITERATIONS) {
+                err.println("--iterations must be at least " + KeyDerivation.DEFAULT_ITERATIONS + ".");
+                return 1;
+            }
+            if (iterations != null && (kdf != null || targetMillis != null)) {
+                err.println("--iterations cannot be combined with --kdf or --target-ms.");
+                return 1;
+            }
+            int target = targetMillis != null ? targetMillis : VaultConfig.getKdfTargetMillis();
+            if (target <= 0) {
+                err.println("The key derivation target must be positive.");
+                return 1;
+            }
+            int function = KeyDerivation.functionNamed(kdf != null ? kdf : VaultConfig.getKdf());
+
+            VaultKey vaultKey = deriveVaultKeyFromPassword();
+            if (vaultKey == null) {
+                return 1;
+            }
+            // The key file opened, or for a vault without one the vault itself has to
+            try (Vault vault = VaultFile.decryptVault(vaultKey.container(), vaultKey.key())) {
+                SecurityUtils.recordSuccessfulAttempt();
+            } catch (InvalidMasterPasswordException e) {
+                SecurityUtils.recordFailedAttempt();
+                VaultLogger.warn("Authentication failed: " + e.getMessage());
+                err.println(e.getMessage());
+                return 1;
+            }
+
+            Console console = getConsoleOrFail();
+            if (console == null) {
+                return 1;
+            }
+            char[] password = console.readPassword("New master password: ");
+            if (password == null || password.length == 0) {
+                return 1;
+            }
+            char[] confirm = null;
+            try {
+                if (!SecurityUtils.validatePasswordStrength(password)) {
+                    out.println("Password strength: " + SecurityUtils.getPasswordStrengthDescription(password));
+                    String answer = console.readLine("Continue with weak password? (y/N): ");
+                    if (answer == null || !answer.equalsIgnoreCase("y")) {
+                        return 1;
+                    }
+                }
+                confirm = console.readPassword("Repeat new master password: ");
+                if (confirm == null || !Arrays.equals(password, confirm)) {
+                    err.println("Passwords do not match.");
+                    return 1;
+                }
+
+                KeyDerivation.Parameters parameters = iterations != null ? KeyDerivation.pbkdf2(iterations)
+                        : KeyDerivation.calibrate(function, Duration.ofMillis(target));
+                long start = System.nanoTime();
+                if (VaultKeyFile.isPasswordDerived(vaultKey.container())) {
+                    // The key of the vault is derived from the old password and the salt in its header, so
+                    // wrapping it would leave both opening the vault. It goes to a random data key instead,
+                    // and so do its backups.
+                    VaultKeyFile.Rekeyed rekeyed = VaultKeyFile.rekey(VaultPaths.PANDORA_FILE, vaultKey.key(),
+                            VaultBackup.backupPaths(), password, parameters);
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    VaultLogger.security("Master password changed; vault moved to a random data key");
+                    out.println(VaultConfig.getColoredMessage("✓ Master password changed in " + millis + " ms ("
+                            + parameters.describe() + "); the vault is now under a random data key.", "success"));
+                    if (rekeyed.backups() > 0) {
+                        out.println(rekeyed.backups() + " backup(s) moved to the new data key.");
+                    }
+                    for (Path dropped : rekeyed.dropped()) {
+                        VaultLogger.warn("Deleted backup that could not be moved to the new data key: " + dropped.getFileName());
+                        err.println("Warning: backup " + dropped.getFileName() + " could not be moved to the new data key "
+                                + "and was deleted.");
+                    }
+                } else {
+                    VaultKeyFile.wrap(VaultPaths.PANDORA_FILE, vaultKey.key(), password, parameters);
+                    long millis = (System.nanoTime() - start) / 1_000_000;
+                    VaultLogger.security("Master password changed");
+                    out.println(VaultConfig.getColoredMessage("✓ Master password changed in " + millis + " ms ("
+                            + parameters.describe() + ").", "success"));
+
+                    // Backups wrap the same data key, so the old password would go on opening them, and through
+                    // them the vault
+                    int rewrapped = VaultBackup.rewrapBackups(vaultKey.key());
+                    if (rewrapped > 0) {
+                        out.println(rewrapped + " backup(s) moved to the new master password.");
+                    }
+                }
+            } finally {
+                SecurityUtils.secureClear(password);
+                if (confirm != null) {
+                    SecurityUtils.secureClear(confirm);
+                }
+            }
+
+            // Keys cached under the old password go as well
+            if (VaultConfig.isKeyCachingEnabled()) {
+                KeyAgent.lock(VaultPaths.AGENT_SOCKET);
+            }
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
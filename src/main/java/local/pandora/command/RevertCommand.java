@@ -0,0 +1,48 @@
+package local.pandora.command;
+
+import local.pandora.exception.PandoraException;
+import local.pandora.storage.VaultFile;
+import local.pandora.storage.VaultPaths;
+import picocli.CommandLine;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "revert", description = "Restore an earlier version of an entry")
+public class RevertCommand extends BaseVaultCommand {
+
+    @CommandLine.Parameters(index = "0", description = "Entry name")
+    private String entryName;
+
+    @CommandLine.Option(names = "--to", required = true, description = "Number of the version to restore, as listed by history")
+    private int version;
+
+    @Override
+    public Integer call() {
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
+            if (result == null) {
+                return 1;
+            }
+
+            if (!result.getVault().hasEntry(entryName)) {
+                err.println("No such entry: " + entryName);
+                return 1;
+            }
+
+            if (!result.getVault().revertEntry(entryName, version)) {
+                out.println("Nothing changed: version " + version + " of " + entryName
+                        + " has the username and password it has now.");
+                return 0;
+            }
+            VaultFile.commitVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+            out.println("Reverted " + entryName + " to version " + version
+                    + "; the version it replaced is now version 1 of its history");
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package local.pandora.command;
+
+import local.pandora.exception.PandoraException;
+import picocli.CommandLine;
+
+import java.util.List;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "search", description = "Find entries by username or by words of their names")
+public class SearchCommand extends BaseVaultCommand {
+
+    @CommandLine.Option(names = "--user", description = "Only entries with this username, case aside")
+    private String username;
+
+    @CommandLine.Option(names = "--name", description = "Only entries whose names hold these words, e.g. github")
+    private String words;
+
+    @Override
+    public Integer call() {
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
+            if (result == null) {
+                return 1;
+            }
+
+            if (username == null && words == null) {
+                err.println("Give --user, --name or both.");
+                return 1;
+            }
+
+            List<String> names = result.getVault().searchEntries(username, words);
+            names.forEach(out::println);
+            if (names.isEmpty()) {
+                err.println("No matching entries.");
+            }
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package local.pandora.command;
+
+import local.pandora.exception.PandoraException;
+import local.pandora.storage.VaultEntry;
+import local.pandora.storage.VaultFile;
+import local.pandora.storage.VaultPaths;
+import picocli.CommandLine;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "tag", description = "Change the tags and folder of an entry")
+public class TagCommand extends BaseVaultCommand {
+
+    @CommandLine.Parameters(index = "0", description = "Entry name")
+    private String entryName;
+
+    @CommandLine.Option(names = "--add", description = "Tag to add; repeat for several")
+    private List<String> added = List.of();
+
+    @CommandLine.Option(names = "--remove", description = "Tag to remove; repeat for several")
+    private List<String> removed = List.of();
+
+    @CommandLine.Option(names = "--folder", description = "Folder to move the entry to, a slash-separated path; \"\" for none")
+    private String folder;
+
+    @Override
+    public Integer call() {
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
+            if (result == null) {
+                return 1;
+            }
+
+            VaultEntry entry = result.getVault().getEntry(entryName);
+            if (entry == null) {
+                err.println("No such entry: " + entryName);
+                return 1;
+            }
+
+            Set<String> tags = new TreeSet<>(entry.getTags());
+            tags.addAll(added);
+            removed.forEach(tags::remove);
+            result.getVault().labelEntry(entryName, tags, folder == null ? entry.getFolder() : folder);
+            VaultFile.commitVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+
+            VaultEntry labelled = result.getVault().getEntry(entryName);
+            out.println("Tags of " + entryName + ": "
+                    + (labelled.getTags().isEmpty() ? "none" : String.join(", ", labelled.getTags())));
+            out.println("Folder: " + (labelled.getFolder() == null ? "none" : labelled.getFolder()));
+            return 0;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+}
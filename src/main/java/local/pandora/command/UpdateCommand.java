@@ -1,6 +1,7 @@
 package local.pandora.command;
 
 import local.pandora.exception.PandoraException;
+import local.pandora.security.SecurityUtils;
 import local.pandora.storage.VaultPaths;
 import local.pandora.storage.VaultFile;
 import picocli.CommandLine;
@@ -14,8 +15,7 @@ public class UpdateCommand extends BaseVaultCommand {
 
     @Override
     public Integer call() {
-        try {
-            VaultOperationResult result = authenticateAndLoadVault();
+        try (VaultOperationResult result = authenticateAndLoadVault()) {
             if (result == null) {
                 return 1;
             }
@@ -34,12 +34,20 @@ public class UpdateCommand extends BaseVaultCommand {
 
             String newUsername = console.readLine("New username (leave blank to keep current): ");
             char[] newPasswordChars = console.readPassword("New password (leave blank to keep current): ");
-            String newPassword = newPasswordChars.length > 0 ? new String(newPasswordChars) : entry.getPassword();
-
-            if (!newUsername.isBlank()) entry.setUsername(newUsername);
-            entry.setPassword(newPassword);
+            char[] newPassword = newPasswordChars.length > 0 ? newPasswordChars : entry.getPassword();
+            boolean updated;
+            try {
+                updated = result.getVault().updateEntry(entryName,
+                        newUsername.isBlank() ? entry.getUsername() : newUsername, newPassword);
+            } finally {
+                SecurityUtils.secureClear(newPassword);
+            }
+            if (!updated) {
+                out.println("Nothing changed: " + entryName + " already has that username and password.");
+                return 0;
+            }
 
-            VaultFile.saveVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
+            VaultFile.commitVault(result.getVault(), VaultPaths.PANDORA_FILE, result.getKey(), result.getSalt());
             out.println("Successfully updated entry: " + entryName);
 
             return 0;
@@ -1,13 +1,22 @@
 package local.pandora.command;
 
 import local.pandora.cloud.VaultCloud;
+import local.pandora.constant.PandoraConstant;
+import local.pandora.exception.InvalidMasterPasswordException;
 import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import local.pandora.security.SecurityUtils;
+import local.pandora.storage.VaultBundle;
+import local.pandora.storage.VaultFile;
 import local.pandora.storage.VaultPaths;
 import picocli.CommandLine;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 import static java.lang.System.*;
 
-@CommandLine.Command(name = "upload", description = "Upload pandora.enc to Google Drive")
+@CommandLine.Command(name = "upload", description = "Upload pandora.enc and its key file to Google Drive")
 public class UploadCommand extends BaseVaultCommand {
 
     @Override
@@ -17,7 +26,32 @@ public class UploadCommand extends BaseVaultCommand {
                 return 1;
             }
 
-            VaultCloud.uploadVault(VaultPaths.PANDORA_FILE);
+            // Recent changes are kept in pandora.wal, which is folded into pandora.enc so they are uploaded too
+            if (Files.exists(VaultPaths.PANDORA_LOG)) {
+                VaultKey vaultKey = deriveVaultKey();
+                if (vaultKey == null) {
+                    return 1;
+                }
+                try {
+                    VaultFile.compactVault(VaultPaths.PANDORA_FILE, vaultKey.key(), vaultKey.salt());
+                    SecurityUtils.recordSuccessfulAttempt();
+                    rememberKey(vaultKey);
+                } catch (InvalidMasterPasswordException e) {
+                    SecurityUtils.recordFailedAttempt();
+                    VaultLogger.warn("Authentication failed: " + e.getMessage());
+                    err.println(e.getMessage());
+                    return 1;
+                }
+            }
+            // The key file goes along, as a vault under a data key opens nowhere without it, and so do the
+            // shard or namespace files of a vault whose pandora.enc only names them
+            Path bundle = VaultPaths.PANDORA_DIR.resolve(PandoraConstant.VAULT_BUNDLE_NAME);
+            try {
+                VaultBundle.write(VaultPaths.PANDORA_FILE, bundle);
+                VaultCloud.uploadVault(bundle);
+            } finally {
+                Files.deleteIfExists(bundle);
+            }
             out.println("Pandora uploaded to Google Drive Successfully");
             return 0;
         } catch (PandoraException e) {
@@ -0,0 +1,98 @@
+package local.pandora.command;
+
+import local.pandora.backup.VaultBackup;
+import local.pandora.config.VaultConfig;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import local.pandora.security.SecurityUtils;
+import local.pandora.storage.VaultPaths;
+import local.pandora.storage.VaultVerifier;
+import picocli.CommandLine;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.lang.System.*;
+
+@CommandLine.Command(name = "verify", description = "Check the vault files for damage, and repair them from backups")
+public class VerifyCommand extends BaseVaultCommand {
+
+    @CommandLine.Option(names = "--backups", description = "Check every backup as well")
+    private boolean backups;
+
+    @CommandLine.Option(names = "--repair", description = "Replace damaged blocks with intact copies from backups, or from the vault for a backup")
+    private boolean repair;
+
+    @Override
+    public Integer call() {
+        try {
+            VaultKey vaultKey = deriveVaultKey();
+            if (vaultKey == null) {
+                return 1;
+            }
+
+            Path backupDir = Paths.get(VaultConfig.getBackupDirectory());
+            List<Path> backupFiles = VaultBackup.listBackups().stream().map(backupDir::resolve).toList();
+
+            List<VaultVerifier.Result> results;
+            try {
+                results = VaultVerifier.verify(VaultPaths.PANDORA_FILE, vaultKey.key(), backupFiles, repair);
+                SecurityUtils.recordSuccessfulAttempt();
+                rememberKey(vaultKey);
+            } catch (InvalidMasterPasswordException e) {
+                SecurityUtils.recordFailedAttempt();
+                VaultLogger.warn("Authentication failed: " + e.getMessage());
+                err.println(e.getMessage());
+                return 1;
+            }
+            boolean intact = print(VaultPaths.PANDORA_DIR, results);
+
+            if (backups) {
+                for (Path backup : backupFiles) {
+                    List<Path> copies = new ArrayList<>();
+                    copies.add(VaultPaths.PANDORA_FILE);
+                    copies.addAll(backupFiles.stream().filter(other -> !other.equals(backup)).toList());
+                    try {
+                        intact &= print(backupDir, VaultVerifier.verify(backup, vaultKey.key(), copies, repair));
+                    } catch (InvalidMasterPasswordException e) {
+                        out.println(VaultConfig.getColoredMessage("✗ " + backup.getFileName()
+                                + ": not encrypted with this master password, or its header is damaged", "error"));
+                        intact = false;
+                    }
+                }
+            }
+            return intact ? 0 : 1;
+        } catch (PandoraException e) {
+            err.println("Error: " + e.getMessage());
+            return 1;
+        } catch (Exception e) {
+            err.println("Unexpected error: " + e.getMessage());
+            return 1;
+        }
+    }
+
+    private boolean print(Path directory, List<VaultVerifier.Result> results) {
+        boolean intact = true;
+        for (VaultVerifier.Result result : results) {
+            String file = directory.relativize(result.file()).toString();
+            String repaired = result.repaired() > 0 ? ", repaired " + result.repaired() + " blocks" : "";
+            if (result.isIntact()) {
+                out.println(VaultConfig.getColoredMessage("✓ " + file + ": " + result.checked() + repaired, "success"));
+                continue;
+            }
+            intact = false;
+            out.println(VaultConfig.getColoredMessage("✗ " + file + ": " + String.join(", ", result.problems())
+                    + repaired, "error"));
+            if (!result.entries().isEmpty()) {
+                out.println("    damaged entries: " + String.join(", ", result.entries()));
+            }
+        }
+        if (!intact && !repair) {
+            out.println("Run with --repair to restore damaged blocks from intact copies.");
+        }
+        return intact;
+    }
+}
@@ -1,5 +1,7 @@
 package local.pandora.config;
 
+import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import local.pandora.exception.PandoraException;
@@ -93,6 +95,10 @@ public class VaultConfig {
         return config.isAutoBackupEnabled();
     }
     
+    public static int getHistoryVersions() {
+        return config.getHistoryVersions();
+    }
+
     public static String getCloudProvider() {
         return config.getCloudProvider();
     }
@@ -101,6 +107,58 @@ public class VaultConfig {
         return config.getCloudSettings();
     }
 
+    public static long getLogCompactionBytes() {
+        return config.getPerformance().getWalMaxBytes();
+    }
+
+    public static int getLogCompactionRecords() {
+        return config.getPerformance().getWalMaxRecords();
+    }
+
+    public static boolean isPagedStorage() {
+        return "paged".equalsIgnoreCase(config.getPerformance().getStorageEngine());
+    }
+
+    public static int getPageCachePages() {
+        return config.getPerformance().getPageCachePages();
+    }
+
+    public static String getCompression() {
+        return config.getPerformance().getCompression();
+    }
+
+    public static int getCompressionThreshold() {
+        return config.getPerformance().getCompressionThreshold();
+    }
+
+    public static int getShardCount() {
+        return config.getPerformance().getShards();
+    }
+
+    public static boolean isNamespaced() {
+        return config.getPerformance().isNamespaces();
+    }
+
+    public static boolean isKeyCachingEnabled() {
+        return config.getPerformance().isCacheEncryptionKeys();
+    }
+
+    public static int getKeyCacheIdleMinutes() {
+        return config.getPerformance().getKeyCacheIdleMinutes();
+    }
+
+    public static int getKeyCacheMaxMinutes() {
+        return config.getPerformance().getKeyCacheMaxMinutes();
+    }
+
+    public static String getKdf() {
+        return config.getPerformance().getKdf();
+    }
+
+    public static int getKdfTargetMillis() {
+        return config.getPerformance().getKdfTargetMillis();
+    }
+
     public static String getColoredMessage(String message, String type) {
         if (!coloredOutput) {
             return message;
@@ -115,16 +173,67 @@ public class VaultConfig {
         };
     }
     
+    // Accepts both the keys written by createDefaultConfig and the snake_case ones of the sample config.yaml
     @Setter
     @Getter
+    @JsonIgnoreProperties(ignoreUnknown = true)
     public static class VaultConfigInstance {
         // Getters and setters
+        @JsonAlias("pandora_directory")
         private String pandoraDirectory = getProperty("user.home") + "/.pandora";
+        @JsonAlias("backup_directory")
         private String backupDirectory = getProperty("user.home") + "/.pandora/backups";
+        @JsonAlias("backup_retention_days")
         private int backupRetentionDays = 30;
+        @JsonAlias("auto_backup_enabled")
         private boolean autoBackupEnabled = true;
+        // Earlier versions kept with every entry an update replaces; 0 keeps none
+        @JsonAlias("history_versions")
+        private int historyVersions = 10;
+        @JsonAlias("cloud_provider")
         private String cloudProvider = "google-drive";
+        @JsonAlias("cloud_settings")
         private Map<String, String> cloudSettings = new HashMap<>();
+        private PerformanceSettings performance = new PerformanceSettings();
 
     }
+
+    @Setter
+    @Getter
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class PerformanceSettings {
+        // Changes are appended to pandora.wal until it grows past either limit, then folded into pandora.enc
+        @JsonAlias("wal_max_bytes")
+        private long walMaxBytes = 4L * 1024 * 1024;
+        @JsonAlias("wal_max_records")
+        private int walMaxRecords = 10_000;
+        // "sealed" keeps sealed records with a log of changes, "paged" a B+tree of encrypted pages;
+        // a vault is converted to the configured engine on its next save
+        @JsonAlias("storage_engine")
+        private String storageEngine = "sealed";
+        // Decrypted pages kept in memory by the paged engine
+        @JsonAlias("page_cache_pages")
+        private int pageCachePages = 1024;
+        // "none" or "deflate"; sealed records are only compressed from this many bytes on
+        private String compression = "none";
+        @JsonAlias("compression_threshold")
+        private int compressionThreshold = 32;
+        // Files the entries are spread over by a keyed hash of their names; 1 keeps them all in pandora.enc
+        private int shards = 1;
+        // Keeps the entries of every namespace, the part of a name before its first slash, in a file of its own
+        private boolean namespaces = false;
+        // Commands ask a running pandora agent for the vault key before prompting, and hand it the key derived
+        @JsonAlias("cache_encryption_keys")
+        private boolean cacheEncryptionKeys = false;
+        // The agent forgets a key unused this long, and any key held this long
+        @JsonAlias("key_cache_idle_minutes")
+        private int keyCacheIdleMinutes = 15;
+        @JsonAlias("key_cache_max_minutes")
+        private int keyCacheMaxMinutes = 480;
+        // "argon2id" or "pbkdf2" for new master passwords, its costs calibrated on this host to take
+        // about the target time; vaults keep theirs until the next passwd
+        private String kdf = "argon2id";
+        @JsonAlias("kdf_target_millis")
+        private int kdfTargetMillis = 250;
+    }
 }
@@ -7,6 +7,8 @@ public class PandoraConstant {
 
     public static final String APPLICATION_NAME = "Pandora";
     public static final String VAULT_FILE_NAME = "pandora.enc";
+    // Vault file along with its key file, as uploaded, see VaultBundle
+    public static final String VAULT_BUNDLE_NAME = "pandora.zip";
     public static final String PANDORA_BACKUP_PREFIX = "pandora_backup_";
 
 
@@ -0,0 +1,296 @@
+package local.pandora.crypto;
+
+import org.bouncycastle.crypto.digests.Blake2bDigest;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Argon2id, version 1.3 (RFC 9106), filling the lanes of every slice in parallel. Lanes only read
+// each other's blocks from earlier slices, so within a slice each lane is filled on a core of its own
+// and the slices of a pass follow each other. Gives the same output as the Argon2 of BouncyCastle,
+// which fills the lanes one after another.
+final class Argon2id {
+
+    private static final int VERSION = 0x13;
+    private static final int TYPE = 2;
+    private static final int SYNC_POINTS = 4;
+    private static final int BLOCK_LONGS = 128;
+    private static final int BLOCK_BYTES = BLOCK_LONGS * 8;
+    private static final int PREHASH_LENGTH = 64;
+
+    private final int lanes;
+    private final int passes;
+    private final int segmentLength;
+    private final int laneLength;
+    private final long[] memory;
+
+    private Argon2id(int memoryKiB, int passes, int lanes) {
+        int blocks = Math.max(memoryKiB, 2 * SYNC_POINTS * lanes);
+        this.lanes = lanes;
+        this.passes = passes;
+        this.segmentLength = blocks / (lanes * SYNC_POINTS);
+        this.laneLength = segmentLength * SYNC_POINTS;
+        long size = (long) laneLength * lanes * BLOCK_LONGS;
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Argon2id memory is too large: " + memoryKiB + " KiB");
+        }
+        this.memory = new long[(int) size];
+    }
+
+    // Derives length bytes from the password; memory in KiB, at least 8 per lane
+    static byte[] derive(byte[] password, byte[] salt, int memoryKiB, int passes, int lanes, int length) {
+        if (lanes < 1 || passes < 1 || memoryKiB < 8 * lanes || length < 4) {
+            throw new IllegalArgumentException("Invalid Argon2id parameters");
+        }
+        Argon2id argon = new Argon2id(memoryKiB, passes, lanes);
+        try {
+            return argon.derive(password, salt, memoryKiB, length);
+        } finally {
+            Arrays.fill(argon.memory, 0);
+        }
+    }
+
+    private byte[] derive(byte[] password, byte[] salt, int memoryKiB, int length) {
+        Blake2bDigest prehash = new Blake2bDigest(PREHASH_LENGTH * 8);
+        for (int value : new int[]{lanes, length, memoryKiB, passes, VERSION, TYPE}) {
+            updateInt(prehash, value);
+        }
+        updateInt(prehash, password.length);
+        prehash.update(password, 0, password.length);
+        updateInt(prehash, salt.length);
+        prehash.update(salt, 0, salt.length);
+        // No secret and no associated data
+        updateInt(prehash, 0);
+        updateInt(prehash, 0);
+        byte[] seed = new byte[PREHASH_LENGTH + 8];
+        prehash.doFinal(seed, 0);
+
+        byte[] block = new byte[BLOCK_BYTES];
+        for (int lane = 0; lane < lanes; lane++) {
+            for (int column = 0; column < 2; column++) {
+                putInt(seed, PREHASH_LENGTH, column);
+                putInt(seed, PREHASH_LENGTH + 4, lane);
+                hash(seed, block);
+                load(block, (lane * laneLength + column) * BLOCK_LONGS);
+            }
+        }
+        Arrays.fill(seed, (byte) 0);
+
+        for (int pass = 0; pass < passes; pass++) {
+            for (int slice = 0; slice < SYNC_POINTS; slice++) {
+                int p = pass;
+                int s = slice;
+                if (lanes == 1) {
+                    fillSegment(p, 0, s);
+                } else {
+                    IntStream.range(0, lanes).parallel().forEach(lane -> fillSegment(p, lane, s));
+                }
+            }
+        }
+
+        long[] last = new long[BLOCK_LONGS];
+        for (int lane = 0; lane < lanes; lane++) {
+            int offset = (lane * laneLength + laneLength - 1) * BLOCK_LONGS;
+            for (int i = 0; i < BLOCK_LONGS; i++) {
+                last[i] ^= memory[offset + i];
+            }
+        }
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            putLong(block, i * 8, last[i]);
+        }
+        byte[] tag = new byte[length];
+        hash(block, tag);
+        Arrays.fill(block, (byte) 0);
+        return tag;
+    }
+
+    private void fillSegment(int pass, int lane, int slice) {
+        boolean independent = pass == 0 && slice < SYNC_POINTS / 2;
+        long[] addresses = null;
+        long[] input = null;
+        long[] zero = null;
+        if (independent) {
+            addresses = new long[BLOCK_LONGS];
+            input = new long[BLOCK_LONGS];
+            zero = new long[BLOCK_LONGS];
+            input[0] = pass;
+            input[1] = lane;
+            input[2] = slice;
+            input[3] = (long) laneLength * lanes;
+            input[4] = passes;
+            input[5] = TYPE;
+        }
+        int start = 0;
+        if (pass == 0 && slice == 0) {
+            start = 2;
+            if (independent) {
+                nextAddresses(addresses, input, zero);
+            }
+        }
+
+        long[] scratch = new long[2 * BLOCK_LONGS];
+        int current = lane * laneLength + slice * segmentLength + start;
+        int previous = current % laneLength == 0 ? current + laneLength - 1 : current - 1;
+        for (int i = start; i < segmentLength; i++, current++, previous++) {
+            if (current % laneLength == 1) {
+                previous = current - 1;
+            }
+            long random;
+            if (independent) {
+                if (i % BLOCK_LONGS == 0) {
+                    nextAddresses(addresses, input, zero);
+                }
+                random = addresses[i % BLOCK_LONGS];
+            } else {
+                random = memory[previous * BLOCK_LONGS];
+            }
+            int referenceLane = (int) ((random >>> 32) % lanes);
+            if (pass == 0 && slice == 0) {
+                referenceLane = lane;
+            }
+            int reference = referenceLane * laneLength
+                    + referenceIndex(pass, slice, i, random & 0xFFFFFFFFL, referenceLane == lane);
+            fill(memory, previous * BLOCK_LONGS, memory, reference * BLOCK_LONGS, memory, current * BLOCK_LONGS,
+                    pass > 0, scratch);
+        }
+    }
+
+    private int referenceIndex(int pass, int slice, int index, long random, boolean sameLane) {
+        long area;
+        if (pass == 0) {
+            if (slice == 0) {
+                area = index - 1;
+            } else if (sameLane) {
+                area = (long) slice * segmentLength + index - 1;
+            } else {
+                area = (long) slice * segmentLength + (index == 0 ? -1 : 0);
+            }
+        } else if (sameLane) {
+            area = laneLength - segmentLength + index - 1;
+        } else {
+            area = laneLength - segmentLength + (index == 0 ? -1 : 0);
+        }
+        long relative = random * random >>> 32;
+        relative = area - 1 - (area * relative >>> 32);
+        long start = pass == 0 || slice == SYNC_POINTS - 1 ? 0 : (long) (slice + 1) * segmentLength;
+        return (int) ((start + relative) % laneLength);
+    }
+
+    private static void nextAddresses(long[] addresses, long[] input, long[] zero) {
+        long[] scratch = new long[2 * BLOCK_LONGS];
+        input[6]++;
+        fill(zero, 0, input, 0, addresses, 0, false, scratch);
+        fill(zero, 0, addresses, 0, addresses, 0, false, scratch);
+    }
+
+    // next = G(previous, reference), xored into what next held on later passes
+    private static void fill(long[] previousBlocks, int previous, long[] referenceBlocks, int reference,
+                             long[] nextBlocks, int next, boolean xor, long[] scratch) {
+        long[] r = scratch;
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            r[i] = previousBlocks[previous + i] ^ referenceBlocks[reference + i];
+            r[BLOCK_LONGS + i] = xor ? r[i] ^ nextBlocks[next + i] : r[i];
+        }
+        for (int row = 0; row < 8; row++) {
+            int b = 16 * row;
+            permute(r, b, b + 1, b + 2, b + 3, b + 4, b + 5, b + 6, b + 7,
+                    b + 8, b + 9, b + 10, b + 11, b + 12, b + 13, b + 14, b + 15);
+        }
+        for (int column = 0; column < 8; column++) {
+            int b = 2 * column;
+            permute(r, b, b + 1, b + 16, b + 17, b + 32, b + 33, b + 48, b + 49,
+                    b + 64, b + 65, b + 80, b + 81, b + 96, b + 97, b + 112, b + 113);
+        }
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            nextBlocks[next + i] = r[BLOCK_LONGS + i] ^ r[i];
+        }
+    }
+
+    private static void permute(long[] v, int v0, int v1, int v2, int v3, int v4, int v5, int v6, int v7,
+                                int v8, int v9, int v10, int v11, int v12, int v13, int v14, int v15) {
+        mix(v, v0, v4, v8, v12);
+        mix(v, v1, v5, v9, v13);
+        mix(v, v2, v6, v10, v14);
+        mix(v, v3, v7, v11, v15);
+        mix(v, v0, v5, v10, v15);
+        mix(v, v1, v6, v11, v12);
+        mix(v, v2, v7, v8, v13);
+        mix(v, v3, v4, v9, v14);
+    }
+
+    // The Blake2b mixing of Argon2, adding twice the product of the low halves to every sum
+    private static void mix(long[] v, int a, int b, int c, int d) {
+        v[a] = blaMka(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 32);
+        v[c] = blaMka(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 24);
+        v[a] = blaMka(v[a], v[b]);
+        v[d] = Long.rotateRight(v[d] ^ v[a], 16);
+        v[c] = blaMka(v[c], v[d]);
+        v[b] = Long.rotateRight(v[b] ^ v[c], 63);
+    }
+
+    private static long blaMka(long x, long y) {
+        return x + y + 2 * (x & 0xFFFFFFFFL) * (y & 0xFFFFFFFFL);
+    }
+
+    // The variable-length hash H' of Argon2: Blake2b up to 64 bytes, a chain of them beyond
+    private static void hash(byte[] input, byte[] out) {
+        if (out.length <= PREHASH_LENGTH) {
+            Blake2bDigest digest = new Blake2bDigest(out.length * 8);
+            updateInt(digest, out.length);
+            digest.update(input, 0, input.length);
+            digest.doFinal(out, 0);
+            return;
+        }
+        byte[] chained = new byte[PREHASH_LENGTH];
+        Blake2bDigest digest = new Blake2bDigest(PREHASH_LENGTH * 8);
+        updateInt(digest, out.length);
+        digest.update(input, 0, input.length);
+        digest.doFinal(chained, 0);
+        System.arraycopy(chained, 0, out, 0, PREHASH_LENGTH / 2);
+        int position = PREHASH_LENGTH / 2;
+        while (out.length - position > PREHASH_LENGTH) {
+            digest.update(chained, 0, PREHASH_LENGTH);
+            digest.doFinal(chained, 0);
+            System.arraycopy(chained, 0, out, position, PREHASH_LENGTH / 2);
+            position += PREHASH_LENGTH / 2;
+        }
+        Blake2bDigest tail = new Blake2bDigest((out.length - position) * 8);
+        tail.update(chained, 0, PREHASH_LENGTH);
+        tail.doFinal(out, position);
+        Arrays.fill(chained, (byte) 0);
+    }
+
+    private void load(byte[] block, int offset) {
+        for (int i = 0; i < BLOCK_LONGS; i++) {
+            memory[offset + i] = getLong(block, i * 8);
+        }
+    }
+
+    private static void updateInt(Blake2bDigest digest, int value) {
+        byte[] bytes = new byte[4];
+        putInt(bytes, 0, value);
+        digest.update(bytes, 0, 4);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        for (int i = 0; i < 4; i++) {
+            bytes[offset + i] = (byte) (value >>> 8 * i);
+        }
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) (value >>> 8 * i);
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
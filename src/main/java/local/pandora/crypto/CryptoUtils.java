@@ -1,13 +1,29 @@
 package local.pandora.crypto;
 
+import local.pandora.exception.InvalidMasterPasswordException;
 import local.pandora.exception.PandoraException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.io.CipherInputStream;
+import org.bouncycastle.crypto.modes.GCMModeCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.KeyGenerator;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class CryptoUtils {
@@ -15,11 +31,13 @@ public class CryptoUtils {
     private CryptoUtils() {}
 
     private static final int AES_KEY_SIZE = 256; // bits
-    private static final int GCM_IV_LENGTH = 12; // bytes (recommended)
-    private static final int GCM_TAG_LENGTH = 128; // bits
+    public static final int GCM_IV_LENGTH = 12; // bytes (recommended)
+    public static final int GCM_TAG_LENGTH = 128; // bits
     private static final String AES_GCM_ALGORITHM = "AES/GCM/NoPadding";
     private static final String AES_ALGORITHM = "AES";
 
+    private static final SecureRandom IV_RANDOM = new SecureRandom();
+
     public static SecretKey generateAesKey() throws NoSuchAlgorithmException {
         KeyGenerator keyGen = KeyGenerator.getInstance(AES_ALGORITHM);
         keyGen.init(AES_KEY_SIZE, SecureRandom.getInstanceStrong());
@@ -77,13 +95,123 @@ public class CryptoUtils {
         }
     }
 
-    private static byte[] generateIv() throws NoSuchAlgorithmException {
+    // Same IV || ciphertext || tag layout as encrypt(), minus the Base64; the tag is written on close()
+    public static OutputStream newEncryptingStream(OutputStream out, SecretKey key) throws IOException {
+        validateStreamInputs(out, key);
+
+        byte[] iv = generateIv();
+        out.write(iv);
+        return newEncryptingStream(out, key, iv, null);
+    }
+
+    // For formats that store the IV themselves; only ciphertext || tag is written to out.
+    // The optional aad is authenticated by the tag but not encrypted.
+    public static OutputStream newEncryptingStream(OutputStream out, SecretKey key, byte[] iv, byte[] aad) {
+        validateStreamInputs(out, key);
+        validateIv(iv);
+
+        try {
+            Cipher cipher = Cipher.getInstance(AES_GCM_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            if (aad != null) {
+                cipher.updateAAD(aad);
+            }
+            return new CipherOutputStream(out, cipher);
+        } catch (GeneralSecurityException e) {
+            throw new PandoraException("Failed to encrypt data", e);
+        }
+    }
+
+    // The JDK's GCM holds back all plaintext until the tag is checked, so decryption goes through
+    // BouncyCastle's streaming GCM instead. The tag is only verified at EOF, so callers must drain
+    // the stream before trusting anything they parsed from it.
+    public static InputStream newDecryptingStream(InputStream in, SecretKey key) throws IOException {
+        validateStreamInputs(in, key);
+
+        byte[] iv = in.readNBytes(GCM_IV_LENGTH);
+        if (iv.length < GCM_IV_LENGTH) {
+            throw new EOFException("Invalid ciphertext length");
+        }
+        return newDecryptingStream(in, key, iv, null);
+    }
+
+    public static InputStream newDecryptingStream(InputStream in, SecretKey key, byte[] iv, byte[] aad) {
+        validateStreamInputs(in, key);
+        validateIv(iv);
+
+        GCMModeCipher cipher = newGcmDecryptor(key, iv);
+        if (aad != null) {
+            cipher.processAADBytes(aad, 0, aad.length);
+        }
+        return new CipherInputStream(in, cipher);
+    }
+
+    private static GCMModeCipher newGcmDecryptor(SecretKey key, byte[] iv) {
+        GCMModeCipher cipher = GCMBlockCipher.newInstance(AESEngine.newInstance());
+        cipher.init(false, new AEADParameters(new KeyParameter(key.getEncoded()), GCM_TAG_LENGTH, iv));
+        return cipher;
+    }
+
+    // Seals a small payload in one shot as IV || ciphertext || tag, binding it to aad
+    public static byte[] seal(byte[] plainText, SecretKey key, byte[] aad) {
+        validateInputs(plainText, key);
+
+        try {
+            byte[] iv = generateIv();
+            Cipher cipher = Cipher.getInstance(AES_GCM_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.updateAAD(aad);
+
+            byte[] sealed = new byte[GCM_IV_LENGTH + cipher.getOutputSize(plainText.length)];
+            System.arraycopy(iv, 0, sealed, 0, GCM_IV_LENGTH);
+            cipher.doFinal(plainText, 0, plainText.length, sealed, GCM_IV_LENGTH);
+            return sealed;
+        } catch (Exception e) {
+            throw new PandoraException("Failed to encrypt data", e);
+        }
+    }
+
+    public static byte[] open(ByteBuffer sealed, SecretKey key, byte[] aad) {
+        validateInputs(sealed, key);
+
+        ByteBuffer input = sealed.duplicate();
+        if (input.remaining() < GCM_IV_LENGTH) {
+            throw new PandoraException("Failed to decrypt data", new IllegalArgumentException("Invalid ciphertext length"));
+        }
+        byte[] iv = new byte[GCM_IV_LENGTH];
+        input.get(iv);
+        return open(input, key, iv, aad);
+    }
+
+    // Counterpart of newEncryptingStream(out, key, iv, aad) for payloads small enough to authenticate
+    // before anything is parsed from them
+    public static byte[] open(ByteBuffer cipherText, SecretKey key, byte[] iv, byte[] aad) {
+        validateInputs(cipherText, key);
+        validateIv(iv);
+
+        try {
+            Cipher cipher = Cipher.getInstance(AES_GCM_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.updateAAD(aad);
+
+            ByteBuffer input = cipherText.duplicate();
+            ByteBuffer output = ByteBuffer.allocate(cipher.getOutputSize(input.remaining()));
+            cipher.doFinal(input, output);
+            return output.hasRemaining() ? Arrays.copyOf(output.array(), output.position()) : output.array();
+        } catch (AEADBadTagException e) {
+            throw new InvalidMasterPasswordException(e);
+        } catch (Exception e) {
+            throw new PandoraException("Failed to decrypt data", e);
+        }
+    }
+
+    public static byte[] generateIv() {
         byte[] iv = new byte[GCM_IV_LENGTH];
-        SecureRandom.getInstanceStrong().nextBytes(iv);
+        IV_RANDOM.nextBytes(iv);
         return iv;
     }
 
-    private static void validateInputs(String text, SecretKey key) {
+    private static void validateInputs(Object text, SecretKey key) {
         if (text == null) {
             throw new IllegalArgumentException("Text cannot be null");
         }
@@ -91,4 +219,19 @@ public class CryptoUtils {
             throw new IllegalArgumentException("Key cannot be null");
         }
     }
+
+    private static void validateIv(byte[] iv) {
+        if (iv == null || iv.length != GCM_IV_LENGTH) {
+            throw new IllegalArgumentException("IV must be " + GCM_IV_LENGTH + " bytes");
+        }
+    }
+
+    private static void validateStreamInputs(Object stream, SecretKey key) {
+        if (stream == null) {
+            throw new IllegalArgumentException("Stream cannot be null");
+        }
+        if (key == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+    }
 }
@@ -1,29 +1,150 @@
 package local.pandora.crypto;
 
 import local.pandora.exception.PandoraException;
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.generators.HKDFBytesGenerator;
+import org.bouncycastle.crypto.params.HKDFParameters;
 
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Locale;
 
 public class KeyDerivation {
 
     private KeyDerivation() {}
 
-    private static final int ITERATIONS = 65536;
+    public static final int DEFAULT_ITERATIONS = 65536;
+    public static final int SALT_LENGTH = 16; // bytes
     private static final int KEY_LENGTH = 256; // bits
-    private static final int SALT_LENGTH = 16; // bytes
     private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
     private static final String KEY_ALGORITHM = "AES";
+    private static final int SUBKEY_LENGTH = 32; // bytes
+    public static final int PBKDF2_HMAC_SHA256 = 1;
+    public static final int ARGON2ID = 2;
+    private static final int CALIBRATION_ITERATIONS = 20_000;
+    private static final int MAX_PBKDF2_ITERATIONS = 10_000_000;
+    private static final int MIN_MEMORY_KIB = 19 * 1024; // OWASP floor for Argon2id
+    // Most memory Argon2id is calibrated to, and allowed to take for a key file
+    public static final int MAX_MEMORY_KIB = 1024 * 1024;
+    private static final int MAX_PASSES = 10;
+    private static final int MAX_LANES = 8;
+
+    // A key derivation function and its costs: iterations of PBKDF2, or passes over memoryKiB of memory in
+    // lanes filled in parallel for Argon2id
+    public record Parameters(int function, int iterations, int memoryKiB, int lanes) {
+        public String describe() {
+            return function == ARGON2ID
+                    ? "argon2id, " + memoryKiB / 1024 + " MiB, " + iterations + " passes, " + lanes + " lanes"
+                    : "pbkdf2, " + iterations + " iterations";
+        }
+    }
 
     public static SecretKey deriveKey(char[] password, byte[] salt) throws Exception {
+        return deriveKey(password, salt, DEFAULT_ITERATIONS);
+    }
+
+    // Derives the key with the function and costs of the parameters
+    public static SecretKey deriveKey(char[] password, byte[] salt, Parameters parameters) throws Exception {
+        if (parameters.function() == PBKDF2_HMAC_SHA256) {
+            return deriveKey(password, salt, parameters.iterations());
+        }
+        if (parameters.function() != ARGON2ID) {
+            throw new PandoraException("Unsupported key derivation function: " + parameters.function());
+        }
+        validateInputs(password, salt);
+        ByteBuffer encoded = StandardCharsets.UTF_8.encode(CharBuffer.wrap(password));
+        byte[] passwordBytes = new byte[encoded.remaining()];
+        encoded.get(passwordBytes);
+        Arrays.fill(encoded.array(), (byte) 0);
+        byte[] keyBytes = null;
+        try {
+            keyBytes = Argon2id.derive(passwordBytes, salt, parameters.memoryKiB(), parameters.iterations(),
+                    parameters.lanes(), KEY_LENGTH / 8);
+            return new SecretKeySpec(keyBytes, KEY_ALGORITHM);
+        } finally {
+            Arrays.fill(passwordBytes, (byte) 0);
+            if (keyBytes != null) {
+                Arrays.fill(keyBytes, (byte) 0);
+            }
+        }
+    }
+
+    // Costs for the function that make deriving a key take about the target time on this host, never
+    // below the floors: for Argon2id the memory doubles while a pass takes less than half the target,
+    // up to a quarter of the heap, then passes fill the target; for PBKDF2 the iterations scale with
+    // the time of a trial run
+    public static Parameters calibrate(int function, Duration target) throws Exception {
+        byte[] salt = new byte[SALT_LENGTH];
+        char[] password = "calibration".toCharArray();
+        long targetNanos = target.toNanos();
+        if (function == PBKDF2_HMAC_SHA256) {
+            deriveKey(password, salt, CALIBRATION_ITERATIONS);
+            long nanos = time(() -> deriveKey(password, salt, CALIBRATION_ITERATIONS));
+            long iterations = CALIBRATION_ITERATIONS * targetNanos / Math.max(nanos, 1);
+            return pbkdf2(Math.clamp(iterations, DEFAULT_ITERATIONS, MAX_PBKDF2_ITERATIONS));
+        }
+        if (function != ARGON2ID) {
+            throw new PandoraException("Unsupported key derivation function: " + function);
+        }
+
+        int lanes = Math.clamp(Runtime.getRuntime().availableProcessors(), 1, MAX_LANES);
+        long maxKiB = Math.clamp(Runtime.getRuntime().maxMemory() / 4 / 1024, MIN_MEMORY_KIB, MAX_MEMORY_KIB);
+        Parameters parameters = argon2id(MIN_MEMORY_KIB, 1, lanes);
+        // Warms up the code paths, so the runs timed are those of a vault being unlocked
+        deriveKey(password, salt, parameters);
+        long nanos = time(() -> deriveKey(password, salt, argon2id(MIN_MEMORY_KIB, 1, lanes)));
+        while (nanos * 2 <= targetNanos && parameters.memoryKiB() * 2L <= maxKiB) {
+            parameters = argon2id(parameters.memoryKiB() * 2, 1, lanes);
+            Parameters trial = parameters;
+            nanos = time(() -> deriveKey(password, salt, trial));
+        }
+        int passes = Math.clamp(Math.round((double) targetNanos / Math.max(nanos, 1)), 1, MAX_PASSES);
+        return argon2id(parameters.memoryKiB(), passes, lanes);
+    }
+
+    public static Parameters pbkdf2(int iterations) {
+        return new Parameters(PBKDF2_HMAC_SHA256, iterations, 0, 1);
+    }
+
+    public static Parameters argon2id(int memoryKiB, int passes, int lanes) {
+        return new Parameters(ARGON2ID, passes, memoryKiB, lanes);
+    }
+
+    public static int functionNamed(String name) {
+        return switch (name.toLowerCase(Locale.ROOT)) {
+            case "pbkdf2" -> PBKDF2_HMAC_SHA256;
+            case "argon2id" -> ARGON2ID;
+            default -> throw new PandoraException("Unknown key derivation function: " + name + ". Use argon2id or pbkdf2.");
+        };
+    }
+
+    private interface Derivation {
+        SecretKey derive() throws Exception;
+    }
+
+    private static long time(Derivation derivation) throws Exception {
+        long start = System.nanoTime();
+        derivation.derive();
+        return System.nanoTime() - start;
+    }
+
+    public static SecretKey deriveKey(char[] password, byte[] salt, int iterations) throws Exception {
         validateInputs(password, salt);
-        
-        PBEKeySpec spec = new PBEKeySpec(password, salt, ITERATIONS, KEY_LENGTH);
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Iterations must be positive");
+        }
+
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, KEY_LENGTH);
         try {
             SecretKeyFactory skf = SecretKeyFactory.getInstance(ALGORITHM);
             byte[] keyBytes = skf.generateSecret(spec).getEncoded();
@@ -35,6 +156,22 @@ public class KeyDerivation {
         }
     }
 
+    // HKDF-SHA256 of the master key; distinct info strings give independent keys for distinct purposes
+    public static SecretKey deriveSubkey(SecretKey key, byte[] salt, String info, String algorithm) {
+        if (key == null || key.getEncoded() == null) {
+            throw new IllegalArgumentException("Key cannot be null");
+        }
+        if (info == null || info.isEmpty()) {
+            throw new IllegalArgumentException("Info cannot be null or empty");
+        }
+
+        HKDFBytesGenerator hkdf = new HKDFBytesGenerator(new SHA256Digest());
+        hkdf.init(new HKDFParameters(key.getEncoded(), salt, info.getBytes(StandardCharsets.UTF_8)));
+        byte[] subkey = new byte[SUBKEY_LENGTH];
+        hkdf.generateBytes(subkey, 0, subkey.length);
+        return new SecretKeySpec(subkey, algorithm);
+    }
+
     public static byte[] generateSalt() throws NoSuchAlgorithmException {
         byte[] salt = new byte[SALT_LENGTH];
         SecureRandom.getInstanceStrong().nextBytes(salt);
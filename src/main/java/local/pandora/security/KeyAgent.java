@@ -0,0 +1,321 @@
+package local.pandora.security;
+
+import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+// Keeps derived vault keys in memory so commands need not run the key derivation every time. The agent
+// listens on a Unix domain socket in a directory only its user can enter, and also turns away peers
+// running as another user. A key is forgotten, its bytes wiped, once unused for the idle time or once
+// held for the maximum time, whichever comes first. Every connection carries one request:
+//   GET id -> found u8 [length u16 | key]    PUT id | length u16 | key -> u8
+//   LOCK -> keys wiped u8                    STOP -> u8
+//   STATUS -> keys u32 | idle ms u64 | max ms u64
+// where the id names the vault file, salt and key derivation a key was derived for, and is a UTF string.
+public final class KeyAgent {
+
+    private static final byte GET = 1;
+    private static final byte PUT = 2;
+    private static final byte LOCK = 3;
+    private static final byte STOP = 4;
+    private static final byte STATUS = 5;
+    private static final String KEY_ALGORITHM = "AES";
+    private static final long SWEEP_MILLIS = 1000;
+
+    private final Path socket;
+    private final long idleMillis;
+    private final long maxMillis;
+    private final Map<String, CachedKey> keys = new HashMap<>();
+    private volatile boolean stopped;
+
+    private KeyAgent(Path socket, Duration idle, Duration max) {
+        this.socket = socket;
+        this.idleMillis = idle.toMillis();
+        this.maxMillis = max.toMillis();
+    }
+
+    // Key bytes, and when they were stored and last handed out
+    private static final class CachedKey {
+        private final byte[] key;
+        private final long stored;
+        private long used;
+
+        private CachedKey(byte[] key, long now) {
+            this.key = key;
+            this.stored = now;
+            this.used = now;
+        }
+    }
+
+    public record Status(int keys, Duration idle, Duration max) {}
+
+    // Serves keys until stopped; fails if another agent already listens on the socket
+    public static void serve(Path socket, Duration idle, Duration max) throws PandoraException {
+        if (isRunning(socket)) {
+            throw new PandoraException("An agent is already running on " + socket);
+        }
+        new KeyAgent(socket, idle, max).serve();
+    }
+
+    // The cached key for the id, or null when no agent runs or it holds none
+    public static SecretKey fetch(Path socket, String id) {
+        return request(socket, GET, out -> out.writeUTF(id), in -> {
+            if (in.readByte() == 0) {
+                return null;
+            }
+            byte[] key = new byte[in.readUnsignedShort()];
+            in.readFully(key);
+            try {
+                return new SecretKeySpec(key, KEY_ALGORITHM);
+            } finally {
+                Arrays.fill(key, (byte) 0);
+            }
+        });
+    }
+
+    // Hands a key to the agent, if one runs
+    public static void store(Path socket, String id, SecretKey key) {
+        byte[] encoded = key.getEncoded();
+        try {
+            request(socket, PUT, out -> {
+                out.writeUTF(id);
+                out.writeShort(encoded.length);
+                out.write(encoded);
+            }, DataInputStream::readByte);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    // Number of keys the agent wiped, or null when no agent runs
+    public static Integer lock(Path socket) {
+        return request(socket, LOCK, out -> {}, in -> in.readUnsignedByte());
+    }
+
+    // Whether an agent was running and stopped
+    public static boolean stop(Path socket) {
+        return request(socket, STOP, out -> {}, DataInputStream::readByte) != null;
+    }
+
+    // What the agent holds, or null when no agent runs
+    public static Status status(Path socket) {
+        return request(socket, STATUS, out -> {}, in -> new Status(in.readInt(),
+                Duration.ofMillis(in.readLong()), Duration.ofMillis(in.readLong())));
+    }
+
+    public static boolean isRunning(Path socket) {
+        return status(socket) != null;
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    // Null when no agent answers: none runs, the socket is stale, or it hung up
+    private static <T> T request(Path socket, byte op, Writer request, Reader<T> response) {
+        if (!Files.exists(socket)) {
+            return null;
+        }
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeByte(op);
+            request.write(out);
+            out.flush();
+            return response.read(new DataInputStream(Channels.newInputStream(channel)));
+        } catch (IOException e) {
+            VaultLogger.debug("Key agent not reachable: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void serve() {
+        try {
+            Path directory = socket.getParent();
+            if (!Files.exists(directory)) {
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(
+                        PosixFilePermissions.fromString("rwx------")));
+            }
+            Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+            // Left behind by an agent that did not get to stop
+            Files.deleteIfExists(socket);
+        } catch (IOException | UnsupportedOperationException e) {
+            throw new PandoraException("Failed to prepare agent socket directory: " + e.getMessage(), e);
+        }
+
+        UserPrincipal owner;
+        try {
+            owner = FileSystems.getDefault().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(System.getProperty("user.name"));
+        } catch (IOException e) {
+            throw new PandoraException("Failed to look up the current user", e);
+        }
+
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            Thread sweeper = Thread.ofPlatform().daemon().name("pandora-agent-sweeper").start(this::sweep);
+            VaultLogger.info("Key agent listening on " + socket);
+            while (!stopped) {
+                SocketChannel channel = server.accept();
+                // One virtual thread per connection, so a client that stalls holds up no other
+                Thread.ofVirtual().start(() -> handle(channel, owner));
+            }
+            sweeper.interrupt();
+        } catch (IOException e) {
+            throw new PandoraException("Key agent failed: " + e.getMessage(), e);
+        } finally {
+            wipe();
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                VaultLogger.warn("Failed to remove agent socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SocketChannel channel, UserPrincipal owner) {
+        try (channel) {
+            if (!sameUser(channel, owner)) {
+                VaultLogger.security("Key agent refused a connection from another user");
+                return;
+            }
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            switch (in.readByte()) {
+                case GET -> {
+                    byte[] key = get(in.readUTF());
+                    if (key == null) {
+                        out.writeByte(0);
+                    } else {
+                        try {
+                            out.writeByte(1);
+                            out.writeShort(key.length);
+                            out.write(key);
+                        } finally {
+                            Arrays.fill(key, (byte) 0);
+                        }
+                    }
+                }
+                case PUT -> {
+                    String id = in.readUTF();
+                    byte[] key = new byte[in.readUnsignedShort()];
+                    in.readFully(key);
+                    put(id, key);
+                    out.writeByte(1);
+                }
+                case LOCK -> out.writeByte(Math.min(255, wipe()));
+                case STOP -> {
+                    stopped = true;
+                    wipe();
+                    out.writeByte(1);
+                    out.flush();
+                    // Wakes the accepting thread so it sees the stop
+                    try (SocketChannel wake = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+                        // Nothing to send
+                    } catch (IOException e) {
+                        // Already closing
+                    }
+                }
+                case STATUS -> {
+                    int held;
+                    synchronized (this) {
+                        held = keys.size();
+                    }
+                    out.writeInt(held);
+                    out.writeLong(idleMillis);
+                    out.writeLong(maxMillis);
+                }
+                default -> VaultLogger.warn("Key agent received an unknown request");
+            }
+            out.flush();
+        } catch (IOException e) {
+            VaultLogger.debug("Key agent connection failed: " + e.getMessage());
+        }
+    }
+
+    // The peer's user, where the platform tells it; the directory permissions keep others out anyway
+    private static boolean sameUser(SocketChannel channel, UserPrincipal owner) {
+        try {
+            UnixDomainPrincipal peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return peer.user().equals(owner);
+        } catch (UnsupportedOperationException | IOException e) {
+            return true;
+        }
+    }
+
+    // A copy of the key, counting as a use
+    private synchronized byte[] get(String id) {
+        CachedKey cached = keys.get(id);
+        long now = System.currentTimeMillis();
+        if (cached == null || expired(cached, now)) {
+            return null;
+        }
+        cached.used = now;
+        return cached.key.clone();
+    }
+
+    private synchronized void put(String id, byte[] key) {
+        CachedKey previous = keys.put(id, new CachedKey(key, System.currentTimeMillis()));
+        if (previous != null) {
+            Arrays.fill(previous.key, (byte) 0);
+        }
+    }
+
+    private boolean expired(CachedKey cached, long now) {
+        return now - cached.used >= idleMillis || now - cached.stored >= maxMillis;
+    }
+
+    private void sweep() {
+        while (!stopped) {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                for (Iterator<CachedKey> it = keys.values().iterator(); it.hasNext(); ) {
+                    CachedKey cached = it.next();
+                    if (expired(cached, now)) {
+                        Arrays.fill(cached.key, (byte) 0);
+                        it.remove();
+                    }
+                }
+            }
+            try {
+                Thread.sleep(SWEEP_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized int wipe() {
+        int wiped = keys.size();
+        keys.values().forEach(cached -> Arrays.fill(cached.key, (byte) 0));
+        keys.clear();
+        return wiped;
+    }
+}
@@ -129,8 +129,8 @@ public class SecurityUtils {
             return false;
         }
         
-        // Allow alphanumeric, spaces, hyphens, underscores, and dots
-        return Pattern.matches("^[a-zA-Z0-9 ._-]+$", name);
+        // Allow alphanumeric, spaces, hyphens, underscores, and dots, with slashes between namespaces and names
+        return Pattern.matches("^[a-zA-Z0-9 ._-]+(/[a-zA-Z0-9 ._-]+)*$", name);
     }
     
     public static String sanitizeEntryName(String name) {
@@ -0,0 +1,87 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// Blind index of the entries of a version 3 vault file: the rows of its sorted index by keyed tokens of
+// their usernames and of the words of their names. A token is the first 8 bytes of an HMAC under a
+// subkey of the vault key over the lower-cased username or word, so the index holds neither, and a
+// search hashes what it looks for and finds the rows with one binary search, without opening a record.
+// The tokens are kept as TokenSets, encrypted in the index after the tags, see NameIndex. Tokens may
+// collide, so the entries found are checked once opened.
+final class BlindIndex {
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String INDEX_INFO = "pandora blind index";
+    private static final byte USER = 'u';
+    private static final byte WORD = 'w';
+
+    private BlindIndex() {}
+
+    // Words of a name: its runs of letters and digits, lower-cased, so "team-a/GitHub.com" has team, a,
+    // github and com
+    static List<String> words(String name) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= name.length(); i++) {
+            boolean inWord = i < name.length() && Character.isLetterOrDigit(name.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                words.add(name.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // Keyed tokens of usernames and words; not thread-safe
+    static final class Tokenizer {
+        private final Mac mac;
+
+        Tokenizer(SecretKey key, byte[] salt) {
+            try {
+                mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(KeyDerivation.deriveSubkey(key, salt, INDEX_INFO, MAC_ALGORITHM));
+            } catch (GeneralSecurityException e) {
+                throw new PandoraException("Failed to initialize blind index", e);
+            }
+        }
+
+        long user(String username) {
+            return token(USER, username);
+        }
+
+        long word(String word) {
+            return token(WORD, word);
+        }
+
+        // Tokens of the username and of the words of the name, for a new row
+        long[] row(String name, String username) {
+            List<String> words = words(name);
+            long[] row = new long[words.size() + (username == null ? 0 : 1)];
+            for (int i = 0; i < words.size(); i++) {
+                row[i] = word(words.get(i));
+            }
+            if (username != null) {
+                row[words.size()] = user(username);
+            }
+            return row;
+        }
+
+        private long token(byte kind, String value) {
+            mac.update(kind);
+            mac.update(value.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(mac.doFinal()).getLong();
+        }
+    }
+}
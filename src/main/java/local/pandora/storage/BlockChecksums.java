@@ -0,0 +1,101 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+// Merkle tree over the blocks of a version 3 vault file. The file stores the SHA-256 of every
+// block, the leaves, and its header the root of the tree over them, under an HMAC keyed with a
+// subkey of the vault key. Blocks hash independently, so a whole file is checked on all cores, and
+// damage is located to the block; a block is repaired from any copy whose hash matches its leaf.
+final class BlockChecksums {
+
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int HASH_LENGTH = 32;
+    static final int MAC_LENGTH = 32;
+    // checksums offset u64 | block size u32 | root | MAC
+    static final int HEADER_SIZE = 8 + 4 + HASH_LENGTH + MAC_LENGTH;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String CHECKSUM_INFO = "pandora block checksums";
+    // Leaves and inner nodes hash differently, so a node cannot pass for a block
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(BlockChecksums::newDigest);
+
+    private BlockChecksums() {}
+
+    static int blockCount(long length, int blockSize) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    // Hashes of the blocks of data, computed in parallel
+    static byte[] leaves(ByteBuffer data, int blockSize) {
+        int count = blockCount(data.limit(), blockSize);
+        byte[] leaves = new byte[count * HASH_LENGTH];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            int offset = i * blockSize;
+            byte[] leaf = leaf(data.slice(offset, Math.min(blockSize, data.limit() - offset)));
+            System.arraycopy(leaf, 0, leaves, i * HASH_LENGTH, HASH_LENGTH);
+        });
+        return leaves;
+    }
+
+    static byte[] leaf(ByteBuffer block) {
+        MessageDigest digest = digests.get();
+        digest.update(LEAF);
+        digest.update(block.duplicate());
+        return digest.digest();
+    }
+
+    // Root of the tree over the leaves; a node without a sibling moves up a level as it is
+    static byte[] root(byte[] leaves) {
+        int count = leaves.length / HASH_LENGTH;
+        byte[] level = leaves.clone();
+        MessageDigest digest = digests.get();
+        while (count > 1) {
+            int parents = (count + 1) / 2;
+            byte[] next = new byte[parents * HASH_LENGTH];
+            for (int i = 0; i < parents; i++) {
+                int left = 2 * i * HASH_LENGTH;
+                if (2 * i + 1 < count) {
+                    digest.update(NODE);
+                    digest.update(level, left, 2 * HASH_LENGTH);
+                    System.arraycopy(digest.digest(), 0, next, i * HASH_LENGTH, HASH_LENGTH);
+                } else {
+                    System.arraycopy(level, left, next, i * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+            level = next;
+            count = parents;
+        }
+        return Arrays.copyOf(level, HASH_LENGTH);
+    }
+
+    // MAC over the header up to and including the root
+    static byte[] authenticate(byte[] header, SecretKey key, byte[] salt) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(KeyDerivation.deriveSubkey(key, salt, CHECKSUM_INFO, MAC_ALGORITHM));
+            return mac.doFinal(header);
+        } catch (GeneralSecurityException e) {
+            throw new PandoraException("Failed to authenticate block checksums", e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new PandoraException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+// Sequence-numbered feed of the entries changed in a vault, kept next to the vault file as
+//   magic "PNDC" | version u16 | frames
+// where each frame is
+//   sequence u64 | length u32 | iv | ciphertext of (op u8 | UTF-8 name) | GCM tag | length u32
+// sealed under a subkey of the vault key, with magic, version and sequence as associated data. Every
+// commit of a vault first appends a frame for each entry changed, or a clear for a vault emptied, with
+// the vault file locked, and a reader reads the vault while holding that lock. So every change a
+// frame names is in the vault the reader sees, unless the commit failed: an entry may show up once
+// more than it changed, never once less. The length closing every frame lets a reader walk back from
+// the end, so reading the changes since a sequence number only reads the frames after it. Every
+// COMPACT_EVERY sequence numbers the feed keeps only the last frame of every name after the last clear.
+// A feed is started on first use with a frame for every entry; one that cannot be read, as after
+// restoring another vault, starts over with a clear and a frame for every entry, its sequence numbers
+// going on. A reader asking past the end of a feed that started over with lower numbers reads it from
+// the start, after a clear numbered 0.
+public final class ChangeFeed {
+
+    private static final int MAGIC = 0x504E4443; // "PNDC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2;
+    private static final int MIN_SEALED_SIZE = CryptoUtils.GCM_IV_LENGTH + CryptoUtils.GCM_TAG_LENGTH / 8;
+    private static final String FEED_INFO = "pandora change feed";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final byte CHANGE = 1;
+    private static final byte CLEAR = 2;
+    private static final long COMPACT_EVERY = 4096;
+
+    private ChangeFeed() {}
+
+    // An entry changed at a sequence number, with the entry as it is now, or null once it was deleted.
+    // A clear has no name, and tells that every entry changed before it was deleted.
+    public record Change(long sequence, String name, VaultEntry entry) {
+        public boolean isClear() {
+            return name == null;
+        }
+    }
+
+    private record Frame(long sequence, byte op, String name) {}
+
+    // Where the intact frames end, and the sequence number of the last; no end for a feed that cannot
+    // be read under the key
+    private record Tail(long end, long sequence) {
+        boolean readable() {
+            return end >= 0;
+        }
+    }
+
+    // The last change of every entry changed after the sequence number, in the order of their sequence
+    // numbers, with the entries as the vault file holds them now. The vault is read with its file
+    // locked, and closed once the action saw every change, which wipes the entries handed to it.
+    public static void read(Path vaultFile, SecretKey key, byte[] salt, long since, Consumer<Change> action)
+            throws PandoraException {
+        Path file = VaultPaths.changesFileFor(vaultFile);
+        SecretKey feedKey = feedKey(key, salt);
+        try (VaultLock lock = VaultLock.acquire(vaultFile);
+             Vault vault = VaultFile.decryptVault(VaultFile.loadVaultContainer(vaultFile), key)) {
+            if (!Files.exists(file) || !tail(map(file), feedKey).readable()) {
+                append(vaultFile, vault, key, salt, new Vault.FeedChanges(false, Set.of()));
+            }
+
+            ByteBuffer feed = map(file);
+            Tail tail = tail(feed, feedKey);
+            // Past the end of the feed: it started over since, so the reader does too
+            boolean restart = since > tail.sequence();
+            if (restart) {
+                since = 0;
+            }
+            List<Frame> newest = new ArrayList<>();
+            for (long position = tail.end(); position > HEADER_SIZE; ) {
+                long start = position - 4 - feed.getInt((int) position - 4) - 12;
+                Frame frame = frame(feed, start, feedKey);
+                if (frame.sequence() <= since) {
+                    break;
+                }
+                newest.add(frame);
+                if (frame.op() == CLEAR) {
+                    break;
+                }
+                position = start;
+            }
+
+            Map<String, Frame> last = new LinkedHashMap<>();
+            Frame clear = null;
+            for (Frame frame : newest) {
+                if (frame.op() == CLEAR) {
+                    clear = frame;
+                } else {
+                    last.putIfAbsent(frame.name(), frame);
+                }
+            }
+            if (clear != null) {
+                action.accept(new Change(clear.sequence(), null, null));
+            } else if (restart) {
+                action.accept(new Change(0, null, null));
+            }
+            List<Frame> changed = new ArrayList<>(last.values());
+            changed.sort(Comparator.comparingLong(Frame::sequence));
+            for (Frame frame : changed) {
+                action.accept(new Change(frame.sequence(), frame.name(), vault.getEntry(frame.name())));
+            }
+        } catch (IOException e) {
+            throw new PandoraException("Failed to read change feed", e);
+        }
+    }
+
+    // Starts the feed over with a clear and a frame for every entry, for a vault file replaced wholesale
+    public static void reset(Path vaultFile, SecretKey key, byte[] salt) throws PandoraException {
+        try (VaultLock lock = VaultLock.acquire(vaultFile);
+             Vault vault = VaultFile.decryptVault(VaultFile.loadVaultContainer(vaultFile), key)) {
+            append(vaultFile, vault, key, salt, new Vault.FeedChanges(true, entryNames(vault)));
+        } catch (IOException e) {
+            throw new PandoraException("Failed to write change feed", e);
+        }
+    }
+
+    // Appends a frame for every change and syncs the feed; the caller holds the lock of the vault file.
+    // A feed not started yet starts with a frame for every entry of the vault.
+    static void append(Path vaultFile, Vault vault, SecretKey key, byte[] salt, Vault.FeedChanges changes)
+            throws IOException {
+        Path file = VaultPaths.changesFileFor(vaultFile);
+        SecretKey feedKey = feedKey(key, salt);
+        Tail tail = Files.exists(file) ? tail(map(file), feedKey) : null;
+
+        List<Frame> frames = new ArrayList<>();
+        long sequence = tail == null ? 0 : tail.sequence();
+        if (tail == null || !tail.readable()) {
+            if (tail != null) {
+                frames.add(new Frame(++sequence, CLEAR, null));
+            }
+            Set<String> names = entryNames(vault);
+            names.addAll(changes.names());
+            for (String name : names) {
+                frames.add(new Frame(++sequence, CHANGE, name));
+            }
+            rewrite(file, frames, feedKey);
+            return;
+        }
+        if (changes.cleared()) {
+            frames.add(new Frame(++sequence, CLEAR, null));
+        }
+        for (String name : new TreeSet<>(changes.names())) {
+            frames.add(new Frame(++sequence, CHANGE, name));
+        }
+        if (frames.isEmpty()) {
+            return;
+        }
+        appendFrames(file, frames, tail.end(), feedKey);
+        if (tail.sequence() / COMPACT_EVERY != sequence / COMPACT_EVERY) {
+            compact(file, feedKey);
+        }
+    }
+
+    // Rewrites the feed with the last frame of every name after the last clear, and that clear
+    private static void compact(Path file, SecretKey feedKey) throws IOException {
+        ByteBuffer feed = map(file);
+        long end = tail(feed, feedKey).end();
+        List<Frame> newest = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (long position = end; position > HEADER_SIZE; ) {
+            long start = position - 4 - feed.getInt((int) position - 4) - 12;
+            Frame frame = frame(feed, start, feedKey);
+            if (frame.op() == CLEAR) {
+                newest.add(frame);
+                break;
+            }
+            if (seen.add(frame.name())) {
+                newest.add(frame);
+            }
+            position = start;
+        }
+        List<Frame> frames = new ArrayList<>(newest);
+        frames.sort(Comparator.comparingLong(Frame::sequence));
+        rewrite(file, frames, feedKey);
+    }
+
+    // A new feed of the frames, written next to the file and moved into place
+    private static void rewrite(Path file, List<Frame> frames, SecretKey feedKey) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(encode(frames, true, feedKey));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(false);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        VaultFile.forceDirectory(file.getParent());
+    }
+
+    // Appends the frames where the intact ones end, over a torn one a crash may have left
+    private static void appendFrames(Path file, List<Frame> frames, long end, SecretKey feedKey) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(end);
+            ByteBuffer bytes = ByteBuffer.wrap(encode(frames, false, feedKey));
+            long position = end;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+            channel.force(false);
+        }
+    }
+
+    private static byte[] encode(List<Frame> frames, boolean header, SecretKey feedKey) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        if (header) {
+            out.write(header());
+        }
+        for (Frame frame : frames) {
+            byte[] name = frame.name() == null ? new byte[0] : frame.name().getBytes(StandardCharsets.UTF_8);
+            byte[] plainText = ByteBuffer.allocate(1 + name.length).put(frame.op()).put(name).array();
+            byte[] sealed = CryptoUtils.seal(plainText, feedKey, associatedData(frame.sequence()));
+            out.writeLong(frame.sequence());
+            out.writeInt(sealed.length);
+            out.write(sealed);
+            out.writeInt(sealed.length);
+        }
+        return buffer.toByteArray();
+    }
+
+    // Checks the last frame only, unless it does not open, as a torn one does; then every frame is
+    // read from the start, and a feed whose first frame does not open is one of another key
+    private static Tail tail(ByteBuffer feed, SecretKey feedKey) {
+        if (feed.limit() < HEADER_SIZE || feed.getInt(0) != MAGIC || feed.getShort(4) != VERSION) {
+            return new Tail(-1, 0);
+        }
+        int size = feed.limit();
+        if (size == HEADER_SIZE) {
+            return new Tail(HEADER_SIZE, 0);
+        }
+        if (size >= HEADER_SIZE + 16 + MIN_SEALED_SIZE) {
+            int length = feed.getInt(size - 4);
+            long start = size - 4L - length - 12;
+            if (start >= HEADER_SIZE && frameEnd(feed, start) == size && opens(feed, start, feedKey)) {
+                return new Tail(size, feed.getLong((int) start));
+            }
+        }
+
+        long position = HEADER_SIZE;
+        long sequence = 0;
+        for (long end; (end = frameEnd(feed, position)) > 0; position = end) {
+            if (!opens(feed, position, feedKey)) {
+                if (position == HEADER_SIZE) {
+                    return new Tail(-1, lastSequence(feed));
+                }
+                break;
+            }
+            sequence = feed.getLong((int) position);
+        }
+        return new Tail(position, sequence);
+    }
+
+    // Sequence number of the last whole frame, opened or not, so a feed started over goes on after it
+    private static long lastSequence(ByteBuffer feed) {
+        long sequence = 0;
+        for (long position = HEADER_SIZE, end; (end = frameEnd(feed, position)) > 0; position = end) {
+            sequence = Math.max(sequence, feed.getLong((int) position));
+        }
+        return sequence;
+    }
+
+    // End of the frame at the position, or -1 unless it is whole
+    private static long frameEnd(ByteBuffer feed, long position) {
+        if (position + 12 > feed.limit()) {
+            return -1;
+        }
+        int length = feed.getInt((int) position + 8);
+        long end = position + 12 + length + 4;
+        if (length < MIN_SEALED_SIZE || end > feed.limit() || feed.getInt((int) end - 4) != length) {
+            return -1;
+        }
+        return end;
+    }
+
+    private static boolean opens(ByteBuffer feed, long position, SecretKey feedKey) {
+        try {
+            frame(feed, position, feedKey);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    private static Frame frame(ByteBuffer feed, long position, SecretKey feedKey) {
+        long sequence = feed.getLong((int) position);
+        int length = feed.getInt((int) position + 8);
+        byte[] plainText = CryptoUtils.open(feed.slice((int) position + 12, length), feedKey, associatedData(sequence));
+        if (plainText.length == 0 || plainText[0] != CHANGE && plainText[0] != CLEAR) {
+            throw new PandoraException("Change feed is corrupted");
+        }
+        String name = plainText[0] == CLEAR ? null
+                : new String(plainText, 1, plainText.length - 1, StandardCharsets.UTF_8);
+        return new Frame(sequence, plainText[0], name);
+    }
+
+    private static Set<String> entryNames(Vault vault) {
+        Set<String> names = new TreeSet<>();
+        for (Iterator<String> all = vault.getEntryNames(null, null); all.hasNext(); ) {
+            names.add(all.next());
+        }
+        return names;
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static SecretKey feedKey(SecretKey key, byte[] salt) {
+        return KeyDerivation.deriveSubkey(key, salt, FEED_INFO, KEY_ALGORITHM);
+    }
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putShort((short) VERSION).array();
+    }
+
+    private static byte[] associatedData(long sequence) {
+        return ByteBuffer.allocate(HEADER_SIZE + 8).put(header()).putLong(sequence).array();
+    }
+}
@@ -0,0 +1,105 @@
+package local.pandora.storage;
+
+import local.pandora.config.VaultConfig;
+import local.pandora.exception.PandoraException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Optional compression of plain text before it is sealed. A compressed block reads
+//   codec u8 | plain length u32 | raw Deflate stream
+// A single record is too short to repeat much of itself, so records are compressed against a preset
+// dictionary of what entry JSON usually holds. Existing records need exactly this dictionary to be
+// read again: changing it takes a new codec id.
+class Compression {
+
+    private Compression() {}
+
+    static final int NONE = 0;
+    static final int DEFLATE = 1;
+
+    private static final int HEADER_SIZE = 1 + 4;
+
+    // Deflate favours the end of the dictionary, so the JSON every record starts with comes last
+    static final byte[] RECORD_DICTIONARY = ("https://www.http://.com.org.net.io/login@gmail.com@outlook.com"
+            + "@yahoo.com@icloud.comadministratoruser{\"username\":\"\",\"password\":\"")
+            .getBytes(StandardCharsets.UTF_8);
+
+    static int configuredCodec() {
+        String codec = VaultConfig.getCompression();
+        if (codec == null || codec.equalsIgnoreCase("none")) {
+            return NONE;
+        }
+        if (codec.equalsIgnoreCase("deflate")) {
+            return DEFLATE;
+        }
+        throw new PandoraException("Unknown compression: " + codec);
+    }
+
+    static boolean isSupported(int codec) {
+        return codec == NONE || codec == DEFLATE;
+    }
+
+    // Plain text that starts with a codec byte is a compressed block; JSON starts with '{' instead
+    static boolean isCompressed(byte[] plainText) {
+        return plainText.length > 0 && plainText[0] == DEFLATE;
+    }
+
+    static byte[] compress(byte[] data, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + data.length / 2 + 16);
+            out.write(DEFLATE);
+            out.writeBytes(ByteBuffer.allocate(4).putInt(data.length).array());
+            byte[] buffer = new byte[Math.min(Math.max(data.length, 64), 64 * 1024)];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] decompress(byte[] block, byte[] dictionary) {
+        if (block.length < HEADER_SIZE || block[0] != DEFLATE) {
+            throw new PandoraException("Unsupported compressed block");
+        }
+        int length = ByteBuffer.wrap(block, 1, 4).getInt();
+        if (length < 0) {
+            throw new PandoraException("Compressed block is corrupted");
+        }
+
+        Inflater inflater = new Inflater(true);
+        try {
+            if (dictionary != null) {
+                inflater.setDictionary(dictionary);
+            }
+            inflater.setInput(block, HEADER_SIZE, block.length - HEADER_SIZE);
+            byte[] data = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int n = inflater.inflate(data, read, length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new PandoraException("Compressed block is corrupted");
+                }
+                read += n;
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new PandoraException("Compressed block is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package local.pandora.storage;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import local.pandora.exception.PandoraException;
+import local.pandora.security.SecurityUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+// Earlier versions of an entry, newest first, kept in its record and so sealed along with it. Each
+// version is stored as the change that turns the version after it back into it: how many chars of
+// the newer password it starts and ends with, the chars in between, and its username only if that
+// differed. A password edited in place costs the edit, a new one its own length, and a version
+// only changing the username no password chars at all. Versions are immutable and shared by the
+// histories of the versions after them.
+public final class EntryHistory {
+
+    private final List<Version> versions;
+
+    private EntryHistory(List<Version> versions) {
+        this.versions = versions;
+    }
+
+    // An earlier version as it was, numbered from 1 for the one right before the current
+    public record Revision(int number, Instant replaced, VaultEntry entry) {}
+
+    // Whether the username and password are those of current already, so replacing it would only push
+    // a real version out of the history for one that changes nothing
+    static boolean isUnchanged(VaultEntry current, String username, char[] password) {
+        char[] previous = current.getPassword();
+        try {
+            return Objects.equals(current.getUsername(), username) && Arrays.equals(previous, password);
+        } finally {
+            SecurityUtils.secureClear(previous);
+        }
+    }
+
+    // History of the entry replacing current with the username and password, keeping at most limit
+    // versions; null for none. Unchanged credentials add no version.
+    static EntryHistory after(VaultEntry current, String username, char[] password, int limit) {
+        if (limit <= 0) {
+            return null;
+        }
+        if (isUnchanged(current, username, password)) {
+            return current.getHistory();
+        }
+        char[] previous = current.getPassword();
+        try {
+            int prefix = 0;
+            int length = Math.min(previous.length, password.length);
+            while (prefix < length && previous[prefix] == password[prefix]) {
+                prefix++;
+            }
+            int suffix = 0;
+            while (suffix < length - prefix
+                    && previous[previous.length - 1 - suffix] == password[password.length - 1 - suffix]) {
+                suffix++;
+            }
+            char[] middle = Arrays.copyOfRange(previous, prefix, previous.length - suffix);
+            Version version;
+            try {
+                version = new Version(Instant.now().getEpochSecond(),
+                        Objects.equals(current.getUsername(), username) ? null : current.getUsername(),
+                        prefix, suffix, Secret.of(middle));
+            } finally {
+                SecurityUtils.secureClear(middle);
+            }
+
+            List<Version> versions = new ArrayList<>();
+            versions.add(version);
+            EntryHistory history = current.getHistory();
+            if (history != null) {
+                versions.addAll(history.versions.subList(0, Math.min(history.versions.size(), limit - 1)));
+            }
+            return new EntryHistory(List.copyOf(versions));
+        } finally {
+            SecurityUtils.secureClear(previous);
+        }
+    }
+
+    int size() {
+        return versions.size();
+    }
+
+    // The versions of the history of current, newest first, with the history each had dropped
+    List<Revision> revisions(VaultEntry current) {
+        List<Revision> revisions = new ArrayList<>(versions.size());
+        String username = current.getUsername();
+        char[] password = current.getPassword();
+        try {
+            for (int i = 0; i < versions.size(); i++) {
+                Version version = versions.get(i);
+                char[] older = version.apply(password);
+                SecurityUtils.secureClear(password);
+                password = older;
+                if (version.username != null) {
+                    username = version.username;
+                }
+                revisions.add(new Revision(i + 1, Instant.ofEpochSecond(version.replaced),
+                        new VaultEntry(username, password)));
+            }
+        } finally {
+            SecurityUtils.secureClear(password);
+        }
+        return revisions;
+    }
+
+    Revision revision(VaultEntry current, int number) {
+        if (number < 1 || number > versions.size()) {
+            throw new PandoraException("No version " + number + " in the history, which holds "
+                    + versions.size());
+        }
+        List<Revision> revisions = revisions(current);
+        revisions.forEach(revision -> {
+            if (revision.number() != number) {
+                revision.entry().destroy();
+            }
+        });
+        return revisions.get(number - 1);
+    }
+
+    void destroy() {
+        versions.forEach(version -> version.middle.destroy());
+    }
+
+    @JsonValue
+    private List<Version> getVersions() {
+        return versions;
+    }
+
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    private static EntryHistory read(List<Version> versions) {
+        return versions == null || versions.isEmpty() ? null : new EntryHistory(List.copyOf(versions));
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_DEFAULT)
+    static final class Version {
+        // Epoch second the version was replaced at
+        @JsonProperty("t")
+        private final long replaced;
+        @JsonProperty("u")
+        private final String username;
+        @JsonProperty("p")
+        private final int prefix;
+        @JsonProperty("s")
+        private final int suffix;
+        private final Secret middle;
+
+        private Version(long replaced, String username, int prefix, int suffix, Secret middle) {
+            this.replaced = replaced;
+            this.username = username;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.middle = middle;
+        }
+
+        // Clears the chars Jackson decoded once they are copied
+        @JsonCreator
+        private static Version read(@JsonProperty("t") long replaced, @JsonProperty("u") String username,
+                                    @JsonProperty("p") int prefix, @JsonProperty("s") int suffix,
+                                    @JsonProperty("d") char[] middle) {
+            char[] chars = middle == null ? new char[0] : middle;
+            try {
+                return new Version(replaced, username, prefix, suffix, Secret.of(chars));
+            } finally {
+                SecurityUtils.secureClear(chars);
+            }
+        }
+
+        @JsonProperty("d")
+        @JsonSerialize(using = VaultEntry.ClearingSerializer.class)
+        private char[] getMiddle() {
+            return middle.reveal();
+        }
+
+        // The password of this version from that of the version after it
+        private char[] apply(char[] newer) {
+            if (prefix + suffix > newer.length) {
+                throw new PandoraException("Entry history is corrupted");
+            }
+            char[] chars = middle.reveal();
+            try {
+                char[] older = new char[prefix + chars.length + suffix];
+                System.arraycopy(newer, 0, older, 0, prefix);
+                System.arraycopy(chars, 0, older, prefix, chars.length);
+                System.arraycopy(newer, newer.length - suffix, older, prefix + chars.length, suffix);
+                return older;
+            } finally {
+                SecurityUtils.secureClear(chars);
+            }
+        }
+    }
+}
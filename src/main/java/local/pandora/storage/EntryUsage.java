@@ -0,0 +1,125 @@
+package local.pandora.storage;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+// How often and how lately every entry was used, so finding entries ranks those used most and last
+// first. Kept next to the vault file as
+//   magic "PNDU" | version u16 | iv | ciphertext of JSON {name: [uses, last use in epoch seconds]} | GCM tag
+// sealed under a subkey of the vault key, with magic and version as associated data. It only ranks:
+// a use is recorded by rewriting the whole file, one recorded by another process meanwhile may be
+// lost, and a file that cannot be read counts as no uses at all.
+public final class EntryUsage {
+
+    private static final int MAGIC = 0x504E4455; // "PNDU"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2;
+    private static final String USAGE_INFO = "pandora usage";
+    private static final String KEY_ALGORITHM = "AES";
+    // Names kept at most, the lowest scores going first
+    private static final int MAX_NAMES = 10_000;
+    private static final double HALF_LIFE_DAYS = 14;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final Path file;
+    private final SecretKey usageKey;
+    private final Map<String, long[]> uses;
+
+    private EntryUsage(Path file, SecretKey usageKey, Map<String, long[]> uses) {
+        this.file = file;
+        this.usageKey = usageKey;
+        this.uses = uses;
+    }
+
+    public static EntryUsage load(Path vaultFile, SecretKey key, byte[] salt) {
+        Path file = VaultPaths.usageFileFor(vaultFile);
+        SecretKey usageKey = KeyDerivation.deriveSubkey(key, salt, USAGE_INFO, KEY_ALGORITHM);
+        Map<String, long[]> uses = new HashMap<>();
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (bytes.remaining() >= HEADER_SIZE && bytes.getInt() == MAGIC && bytes.getShort() == VERSION) {
+                byte[] plain = CryptoUtils.open(bytes, usageKey, header());
+                uses.putAll(mapper.readValue(plain, new TypeReference<Map<String, long[]>>() {}));
+                uses.values().removeIf(use -> use == null || use.length != 2);
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing used yet
+        } catch (IOException | InvalidMasterPasswordException | PandoraException e) {
+            // Written under another key or damaged; ranking starts over
+            uses.clear();
+        }
+        return new EntryUsage(file, usageKey, uses);
+    }
+
+    // Seals the use counts kept under one key again under another, for a vault moved to a new key
+    static void rekey(Path vaultFile, SecretKey key, byte[] salt, SecretKey newKey, byte[] newSalt) {
+        if (!Files.exists(VaultPaths.usageFileFor(vaultFile))) {
+            return;
+        }
+        EntryUsage usage = load(vaultFile, key, salt);
+        new EntryUsage(usage.file, KeyDerivation.deriveSubkey(newKey, newSalt, USAGE_INFO, KEY_ALGORITHM), usage.uses)
+                .save();
+    }
+
+    // Score of every name used: more for more uses, halving every two weeks since the last
+    public Map<String, Double> scores() {
+        long now = Instant.now().getEpochSecond();
+        Map<String, Double> scores = new HashMap<>();
+        uses.forEach((name, use) -> scores.put(name, score(use, now)));
+        return scores;
+    }
+
+    // Counts a use of the entry now and writes the file
+    public void recordUse(String name) {
+        long[] use = uses.computeIfAbsent(name, n -> new long[2]);
+        use[0]++;
+        use[1] = Instant.now().getEpochSecond();
+        if (uses.size() > MAX_NAMES) {
+            long now = use[1];
+            uses.entrySet().stream()
+                    .sorted(Comparator.comparingDouble(entry -> score(entry.getValue(), now)))
+                    .limit(uses.size() - MAX_NAMES)
+                    .map(Map.Entry::getKey)
+                    .toList()
+                    .forEach(uses::remove);
+        }
+        save();
+    }
+
+    private void save() {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            byte[] sealed = CryptoUtils.seal(mapper.writeValueAsBytes(uses), usageKey, header());
+            Files.write(temp, ByteBuffer.allocate(HEADER_SIZE + sealed.length).put(header()).put(sealed).array());
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to write entry usage", e);
+        }
+    }
+
+    private static double score(long[] use, long now) {
+        double days = Math.max(0, now - use[1]) / 86_400.0;
+        return (1 + Math.log1p(use[0])) * Math.pow(0.5, days / HALF_LIFE_DAYS);
+    }
+
+    private static byte[] header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putShort((short) VERSION).array();
+    }
+}
@@ -0,0 +1,460 @@
+package local.pandora.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+// Immutable hash array mapped trie. Every node branches on five bits of the key's hash and keeps
+// the keys it holds itself before the nodes below it:
+//   array = k0 | v0 | k1 | v1 | ... | node for the highest bit in nodeMap | ... | node for the lowest
+// A change copies only the nodes on the path to its key and shares the rest, so a trie is a snapshot
+// that stays as it is while newer ones are made from it. Keys whose hashes are equal in all 32 bits
+// end up together in a node past the last level, kept as a plain list of pairs. Values may be null.
+final class HashTrie<K, V> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final Object MISSING = new Object();
+    private static final HashTrie<?, ?> EMPTY = new HashTrie<>(new Node(null, 0, 0, new Object[0]), 0);
+
+    private final Node root;
+    private final int size;
+
+    private HashTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <K, V> HashTrie<K, V> empty() {
+        return (HashTrie<K, V>) EMPTY;
+    }
+
+    static <K, V> Builder<K, V> builder() {
+        return new Builder<>(empty());
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+        Object value = root.find(key, hash(key), 0);
+        return value == MISSING ? null : (V) value;
+    }
+
+    boolean containsKey(Object key) {
+        return root.find(key, hash(key), 0) != MISSING;
+    }
+
+    HashTrie<K, V> with(K key, V value) {
+        Change change = new Change();
+        Node node = root.put(key, hash(key), value, 0, null, change);
+        return node == root ? this : new HashTrie<>(node, change.added ? size + 1 : size);
+    }
+
+    HashTrie<K, V> without(K key) {
+        Change change = new Change();
+        Node node = root.remove(key, hash(key), 0, null, change);
+        return change.removed ? new HashTrie<>(node, size - 1) : this;
+    }
+
+    Builder<K, V> toBuilder() {
+        return new Builder<>(this);
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(BiConsumer<? super K, ? super V> action) {
+        root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    // Read-only view of the keys, backed by this trie
+    Set<K> keySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object key) {
+                return containsKey(key);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Iterator<K> iterator() {
+                return new Cursor<>(root, (key, value) -> (K) key);
+            }
+        };
+    }
+
+    // Read-only view backed by this trie, with every value as the function makes it of its key and value
+    <R> Map<K, R> asMap(BiFunction<? super K, ? super V, ? extends R> view) {
+        return new AbstractMap<>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return HashTrie.this.containsKey(key);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public R get(Object key) {
+                Object value = root.find(key, hash(key), 0);
+                return value == MISSING ? null : view.apply((K) key, (V) value);
+            }
+
+            @Override
+            public Set<Entry<K, R>> entrySet() {
+                return new AbstractSet<>() {
+                    @Override
+                    public int size() {
+                        return size;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public Iterator<Entry<K, R>> iterator() {
+                        return new Cursor<>(root, (key, value) ->
+                                new SimpleImmutableEntry<>((K) key, view.apply((K) key, (V) value)));
+                    }
+                };
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void forEach(BiConsumer<? super K, ? super R> action) {
+                root.forEach((key, value) -> action.accept((K) key, view.apply((K) key, (V) value)));
+            }
+        };
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        // Strings of similar names differ mostly in their low bits; spread them over the upper levels too
+        return h ^ (h >>> 16);
+    }
+
+    // Makes many changes in place on nodes only it has made, for building a trie in one go. Whatever
+    // it was made from, and every trie it built before, stays unchanged.
+    static final class Builder<K, V> {
+        private Object edit = new Object();
+        private Node root;
+        private int size;
+
+        private Builder(HashTrie<K, V> from) {
+            this.root = from.root;
+            this.size = from.size;
+        }
+
+        Builder<K, V> put(K key, V value) {
+            Change change = new Change();
+            root = root.put(key, hash(key), value, 0, edit, change);
+            if (change.added) {
+                size++;
+            }
+            return this;
+        }
+
+        Builder<K, V> remove(K key) {
+            Change change = new Change();
+            root = root.remove(key, hash(key), 0, edit, change);
+            if (change.removed) {
+                size--;
+            }
+            return this;
+        }
+
+        HashTrie<K, V> build() {
+            // Nodes handed out may no longer be changed in place
+            edit = new Object();
+            return new HashTrie<>(root, size);
+        }
+    }
+
+    private static final class Change {
+        boolean added;
+        boolean removed;
+    }
+
+    private static final class Node {
+        // Builder allowed to change this node in place, or null once it is shared
+        private final Object edit;
+        private int dataMap;
+        private int nodeMap;
+        private Object[] array;
+
+        Node(Object edit, int dataMap, int nodeMap, Object[] array) {
+            this.edit = edit;
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.array = array;
+        }
+
+        // Pairs held by this node itself; a node past the last level holds nothing but pairs
+        int pairs() {
+            return dataMap == 0 && nodeMap == 0 ? array.length / 2 : Integer.bitCount(dataMap);
+        }
+
+        Object find(Object key, int hash, int shift) {
+            Node node = this;
+            while (shift < Integer.SIZE) {
+                int bit = bit(hash, shift);
+                if ((node.dataMap & bit) != 0) {
+                    int i = 2 * index(node.dataMap, bit);
+                    return key.equals(node.array[i]) ? node.array[i + 1] : MISSING;
+                }
+                if ((node.nodeMap & bit) == 0) {
+                    return MISSING;
+                }
+                node = node.subnode(bit);
+                shift += BITS;
+            }
+            for (int i = 0; i < node.array.length; i += 2) {
+                if (key.equals(node.array[i])) {
+                    return node.array[i + 1];
+                }
+            }
+            return MISSING;
+        }
+
+        Node put(Object key, int hash, Object value, int shift, Object edit, Change change) {
+            if (shift >= Integer.SIZE) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (key.equals(array[i])) {
+                        return array[i + 1] == value ? this : withValue(i + 1, value, edit);
+                    }
+                }
+                change.added = true;
+                Object[] grown = new Object[array.length + 2];
+                System.arraycopy(array, 0, grown, 0, array.length);
+                grown[array.length] = key;
+                grown[array.length + 1] = value;
+                return with(0, 0, grown, edit);
+            }
+
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = 2 * index(dataMap, bit);
+                Object present = array[i];
+                if (key.equals(present)) {
+                    return array[i + 1] == value ? this : withValue(i + 1, value, edit);
+                }
+                // Both keys move one level down
+                change.added = true;
+                Node pair = pair(present, hash(present), array[i + 1], key, hash, value, shift + BITS, edit);
+                return pushDown(bit, pair, edit);
+            }
+            if ((nodeMap & bit) != 0) {
+                Node subnode = subnode(bit);
+                Node changed = subnode.put(key, hash, value, shift + BITS, edit, change);
+                return changed == subnode ? this : withValue(nodeSlot(bit), changed, edit);
+            }
+
+            change.added = true;
+            int i = 2 * index(dataMap, bit);
+            Object[] grown = new Object[array.length + 2];
+            System.arraycopy(array, 0, grown, 0, i);
+            grown[i] = key;
+            grown[i + 1] = value;
+            System.arraycopy(array, i, grown, i + 2, array.length - i);
+            return with(dataMap | bit, nodeMap, grown, edit);
+        }
+
+        Node remove(Object key, int hash, int shift, Object edit, Change change) {
+            if (shift >= Integer.SIZE) {
+                for (int i = 0; i < array.length; i += 2) {
+                    if (key.equals(array[i])) {
+                        change.removed = true;
+                        return with(0, 0, without(array, i, 2), edit);
+                    }
+                }
+                return this;
+            }
+
+            int bit = bit(hash, shift);
+            if ((dataMap & bit) != 0) {
+                int i = 2 * index(dataMap, bit);
+                if (!key.equals(array[i])) {
+                    return this;
+                }
+                change.removed = true;
+                return with(dataMap & ~bit, nodeMap, without(array, i, 2), edit);
+            }
+            if ((nodeMap & bit) == 0) {
+                return this;
+            }
+
+            Node subnode = subnode(bit);
+            Node changed = subnode.remove(key, hash, shift + BITS, edit, change);
+            if (changed == subnode) {
+                return this;
+            }
+            if (changed.array.length == 0) {
+                return with(dataMap, nodeMap & ~bit, without(array, nodeSlot(bit), 1), edit);
+            }
+            if (changed.array.length == 2 && changed.nodeMap == 0) {
+                // A single pair left below moves up into this node
+                return pullUp(bit, changed.array[0], changed.array[1], edit);
+            }
+            return withValue(nodeSlot(bit), changed, edit);
+        }
+
+        void forEach(BiConsumer<Object, Object> action) {
+            int pairs = pairs();
+            for (int i = 0; i < 2 * pairs; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+            for (int i = array.length - 1; i >= 2 * pairs; i--) {
+                ((Node) array[i]).forEach(action);
+            }
+        }
+
+        private Node subnode(int bit) {
+            return (Node) array[nodeSlot(bit)];
+        }
+
+        private int nodeSlot(int bit) {
+            return array.length - 1 - index(nodeMap, bit);
+        }
+
+        private Node pushDown(int bit, Node subnode, Object edit) {
+            int i = 2 * index(dataMap, bit);
+            int dataEnd = 2 * Integer.bitCount(dataMap);
+            int newNodeMap = nodeMap | bit;
+            // Subnodes run back from the end of the array in the order of their bits
+            Object[] changed = new Object[array.length - 1];
+            int slot = changed.length - 1 - index(newNodeMap, bit);
+            System.arraycopy(array, 0, changed, 0, i);
+            System.arraycopy(array, i + 2, changed, i, slot - i);
+            changed[slot] = subnode;
+            System.arraycopy(array, slot + 2, changed, slot + 1, changed.length - slot - 1);
+            return with(dataMap & ~bit, newNodeMap, changed, edit);
+        }
+
+        private Node pullUp(int bit, Object key, Object value, Object edit) {
+            int nodeSlot = nodeSlot(bit);
+            int newDataMap = dataMap | bit;
+            int i = 2 * index(newDataMap, bit);
+            Object[] changed = new Object[array.length + 1];
+            System.arraycopy(array, 0, changed, 0, i);
+            changed[i] = key;
+            changed[i + 1] = value;
+            System.arraycopy(array, i, changed, i + 2, nodeSlot - i);
+            System.arraycopy(array, nodeSlot + 1, changed, nodeSlot + 2, array.length - nodeSlot - 1);
+            return with(newDataMap, nodeMap & ~bit, changed, edit);
+        }
+
+        private Node withValue(int slot, Object value, Object edit) {
+            if (edit != null && this.edit == edit) {
+                array[slot] = value;
+                return this;
+            }
+            Object[] copy = array.clone();
+            copy[slot] = value;
+            return new Node(edit, dataMap, nodeMap, copy);
+        }
+
+        private Node with(int dataMap, int nodeMap, Object[] array, Object edit) {
+            if (edit != null && this.edit == edit) {
+                this.dataMap = dataMap;
+                this.nodeMap = nodeMap;
+                this.array = array;
+                return this;
+            }
+            return new Node(edit, dataMap, nodeMap, array);
+        }
+
+        private static Node pair(Object key1, int hash1, Object value1, Object key2, int hash2, Object value2,
+                                 int shift, Object edit) {
+            if (shift >= Integer.SIZE) {
+                return new Node(edit, 0, 0, new Object[] {key1, value1, key2, value2});
+            }
+            int bit1 = bit(hash1, shift);
+            int bit2 = bit(hash2, shift);
+            if (bit1 == bit2) {
+                Node below = pair(key1, hash1, value1, key2, hash2, value2, shift + BITS, edit);
+                return new Node(edit, 0, bit1, new Object[] {below});
+            }
+            Object[] array = Integer.compareUnsigned(bit1, bit2) < 0
+                    ? new Object[] {key1, value1, key2, value2}
+                    : new Object[] {key2, value2, key1, value1};
+            return new Node(edit, bit1 | bit2, 0, array);
+        }
+
+        private static Object[] without(Object[] array, int from, int count) {
+            Object[] shrunk = new Object[array.length - count];
+            System.arraycopy(array, 0, shrunk, 0, from);
+            System.arraycopy(array, from + count, shrunk, from, array.length - from - count);
+            return shrunk;
+        }
+
+        private static int bit(int hash, int shift) {
+            return 1 << ((hash >>> shift) & MASK);
+        }
+
+        private static int index(int map, int bit) {
+            return Integer.bitCount(map & (bit - 1));
+        }
+    }
+
+    // Walks the pairs of a trie depth first, one node at a time
+    private static final class Cursor<T> implements Iterator<T> {
+        private final Deque<Node> nodes = new ArrayDeque<>();
+        private final BiFunction<Object, Object, T> make;
+        private Node node;
+        private int next;
+        private int pairs;
+
+        Cursor(Node root, BiFunction<Object, Object, T> make) {
+            this.make = make;
+            enter(root);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == pairs) {
+                if (nodes.isEmpty()) {
+                    return false;
+                }
+                enter(nodes.pop());
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int i = 2 * next++;
+            return make.apply(node.array[i], node.array[i + 1]);
+        }
+
+        private void enter(Node entered) {
+            node = entered;
+            next = 0;
+            pairs = entered.pairs();
+            for (int i = 2 * pairs; i < entered.array.length; i++) {
+                nodes.push((Node) entered.array[i]);
+            }
+        }
+    }
+}
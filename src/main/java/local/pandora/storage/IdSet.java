@@ -0,0 +1,472 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+// Sorted set of non-negative ints laid out as roaring bitmaps do: the ids are grouped by their high
+// 16 bits, and each group keeps its low 16 bits as a sorted char array while it holds at most 4096
+// of them, and as a 65536-bit bitmap once it holds more, whichever is smaller. Sets are intersected
+// group by group, arrays by galloping through the larger one and bitmaps a word at a time. Immutable.
+final class IdSet {
+
+    static final IdSet EMPTY = new IdSet(new char[0], new Object[0], 0);
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 16 >>> 6;
+    private static final byte ARRAY = 0;
+    private static final byte BITMAP = 1;
+
+    private final char[] keys;
+    // char[] or long[] for every key
+    private final Object[] containers;
+    private final int cardinality;
+
+    private IdSet(char[] keys, Object[] containers, int cardinality) {
+        this.keys = keys;
+        this.containers = containers;
+        this.cardinality = cardinality;
+    }
+
+    // Set of the ids, which must be sorted and distinct
+    static IdSet of(int[] ids, int count) {
+        int groups = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || ids[i] >>> 16 != ids[i - 1] >>> 16) {
+                groups++;
+            }
+        }
+        char[] keys = new char[groups];
+        Object[] containers = new Object[groups];
+        int group = 0;
+        for (int start = 0; start < count; group++) {
+            int key = ids[start] >>> 16;
+            int end = start;
+            while (end < count && ids[end] >>> 16 == key) {
+                end++;
+            }
+            char[] lows = new char[end - start];
+            for (int i = start; i < end; i++) {
+                lows[i - start] = (char) ids[i];
+            }
+            keys[group] = (char) key;
+            containers[group] = compact(lows, lows.length);
+            start = end;
+        }
+        return new IdSet(keys, containers, count);
+    }
+
+    int cardinality() {
+        return cardinality;
+    }
+
+    boolean isEmpty() {
+        return cardinality == 0;
+    }
+
+    boolean contains(int id) {
+        int group = Arrays.binarySearch(keys, (char) (id >>> 16));
+        if (group < 0) {
+            return false;
+        }
+        Object container = containers[group];
+        if (container instanceof long[] bits) {
+            return (bits[(char) id >>> 6] & 1L << id) != 0;
+        }
+        return Arrays.binarySearch((char[]) container, (char) id) >= 0;
+    }
+
+    IdSet and(IdSet other) {
+        char[] resultKeys = new char[Math.min(keys.length, other.keys.length)];
+        Object[] resultContainers = new Object[resultKeys.length];
+        int groups = 0;
+        int total = 0;
+        for (int i = 0, j = 0; i < keys.length && j < other.keys.length; ) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Object container = and(containers[i], other.containers[j]);
+                int size = size(container);
+                if (size > 0) {
+                    resultKeys[groups] = keys[i];
+                    resultContainers[groups++] = container;
+                    total += size;
+                }
+                i++;
+                j++;
+            }
+        }
+        return new IdSet(Arrays.copyOf(resultKeys, groups), Arrays.copyOf(resultContainers, groups), total);
+    }
+
+    IdSet or(IdSet other) {
+        char[] resultKeys = new char[keys.length + other.keys.length];
+        Object[] resultContainers = new Object[resultKeys.length];
+        int groups = 0;
+        int total = 0;
+        int i = 0;
+        int j = 0;
+        while (i < keys.length || j < other.keys.length) {
+            Object container;
+            char key;
+            if (j == other.keys.length || i < keys.length && keys[i] < other.keys[j]) {
+                key = keys[i];
+                container = containers[i++];
+            } else if (i == keys.length || keys[i] > other.keys[j]) {
+                key = other.keys[j];
+                container = other.containers[j++];
+            } else {
+                key = keys[i];
+                container = or(containers[i++], other.containers[j++]);
+            }
+            resultKeys[groups] = key;
+            resultContainers[groups++] = container;
+            total += size(container);
+        }
+        return new IdSet(Arrays.copyOf(resultKeys, groups), Arrays.copyOf(resultContainers, groups), total);
+    }
+
+    // Union of many sets, each group gathered in one bitmap rather than merged set by set
+    static IdSet union(List<IdSet> sets) {
+        if (sets.size() <= 2) {
+            return sets.isEmpty() ? EMPTY : sets.size() == 1 ? sets.get(0) : sets.get(0).or(sets.get(1));
+        }
+        TreeMap<Character, long[]> groups = new TreeMap<>();
+        for (IdSet set : sets) {
+            for (int group = 0; group < set.keys.length; group++) {
+                long[] bits = groups.computeIfAbsent(set.keys[group], key -> new long[BITMAP_WORDS]);
+                Object container = set.containers[group];
+                if (container instanceof long[] other) {
+                    for (int word = 0; word < bits.length; word++) {
+                        bits[word] |= other[word];
+                    }
+                } else {
+                    for (char low : (char[]) container) {
+                        bits[low >>> 6] |= 1L << low;
+                    }
+                }
+            }
+        }
+        char[] keys = new char[groups.size()];
+        Object[] containers = new Object[keys.length];
+        int group = 0;
+        int total = 0;
+        for (Map.Entry<Character, long[]> entry : groups.entrySet()) {
+            keys[group] = entry.getKey();
+            containers[group] = compact(entry.getValue());
+            total += size(containers[group++]);
+        }
+        return new IdSet(keys, containers, total);
+    }
+
+    // For every count up to the number of sets, the ids held by exactly that many of them; each group
+    // is counted in one array of 65536 counters
+    static IdSet[] byCount(List<IdSet> sets) {
+        TreeMap<Character, List<Object>> groups = new TreeMap<>();
+        for (IdSet set : sets) {
+            for (int group = 0; group < set.keys.length; group++) {
+                groups.computeIfAbsent(set.keys[group], key -> new ArrayList<>()).add(set.containers[group]);
+            }
+        }
+        int most = sets.size();
+        List<List<Character>> keys = new ArrayList<>();
+        List<List<Object>> containers = new ArrayList<>();
+        for (int count = 0; count <= most; count++) {
+            keys.add(new ArrayList<>());
+            containers.add(new ArrayList<>());
+        }
+        char[] counts = new char[1 << 16];
+        int[] sizes = new int[most + 1];
+        char[][] lows = new char[most + 1][];
+        for (Map.Entry<Character, List<Object>> entry : groups.entrySet()) {
+            Arrays.fill(counts, (char) 0);
+            for (Object container : entry.getValue()) {
+                if (container instanceof long[] bits) {
+                    for (int word = 0; word < bits.length; word++) {
+                        for (long w = bits[word]; w != 0; w &= w - 1) {
+                            counts[word << 6 | Long.numberOfTrailingZeros(w)]++;
+                        }
+                    }
+                } else {
+                    for (char low : (char[]) container) {
+                        counts[low]++;
+                    }
+                }
+            }
+            Arrays.fill(sizes, 0);
+            for (int low = 0; low < counts.length; low++) {
+                int count = counts[low];
+                if (count > 0) {
+                    if (lows[count] == null) {
+                        lows[count] = new char[1 << 16];
+                    }
+                    lows[count][sizes[count]++] = (char) low;
+                }
+            }
+            for (int count = 1; count <= most; count++) {
+                if (sizes[count] > 0) {
+                    keys.get(count).add(entry.getKey());
+                    containers.get(count).add(compact(lows[count], sizes[count]));
+                }
+            }
+        }
+        IdSet[] byCount = new IdSet[most + 1];
+        byCount[0] = EMPTY;
+        for (int count = 1; count <= most; count++) {
+            char[] countKeys = new char[keys.get(count).size()];
+            int total = 0;
+            for (int group = 0; group < countKeys.length; group++) {
+                countKeys[group] = keys.get(count).get(group);
+                total += size(containers.get(count).get(group));
+            }
+            byCount[count] = new IdSet(countKeys, containers.get(count).toArray(), total);
+        }
+        return byCount;
+    }
+
+    // Every id in ascending order
+    void forEach(IntConsumer action) {
+        for (int group = 0; group < keys.length; group++) {
+            int high = keys[group] << 16;
+            Object container = containers[group];
+            if (container instanceof long[] bits) {
+                for (int word = 0; word < bits.length; word++) {
+                    for (long w = bits[word]; w != 0; w &= w - 1) {
+                        action.accept(high | word << 6 | Long.numberOfTrailingZeros(w));
+                    }
+                }
+            } else {
+                for (char low : (char[]) container) {
+                    action.accept(high | low);
+                }
+            }
+        }
+    }
+
+    // Ids in ascending order for as long as the action returns true
+    void forEachWhile(IntPredicate action) {
+        for (int group = 0; group < keys.length; group++) {
+            int high = keys[group] << 16;
+            Object container = containers[group];
+            if (container instanceof long[] bits) {
+                for (int word = 0; word < bits.length; word++) {
+                    for (long w = bits[word]; w != 0; w &= w - 1) {
+                        if (!action.test(high | word << 6 | Long.numberOfTrailingZeros(w))) {
+                            return;
+                        }
+                    }
+                }
+            } else {
+                for (char low : (char[]) container) {
+                    if (!action.test(high | low)) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    // groups u32 | groups of (key u16 | type u8 | for an array: count u16 - 1 and the lows u16 each,
+    // for a bitmap: 1024 words u64)
+    int encodedSize() {
+        int size = 4;
+        for (Object container : containers) {
+            size += 2 + 1 + (container instanceof long[] ? BITMAP_WORDS * 8 : 2 + ((char[]) container).length * 2);
+        }
+        return size;
+    }
+
+    void encode(ByteBuffer out) {
+        out.putInt(keys.length);
+        for (int group = 0; group < keys.length; group++) {
+            out.putChar(keys[group]);
+            if (containers[group] instanceof long[] bits) {
+                out.put(BITMAP);
+                for (long word : bits) {
+                    out.putLong(word);
+                }
+            } else {
+                char[] lows = (char[]) containers[group];
+                out.put(ARRAY).putChar((char) (lows.length - 1));
+                for (char low : lows) {
+                    out.putChar(low);
+                }
+            }
+        }
+    }
+
+    static IdSet decode(ByteBuffer in) {
+        int groups = in.getInt();
+        if (groups < 0 || groups > 1 << 16) {
+            throw new PandoraException("Vault tag index is corrupted");
+        }
+        char[] keys = new char[groups];
+        Object[] containers = new Object[groups];
+        int total = 0;
+        for (int group = 0; group < groups; group++) {
+            keys[group] = in.getChar();
+            if (group > 0 && keys[group] <= keys[group - 1]) {
+                throw new PandoraException("Vault tag index is corrupted");
+            }
+            if (in.get() == BITMAP) {
+                long[] bits = new long[BITMAP_WORDS];
+                for (int word = 0; word < bits.length; word++) {
+                    bits[word] = in.getLong();
+                }
+                containers[group] = bits;
+            } else {
+                char[] lows = new char[in.getChar() + 1];
+                for (int i = 0; i < lows.length; i++) {
+                    lows[i] = in.getChar();
+                }
+                containers[group] = lows;
+            }
+            total += size(containers[group]);
+        }
+        return new IdSet(keys, containers, total);
+    }
+
+    private static Object and(Object a, Object b) {
+        if (a instanceof long[] left && b instanceof long[] right) {
+            long[] bits = new long[BITMAP_WORDS];
+            for (int word = 0; word < bits.length; word++) {
+                bits[word] = left[word] & right[word];
+            }
+            return compact(bits);
+        }
+        if (a instanceof long[] bits) {
+            return filter((char[]) b, bits);
+        }
+        if (b instanceof long[] bits) {
+            return filter((char[]) a, bits);
+        }
+        char[] small = (char[]) a;
+        char[] large = (char[]) b;
+        if (small.length > large.length) {
+            char[] swap = small;
+            small = large;
+            large = swap;
+        }
+        char[] result = new char[small.length];
+        int count = 0;
+        int from = 0;
+        for (char low : small) {
+            from = gallop(large, from, low);
+            if (from == large.length) {
+                break;
+            }
+            if (large[from] == low) {
+                result[count++] = low;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static Object or(Object a, Object b) {
+        if (a instanceof char[] left && b instanceof char[] right && left.length + right.length <= ARRAY_MAX) {
+            char[] result = new char[left.length + right.length];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < left.length || j < right.length) {
+                if (j == right.length || i < left.length && left[i] < right[j]) {
+                    result[count++] = left[i++];
+                } else if (i == left.length || left[i] > right[j]) {
+                    result[count++] = right[j++];
+                } else {
+                    result[count++] = left[i++];
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, count);
+        }
+        long[] bits = bits(a).clone();
+        if (b instanceof long[] other) {
+            for (int word = 0; word < bits.length; word++) {
+                bits[word] |= other[word];
+            }
+        } else {
+            for (char low : (char[]) b) {
+                bits[low >>> 6] |= 1L << low;
+            }
+        }
+        return compact(bits);
+    }
+
+    private static char[] filter(char[] lows, long[] bits) {
+        char[] result = new char[lows.length];
+        int count = 0;
+        for (char low : lows) {
+            if ((bits[low >>> 6] & 1L << low) != 0) {
+                result[count++] = low;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    // First index from on whose value is at least target, probing ahead in growing steps
+    private static int gallop(char[] values, int from, char target) {
+        int step = 1;
+        int high = from;
+        while (high < values.length && values[high] < target) {
+            from = high + 1;
+            high += step;
+            step <<= 1;
+        }
+        int index = Arrays.binarySearch(values, from, Math.min(high + 1, values.length), target);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private static long[] bits(Object container) {
+        if (container instanceof long[] bits) {
+            return bits;
+        }
+        long[] bits = new long[BITMAP_WORDS];
+        for (char low : (char[]) container) {
+            bits[low >>> 6] |= 1L << low;
+        }
+        return bits;
+    }
+
+    private static Object compact(char[] lows, int count) {
+        return count <= ARRAY_MAX ? Arrays.copyOf(lows, count) : bits(Arrays.copyOf(lows, count));
+    }
+
+    private static Object compact(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        if (count > ARRAY_MAX) {
+            return bits;
+        }
+        char[] lows = new char[count];
+        int i = 0;
+        for (int word = 0; word < bits.length; word++) {
+            for (long w = bits[word]; w != 0; w &= w - 1) {
+                lows[i++] = (char) (word << 6 | Long.numberOfTrailingZeros(w));
+            }
+        }
+        return lows;
+    }
+
+    private static int size(Object container) {
+        if (container instanceof long[] bits) {
+            int count = 0;
+            for (long word : bits) {
+                count += Long.bitCount(word);
+            }
+            return count;
+        }
+        return ((char[]) container).length;
+    }
+}
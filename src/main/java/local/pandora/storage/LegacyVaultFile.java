@@ -0,0 +1,158 @@
+package local.pandora.storage;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.EnumSet;
+import java.util.function.BiConsumer;
+
+// Read side of the original {"salt": ..., "encryptedData": ...} JSON container. Vaults in this
+// format are rewritten in the binary format by the next VaultFile.saveVault.
+class LegacyVaultFile {
+
+    private LegacyVaultFile() {}
+
+    static final int FORMAT_VERSION = 0;
+    static final byte FIRST_BYTE = '{';
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private static final String SALT_FIELD = "salt";
+    private static final String DATA_FIELD = "encryptedData";
+
+    static VaultContainer loadVaultContainer(Path path) throws IOException {
+        // Only the salt is materialized; the ciphertext is skipped and its offset remembered
+        // so decryptVault can stream it straight from the file.
+        VaultContainer container = new VaultContainer();
+        container.setFormatVersion(FORMAT_VERSION);
+        container.setCapabilities(EnumSet.noneOf(VaultCapability.class));
+        container.setKdf(VaultFile.KDF_PBKDF2_HMAC_SHA256);
+        container.setKdfIterations(KeyDerivation.DEFAULT_ITERATIONS);
+        container.setSource(path);
+        try (JsonParser parser = jsonFactory.createParser(path.toFile())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new PandoraException("Vault file is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if (SALT_FIELD.equals(field) && value == JsonToken.VALUE_STRING) {
+                    container.setSalt(Base64.getDecoder().decode(parser.getText()));
+                } else if (DATA_FIELD.equals(field) && value == JsonToken.VALUE_STRING) {
+                    // Token location points at the opening quote
+                    container.setDataOffset(parser.currentTokenLocation().getByteOffset() + 1);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (container.getDataOffset() <= 0) {
+            throw new PandoraException("Container encrypted data cannot be null or empty");
+        }
+        // The IV leads the ciphertext, and tells this writing of the file from any other
+        try (InputStream file = Files.newInputStream(path)) {
+            container.setIv(new Base64ValueInputStream(file, container.getDataOffset())
+                    .readNBytes(CryptoUtils.GCM_IV_LENGTH));
+        }
+        return container;
+    }
+
+    static Vault decryptVault(VaultContainer container, SecretKey key) throws IOException {
+        try (InputStream file = Files.newInputStream(container.getSource())) {
+            InputStream encrypted = new Base64ValueInputStream(file, container.getDataOffset());
+            return VaultFile.readVault(CryptoUtils.newDecryptingStream(encrypted, key));
+        }
+    }
+
+    static void forEachEntry(VaultContainer container, SecretKey key, BiConsumer<String, VaultEntry> action)
+            throws IOException {
+        try (InputStream file = Files.newInputStream(container.getSource())) {
+            InputStream encrypted = new Base64ValueInputStream(file, container.getDataOffset());
+            VaultFile.readEntries(CryptoUtils.newDecryptingStream(encrypted, key), action);
+        }
+    }
+
+    // Decodes the Base64 body of a JSON string value starting at offset, stopping at its closing quote.
+    // Decoding happens a chunk at a time since Base64.Decoder.wrap() pulls its input one byte per call.
+    private static class Base64ValueInputStream extends InputStream {
+
+        private static final int CHUNK_SIZE = 8192; // multiple of 4
+
+        private final InputStream in;
+        private final byte[] encoded = new byte[CHUNK_SIZE];
+        private final byte[] decoded = new byte[CHUNK_SIZE / 4 * 3];
+        private int encodedLength;
+        private int position;
+        private int limit;
+        private boolean endOfValue;
+
+        Base64ValueInputStream(InputStream in, long offset) throws IOException {
+            this.in = in;
+            in.skipNBytes(offset);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return decoded[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int count = Math.min(len, limit - position);
+            System.arraycopy(decoded, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        private boolean fill() throws IOException {
+            while (!endOfValue && encodedLength < encoded.length) {
+                int read = in.read(encoded, encodedLength, encoded.length - encodedLength);
+                if (read == -1) {
+                    endOfValue = true;
+                    break;
+                }
+                // Whatever follows the quote is the end of the container and can be dropped
+                for (int i = encodedLength; i < encodedLength + read; i++) {
+                    if (encoded[i] == '"') {
+                        endOfValue = true;
+                        read = i - encodedLength;
+                        break;
+                    }
+                }
+                encodedLength += read;
+            }
+
+            if (encodedLength == 0) {
+                return false;
+            }
+            if (encodedLength == encoded.length) {
+                limit = Base64.getDecoder().decode(encoded, decoded);
+            } else {
+                limit = Base64.getDecoder().decode(Arrays.copyOf(encoded, encodedLength), decoded);
+            }
+            encodedLength = 0;
+            position = 0;
+            return limit > 0;
+        }
+    }
+}
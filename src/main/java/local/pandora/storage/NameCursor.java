@@ -0,0 +1,152 @@
+package local.pandora.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.IntFunction;
+
+// Names in the order of their UTF-8 bytes, from the first after a given name on and as long as they
+// start with a given prefix; either may be null. Walks sorted rows, those of a table or an index,
+// leaving out the names changed since, and merges in the names the changes added.
+final class NameCursor implements Iterator<String> {
+
+    private final int size;
+    private final IntFunction<byte[]> rows;
+    private final HashTrie<String, VaultRecords.Record> overlay;
+    private final byte[] prefix;
+    // Names the changes added that are in range, sorted
+    private final List<byte[]> added = new ArrayList<>();
+    private int row;
+    private int nextAdded;
+    private byte[] rowName;
+    private String next;
+
+    NameCursor(int size, IntFunction<byte[]> rows, HashTrie<String, VaultRecords.Record> overlay, String after,
+               String prefix) {
+        this.size = size;
+        this.rows = rows;
+        this.overlay = overlay;
+        byte[] afterBytes = after == null ? null : after.getBytes(StandardCharsets.UTF_8);
+        this.prefix = prefix == null ? null : prefix.getBytes(StandardCharsets.UTF_8);
+        overlay.forEach((name, record) -> {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (record != null && isAfter(nameBytes, afterBytes) && startsWith(nameBytes, this.prefix)) {
+                added.add(nameBytes);
+            }
+        });
+        added.sort(Arrays::compareUnsigned);
+
+        // First row past the name and not before the prefix
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            byte[] name = rows.apply(mid);
+            if (isAfter(name, afterBytes) && (this.prefix == null || Arrays.compareUnsigned(name, this.prefix) >= 0)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        row = low;
+    }
+
+    // Names of several sorted cursors as one; a name in more than one of them comes once
+    static Iterator<String> merge(List<Iterator<String>> cursors) {
+        if (cursors.size() == 1) {
+            return cursors.get(0);
+        }
+        PriorityQueue<Head> heads = new PriorityQueue<>((a, b) -> Arrays.compareUnsigned(a.bytes, b.bytes));
+        for (Iterator<String> cursor : cursors) {
+            Head.advance(cursor, heads);
+        }
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public String next() {
+                Head head = heads.poll();
+                if (head == null) {
+                    throw new NoSuchElementException();
+                }
+                while (!heads.isEmpty() && Arrays.equals(heads.peek().bytes, head.bytes)) {
+                    Head.advance(heads.poll().cursor, heads);
+                }
+                Head.advance(head.cursor, heads);
+                return head.name;
+            }
+        };
+    }
+
+    static boolean isAfter(byte[] name, byte[] after) {
+        return after == null || Arrays.compareUnsigned(name, after) > 0;
+    }
+
+    static boolean startsWith(byte[] name, byte[] prefix) {
+        return prefix == null || name.length >= prefix.length
+                && Arrays.equals(name, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null) {
+            if (rowName == null) {
+                rowName = nextRowName();
+            }
+            byte[] change = nextAdded < added.size() ? added.get(nextAdded) : null;
+            if (rowName == null && change == null) {
+                return false;
+            }
+            if (change == null || rowName != null && Arrays.compareUnsigned(rowName, change) < 0) {
+                next = new String(rowName, StandardCharsets.UTF_8);
+                rowName = null;
+            } else {
+                next = new String(change, StandardCharsets.UTF_8);
+                nextAdded++;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String current = next;
+        next = null;
+        return current;
+    }
+
+    // Name of the next row that did not change since, or null past the last one with the prefix
+    private byte[] nextRowName() {
+        while (row < size) {
+            byte[] name = rows.apply(row++);
+            if (!startsWith(name, prefix)) {
+                row = size;
+                return null;
+            }
+            if (overlay.isEmpty() || !overlay.containsKey(new String(name, StandardCharsets.UTF_8))) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    private record Head(String name, byte[] bytes, Iterator<String> cursor) {
+
+        static void advance(Iterator<String> cursor, PriorityQueue<Head> heads) {
+            if (cursor.hasNext()) {
+                String name = cursor.next();
+                heads.add(new Head(name, name.getBytes(StandardCharsets.UTF_8), cursor));
+            }
+        }
+    }
+}
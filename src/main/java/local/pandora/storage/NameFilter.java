@@ -0,0 +1,114 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+// Bloom filter over the entry names of a vault. Positions come from an HMAC keyed with a subkey of
+// the vault key, so the filter is stored in the clear without letting anyone test names against it.
+// Ten bits per name and seven positions give roughly a 1% false positive rate.
+class NameFilter {
+
+    static final int HASHES = 7;
+    static final int MAC_LENGTH = 32;
+    private static final int BITS_PER_NAME = 10;
+    private static final int MIN_BITS = 64;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String FILTER_INFO = "pandora name filter";
+
+    private final byte[] bits;
+    private final int hashes;
+    private final Mac mac;
+
+    private NameFilter(byte[] bits, int hashes, SecretKey filterKey) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.mac = newMac(filterKey);
+    }
+
+    static NameFilter create(int names, SecretKey key, byte[] salt) {
+        long size = Math.max(MIN_BITS, (long) names * BITS_PER_NAME);
+        return new NameFilter(new byte[(int) ((size + 7) / 8)], HASHES, filterKey(key, salt));
+    }
+
+    // Verifies the MAC over the header and filter before trusting any of it; with the wrong key
+    // the MAC fails as well, so this is also where a wrong master password shows up
+    static NameFilter open(ByteBuffer filter, int hashes, byte[] header, byte[] expectedMac,
+                           SecretKey key, byte[] salt) {
+        SecretKey filterKey = filterKey(key, salt);
+        byte[] bits = new byte[filter.remaining()];
+        filter.get(filter.position(), bits);
+        if (!MessageDigest.isEqual(expectedMac, authenticate(filterKey, header, bits))) {
+            return null;
+        }
+        return new NameFilter(bits, hashes, filterKey);
+    }
+
+    void add(byte[] name) {
+        long[] hash = hash(name);
+        long length = (long) bits.length * 8;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(hash[0] + i * hash[1], length);
+            bits[(int) (bit >>> 3)] |= (byte) (1 << (bit & 7));
+        }
+    }
+
+    boolean mightContain(byte[] name) {
+        long[] hash = hash(name);
+        long length = (long) bits.length * 8;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(hash[0] + i * hash[1], length);
+            if ((bits[(int) (bit >>> 3)] & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    byte[] getBits() {
+        return bits;
+    }
+
+    int getHashes() {
+        return hashes;
+    }
+
+    byte[] authenticate(byte[] header) {
+        return authenticate(mac, header, bits);
+    }
+
+    private synchronized long[] hash(byte[] name) {
+        ByteBuffer digest = ByteBuffer.wrap(mac.doFinal(name));
+        // Double hashing; an odd step keeps the probes from collapsing onto one position
+        return new long[] {digest.getLong(), digest.getLong() | 1};
+    }
+
+    private static byte[] authenticate(SecretKey filterKey, byte[] header, byte[] bits) {
+        return authenticate(newMac(filterKey), header, bits);
+    }
+
+    private static byte[] authenticate(Mac mac, byte[] header, byte[] bits) {
+        mac.update(header);
+        mac.update(bits);
+        return mac.doFinal();
+    }
+
+    private static SecretKey filterKey(SecretKey key, byte[] salt) {
+        return KeyDerivation.deriveSubkey(key, salt, FILTER_INFO, MAC_ALGORITHM);
+    }
+
+    private static Mac newMac(SecretKey filterKey) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(filterKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new PandoraException("Failed to initialize name filter", e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+// Sorted index of a version 3 vault. Decrypted, it reads
+//   count u32 | count slots of (name offset u32 | name length u16 | record offset u64 | record length u32) | names
+// with names sorted by their UTF-8 bytes, so a name is found by binary search over the fixed-size slots.
+// A file flagged with a tag index goes on with the TagIndex of its rows after the names, and one flagged
+// with a blind index with the TokenSets of its BlindIndex after that. The trigrams of the names, see
+// NameSearch, are sealed on their own between the filter and the index, as only searches need them.
+// The index is only decrypted on the first lookup the name filter could not answer.
+class NameIndex {
+
+    static final int SLOT_SIZE = 4 + 2 + 8 + 4;
+    private static final byte[] SEARCH_INFO = "pandora name search".getBytes(StandardCharsets.UTF_8);
+
+    private final NameFilter filter;
+    private final VaultContainer container;
+    private final SecretKey key;
+    private ByteBuffer index;
+    private int count;
+    private int namesStart;
+    private TagIndex tags;
+    private TokenSets blind;
+    private volatile TokenSets trigrams;
+
+    NameIndex(NameFilter filter, VaultContainer container, SecretKey key) {
+        this.filter = filter;
+        this.container = container;
+        this.key = key;
+    }
+
+    // Sealed record stored under the name, or null
+    VaultRecords.Record find(String name) {
+        byte[] target = name.getBytes(StandardCharsets.UTF_8);
+        if (!filter.mightContain(target)) {
+            return null;
+        }
+
+        decrypt();
+        byte[] array = index.array();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int slot = 4 + mid * SLOT_SIZE;
+            int nameOffset = namesStart + index.getInt(slot);
+            int cmp = Arrays.compareUnsigned(array, nameOffset, nameOffset + Short.toUnsignedInt(index.getShort(slot + 4)),
+                    target, 0, target.length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return record(slot);
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        decrypt();
+        return count;
+    }
+
+    // Name in the given place of the sorted index
+    byte[] name(int i) {
+        decrypt();
+        int slot = 4 + i * SLOT_SIZE;
+        int nameOffset = namesStart + index.getInt(slot);
+        return Arrays.copyOfRange(index.array(), nameOffset, nameOffset + Short.toUnsignedInt(index.getShort(slot + 4)));
+    }
+
+    // File offset of the record in the given place of the sorted index
+    long recordOffset(int i) {
+        decrypt();
+        return index.getLong(4 + i * SLOT_SIZE + 6);
+    }
+
+    int recordLength(int i) {
+        decrypt();
+        return index.getInt(4 + i * SLOT_SIZE + 14);
+    }
+
+    // Tags and folders of the rows, or null for a file written without them
+    TagIndex tags() {
+        decrypt();
+        return tags;
+    }
+
+    // Keyed tokens of the usernames and name words of the rows, or null for a file written without them
+    TokenSets blind() {
+        decrypt();
+        return blind;
+    }
+
+    // Trigrams of the names of the rows, see NameSearch, or null for a file written without them. They
+    // are sealed apart from the index and only decrypted here.
+    TokenSets trigrams() {
+        TokenSets sets = trigrams;
+        if (sets == null && container.getNameSearch() != null) {
+            synchronized (this) {
+                sets = trigrams;
+                if (sets == null) {
+                    byte[] plainText = CryptoUtils.open(container.getNameSearch(), key, searchData(container.getIv()));
+                    if (container.getCompression() != Compression.NONE) {
+                        plainText = Compression.decompress(plainText, null);
+                    }
+                    sets = TokenSets.decode(ByteBuffer.wrap(plainText), "name search index");
+                    trigrams = sets;
+                }
+            }
+        }
+        return sets;
+    }
+
+    // Associated data of the sealed trigrams: bound to the IV of the index, so to this very file
+    static byte[] searchData(byte[] indexIv) {
+        return ByteBuffer.allocate(SEARCH_INFO.length + indexIv.length).put(SEARCH_INFO).put(indexIv).array();
+    }
+
+    // Tokens under the key the blind index of this file was written with
+    BlindIndex.Tokenizer tokenizer() {
+        return new BlindIndex.Tokenizer(key, container.getSalt());
+    }
+
+    // Row of a record read from this file, found by its offset, or -1 for a record from elsewhere
+    int rowOf(VaultRecords.Record record) {
+        if (record.isChanged() || record.getSource() != container.getRecords()) {
+            return -1;
+        }
+        decrypt();
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long offset = recordOffset(mid);
+            if (offset < record.getOffset()) {
+                low = mid + 1;
+            } else if (offset > record.getOffset()) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Adds every record to the table, names straight from the index, without ever decoding them
+    void addTo(VaultTable.Builder table) {
+        decrypt();
+        ByteBuffer records = container.getRecords();
+        for (int i = 0; i < count; i++) {
+            int slot = 4 + i * SLOT_SIZE;
+            table.addSealed(index.array(), namesStart + index.getInt(slot), Short.toUnsignedInt(index.getShort(slot + 4)),
+                    records, (int) index.getLong(slot + 6), index.getInt(slot + 14), null);
+        }
+    }
+
+    // Plain index for names already in sorted order, along with the offsets and lengths of their records
+    // and the tags and tokens of the rows
+    static byte[] build(List<byte[]> names, long[] offsets, int[] lengths, TagIndex tags, TokenSets blind) {
+        int namesLength = 0;
+        for (byte[] name : names) {
+            namesLength += name.length;
+        }
+
+        ByteBuffer plain = ByteBuffer.allocate(4 + names.size() * SLOT_SIZE + namesLength + tags.encodedSize()
+                + blind.encodedSize());
+        plain.putInt(names.size());
+        int nameOffset = 0;
+        for (int i = 0; i < names.size(); i++) {
+            plain.putInt(nameOffset)
+                    .putShort((short) names.get(i).length)
+                    .putLong(offsets[i])
+                    .putInt(lengths[i]);
+            nameOffset += names.get(i).length;
+        }
+        for (byte[] name : names) {
+            plain.put(name);
+        }
+        tags.encode(plain);
+        blind.encode(plain);
+        return plain.array();
+    }
+
+    private VaultRecords.Record record(int slot) {
+        return new VaultRecords.Record(container.getRecords(), (int) index.getLong(slot + 6), index.getInt(slot + 14), null);
+    }
+
+    private synchronized void decrypt() {
+        if (index != null) {
+            return;
+        }
+        byte[] plainText = CryptoUtils.open(container.getEncryptedData(), key, container.getIv(), container.getHeader());
+        if (container.getCompression() != Compression.NONE) {
+            plainText = Compression.decompress(plainText, null);
+        }
+        ByteBuffer plain = ByteBuffer.wrap(plainText);
+        int entries = plain.getInt(0);
+        if (entries < 0 || 4L + (long) entries * SLOT_SIZE > plain.limit()) {
+            throw new PandoraException("Vault index is corrupted");
+        }
+        int start = 4 + entries * SLOT_SIZE;
+        Set<VaultCapability> capabilities = container.getCapabilities();
+        if (capabilities.contains(VaultCapability.TAG_INDEX) || capabilities.contains(VaultCapability.BLIND_INDEX)) {
+            int lastSlot = 4 + (entries - 1) * SLOT_SIZE;
+            int namesEnd = entries == 0 ? start
+                    : start + plain.getInt(lastSlot) + Short.toUnsignedInt(plain.getShort(lastSlot + 4));
+            if (namesEnd < start || namesEnd > plain.limit()) {
+                throw new PandoraException("Vault index is corrupted");
+            }
+            ByteBuffer rest = plain.slice(namesEnd, plain.limit() - namesEnd);
+            if (capabilities.contains(VaultCapability.TAG_INDEX)) {
+                tags = TagIndex.decode(rest);
+            }
+            if (capabilities.contains(VaultCapability.BLIND_INDEX)) {
+                blind = TokenSets.decode(rest, "blind index");
+            }
+        }
+        count = entries;
+        namesStart = start;
+        index = plain;
+    }
+}
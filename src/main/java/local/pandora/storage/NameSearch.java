@@ -0,0 +1,181 @@
+package local.pandora.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+// Ranked search over entry names. A query matches the names it equals, starts or is part of, case
+// aside, and failing those the names sharing enough of its trigrams to be a near miss. Names are
+// found through the trigrams of a file's names, kept as TokenSets: every row holds the lower-cased
+// trigrams of its name between a start and an end marker, so the marker and the first two chars of a
+// query find the names it starts, and every two chars of a name start one of its trigrams. Prefixes
+// and substrings intersect the sets of all their trigrams; a substring of two chars takes the union of
+// those it starts, which are next to each other in token order. A near miss holds at least a share of
+// the query's trigrams, and near misses holding more of them rank first.
+final class NameSearch {
+
+    static final int EXACT = 0;
+    static final int PREFIX = 1;
+    static final int SUBSTRING = 2;
+    static final int FUZZY = 3;
+
+    private static final char START = '\u0001';
+    private static final char END = '\u0002';
+    // Share of the query's trigrams, in percent, a near miss holds at least, so "gthub" finds github
+    private static final int MIN_SHARE_PERCENT = 40;
+
+    private NameSearch() {}
+
+    // How a name matches; similarity only tells near misses apart
+    record Found(String name, int kind, double similarity) {}
+
+    // Trigrams of the name between the markers, lower-cased, packed as three 16-bit chars
+    static long[] trigrams(String name) {
+        return trigrams(START + name.toLowerCase(Locale.ROOT) + END, 0);
+    }
+
+    private static long[] trigrams(String text, int from) {
+        if (text.length() - from < 3) {
+            return new long[0];
+        }
+        long[] trigrams = new long[text.length() - from - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = (long) text.charAt(from + i) << 32 | (long) text.charAt(from + i + 1) << 16
+                    | text.charAt(from + i + 2);
+        }
+        return trigrams;
+    }
+
+    // How the name matches the query, or null
+    static Found match(String name, String query) {
+        String lowerName = name.toLowerCase(Locale.ROOT);
+        String lowerQuery = query.toLowerCase(Locale.ROOT);
+        if (lowerName.equals(lowerQuery)) {
+            return new Found(name, EXACT, 0);
+        }
+        if (lowerName.startsWith(lowerQuery)) {
+            return new Found(name, PREFIX, 0);
+        }
+        if (lowerName.contains(lowerQuery)) {
+            return new Found(name, SUBSTRING, 0);
+        }
+        if (lowerQuery.length() < 3) {
+            return null;
+        }
+        long[] wanted = distinct(trigrams(lowerQuery, 0));
+        int shared = shared(distinct(trigrams(name)), wanted);
+        return shared >= needed(wanted.length) ? new Found(name, FUZZY, (double) shared / wanted.length) : null;
+    }
+
+    // Up to limit names of each kind found through the trigrams of a file, prefixes and substrings in
+    // the order of the rows, near misses most similar first; only rows whose names are still live
+    // count. Queries shorter than two chars find nothing here, those of two only prefixes and substrings.
+    static List<Found> search(TokenSets trigrams, IntFunction<byte[]> names, Predicate<String> live, String query,
+                              int limit) {
+        List<Found> found = new ArrayList<>();
+        String lowerQuery = query.toLowerCase(Locale.ROOT);
+        long[] prefix = distinct(trigrams(START + lowerQuery, 0));
+        if (prefix.length == 0) {
+            return found;
+        }
+        collect(trigrams.select(prefix), names, live, query, PREFIX, limit, found);
+        long[] substring = distinct(trigrams(lowerQuery, 0));
+        if (substring.length == 0) {
+            long start = (long) lowerQuery.charAt(0) << 32 | (long) lowerQuery.charAt(1) << 16;
+            collect(trigrams.range(start, start + 0x10000), names, live, query, SUBSTRING, limit, found);
+            return found;
+        }
+        collect(trigrams.select(substring), names, live, query, SUBSTRING, limit, found);
+        if (found.size() < limit) {
+            found.addAll(nearMisses(trigrams, names, live, query, substring, limit));
+        }
+        return found;
+    }
+
+    private static void collect(IdSet rows, IntFunction<byte[]> names, Predicate<String> live, String query, int kind,
+                                int limit, List<Found> found) {
+        int[] collected = {0};
+        rows.forEachWhile(row -> {
+            String name = new String(names.apply(row), StandardCharsets.UTF_8);
+            Found match = match(name, query);
+            if (match != null && (kind == PREFIX ? match.kind() <= PREFIX : match.kind() == kind) && live.test(name)) {
+                found.add(match);
+                collected[0]++;
+            }
+            return collected[0] < limit;
+        });
+    }
+
+    // Near misses most similar first, and as similar in the order of the rows; the rows are bucketed by
+    // how many of the query's trigrams they hold, so only names from the best buckets are opened
+    private static List<Found> nearMisses(TokenSets trigrams, IntFunction<byte[]> names, Predicate<String> live,
+                                          String query, long[] wanted, int limit) {
+        List<IdSet> sets = new ArrayList<>(wanted.length);
+        for (long token : wanted) {
+            sets.add(trigrams.get(token));
+        }
+        IdSet[] byShared = IdSet.byCount(sets);
+        List<Found> found = new ArrayList<>();
+        for (int shared = wanted.length; shared >= needed(wanted.length) && found.size() < limit; shared--) {
+            byShared[shared].forEachWhile(row -> {
+                String name = new String(names.apply(row), StandardCharsets.UTF_8);
+                Found match = match(name, query);
+                if (match != null && match.kind() == FUZZY && live.test(name)) {
+                    found.add(match);
+                }
+                return found.size() < limit;
+            });
+        }
+        return found;
+    }
+
+    // The names found, each once, exact matches first, then prefixes, substrings and near misses; each
+    // kind by the scores of the names, the most used first, and near misses then by similarity
+    static List<String> rank(Collection<Found> found, Map<String, Double> scores, int limit) {
+        Map<String, Found> best = new HashMap<>();
+        for (Found match : found) {
+            best.merge(match.name(), match, (a, b) -> a.kind() <= b.kind() ? a : b);
+        }
+        List<Found> ranked = new ArrayList<>(best.values());
+        ranked.sort(Comparator.comparingInt(Found::kind)
+                .thenComparing(match -> -scores.getOrDefault(match.name(), 0.0))
+                .thenComparing(match -> -match.similarity())
+                .thenComparing((a, b) -> Arrays.compareUnsigned(a.name().getBytes(StandardCharsets.UTF_8),
+                        b.name().getBytes(StandardCharsets.UTF_8))));
+        return ranked.stream().limit(limit).map(Found::name).toList();
+    }
+
+    private static long[] distinct(long[] values) {
+        return Arrays.stream(values).sorted().distinct().toArray();
+    }
+
+    // Trigrams of the query a near miss holds at least
+    private static int needed(int trigrams) {
+        return Math.max(1, (trigrams * MIN_SHARE_PERCENT + 99) / 100);
+    }
+
+    // Sorted query trigrams the sorted name trigrams hold
+    private static int shared(long[] name, long[] query) {
+        int shared = 0;
+        for (int i = 0, j = 0; i < name.length && j < query.length; ) {
+            if (name[i] < query[j]) {
+                i++;
+            } else if (name[i] > query[j]) {
+                j++;
+            } else {
+                shared++;
+                i++;
+                j++;
+            }
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,32 @@
+package local.pandora.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Bounded LRU pool of decrypted pages. Only clean pages live here; pages changed since the last
+// commit are held by the tree itself until they are written.
+class PageCache {
+
+    private final Map<Long, PagedStore.Node> pages;
+
+    PageCache(int capacity) {
+        this.pages = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PagedStore.Node> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    PagedStore.Node get(long page) {
+        return pages.get(page);
+    }
+
+    void put(long page, PagedStore.Node node) {
+        pages.put(page, node);
+    }
+
+    int size() {
+        return pages.size();
+    }
+}
@@ -0,0 +1,778 @@
+package local.pandora.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Vault file of fixed-size pages holding a B+tree keyed by entry name (container version 4):
+//   page 0, page 1: superblocks | page 2 onwards: tree nodes
+// A superblock is the common header followed by the sealed state of the tree:
+//   generation u64 | root page u64 | root iv (12) | page count u64 | entry count u64 | live pages u64
+// with the header as associated data. A commit writes the superblock the current one is not in, so
+// a torn superblock leaves the previous one intact. Every other page is iv | ciphertext | GCM tag of
+// one node, authenticated with its page number. Pages are never rewritten: a change copies the nodes on its
+// path to new pages at the end of the file, and as parents hold the IV of each child a page cannot
+// be swapped for an older copy. Decrypted nodes read
+//   type u8 | key count u16 | leaf:  (name length u16 | name | entry length u16 | entry JSON)*
+//                           | inner: child (name length u16 | name | child)*    child = page u64 | iv
+// Deletes do not rebalance, and pages left behind by copies are only reclaimed by rewriting the file.
+// Vault readers do not lock the vault, so the store locks itself.
+class PagedStore {
+
+    static final int PAGE_SIZE = 4096;
+    private static final int IV_LENGTH = CryptoUtils.GCM_IV_LENGTH;
+    private static final int TAG_LENGTH = CryptoUtils.GCM_TAG_LENGTH / 8;
+    private static final int NODE_SIZE = PAGE_SIZE - IV_LENGTH - TAG_LENGTH;
+    private static final int NODE_HEADER_SIZE = 1 + 2;
+    private static final int CHILD_SIZE = 8 + IV_LENGTH;
+    // Keeps at least four cells in a node, so a split always leaves two nodes that fit
+    private static final int MAX_CELL_SIZE = (NODE_SIZE - NODE_HEADER_SIZE - CHILD_SIZE) / 4;
+    private static final int FIRST_DATA_PAGE = 2;
+    private static final int STATE_SIZE = 8 + 8 + IV_LENGTH + 8 + 8 + 8;
+    private static final int SUPERBLOCK_SIZE = VaultFile.COMMON_HEADER_SIZE + STATE_SIZE + TAG_LENGTH;
+    private static final int LEAF = 1;
+    private static final int INNER = 2;
+    private static final int MIN_GARBAGE_PAGES = 256;
+    // Names read at a time when walking names in order
+    private static final int NAME_BATCH = 256;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final SecretKey key;
+    private final byte[] salt;
+    // Key derivation named in the superblocks, see VaultFile.putCommonHeader
+    private final int kdf;
+    private final PageCache cache;
+    private ByteBuffer file;
+    private long generation;
+    // Superblock the current generation is in
+    private int slot;
+    private Child root;
+    private long pageCount;
+    private long entryCount;
+    private long livePages;
+    private boolean changed;
+    // Both superblocks as this store last read or wrote them
+    private byte[] superblocks;
+
+    private PagedStore(ByteBuffer file, SecretKey key, byte[] salt, int kdf, int cachePages) {
+        this.file = file;
+        this.key = key;
+        this.salt = salt;
+        this.kdf = kdf;
+        this.cache = new PageCache(cachePages);
+    }
+
+    static PagedStore open(VaultContainer container, SecretKey key, int cachePages) {
+        PagedStore store = new PagedStore(container.getRecords(), key, container.getSalt(), container.getKdf(),
+                cachePages);
+        // Either superblock may be the newer one, or torn
+        if (!store.readSuperblock(0) & !store.readSuperblock(1)) {
+            throw new InvalidMasterPasswordException();
+        }
+        store.superblocks = superblocks(store.file);
+        return store;
+    }
+
+    synchronized VaultEntry get(String name) {
+        byte[] value = find(name.getBytes(StandardCharsets.UTF_8));
+        return value == null ? null : decodeEntry(value, name);
+    }
+
+    synchronized boolean contains(String name) {
+        return find(name.getBytes(StandardCharsets.UTF_8)) != null;
+    }
+
+    synchronized long size() {
+        return entryCount;
+    }
+
+    synchronized void put(String name, VaultEntry entry) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        byte[] value = encodeEntry(entry, name);
+        checkCellSize(nameBytes, value, name);
+
+        Split split = insert(mutable(root), nameBytes, value);
+        if (split != null) {
+            Node newRoot = new Node(false);
+            newRoot.children.add(root);
+            newRoot.keys.add(split.key);
+            newRoot.children.add(split.right);
+            root = new Child(newRoot);
+        }
+        changed = true;
+    }
+
+    synchronized void remove(String name) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (find(nameBytes) == null) {
+            return;
+        }
+
+        Node node = mutable(root);
+        while (!node.leaf) {
+            node = mutable(node.children.get(upperBound(node.keys, nameBytes)));
+        }
+        int i = search(node.keys, nameBytes);
+        node.keys.remove(i);
+        node.values.remove(i);
+        entryCount--;
+        changed = true;
+    }
+
+    synchronized void clear() {
+        root = new Child(new Node(true));
+        entryCount = 0;
+        livePages = 0;
+        changed = true;
+    }
+
+    // Entries in name order
+    synchronized void forEach(BiConsumer<String, VaultEntry> action) {
+        forEachLeaf(root, leaf -> {
+            for (int i = 0; i < leaf.keys.size(); i++) {
+                String name = new String(leaf.keys.get(i), StandardCharsets.UTF_8);
+                action.accept(name, decodeEntry(leaf.values.get(i), name));
+            }
+        });
+    }
+
+    synchronized void forEachName(Consumer<String> action) {
+        forEachLeaf(root, leaf -> leaf.keys.forEach(name -> action.accept(new String(name, StandardCharsets.UTF_8))));
+    }
+
+    // Names in order from the first after the given one on, as long as they start with the prefix;
+    // either may be null. Names are read a batch at a time, each looked up from the root again, so the
+    // store is only locked while a batch is read and changes in between do not disturb the walk.
+    Iterator<String> names(String after, String prefix) {
+        byte[] prefixBytes = prefix == null ? null : prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] afterBytes = after == null ? null : after.getBytes(StandardCharsets.UTF_8);
+        // Starting at the prefix when it comes later, which includes the prefix itself
+        boolean fromPrefix = prefixBytes != null && (afterBytes == null || Arrays.compareUnsigned(prefixBytes, afterBytes) > 0);
+        return new Iterator<>() {
+            private byte[] from = fromPrefix ? prefixBytes : afterBytes;
+            private boolean inclusive = fromPrefix;
+            private List<byte[]> batch = List.of();
+            private int next;
+            private boolean done;
+
+            @Override
+            public boolean hasNext() {
+                if (next == batch.size() && !done) {
+                    batch = namesFrom(from, inclusive, NAME_BATCH);
+                    next = 0;
+                    done = batch.size() < NAME_BATCH;
+                    if (!batch.isEmpty()) {
+                        from = batch.get(batch.size() - 1);
+                        inclusive = false;
+                    }
+                }
+                if (next < batch.size() && !NameCursor.startsWith(batch.get(next), prefixBytes)) {
+                    batch = List.of();
+                    next = 0;
+                    done = true;
+                }
+                return next < batch.size();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return new String(batch.get(next++), StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    // Writes the copied nodes to new pages, then the superblock that makes them current
+    synchronized void commit(Path path) throws IOException {
+        if (!changed) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            PageWriter writer = new PageWriter(channel, key, pageCount);
+            writeChanged(root, writer);
+            writer.flush();
+            channel.force(false);
+
+            pageCount = writer.next;
+            livePages += writer.written;
+            generation++;
+            slot = 1 - slot;
+            ByteBuffer superblock = superblock(generation, root, pageCount, entryCount, livePages, kdf, key, salt);
+            channel.write(superblock, (long) slot * PAGE_SIZE);
+            channel.force(false);
+        }
+        file = map(path);
+        superblocks = superblocks(file);
+        changed = false;
+    }
+
+    // Whether the file still holds the superblocks this store went by. Every commit rewrites one and
+    // every full save both, so otherwise another process wrote the vault since.
+    synchronized boolean isCurrent(Path path) throws IOException {
+        return Arrays.equals(superblocks(map(path)), superblocks);
+    }
+
+    // Once more than half of the file is pages no longer reachable from the root
+    synchronized boolean needsCompaction() {
+        long garbage = pageCount - FIRST_DATA_PAGE - livePages;
+        return garbage > Math.max(livePages, MIN_GARBAGE_PAGES);
+    }
+
+    private byte[] find(byte[] name) {
+        Node node = load(root);
+        while (!node.leaf) {
+            node = load(node.children.get(upperBound(node.keys, name)));
+        }
+        int i = search(node.keys, name);
+        return i >= 0 ? node.values.get(i) : null;
+    }
+
+    private Split insert(Node node, byte[] name, byte[] value) {
+        if (node.leaf) {
+            int i = search(node.keys, name);
+            if (i >= 0) {
+                node.values.set(i, value);
+            } else {
+                node.keys.add(-i - 1, name);
+                node.values.add(-i - 1, value);
+                entryCount++;
+            }
+        } else {
+            int i = upperBound(node.keys, name);
+            Split split = insert(mutable(node.children.get(i)), name, value);
+            if (split != null) {
+                node.keys.add(i, split.key);
+                node.children.add(i + 1, split.right);
+            }
+        }
+        return node.encodedSize() > NODE_SIZE ? node.split() : null;
+    }
+
+    // Copy-on-write: the first change to a node below a commit copies it, and its old page is garbage
+    private Node mutable(Child child) {
+        if (child.node != null) {
+            return child.node;
+        }
+        child.node = load(child).copy();
+        child.page = -1;
+        child.iv = null;
+        livePages--;
+        return child.node;
+    }
+
+    private Node load(Child child) {
+        if (child.node != null) {
+            return child.node;
+        }
+        Node node = cache.get(child.page);
+        if (node == null) {
+            node = readNode(child.page, child.iv);
+            cache.put(child.page, node);
+        }
+        return node;
+    }
+
+    // Reads every page of the tree, a level at a time and each level in parallel, adding those that do not
+    // authenticate or match their parent to damaged; returns the number of pages read. Pages below a
+    // damaged one cannot be reached and are left out.
+    synchronized long checkPages(List<Long> damaged) {
+        long checked = 0;
+        List<Child> level = List.of(root);
+        while (!level.isEmpty()) {
+            checked += level.size();
+            level = level.parallelStream().flatMap(child -> {
+                try {
+                    Node node = readNode(child.page, child.iv);
+                    return node.leaf ? Stream.<Child>empty() : node.children.stream();
+                } catch (RuntimeException e) {
+                    synchronized (damaged) {
+                        damaged.add(child.page);
+                    }
+                    return Stream.<Child>empty();
+                }
+            }).toList();
+        }
+        return checked;
+    }
+
+    private Node readNode(long page, byte[] iv) {
+        if (page < FIRST_DATA_PAGE || page >= pageCount) {
+            throw new PandoraException("Vault page " + page + " is out of range");
+        }
+        ByteBuffer sealed = file.slice((int) (page * PAGE_SIZE), PAGE_SIZE);
+        if (!sealed.slice(0, IV_LENGTH).equals(ByteBuffer.wrap(iv))) {
+            throw new PandoraException("Vault page " + page + " does not match its parent");
+        }
+        try {
+            return Node.decode(ByteBuffer.wrap(CryptoUtils.open(sealed, key, pageAad(page))));
+        } catch (InvalidMasterPasswordException e) {
+            throw new PandoraException("Vault page " + page + " is corrupted", e);
+        }
+    }
+
+    private void writeChanged(Child child, PageWriter writer) throws IOException {
+        Node node = child.node;
+        if (node == null) {
+            return;
+        }
+        if (!node.leaf) {
+            for (Child grandchild : node.children) {
+                writeChanged(grandchild, writer);
+            }
+        }
+        Child written = writer.write(node);
+        child.page = written.page;
+        child.iv = written.iv;
+        child.node = null;
+        cache.put(child.page, node);
+    }
+
+    private synchronized List<byte[]> namesFrom(byte[] from, boolean inclusive, int max) {
+        List<byte[]> names = new ArrayList<>(max);
+        namesFrom(root, from, inclusive, max, names);
+        return names;
+    }
+
+    // Adds names of the subtree from the given one on until there are max of them
+    private void namesFrom(Child child, byte[] from, boolean inclusive, int max, List<byte[]> names) {
+        Node node = load(child);
+        if (node.leaf) {
+            int i = 0;
+            if (from != null) {
+                i = search(node.keys, from);
+                i = i >= 0 ? (inclusive ? i : i + 1) : -i - 1;
+            }
+            for (; i < node.keys.size() && names.size() < max; i++) {
+                names.add(node.keys.get(i));
+            }
+            return;
+        }
+        for (int i = from == null ? 0 : upperBound(node.keys, from); i < node.children.size() && names.size() < max; i++) {
+            namesFrom(node.children.get(i), from, inclusive, max, names);
+        }
+    }
+
+    private void forEachLeaf(Child child, Consumer<Node> action) {
+        Node node = load(child);
+        if (node.leaf) {
+            action.accept(node);
+            return;
+        }
+        for (Child grandchild : node.children) {
+            forEachLeaf(grandchild, action);
+        }
+    }
+
+    private boolean readSuperblock(int slot) {
+        int offset = slot * PAGE_SIZE;
+        int headerSize = VaultFile.COMMON_HEADER_SIZE;
+        if (file.limit() < offset + headerSize + STATE_SIZE + TAG_LENGTH) {
+            return false;
+        }
+
+        byte[] header = new byte[headerSize];
+        file.get(offset, header);
+        byte[] iv = Arrays.copyOfRange(header, headerSize - IV_LENGTH, headerSize);
+        ByteBuffer state;
+        try {
+            state = ByteBuffer.wrap(CryptoUtils.open(file.slice(offset + headerSize, STATE_SIZE + TAG_LENGTH),
+                    key, iv, header));
+        } catch (RuntimeException e) {
+            return false;
+        }
+
+        long stateGeneration = state.getLong();
+        if (root != null && stateGeneration <= generation) {
+            return true;
+        }
+        long rootPage = state.getLong();
+        byte[] rootIv = new byte[IV_LENGTH];
+        state.get(rootIv);
+        long pages = state.getLong();
+        if (pages * PAGE_SIZE > file.limit() || rootPage < FIRST_DATA_PAGE || rootPage >= pages) {
+            throw new PandoraException("Vault file is truncated or corrupted");
+        }
+
+        generation = stateGeneration;
+        this.slot = slot;
+        root = new Child(rootPage, rootIv);
+        pageCount = pages;
+        entryCount = state.getLong();
+        livePages = state.getLong();
+        return true;
+    }
+
+    private static ByteBuffer superblock(long generation, Child root, long pageCount, long entryCount,
+                                         long livePages, int kdf, SecretKey key, byte[] salt) throws IOException {
+        byte[] iv = CryptoUtils.generateIv();
+        ByteBuffer header = ByteBuffer.allocate(VaultFile.COMMON_HEADER_SIZE);
+        VaultFile.putCommonHeader(header, VaultFile.PAGED_VERSION, 0, kdf, salt, iv);
+        byte[] state = ByteBuffer.allocate(STATE_SIZE)
+                .putLong(generation)
+                .putLong(root.page)
+                .put(root.iv)
+                .putLong(pageCount)
+                .putLong(entryCount)
+                .putLong(livePages)
+                .array();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.array());
+        try (OutputStream encrypted = CryptoUtils.newEncryptingStream(out, key, iv, header.array())) {
+            encrypted.write(state);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static byte[] pageAad(long page) {
+        return ByteBuffer.allocate(8).putLong(page).array();
+    }
+
+    private static byte[] superblocks(ByteBuffer file) {
+        byte[] both = new byte[2 * SUPERBLOCK_SIZE];
+        if (file.limit() >= PAGE_SIZE + SUPERBLOCK_SIZE) {
+            file.get(0, both, 0, SUPERBLOCK_SIZE);
+            file.get(PAGE_SIZE, both, SUPERBLOCK_SIZE, SUPERBLOCK_SIZE);
+        }
+        return both;
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    private static int search(List<byte[]> keys, byte[] name) {
+        int low = 0;
+        int high = keys.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(keys.get(mid), name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    // Index of the child holding a name: keys equal to a separator live to its right
+    private static int upperBound(List<byte[]> keys, byte[] name) {
+        int i = search(keys, name);
+        return i >= 0 ? i + 1 : -i - 1;
+    }
+
+    private static void checkCellSize(byte[] name, byte[] value, String entryName) {
+        if (2 + name.length + 2 + value.length > MAX_CELL_SIZE) {
+            throw new PandoraException("Entry is too large for the paged vault: " + entryName);
+        }
+    }
+
+    private static byte[] encodeEntry(VaultEntry entry, String name) {
+        try {
+            return mapper.writeValueAsBytes(entry);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to encode entry: " + name, e);
+        }
+    }
+
+    private static VaultEntry decodeEntry(byte[] value, String name) {
+        try {
+            return mapper.readValue(value, VaultEntry.class);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to decode entry: " + name, e);
+        }
+    }
+
+    // Writes a new paged vault from entries handed over in name order, filling each page before
+    // starting the next and building the inner levels as their children are written
+    static class Builder {
+        private final FileChannel channel;
+        private final SecretKey key;
+        private final byte[] salt;
+        private final int kdf;
+        private final PageWriter writer;
+        private final List<Level> levels = new ArrayList<>();
+        private long entries;
+
+        Builder(FileChannel channel, SecretKey key, byte[] salt, int kdf) throws IOException {
+            this.channel = channel;
+            this.key = key;
+            this.salt = salt;
+            this.kdf = kdf;
+            this.writer = new PageWriter(channel, key, FIRST_DATA_PAGE);
+            levels.add(new Level(new Node(true)));
+        }
+
+        void add(String name, VaultEntry entry) throws IOException {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            byte[] value = encodeEntry(entry, name);
+            checkCellSize(nameBytes, value, name);
+
+            Level leaf = levels.get(0);
+            if (leaf.node.encodedSize() + 2 + nameBytes.length + 2 + value.length > NODE_SIZE) {
+                flush(0);
+            }
+            if (leaf.node.keys.isEmpty()) {
+                leaf.first = nameBytes;
+            }
+            leaf.node.keys.add(nameBytes);
+            leaf.node.values.add(value);
+            entries++;
+        }
+
+        void finish() throws IOException {
+            Child root = null;
+            for (int i = 0; root == null; i++) {
+                Level level = levels.get(i);
+                if (i == levels.size() - 1 && !level.flushed) {
+                    root = writer.write(level.node);
+                } else if (!level.node.keys.isEmpty() || !level.node.children.isEmpty()) {
+                    flush(i);
+                }
+            }
+            writer.flush();
+            channel.force(false);
+
+            ByteBuffer superblock = superblock(1, root, writer.next, entries, writer.written, kdf, key, salt);
+            channel.write(superblock, 0);
+            // The second superblock stays empty until the first commit
+            channel.write(ByteBuffer.allocate(PAGE_SIZE), PAGE_SIZE);
+            channel.force(false);
+        }
+
+        private void flush(int i) throws IOException {
+            Level level = levels.get(i);
+            Child written = writer.write(level.node);
+            level.flushed = true;
+            byte[] first = level.first;
+            level.node = new Node(level.node.leaf);
+
+            if (i + 1 == levels.size()) {
+                levels.add(new Level(new Node(false)));
+            }
+            Level parent = levels.get(i + 1);
+            if (!parent.node.children.isEmpty()
+                    && parent.node.encodedSize() + 2 + first.length + CHILD_SIZE > NODE_SIZE) {
+                flush(i + 1);
+            }
+            if (parent.node.children.isEmpty()) {
+                parent.first = first;
+            } else {
+                parent.node.keys.add(first);
+            }
+            parent.node.children.add(written);
+        }
+
+        private static class Level {
+            private Node node;
+            private byte[] first;
+            private boolean flushed;
+
+            Level(Node node) {
+                this.node = node;
+            }
+        }
+    }
+
+    private static class PageWriter {
+        private final OutputStream out;
+        private final SecretKey key;
+        private long next;
+        private long written;
+
+        PageWriter(FileChannel channel, SecretKey key, long firstPage) throws IOException {
+            channel.position(firstPage * PAGE_SIZE);
+            // Not closed: closing would close the channel, which still takes the superblock
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 16 * PAGE_SIZE);
+            this.key = key;
+            this.next = firstPage;
+        }
+
+        Child write(Node node) throws IOException {
+            long page = next++;
+            byte[] sealed = CryptoUtils.seal(node.encode(), key, pageAad(page));
+            out.write(sealed);
+            written++;
+            return new Child(page, Arrays.copyOf(sealed, IV_LENGTH));
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    // Reference from a parent (or the superblock) to a node: its page and IV once written,
+    // or the node itself while it holds uncommitted changes
+    private static class Child {
+        private long page;
+        private byte[] iv;
+        private Node node;
+
+        Child(long page, byte[] iv) {
+            this.page = page;
+            this.iv = iv;
+        }
+
+        Child(Node node) {
+            this.page = -1;
+            this.node = node;
+        }
+    }
+
+    private static class Split {
+        private final byte[] key;
+        private final Child right;
+
+        Split(byte[] key, Child right) {
+            this.key = key;
+            this.right = right;
+        }
+    }
+
+    static class Node {
+        private final boolean leaf;
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>(); // leaf only
+        private final List<Child> children = new ArrayList<>(); // inner only, one more than keys
+
+        Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        Node copy() {
+            Node copy = new Node(leaf);
+            copy.keys.addAll(keys);
+            copy.values.addAll(values);
+            for (Child child : children) {
+                copy.children.add(new Child(child.page, child.iv));
+            }
+            return copy;
+        }
+
+        int encodedSize() {
+            int size = NODE_HEADER_SIZE + (leaf ? 0 : CHILD_SIZE);
+            for (int i = 0; i < keys.size(); i++) {
+                size += cellSize(i);
+            }
+            return size;
+        }
+
+        // Splits off the upper half by size, returning the separator and the new right node
+        Split split() {
+            int half = encodedSize() / 2;
+            int size = NODE_HEADER_SIZE + cellSize(0);
+            int at = 1;
+            while (at < keys.size() - 1 && size + cellSize(at) <= half) {
+                size += cellSize(at);
+                at++;
+            }
+
+            Node right = new Node(leaf);
+            byte[] separator;
+            if (leaf) {
+                right.keys.addAll(keys.subList(at, keys.size()));
+                right.values.addAll(values.subList(at, values.size()));
+                values.subList(at, values.size()).clear();
+                keys.subList(at, keys.size()).clear();
+                separator = right.keys.get(0);
+            } else {
+                // The separator moves up; the children right of it go with the new node
+                separator = keys.get(at);
+                right.keys.addAll(keys.subList(at + 1, keys.size()));
+                right.children.addAll(children.subList(at + 1, children.size()));
+                children.subList(at + 1, children.size()).clear();
+                keys.subList(at, keys.size()).clear();
+            }
+            return new Split(separator, new Child(right));
+        }
+
+        private int cellSize(int i) {
+            return 2 + keys.get(i).length + (leaf ? 2 + values.get(i).length : CHILD_SIZE);
+        }
+
+        byte[] encode() {
+            ByteBuffer out = ByteBuffer.allocate(NODE_SIZE);
+            out.put((byte) (leaf ? LEAF : INNER)).putShort((short) keys.size());
+            if (!leaf) {
+                putChild(out, children.get(0));
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                out.putShort((short) keys.get(i).length).put(keys.get(i));
+                if (leaf) {
+                    out.putShort((short) values.get(i).length).put(values.get(i));
+                } else {
+                    putChild(out, children.get(i + 1));
+                }
+            }
+            return out.array();
+        }
+
+        static Node decode(ByteBuffer in) {
+            int type = Byte.toUnsignedInt(in.get());
+            if (type != LEAF && type != INNER) {
+                throw new PandoraException("Unknown vault page type: " + type);
+            }
+            Node node = new Node(type == LEAF);
+            int count = Short.toUnsignedInt(in.getShort());
+            if (!node.leaf) {
+                node.children.add(getChild(in));
+            }
+            for (int i = 0; i < count; i++) {
+                node.keys.add(getBytes(in));
+                if (node.leaf) {
+                    node.values.add(getBytes(in));
+                } else {
+                    node.children.add(getChild(in));
+                }
+            }
+            return node;
+        }
+
+        private static void putChild(ByteBuffer out, Child child) {
+            out.putLong(child.page).put(child.iv);
+        }
+
+        private static Child getChild(ByteBuffer in) {
+            long page = in.getLong();
+            byte[] iv = new byte[IV_LENGTH];
+            in.get(iv);
+            return new Child(page, iv);
+        }
+
+        private static byte[] getBytes(ByteBuffer in) {
+            byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+            in.get(bytes);
+            return bytes;
+        }
+    }
+}
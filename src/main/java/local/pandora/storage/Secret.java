@@ -0,0 +1,123 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A secret held outside the Java heap, where the collector neither copies it around nor leaves it
+// behind in heap dumps, and which can be wiped once it is no longer needed. Secrets are laid out one
+// after another in chunks of direct memory, as their length followed by their chars; a buffer and a
+// cleaner for every secret would cost more than most secrets are long. A chunk is zeroed and freed
+// once none of its secrets are reachable, while destroy wipes a single secret at once. A destroyed
+// secret has its length set to -1, which every Secret at the same place sees.
+final class Secret {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int DESTROYED = -1;
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private static Chunk current;
+
+    private final Chunk chunk;
+    private final int offset;
+
+    private Secret(Chunk chunk, int offset) {
+        this.chunk = chunk;
+        this.offset = offset;
+    }
+
+    // Copies the chars, which the caller still has to clear
+    static Secret of(char[] chars) {
+        int size = 4 + chars.length * 2;
+        Chunk chunk;
+        int offset;
+        synchronized (Secret.class) {
+            if (size > CHUNK_SIZE) {
+                chunk = new Chunk(size);
+                offset = 0;
+            } else {
+                if (current == null || current.memory.capacity() - current.used < size) {
+                    current = new Chunk(CHUNK_SIZE);
+                }
+                chunk = current;
+                offset = chunk.used;
+                chunk.used += size;
+            }
+        }
+
+        ByteBuffer memory = chunk.memory;
+        memory.putInt(offset, chars.length);
+        for (int i = 0; i < chars.length; i++) {
+            memory.putChar(offset + 4 + i * 2, chars[i]);
+        }
+        return new Secret(chunk, offset);
+    }
+
+    // The secret another one left at the place, which VaultTable keeps instead of the Secret itself
+    static Secret at(Chunk chunk, int offset) {
+        return new Secret(chunk, offset);
+    }
+
+    Chunk getChunk() {
+        return chunk;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    // A copy of the secret for the caller to clear once done with it
+    char[] reveal() {
+        ByteBuffer memory = chunk.memory;
+        int length = memory.getInt(offset);
+        if (length == DESTROYED) {
+            throw new PandoraException("Secret is no longer available");
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = memory.getChar(offset + 4 + i * 2);
+        }
+        // Destroyed while it was read
+        if (memory.getInt(offset) == DESTROYED) {
+            Arrays.fill(chars, '\0');
+            throw new PandoraException("Secret is no longer available");
+        }
+        return chars;
+    }
+
+    void destroy() {
+        ByteBuffer memory = chunk.memory;
+        synchronized (chunk) {
+            int length = memory.getInt(offset);
+            if (length == DESTROYED) {
+                return;
+            }
+            memory.putInt(offset, DESTROYED);
+            for (int i = offset + 4; i < offset + 4 + length * 2; i++) {
+                memory.put(i, (byte) 0);
+            }
+        }
+    }
+
+    static final class Chunk {
+        private final ByteBuffer memory;
+        private int used;
+
+        private Chunk(int size) {
+            memory = ByteBuffer.allocateDirect(size);
+            // The action must not reach the chunk, or the chunk would never become unreachable
+            cleaner.register(this, new Wipe(memory));
+        }
+    }
+
+    private record Wipe(ByteBuffer memory) implements Runnable {
+        @Override
+        public void run() {
+            for (int i = 0; i < memory.capacity(); i++) {
+                memory.put(i, (byte) 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Tags and folders of the entries of a version 3 vault file, inverted: every tag and every folder with
+// the set of rows of the file's sorted index whose entries carry it. Encoded, it reads
+//   tags u32 | tags of (length u16 | UTF-8 tag | rows) | folders u32 | folders of (length u16 | UTF-8 folder | rows)
+// with rows an IdSet, tags and folders sorted, and sits encrypted in the index after the names, see
+// NameIndex. Entries carrying all of some tags are found by intersecting their sets, and those in a
+// folder by uniting the sets of the folder and the folders below it, which sort right after it.
+// What every row carries is only worked out when a writer asks for it.
+final class TagIndex {
+
+    static final TagIndex EMPTY = new Builder().build();
+
+    private final String[] tags;
+    private final IdSet[] tagRows;
+    private final String[] folders;
+    private final IdSet[] folderRows;
+    // For every row, its tags as indexes into tags, from tagStarts[row] to tagStarts[row + 1], and the
+    // index of its folder or -1
+    private volatile int[] tagStarts;
+    private int[] rowTags;
+    private int[] rowFolders;
+
+    private TagIndex(String[] tags, IdSet[] tagRows, String[] folders, IdSet[] folderRows) {
+        this.tags = tags;
+        this.tagRows = tagRows;
+        this.folders = folders;
+        this.folderRows = folderRows;
+    }
+
+    // Rows carrying every tag and filed in the folder or below it; no tags and a null folder select nothing
+    IdSet select(Collection<String> wanted, String folder) {
+        List<IdSet> sets = new ArrayList<>();
+        for (String tag : wanted) {
+            int i = Arrays.binarySearch(tags, tag);
+            if (i < 0) {
+                return IdSet.EMPTY;
+            }
+            sets.add(tagRows[i]);
+        }
+        if (folder != null) {
+            sets.add(subtree(folder));
+        }
+        if (sets.isEmpty()) {
+            return IdSet.EMPTY;
+        }
+        // Smallest first, so every intersection is at most as large
+        sets.sort((a, b) -> Integer.compare(a.cardinality(), b.cardinality()));
+        IdSet rows = sets.get(0);
+        for (int i = 1; i < sets.size() && !rows.isEmpty(); i++) {
+            rows = rows.and(sets.get(i));
+        }
+        return rows;
+    }
+
+    // The folder and every folder below it, a range of the sorted folders
+    private IdSet subtree(String folder) {
+        List<IdSet> sets = new ArrayList<>();
+        int exact = Arrays.binarySearch(folders, folder);
+        if (exact >= 0) {
+            sets.add(folderRows[exact]);
+        }
+        String below = folder + "/";
+        int from = Arrays.binarySearch(folders, below);
+        for (int i = from >= 0 ? from : -from - 1; i < folders.length && folders[i].startsWith(below); i++) {
+            sets.add(folderRows[i]);
+        }
+        return IdSet.union(sets);
+    }
+
+    List<String> tagsOf(int row) {
+        int[] starts = perRow();
+        if (row >= starts.length - 1) {
+            return List.of();
+        }
+        List<String> result = new ArrayList<>(starts[row + 1] - starts[row]);
+        for (int i = starts[row]; i < starts[row + 1]; i++) {
+            result.add(tags[rowTags[i]]);
+        }
+        return result;
+    }
+
+    String folderOf(int row) {
+        perRow();
+        int folder = row < rowFolders.length ? rowFolders[row] : -1;
+        return folder < 0 ? null : folders[folder];
+    }
+
+    private synchronized int[] perRow() {
+        if (tagStarts != null) {
+            return tagStarts;
+        }
+        int rows = 0;
+        for (IdSet set : tagRows) {
+            rows = Math.max(rows, last(set) + 1);
+        }
+        for (IdSet set : folderRows) {
+            rows = Math.max(rows, last(set) + 1);
+        }
+        int[] starts = new int[rows + 1];
+        for (IdSet set : tagRows) {
+            set.forEach(row -> starts[row + 1]++);
+        }
+        for (int row = 0; row < rows; row++) {
+            starts[row + 1] += starts[row];
+        }
+        int[] next = Arrays.copyOf(starts, rows);
+        rowTags = new int[starts[rows]];
+        // Tags are visited in order, so every row lists its tags sorted
+        for (int tag = 0; tag < tags.length; tag++) {
+            int t = tag;
+            tagRows[tag].forEach(row -> rowTags[next[row]++] = t);
+        }
+        rowFolders = new int[rows];
+        Arrays.fill(rowFolders, -1);
+        for (int folder = 0; folder < folders.length; folder++) {
+            int f = folder;
+            folderRows[folder].forEach(row -> rowFolders[row] = f);
+        }
+        tagStarts = starts;
+        return starts;
+    }
+
+    private static int last(IdSet set) {
+        int[] last = {-1};
+        set.forEach(row -> last[0] = row);
+        return last[0];
+    }
+
+    int encodedSize() {
+        int size = 8;
+        for (int i = 0; i < tags.length; i++) {
+            size += 2 + tags[i].getBytes(StandardCharsets.UTF_8).length + tagRows[i].encodedSize();
+        }
+        for (int i = 0; i < folders.length; i++) {
+            size += 2 + folders[i].getBytes(StandardCharsets.UTF_8).length + folderRows[i].encodedSize();
+        }
+        return size;
+    }
+
+    void encode(ByteBuffer out) {
+        encode(out, tags, tagRows);
+        encode(out, folders, folderRows);
+    }
+
+    private static void encode(ByteBuffer out, String[] names, IdSet[] rows) {
+        out.putInt(names.length);
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+            out.putShort((short) name.length).put(name);
+            rows[i].encode(out);
+        }
+    }
+
+    static TagIndex decode(ByteBuffer in) {
+        try {
+            String[] tags = new String[checkCount(in.getInt(), in)];
+            IdSet[] tagRows = new IdSet[tags.length];
+            decode(in, tags, tagRows);
+            String[] folders = new String[checkCount(in.getInt(), in)];
+            IdSet[] folderRows = new IdSet[folders.length];
+            decode(in, folders, folderRows);
+            return new TagIndex(tags, tagRows, folders, folderRows);
+        } catch (RuntimeException e) {
+            if (e instanceof PandoraException pandora) {
+                throw pandora;
+            }
+            throw new PandoraException("Vault tag index is corrupted", e);
+        }
+    }
+
+    private static void decode(ByteBuffer in, String[] names, IdSet[] rows) {
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = new byte[Short.toUnsignedInt(in.getShort())];
+            in.get(name);
+            names[i] = new String(name, StandardCharsets.UTF_8);
+            rows[i] = IdSet.decode(in);
+        }
+    }
+
+    private static int checkCount(int count, ByteBuffer in) {
+        // Every name takes at least its length and an empty set
+        if (count < 0 || (long) count * 6 > in.remaining()) {
+            throw new PandoraException("Vault tag index is corrupted");
+        }
+        return count;
+    }
+
+    // Takes the rows in ascending order
+    static final class Builder {
+        private final Map<String, IntList> tags = new TreeMap<>();
+        private final Map<String, IntList> folders = new TreeMap<>();
+
+        Builder add(int row, Collection<String> rowTags, String folder) {
+            if (rowTags != null) {
+                for (String tag : rowTags) {
+                    tags.computeIfAbsent(tag, t -> new IntList()).add(row);
+                }
+            }
+            if (folder != null) {
+                folders.computeIfAbsent(folder, f -> new IntList()).add(row);
+            }
+            return this;
+        }
+
+        TagIndex build() {
+            return new TagIndex(tags.keySet().toArray(new String[0]), sets(tags),
+                    folders.keySet().toArray(new String[0]), sets(folders));
+        }
+
+        private static IdSet[] sets(Map<String, IntList> lists) {
+            return lists.values().stream().map(list -> IdSet.of(list.values, list.size)).toArray(IdSet[]::new);
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Sets of the rows of a vault file's sorted index by token, for the indexes that look rows up by a
+// 64-bit token of what they hold, see BlindIndex and NameSearch. Encoded, it reads
+//   tokens u32 | tokens of (token u64 | rows)
+// with tokens sorted and rows an IdSet. Immutable but for what every row holds, which is only worked
+// out when a writer asks for it.
+final class TokenSets {
+
+    static final TokenSets EMPTY = new Builder().build();
+
+    private final long[] tokens;
+    private final IdSet[] rows;
+    // For every row, its tokens from tokenStarts[row] to tokenStarts[row + 1]
+    private volatile int[] tokenStarts;
+    private long[] rowTokens;
+
+    private TokenSets(long[] tokens, IdSet[] rows) {
+        this.tokens = tokens;
+        this.rows = rows;
+    }
+
+    // Rows holding the token
+    IdSet get(long token) {
+        int i = Arrays.binarySearch(tokens, token);
+        return i < 0 ? IdSet.EMPTY : rows[i];
+    }
+
+    // Rows holding every token
+    IdSet select(long... wanted) {
+        List<IdSet> sets = new ArrayList<>(wanted.length);
+        for (long token : wanted) {
+            IdSet set = get(token);
+            if (set.isEmpty()) {
+                return IdSet.EMPTY;
+            }
+            sets.add(set);
+        }
+        if (sets.isEmpty()) {
+            return IdSet.EMPTY;
+        }
+        // Smallest first, so every intersection is at most as large
+        sets.sort((a, b) -> Integer.compare(a.cardinality(), b.cardinality()));
+        IdSet result = sets.get(0);
+        for (int i = 1; i < sets.size() && !result.isEmpty(); i++) {
+            result = result.and(sets.get(i));
+        }
+        return result;
+    }
+
+    // Rows holding any token from one up to another
+    IdSet range(long from, long to) {
+        int start = Arrays.binarySearch(tokens, from);
+        int end = Arrays.binarySearch(tokens, to);
+        start = start < 0 ? -start - 1 : start;
+        end = end < 0 ? -end - 1 : end;
+        return start >= end ? IdSet.EMPTY : IdSet.union(Arrays.asList(rows).subList(start, end));
+    }
+
+    // Tokens of the row, so a writer carries them over without opening its record
+    long[] tokensOf(int row) {
+        int[] starts = perRow();
+        return row >= starts.length - 1 ? new long[0] : Arrays.copyOfRange(rowTokens, starts[row], starts[row + 1]);
+    }
+
+    private synchronized int[] perRow() {
+        if (tokenStarts != null) {
+            return tokenStarts;
+        }
+        int count = 0;
+        for (IdSet set : rows) {
+            int[] last = {-1};
+            set.forEach(row -> last[0] = row);
+            count = Math.max(count, last[0] + 1);
+        }
+        int[] starts = new int[count + 1];
+        for (IdSet set : rows) {
+            set.forEach(row -> starts[row + 1]++);
+        }
+        for (int row = 0; row < count; row++) {
+            starts[row + 1] += starts[row];
+        }
+        int[] next = Arrays.copyOf(starts, count);
+        rowTokens = new long[starts[count]];
+        for (int i = 0; i < tokens.length; i++) {
+            long token = tokens[i];
+            rows[i].forEach(row -> rowTokens[next[row]++] = token);
+        }
+        tokenStarts = starts;
+        return starts;
+    }
+
+    int encodedSize() {
+        int size = 4;
+        for (IdSet set : rows) {
+            size += 8 + set.encodedSize();
+        }
+        return size;
+    }
+
+    void encode(ByteBuffer out) {
+        out.putInt(tokens.length);
+        for (int i = 0; i < tokens.length; i++) {
+            out.putLong(tokens[i]);
+            rows[i].encode(out);
+        }
+    }
+
+    // What names the index in the error a corrupted one raises
+    static TokenSets decode(ByteBuffer in, String what) {
+        try {
+            int count = in.getInt();
+            // Every token takes at least itself and an empty set
+            if (count < 0 || (long) count * 12 > in.remaining()) {
+                throw new PandoraException("Vault " + what + " is corrupted");
+            }
+            long[] tokens = new long[count];
+            IdSet[] rows = new IdSet[count];
+            for (int i = 0; i < count; i++) {
+                tokens[i] = in.getLong();
+                if (i > 0 && tokens[i] <= tokens[i - 1]) {
+                    throw new PandoraException("Vault " + what + " is corrupted");
+                }
+                rows[i] = IdSet.decode(in);
+            }
+            return new TokenSets(tokens, rows);
+        } catch (RuntimeException e) {
+            if (e instanceof PandoraException pandora) {
+                throw pandora;
+            }
+            throw new PandoraException("Vault " + what + " is corrupted", e);
+        }
+    }
+
+    // Takes the rows in ascending order. Tokens are kept in an open addressing table of their own, as
+    // millions of them go through it for a large vault.
+    static final class Builder {
+        private long[] keys = new long[64];
+        // For every key, the number of rows first and then the rows; null for a free slot
+        private int[][] lists = new int[64][];
+        private int size;
+
+        Builder add(int row, long[] rowTokens) {
+            for (long token : rowTokens) {
+                int slot = slot(token);
+                int[] list = lists[slot];
+                if (list == null) {
+                    list = new int[4];
+                    keys[slot] = token;
+                    lists[slot] = list;
+                    if (++size * 2 > keys.length) {
+                        grow();
+                        slot = slot(token);
+                    }
+                } else if (list[0] > 0 && list[list[0]] == row) {
+                    // A row holding the token twice
+                    continue;
+                } else if (list[0] + 1 == list.length) {
+                    list = Arrays.copyOf(list, list.length * 2);
+                    lists[slot] = list;
+                }
+                list[++list[0]] = row;
+            }
+            return this;
+        }
+
+        TokenSets build() {
+            long[] tokens = new long[size];
+            int count = 0;
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (lists[slot] != null) {
+                    tokens[count++] = keys[slot];
+                }
+            }
+            Arrays.sort(tokens);
+            IdSet[] sets = new IdSet[size];
+            for (int i = 0; i < tokens.length; i++) {
+                int[] list = lists[slot(tokens[i])];
+                sets[i] = IdSet.of(Arrays.copyOfRange(list, 1, list[0] + 1), list[0]);
+            }
+            return new TokenSets(tokens, sets);
+        }
+
+        // Slot holding the token, or the free one it would go to
+        private int slot(long token) {
+            int mask = keys.length - 1;
+            int slot = Long.hashCode(token * 0x9E3779B97F4A7C15L) & mask;
+            while (lists[slot] != null && keys[slot] != token) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            int[][] oldLists = lists;
+            keys = new long[oldKeys.length * 2];
+            lists = new int[oldKeys.length * 2][];
+            for (int slot = 0; slot < oldKeys.length; slot++) {
+                if (oldLists[slot] != null) {
+                    int to = slot(oldKeys[slot]);
+                    keys[to] = oldKeys[slot];
+                    lists[to] = oldLists[slot];
+                }
+            }
+        }
+    }
+}
@@ -1,77 +1,1153 @@
 package local.pandora.storage;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import local.pandora.config.VaultConfig;
 import local.pandora.exception.PandoraException;
+import local.pandora.security.SecurityUtils;
 
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 @JsonAutoDetect
 @JsonIgnoreProperties(ignoreUnknown = true)
-public class Vault {
-    private final Map<String, VaultEntry> entries = new HashMap<>();
+public class Vault implements AutoCloseable {
+    // What the vault holds. Every change publishes a new state that shares whatever it left unchanged,
+    // so readers take the current one without locking and go on with it while writers make the next.
+    private volatile State state = State.EMPTY;
+    // Changes not yet written, and the log they are appended to; without a log the next commit
+    // writes a full snapshot
+    private final List<VaultLog.Change> pending = new ArrayList<>();
+    private VaultLog log;
+    // IV of the file the vault was read from, for a file without a log or store to tell whether
+    // another process wrote it since; null for a vault whose next write replaces whatever is there
+    private byte[] sourceId;
+    private SecretKey key;
+    // Index of the file the unchanged records were read from, whose tag index tells the tags and folders
+    // of those; null when they come from a file without one, or from several
+    private NameIndex file;
+    // Compression of the sealed records read from the file
+    private int compression;
+    // Where the key of the vault comes from, as the header of the file names it; a new vault is under a data key
+    private int kdf = VaultFile.KDF_DATA_KEY;
+    // Changes recorded since the vault was loaded, and how many of them are on disk. Both only grow,
+    // so a writer knows its changes are durable once the second reaches what the first was after them.
+    private long recordedChanges;
+    private volatile long durableChanges;
+    // Held by the one thread writing the vault's changes to disk; the vault itself is only locked
+    // while changes are handed over, so other threads can go on changing it meanwhile
+    private final Object commitLock = new Object();
+    // Names changed since the change feed last took them, and whether the vault was emptied before
+    // those changes, see ChangeFeed
+    private final Set<String> unfed = new HashSet<>();
+    private boolean unfedClear;
+
+    private static final int MAX_LABEL_LENGTH = 256;
 
     public void addEntry(String name, String username, String password) {
+        char[] chars = password == null ? null : password.toCharArray();
+        try {
+            addEntry(name, username, chars);
+        } finally {
+            SecurityUtils.secureClear(chars);
+        }
+    }
+
+    // Copies the password, which the caller still has to clear
+    public void addEntry(String name, String username, char[] password) {
+        addEntry(name, username, password, null, null);
+    }
+
+    // Copies the password, which the caller still has to clear; tags and folder may be null
+    public synchronized void addEntry(String name, String username, char[] password, Collection<String> tags,
+                                      String folder) {
+        Vault part = partFor(state, name);
+        if (part != null) {
+            part.addEntry(name, username, password, tags, folder);
+            return;
+        }
         validateEntryName(name);
         validateCredentials(username, password);
-        entries.put(name, new VaultEntry(username, password));
+        record(VaultLog.Change.put(name, new VaultEntry(username, password, null, normalizeTags(tags),
+                normalizeFolder(folder))));
     }
 
     public VaultEntry getEntry(String name) {
-        return entries.get(name);
+        State current = state;
+        Vault part = partFor(current, name);
+        if (part != null) {
+            return part.getEntry(name);
+        }
+        return current.open(name, key);
+    }
+
+    public boolean updateEntry(String name, String username, String password) {
+        char[] chars = password == null ? null : password.toCharArray();
+        try {
+            return updateEntry(name, username, chars);
+        } finally {
+            SecurityUtils.secureClear(chars);
+        }
+    }
+
+    // Copies the password, which the caller still has to clear. Returns whether the entry changed: one
+    // given its own username and password again is left as it is, with no version added to its history.
+    public synchronized boolean updateEntry(String name, String username, char[] password) {
+        Vault part = partFor(state, name);
+        if (part != null) {
+            return part.updateEntry(name, username, password);
+        }
+        VaultEntry current = getEntry(name);
+        if (current == null) {
+            throw new PandoraException("No such entry: " + name);
+        }
+        validateCredentials(username, password);
+        if (EntryHistory.isUnchanged(current, username, password)) {
+            return false;
+        }
+        record(VaultLog.Change.put(name, new VaultEntry(username, password,
+                EntryHistory.after(current, username, password, VaultConfig.getHistoryVersions()),
+                current.getTags(), current.getFolder())));
+        return true;
+    }
+
+    // Replaces the tags and folder of the entry; either may be null for none
+    public synchronized void labelEntry(String name, Collection<String> tags, String folder) {
+        Vault part = partFor(state, name);
+        if (part != null) {
+            part.labelEntry(name, tags, folder);
+            return;
+        }
+        VaultEntry current = getEntry(name);
+        if (current == null) {
+            throw new PandoraException("No such entry: " + name);
+        }
+        record(VaultLog.Change.put(name, current.withLabels(normalizeTags(tags), normalizeFolder(folder))));
     }
 
-    public void removeEntry(String name) {
-        entries.remove(name);
+    // Earlier versions of the entry, newest first, or null without such an entry
+    public List<EntryHistory.Revision> getHistory(String name) {
+        VaultEntry current = getEntry(name);
+        if (current == null) {
+            return null;
+        }
+        EntryHistory history = current.getHistory();
+        return history == null ? List.of() : history.revisions(current);
+    }
+
+    // Makes the numbered earlier version of the entry its current one, which keeps the version it
+    // replaces in the history as an update would. Returns whether the entry changed, which it does not
+    // when the version has the username and password of the current one.
+    public synchronized boolean revertEntry(String name, int number) {
+        Vault part = partFor(state, name);
+        if (part != null) {
+            return part.revertEntry(name, number);
+        }
+        VaultEntry current = getEntry(name);
+        if (current == null) {
+            throw new PandoraException("No such entry: " + name);
+        }
+        if (current.getHistory() == null) {
+            throw new PandoraException("Entry has no earlier versions: " + name);
+        }
+        VaultEntry earlier = current.getHistory().revision(current, number).entry();
+        char[] password = earlier.getPassword();
+        try {
+            if (EntryHistory.isUnchanged(current, earlier.getUsername(), password)) {
+                return false;
+            }
+            record(VaultLog.Change.put(name, new VaultEntry(earlier.getUsername(), password,
+                    EntryHistory.after(current, earlier.getUsername(), password, VaultConfig.getHistoryVersions()),
+                    current.getTags(), current.getFolder())));
+            return true;
+        } finally {
+            SecurityUtils.secureClear(password);
+            earlier.destroy();
+        }
+    }
+
+    public synchronized void removeEntry(String name) {
+        Vault part = partFor(state, name);
+        if (part != null) {
+            part.removeEntry(name);
+            return;
+        }
+        record(VaultLog.Change.remove(name));
     }
 
     public boolean hasEntry(String name) {
-        return entries.containsKey(name);
+        State current = state;
+        Vault part = partFor(current, name);
+        if (part != null) {
+            return part.hasEntry(name);
+        }
+        return current.contains(name);
     }
 
+    // Names as of the call; later changes do not show in the returned set. Ignored when reading JSON
+    // vaults, which list the names next to the entries.
+    @JsonIgnore
     public Set<String> getEntryNames() {
-        return new HashSet<>(entries.keySet());
+        State current = state;
+        if (current.parts() != null) {
+            Set<String> names = new HashSet<>();
+            current.parts().all().parallelStream().map(Vault::getEntryNames).toList().forEach(names::addAll);
+            return names;
+        }
+        if (current.store() != null) {
+            Set<String> names = new HashSet<>();
+            current.store().forEachName(names::add);
+            return names;
+        }
+        return new Entries(unindexed(current)).keySet();
     }
 
+    // Names in the order of their UTF-8 bytes, from the first after the given one on and only those
+    // starting with the prefix; either may be null. Read as they are walked, straight from the sorted
+    // index, table or tree; a sharded or namespaced vault merges its parts, and only reads the
+    // namespace of a prefix that names one.
+    public Iterator<String> getEntryNames(String after, String prefix) {
+        State current = state;
+        if (current.parts() != null) {
+            List<Iterator<String>> parts = new ArrayList<>();
+            for (Vault part : current.parts().withPrefix(prefix)) {
+                parts.add(part.getEntryNames(after, prefix));
+            }
+            return NameCursor.merge(parts);
+        }
+        return current.names(after, prefix);
+    }
+
+    // Names of the entries carrying every one of the tags and filed in the folder or below it, in the
+    // order of their UTF-8 bytes, from the first after the given one on and only those starting with the
+    // prefix; all but tags may be null. Rows of the file are picked by intersecting the sets of its tag
+    // index, and only entries changed since are looked at one by one; without an index, as for paged
+    // vaults and files written before there was one, every entry is opened.
+    public Iterator<String> getEntryNames(String after, String prefix, Collection<String> tags, String folder) {
+        List<String> wanted = normalizeTags(tags);
+        String subtree = normalizeFolder(folder);
+        if (wanted.isEmpty() && subtree == null) {
+            return getEntryNames(after, prefix);
+        }
+        State current = state;
+        if (current.parts() != null) {
+            List<Iterator<String>> parts = new ArrayList<>();
+            for (Vault part : current.parts().withPrefix(prefix)) {
+                parts.add(part.getEntryNames(after, prefix, wanted, subtree));
+            }
+            return NameCursor.merge(parts);
+        }
+
+        byte[] afterBytes = after == null ? null : after.getBytes(StandardCharsets.UTF_8);
+        byte[] prefixBytes = prefix == null ? null : prefix.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> names = new ArrayList<>();
+        BiConsumer<String, VaultEntry> match = (name, entry) -> {
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            if (NameCursor.isAfter(nameBytes, afterBytes) && NameCursor.startsWith(nameBytes, prefixBytes)
+                    && entry.getTags().containsAll(wanted) && isInFolder(entry.getFolder(), subtree)) {
+                names.add(nameBytes);
+            }
+        };
+        NameIndex source = file;
+        TagIndex index = source == null || current.store() != null ? null : source.tags();
+        if (current.store() != null) {
+            current.store().forEach(match);
+        } else if (index == null) {
+            unindexed(current).forEach((name, record) -> match.accept(name, record.open(name, key)));
+        } else {
+            forEachUnchanged(current, source, index.select(wanted, subtree),
+                    name -> NameCursor.isAfter(name, afterBytes) && NameCursor.startsWith(name, prefixBytes),
+                    (name, record) -> names.add(name.getBytes(StandardCharsets.UTF_8)));
+            current.forEachChanged((name, record) -> match.accept(name, record.open(name, key)));
+        }
+        names.sort(Arrays::compareUnsigned);
+        return names.stream().map(name -> new String(name, StandardCharsets.UTF_8)).iterator();
+    }
+
+    // Names of the entries with the username and with every word of words among the words of their names,
+    // case aside, in the order of their UTF-8 bytes; either may be null. Rows of the file are looked up by
+    // the keyed tokens of its blind index, and only they and the entries changed since are opened; without
+    // an index, as for paged vaults and files written before there was one, every entry is.
+    public List<String> searchEntries(String username, String words) {
+        String user = username == null ? null : username.toLowerCase(Locale.ROOT);
+        List<String> wanted = words == null ? List.of() : BlindIndex.words(words);
+        if (user == null && wanted.isEmpty()) {
+            throw new PandoraException("Nothing to search for");
+        }
+        State current = state;
+        if (current.parts() != null) {
+            List<byte[]> names = new ArrayList<>();
+            for (Vault part : current.parts().all()) {
+                part.searchEntries(username, words).forEach(name -> names.add(name.getBytes(StandardCharsets.UTF_8)));
+            }
+            names.sort(Arrays::compareUnsigned);
+            return names.stream().map(name -> new String(name, StandardCharsets.UTF_8)).toList();
+        }
+
+        List<byte[]> names = new ArrayList<>();
+        // Words are checked on the name before an entry is opened for its username
+        BiConsumer<String, VaultRecords.Record> match = (name, record) -> {
+            if (BlindIndex.words(name).containsAll(wanted) && (user == null
+                    || user.equals(lowerCase(record.open(name, key).getUsername())))) {
+                names.add(name.getBytes(StandardCharsets.UTF_8));
+            }
+        };
+        NameIndex source = file;
+        TokenSets index = source == null || current.store() != null ? null : source.blind();
+        if (current.store() != null) {
+            current.store().forEach((name, entry) -> {
+                if (BlindIndex.words(name).containsAll(wanted)
+                        && (user == null || user.equals(lowerCase(entry.getUsername())))) {
+                    names.add(name.getBytes(StandardCharsets.UTF_8));
+                }
+            });
+        } else if (index == null) {
+            unindexed(current).forEach(match);
+        } else {
+            BlindIndex.Tokenizer tokenizer = source.tokenizer();
+            long[] tokens = new long[wanted.size() + (user == null ? 0 : 1)];
+            for (int i = 0; i < wanted.size(); i++) {
+                tokens[i] = tokenizer.word(wanted.get(i));
+            }
+            if (user != null) {
+                tokens[wanted.size()] = tokenizer.user(user);
+            }
+            // Tokens may collide, so every row found is checked like a changed entry
+            forEachUnchanged(current, source, index.select(tokens), name -> true, match);
+            current.forEachChanged(match);
+        }
+        names.sort(Arrays::compareUnsigned);
+        return names.stream().map(name -> new String(name, StandardCharsets.UTF_8)).toList();
+    }
+
+    // Names matching the query, at most limit of them, ranked: names equal to it first, then those it
+    // starts, those it is part of, and near misses, case aside, each kind the most used first by the
+    // scores, see EntryUsage, then in name order. Names are found through the trigrams of the file, so
+    // only the names of rows found and of entries changed since are looked at; without them, as for
+    // paged vaults and files written before there were any, every name is. Queries of one char only
+    // find the names they start.
+    public List<String> findEntries(String query, int limit, Map<String, Double> scores) {
+        List<NameSearch.Found> found = new ArrayList<>();
+        if (!query.isEmpty() && hasEntry(query)) {
+            found.add(new NameSearch.Found(query, NameSearch.EXACT, 0));
+        }
+        // Names used before are matched on their own, so they rank first whatever the index returned;
+        // the index may return them again, so it is asked for as many more. Queries of one char find the
+        // names they start only, used or not
+        scores.keySet().forEach(name -> {
+            NameSearch.Found match = NameSearch.match(name, query);
+            if (match != null && (query.length() > 1 || match.kind() <= NameSearch.PREFIX) && hasEntry(name)) {
+                found.add(match);
+            }
+        });
+        find(query, limit + found.size(), found);
+        return NameSearch.rank(found, scores, limit);
+    }
+
+    private void find(String query, int limit, List<NameSearch.Found> found) {
+        State current = state;
+        if (current.parts() != null) {
+            for (Vault part : current.parts().all()) {
+                part.find(query, limit, found);
+            }
+            return;
+        }
+        if (query.length() < 2) {
+            Set<String> variants = new HashSet<>(List.of(query, query.toLowerCase(Locale.ROOT),
+                    query.toUpperCase(Locale.ROOT)));
+            for (String variant : variants) {
+                Iterator<String> names = getEntryNames(null, variant);
+                for (int i = 0; i < limit && names.hasNext(); i++) {
+                    String name = names.next();
+                    found.add(new NameSearch.Found(name, name.equals(variant) ? NameSearch.EXACT : NameSearch.PREFIX, 0));
+                }
+            }
+            return;
+        }
+
+        NameIndex source = file;
+        TokenSets trigrams = source == null || current.store() != null ? null : source.trigrams();
+        if (trigrams == null) {
+            getEntryNames(null, null).forEachRemaining(name -> {
+                NameSearch.Found match = NameSearch.match(name, query);
+                if (match != null) {
+                    found.add(match);
+                }
+            });
+            return;
+        }
+        found.addAll(NameSearch.search(trigrams, source::name, name -> current.find(name) != null, query, limit));
+        current.forEachChanged((name, record) -> {
+            NameSearch.Found match = NameSearch.match(name, query);
+            if (match != null) {
+                found.add(match);
+            }
+        });
+    }
+
+    // Entries of the rows of the file, among those whose names are wanted, that did not change since it
+    // was read
+    private static void forEachUnchanged(State current, NameIndex source, IdSet rows, Predicate<byte[]> wanted,
+                                         BiConsumer<String, VaultRecords.Record> action) {
+        rows.forEach(row -> {
+            byte[] nameBytes = source.name(row);
+            if (!wanted.test(nameBytes)) {
+                return;
+            }
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            VaultRecords.Record record = current.find(name);
+            if (record != null && source.rowOf(record) == row) {
+                action.accept(name, record);
+            }
+        });
+    }
+
+    // Entries as of the call, each decrypted when it is first read; prefer getEntryNames/getEntry where possible
     public Map<String, VaultEntry> getAllEntries() {
-        return new HashMap<>(entries);
+        State current = state;
+        if (current.parts() != null) {
+            Map<String, VaultEntry> all = new HashMap<>();
+            current.parts().all().parallelStream().map(Vault::getAllEntries).toList().forEach(all::putAll);
+            return all;
+        }
+        if (current.store() != null) {
+            Map<String, VaultEntry> all = new HashMap<>();
+            current.store().forEach(all::put);
+            return all;
+        }
+        return new Entries(unindexed(current));
     }
-    
-    public void setAllEntries(Map<String, VaultEntry> entries) {
-        this.entries.clear();
-        this.entries.putAll(entries);
+
+    public synchronized void setAllEntries(Map<String, VaultEntry> entries) {
+        VaultParts parts = state.parts();
+        if (parts != null) {
+            Map<Vault, Map<String, VaultEntry>> split = new IdentityHashMap<>();
+            parts.all().forEach(part -> split.put(part, new HashMap<>()));
+            entries.forEach((name, entry) -> split.computeIfAbsent(parts.forName(name), part -> new HashMap<>())
+                    .put(name, entry));
+            split.forEach(Vault::setAllEntries);
+            recordedChanges++;
+            return;
+        }
+        VaultTable.Builder table = new VaultTable.Builder(entries.size());
+        entries.forEach((name, entry) -> table.add(name, new VaultRecords.Record(entry)));
+        state = State.of(table.build());
+        file = null;
+        // Not expressible as logged changes, and meant to replace whatever the file holds
+        log = null;
+        sourceId = null;
+        recordedChanges++;
     }
 
-    public void clearEntries() {
-        entries.clear();
+    public synchronized void clearEntries() {
+        VaultParts parts = state.parts();
+        if (parts != null) {
+            parts.all().forEach(Vault::clearEntries);
+            return;
+        }
+        record(VaultLog.Change.clear());
     }
 
     public int getEntryCount() {
-        return entries.size();
+        State current = state;
+        if (current.parts() != null) {
+            return current.parts().all().parallelStream().mapToInt(Vault::getEntryCount).sum();
+        }
+        return current.count();
     }
 
     public boolean isEmpty() {
-        return entries.isEmpty();
+        return getEntryCount() == 0;
+    }
+
+    // Wipes the passwords of every entry read or changed so far and empties the vault, which must not
+    // be committed afterwards. Entries handed out before can no longer be read either.
+    @Override
+    public synchronized void close() {
+        State current = state;
+        if (current.parts() != null) {
+            current.parts().close();
+        }
+        if (current.table() != null) {
+            current.table().destroy();
+        }
+        current.overlay().forEach((name, record) -> {
+            if (record != null) {
+                record.destroy();
+            }
+        });
+        for (VaultLog.Change change : pending) {
+            if (change.entry != null) {
+                change.entry.destroy();
+            }
+        }
+        pending.clear();
+        state = State.EMPTY;
+        log = null;
+    }
+
+    void setTable(VaultTable table) {
+        state = State.of(table);
+        file = null;
+    }
+
+    void setIndex(NameIndex index) {
+        state = State.indexed(index);
+        file = index;
+    }
+
+    void setKey(SecretKey key) {
+        this.key = key;
+    }
+
+    int getCompression() {
+        return compression;
+    }
+
+    void setCompression(int compression) {
+        this.compression = compression;
+    }
+
+    int getKdf() {
+        return kdf;
+    }
+
+    void setKdf(int kdf) {
+        this.kdf = kdf;
+    }
+
+    long getRecordedChanges() {
+        return recordedChanges;
+    }
+
+    long getDurableChanges() {
+        return durableChanges;
+    }
+
+    void setDurableChanges(long durableChanges) {
+        this.durableChanges = durableChanges;
+    }
+
+    Object getCommitLock() {
+        return commitLock;
+    }
+
+    VaultLog getLog() {
+        return log;
+    }
+
+    void setLog(VaultLog log) {
+        this.log = log;
+    }
+
+    byte[] getSourceId() {
+        return sourceId;
+    }
+
+    void setSourceId(byte[] sourceId) {
+        this.sourceId = sourceId;
+    }
+
+    List<VaultLog.Change> getPendingChanges() {
+        return pending;
+    }
+
+    PagedStore getStore() {
+        return state.store();
+    }
+
+    void setStore(PagedStore store) {
+        state = new State(null, store, null, null, HashTrie.empty(), -1);
+        file = null;
+        log = null;
+    }
+
+    VaultParts getParts() {
+        return state.parts();
+    }
+
+    VaultShards getShards() {
+        return state.parts() instanceof VaultShards shards ? shards : null;
+    }
+
+    VaultNamespaces getNamespaces() {
+        return state.parts() instanceof VaultNamespaces namespaces ? namespaces : null;
+    }
+
+    void setParts(VaultParts parts) {
+        state = parts == null ? State.EMPTY : new State(parts, null, null, null, HashTrie.empty(), -1);
+        file = null;
+        log = null;
+    }
+
+    // Takes the entries of every part into this vault, which stops being split. Sealed records are
+    // taken as they are: parts are sealed with the same key and bind records to their names only.
+    void unpartition() {
+        List<Vault> all = state.parts().all();
+        VaultTable.Builder table = new VaultTable.Builder();
+        for (Vault part : all) {
+            part.unindexed().forEach(table::add);
+        }
+        state = State.of(table.build());
+        file = null;
+        log = null;
+        compression = all.isEmpty() ? Compression.NONE : all.get(0).getCompression();
+    }
+
+    // The entries as they are now along with how many changes they hold, for writing them out while
+    // the vault goes on changing
+    synchronized Snapshot snapshot() {
+        return new Snapshot(unindexed(), file, recordedChanges, pending.size());
+    }
+
+    // Marks the changes of a snapshot as written to the file the log now belongs to. When the file's
+    // records were all sealed again, as for another compression, the vault reads them from the file
+    // from now on, with the changes made since on top, instead of the records they were sealed from.
+    synchronized void saved(Snapshot snapshot, VaultLog log, NameIndex resealed, int compression) {
+        pending.subList(0, snapshot.pending()).clear();
+        durableChanges = Math.max(durableChanges, snapshot.changes());
+        // Unless setAllEntries since left changes no log can hold, which the next commit saves in full
+        if (recordedChanges - snapshot.changes() == pending.size()) {
+            this.log = log;
+            if (resealed != null) {
+                state = State.indexed(resealed);
+                file = resealed;
+                pending.forEach(this::apply);
+                this.compression = compression;
+            }
+        }
+    }
+
+    // Applies what another process appended to the log since it was read, then the changes not yet
+    // written again, so those still come last
+    void catchUp(Path logFile) throws IOException {
+        log.replay(logFile, this, key);
+        pending.forEach(this::apply);
+    }
+
+    // Takes the state of a newer reading of the vault, written by another process meanwhile, and
+    // applies the changes not yet written on top of it, as if they had been made after
+    void rebase(Vault fresh) {
+        List<VaultLog.Change> changes = new ArrayList<>(pending);
+        pending.clear();
+        state = fresh.state;
+        file = fresh.file;
+        log = fresh.log;
+        sourceId = fresh.sourceId;
+        compression = fresh.compression;
+        VaultParts parts = state.parts();
+        for (VaultLog.Change change : changes) {
+            if (parts == null) {
+                apply(change);
+                pending.add(change);
+            } else if (change.op == VaultLog.Change.CLEAR) {
+                parts.all().forEach(part -> part.record(change));
+            } else {
+                parts.forName(change.name).record(change);
+            }
+        }
+    }
+
+    // Entries in the order of their UTF-8 names, as the vault files store them
+    void forEachSorted(BiConsumer<String, VaultEntry> action) {
+        PagedStore store = state.store();
+        if (store != null) {
+            store.forEach(action);
+            return;
+        }
+        State current = unindexed();
+        for (Iterator<String> names = current.names(null, null); names.hasNext(); ) {
+            String name = names.next();
+            action.accept(name, current.open(name, key));
+        }
+    }
+
+    // Applies a change without recording it, as when replaying the log
+    void apply(VaultLog.Change change) {
+        State current = state;
+        if (current.store() != null) {
+            switch (change.op) {
+                case VaultLog.Change.PUT -> current.store().put(change.name, change.entry);
+                case VaultLog.Change.REMOVE -> current.store().remove(change.name);
+                default -> current.store().clear();
+            }
+            return;
+        }
+        state = switch (change.op) {
+            case VaultLog.Change.PUT -> current.with(change.name, new VaultRecords.Record(change.entry));
+            case VaultLog.Change.REMOVE -> current.with(change.name, null);
+            default -> State.EMPTY;
+        };
+    }
+
+    private static Vault partFor(State state, String name) {
+        if (state.parts() == null) {
+            return null;
+        }
+        if (name == null) {
+            throw new PandoraException("Entry name cannot be null or empty");
+        }
+        return state.parts().forName(name);
+    }
+
+    private void record(VaultLog.Change change) {
+        apply(change);
+        pending.add(change);
+        recordedChanges++;
+        if (change.op == VaultLog.Change.CLEAR) {
+            unfed.clear();
+            unfedClear = true;
+        } else {
+            unfed.add(change.name);
+        }
+    }
+
+    // Takes the changes the change feed was not told of yet, from the parts read so far as well
+    synchronized FeedChanges takeFeedChanges() {
+        Set<String> names = new HashSet<>(unfed);
+        boolean[] cleared = {unfedClear};
+        unfed.clear();
+        unfedClear = false;
+        VaultParts parts = state.parts();
+        if (parts != null) {
+            parts.forEachLoaded((part, path) -> {
+                FeedChanges taken = part.takeFeedChanges();
+                names.addAll(taken.names());
+                cleared[0] |= taken.cleared();
+            });
+        }
+        return new FeedChanges(cleared[0], names);
+    }
+
+    // Hands back changes the feed took but could not be committed with, for the next commit to feed
+    synchronized void returnFeedChanges(FeedChanges changes) {
+        unfed.addAll(changes.names());
+        unfedClear |= changes.cleared();
+    }
+
+    // The state with every entry in its table. Readers holding a state that still answers lookups from
+    // the file's index have the index read into a table once, by whoever gets there first.
+    private State unindexed(State current) {
+        return current.table() != null ? current : unindexed();
+    }
+
+    private synchronized State unindexed() {
+        State current = state;
+        if (current.store() != null) {
+            VaultTable.Builder table = new VaultTable.Builder();
+            current.store().forEach((name, entry) -> table.add(name, new VaultRecords.Record(entry)));
+            state = State.of(table.build());
+        } else if (current.index() != null) {
+            VaultTable.Builder table = new VaultTable.Builder(current.index().size());
+            current.index().addTo(table);
+            state = State.of(table.build(), current.overlay());
+        }
+        return state;
     }
 
     private void validateEntryName(String name) {
         if (name == null || name.trim().isEmpty()) {
             throw new PandoraException("Entry name cannot be null or empty");
         }
-        if (entries.containsKey(name)) {
+        if (hasEntry(name)) {
             throw new PandoraException("Entry with name '" + name + "' already exists");
         }
     }
 
-    private void validateCredentials(String username, String password) {
+    private void validateCredentials(String username, char[] password) {
         if (username == null || username.trim().isEmpty()) {
             throw new PandoraException("Username cannot be null or empty");
         }
-        if (password == null || password.trim().isEmpty()) {
+        if (password == null || isBlank(password)) {
             throw new PandoraException("Password cannot be null or empty");
         }
     }
+
+    // Sorted, without duplicates; a tag is a word without spaces
+    private static List<String> normalizeTags(Collection<String> tags) {
+        if (tags == null || tags.isEmpty()) {
+            return List.of();
+        }
+        TreeSet<String> normalized = new TreeSet<>();
+        for (String tag : tags) {
+            String trimmed = tag == null ? "" : tag.trim();
+            if (trimmed.isEmpty() || trimmed.chars().anyMatch(Character::isWhitespace)
+                    || trimmed.length() > MAX_LABEL_LENGTH) {
+                throw new PandoraException("Invalid tag: '" + tag + "'");
+            }
+            normalized.add(trimmed);
+        }
+        return List.copyOf(normalized);
+    }
+
+    // Slash-separated path without empty parts, or null for none
+    private static String normalizeFolder(String folder) {
+        if (folder == null || folder.isBlank()) {
+            return null;
+        }
+        StringJoiner path = new StringJoiner("/");
+        for (String part : folder.split("/")) {
+            if (!part.isBlank()) {
+                path.add(part.trim());
+            }
+        }
+        String normalized = path.toString();
+        if (normalized.isEmpty() || normalized.length() > MAX_LABEL_LENGTH) {
+            throw new PandoraException("Invalid folder: '" + folder + "'");
+        }
+        return normalized;
+    }
+
+    private static boolean isInFolder(String folder, String subtree) {
+        return subtree == null || folder != null && (folder.equals(subtree) || folder.startsWith(subtree + "/"));
+    }
+
+    private static String lowerCase(String value) {
+        return value == null ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static boolean isBlank(char[] chars) {
+        for (char c : chars) {
+            if (c > ' ') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Names of the entries changed, and whether the vault was emptied before
+    record FeedChanges(boolean cleared, Set<String> names) {
+        boolean isEmpty() {
+            return !cleared && names.isEmpty();
+        }
+    }
+
+    // The entries of a vault as they were when it was taken, in no particular order
+    record Snapshot(State state, NameIndex file, long changes, int pending) {
+
+        int size() {
+            return state.count();
+        }
+
+        void forEach(BiConsumer<String, VaultRecords.Record> action) {
+            state.forEach(action);
+        }
+    }
+
+    // The entries of a state as a map, each decrypted when it is first read
+    private final class Entries extends AbstractMap<String, VaultEntry> {
+        private final State state;
+
+        Entries(State state) {
+            this.state = state;
+        }
+
+        @Override
+        public int size() {
+            return state.count();
+        }
+
+        @Override
+        public boolean containsKey(Object name) {
+            return name instanceof String entryName && state.contains(entryName);
+        }
+
+        @Override
+        public VaultEntry get(Object name) {
+            return name instanceof String entryName ? state.open(entryName, key) : null;
+        }
+
+        @Override
+        public Set<Entry<String, VaultEntry>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return state.count();
+                }
+
+                @Override
+                public Iterator<Entry<String, VaultEntry>> iterator() {
+                    return new Cursor<>(state) {
+                        @Override
+                        Entry<String, VaultEntry> make(String name, int row, VaultRecords.Record record) {
+                            return new SimpleImmutableEntry<>(name,
+                                    record == null ? state.table().open(row, name, key) : record.open(name, key));
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return new AbstractSet<>() {
+                @Override
+                public int size() {
+                    return state.count();
+                }
+
+                @Override
+                public boolean contains(Object name) {
+                    return containsKey(name);
+                }
+
+                @Override
+                public Iterator<String> iterator() {
+                    return new Cursor<>(state) {
+                        @Override
+                        String make(String name, int row, VaultRecords.Record record) {
+                            return name;
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    // Walks the rows of a state's table that did not change since, then the changes kept on top of it
+    private abstract static class Cursor<T> implements Iterator<T> {
+        private final State state;
+        private final Iterator<Map.Entry<String, VaultRecords.Record>> changes;
+        private int row;
+        private T next;
+
+        Cursor(State state) {
+            this.state = state;
+            this.changes = state.overlay().asMap((name, record) -> record).entrySet().iterator();
+        }
+
+        // Makes an element of the name and either the row in the table, or the changed record
+        abstract T make(String name, int row, VaultRecords.Record record);
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && row < state.table().size()) {
+                String name = state.table().name(row);
+                if (!state.overlay().containsKey(name)) {
+                    next = make(name, row, null);
+                }
+                row++;
+            }
+            while (next == null && changes.hasNext()) {
+                Map.Entry<String, VaultRecords.Record> change = changes.next();
+                if (change.getValue() != null) {
+                    next = make(change.getKey(), -1, change.getValue());
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            T current = next;
+            next = null;
+            return current;
+        }
+    }
+
+    // At most one of parts, store, index and table is set:
+    //   parts    sharded and namespaced vaults hand every entry to the vault of the part its name belongs to
+    //   store    paged vaults keep their entries in the file's B+tree, which locks itself
+    //   index    set while lookups can still be answered from the file's sorted index
+    //   table    the entries as of the last compaction, in columns
+    // Changes to the index or the table go to the overlay (null for a removed name) and are compacted
+    // into a new table once it grows past a quarter of the table. The first call that needs every entry
+    // reads the index into a table. Entries read from a sealed vault stay encrypted until getEntry
+    // asks for them. The number of entries is kept along with a table, and counted when asked for over an index.
+    private record State(VaultParts parts, PagedStore store, NameIndex index, VaultTable table,
+                         HashTrie<String, VaultRecords.Record> overlay, int entries) {
+
+        static final State EMPTY = of(VaultTable.EMPTY);
+
+        private static final int MIN_COMPACTION = 1024;
+
+        static State of(VaultTable table) {
+            return new State(null, null, null, table, HashTrie.empty(), table.size());
+        }
+
+        static State of(VaultTable table, HashTrie<String, VaultRecords.Record> overlay) {
+            int[] count = {table.size()};
+            overlay.forEach((name, record) -> {
+                boolean inTable = table.find(name) >= 0;
+                if (record != null && !inTable) {
+                    count[0]++;
+                } else if (record == null && inTable) {
+                    count[0]--;
+                }
+            });
+            return new State(null, null, null, table, overlay, count[0]).compacted();
+        }
+
+        static State indexed(NameIndex index) {
+            return new State(null, null, index, null, HashTrie.empty(), -1);
+        }
+
+        VaultRecords.Record find(String name) {
+            if (store != null) {
+                VaultEntry entry = store.get(name);
+                return entry == null ? null : new VaultRecords.Record(entry);
+            }
+            if (overlay.containsKey(name)) {
+                return overlay.get(name);
+            }
+            if (index != null) {
+                return index.find(name);
+            }
+            int row = table.find(name);
+            return row < 0 ? null : table.record(row);
+        }
+
+        // Only for states without parts
+        Iterator<String> names(String after, String prefix) {
+            if (store != null) {
+                return store.names(after, prefix);
+            }
+            if (index != null) {
+                return new NameCursor(index.size(), index::name, overlay, after, prefix);
+            }
+            return new NameCursor(table.size(), table::nameBytes, overlay, after, prefix);
+        }
+
+        boolean contains(String name) {
+            if (table != null && !overlay.containsKey(name)) {
+                return table.find(name) >= 0;
+            }
+            return find(name) != null;
+        }
+
+        VaultEntry open(String name, SecretKey key) {
+            if (table != null && !overlay.containsKey(name)) {
+                int row = table.find(name);
+                return row < 0 ? null : table.open(row, name, key);
+            }
+            VaultRecords.Record record = find(name);
+            return record == null ? null : record.open(name, key);
+        }
+
+        // Puts a record under the name, or removes the name for null
+        State with(String name, VaultRecords.Record record) {
+            if (index != null) {
+                return new State(null, null, index, null, overlay.with(name, record), -1);
+            }
+            boolean inTable = table.find(name) >= 0;
+            boolean present = overlay.containsKey(name) ? overlay.get(name) != null : inTable;
+            HashTrie<String, VaultRecords.Record> changed = record == null && !inTable
+                    ? overlay.without(name) : overlay.with(name, record);
+            return new State(null, null, null, table, changed, entries + (record != null ? 1 : 0) - (present ? 1 : 0))
+                    .compacted();
+        }
+
+        // Every entry; only for states with a table
+        void forEach(BiConsumer<String, VaultRecords.Record> action) {
+            for (int row = 0; row < table.size(); row++) {
+                String name = table.name(row);
+                if (!overlay.containsKey(name)) {
+                    action.accept(name, table.record(row));
+                }
+            }
+            overlay.forEach((name, record) -> {
+                if (record != null) {
+                    action.accept(name, record);
+                }
+            });
+        }
+
+        // Entries changed since the file was read, whose records are no longer the file's; only for
+        // states without parts or store
+        void forEachChanged(BiConsumer<String, VaultRecords.Record> action) {
+            if (table != null) {
+                table.forEachChanged((name, record) -> {
+                    if (!overlay.containsKey(name)) {
+                        action.accept(name, record);
+                    }
+                });
+            }
+            overlay.forEach((name, record) -> {
+                if (record != null) {
+                    action.accept(name, record);
+                }
+            });
+        }
+
+        int count() {
+            if (store != null) {
+                return (int) store.size();
+            }
+            if (index == null) {
+                return entries;
+            }
+            int[] count = {index.size()};
+            overlay.forEach((name, record) -> {
+                boolean indexed = index.find(name) != null;
+                if (record != null && !indexed) {
+                    count[0]++;
+                } else if (record == null && indexed) {
+                    count[0]--;
+                }
+            });
+            return count[0];
+        }
+
+        // Folds the overlay into a new table once it grew large enough, which keeps the work of
+        // compacting to a constant share of every change. The changed names are sorted and merged with
+        // the rows that did not change, so the table stays in name order.
+        private State compacted() {
+            if (overlay.size() <= MIN_COMPACTION + table.size() / 4) {
+                return this;
+            }
+            BitSet changed = new BitSet(table.size());
+            List<NamedRecord> added = new ArrayList<>(overlay.size());
+            overlay.forEach((name, record) -> {
+                int row = table.find(name);
+                if (row >= 0) {
+                    changed.set(row);
+                }
+                if (record != null) {
+                    added.add(new NamedRecord(name.getBytes(StandardCharsets.UTF_8), record));
+                }
+            });
+            added.sort((a, b) -> Arrays.compareUnsigned(a.name(), b.name()));
+
+            VaultTable.Builder compacted = new VaultTable.Builder(table.size() + overlay.size());
+            int next = 0;
+            for (int row = changed.nextClearBit(0); row < table.size(); row = changed.nextClearBit(row + 1)) {
+                for (; next < added.size() && table.compareName(row, added.get(next).name()) > 0; next++) {
+                    compacted.add(added.get(next).name(), added.get(next).record());
+                }
+                compacted.add(table, row);
+            }
+            for (; next < added.size(); next++) {
+                compacted.add(added.get(next).name(), added.get(next).record());
+            }
+            return of(compacted.build());
+        }
+    }
+
+    private record NamedRecord(byte[] name, VaultRecords.Record record) {}
 }
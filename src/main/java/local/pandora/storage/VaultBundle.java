@@ -0,0 +1,173 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// A vault packed into one zip file for carrying it to another host: the vault file, its key file,
+// without which a vault under a data key opens nowhere, and for a sharded or namespaced vault, whose
+// vault file only names its parts, every part file along with its log. Entries are named as the files
+// are, relative to the directory of the vault file. A bundle is written and restored with the vault
+// file locked, and each part locked while it is copied, so it never holds a vault file from before a
+// change and a key file or part from after it.
+public final class VaultBundle {
+
+    private static final int ZIP_MAGIC = 0x504B0304; // "PK\3\4"
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PART_SUFFIX = ".enc";
+    private static final String LOG_SUFFIX = ".wal";
+
+    private VaultBundle() {}
+
+    public static void write(Path vaultFile, Path bundle) throws PandoraException {
+        try (VaultLock lock = VaultLock.acquire(vaultFile);
+             ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(bundle))) {
+            for (Path file : files(vaultFile)) {
+                add(zip, vaultFile, file);
+            }
+            for (Path part : parts(vaultFile)) {
+                try (VaultLock partLock = VaultLock.acquire(part)) {
+                    add(zip, vaultFile, part);
+                    if (Files.exists(VaultPaths.logFileFor(part))) {
+                        add(zip, vaultFile, VaultPaths.logFileFor(part));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new PandoraException("Failed to bundle vault files", e);
+        }
+    }
+
+    // Puts the files of the bundle in place of those of the vault. Files the bundle does not hold go,
+    // as a log or key file left from the vault replaced would not belong to the one restored.
+    public static void restore(Path bundle, Path vaultFile) throws PandoraException {
+        Path directory = vaultFile.getParent();
+        Path partDirectory = VaultPaths.shardDirectoryFor(vaultFile);
+        // Parts are gathered in a directory of their own, which then takes the place of the old one whole
+        Path partTemp = partDirectory.resolveSibling(partDirectory.getFileName() + TEMP_SUFFIX);
+        List<Path> restored = new ArrayList<>();
+        try (VaultLock lock = VaultLock.acquire(vaultFile);
+             ZipInputStream zip = new ZipInputStream(Files.newInputStream(bundle))) {
+            deleteDirectory(partTemp);
+            for (ZipEntry entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                Path file = directory.resolve(entry.getName()).normalize();
+                if (entry.isDirectory()) {
+                    throw new PandoraException("Vault bundle holds an unexpected file: " + entry.getName());
+                }
+                if (isPart(vaultFile, file)) {
+                    Files.createDirectories(partTemp);
+                    Files.copy(zip, partTemp.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                    continue;
+                }
+                if (!isBundled(vaultFile, file)) {
+                    throw new PandoraException("Vault bundle holds an unexpected file: " + entry.getName());
+                }
+                Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+                Files.copy(zip, temp, StandardCopyOption.REPLACE_EXISTING);
+                restored.add(temp);
+            }
+            if (restored.stream().noneMatch(temp -> isVaultTemp(vaultFile, temp))) {
+                throw new PandoraException("Vault bundle holds no vault file");
+            }
+
+            Files.deleteIfExists(VaultPaths.logFileFor(vaultFile));
+            Files.deleteIfExists(VaultPaths.keyFileFor(vaultFile));
+            deleteDirectory(partDirectory);
+            if (Files.isDirectory(partTemp)) {
+                Files.move(partTemp, partDirectory, StandardCopyOption.ATOMIC_MOVE);
+            }
+            // The vault file last, once the key file that opens it is in place
+            restored.sort((a, b) -> Boolean.compare(isVaultTemp(vaultFile, a), isVaultTemp(vaultFile, b)));
+            for (Path temp : restored) {
+                String name = temp.getFileName().toString();
+                Files.move(temp, temp.resolveSibling(name.substring(0, name.length() - TEMP_SUFFIX.length())),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            VaultFile.forceDirectory(directory);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to restore vault bundle", e);
+        } finally {
+            try {
+                for (Path temp : restored) {
+                    Files.deleteIfExists(temp);
+                }
+                deleteDirectory(partTemp);
+            } catch (IOException e) {
+                // left for the next restore to overwrite
+            }
+        }
+    }
+
+    // Whether the file is a bundle rather than a bare vault file
+    public static boolean isBundle(Path file) throws PandoraException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] magic = in.readNBytes(4);
+            return magic.length == 4 && ((magic[0] & 0xFF) << 24 | (magic[1] & 0xFF) << 16
+                    | (magic[2] & 0xFF) << 8 | magic[3] & 0xFF) == ZIP_MAGIC;
+        } catch (IOException e) {
+            throw new PandoraException("Failed to read file: " + file, e);
+        }
+    }
+
+    private static List<Path> files(Path vaultFile) {
+        List<Path> files = new ArrayList<>();
+        files.add(vaultFile);
+        if (Files.exists(VaultPaths.keyFileFor(vaultFile))) {
+            files.add(VaultPaths.keyFileFor(vaultFile));
+        }
+        return files;
+    }
+
+    // Part files of a sharded or namespaced vault, in the directory its vault file names them in
+    private static List<Path> parts(Path vaultFile) throws IOException {
+        Path directory = VaultPaths.shardDirectoryFor(vaultFile);
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(PART_SUFFIX)).sorted().toList();
+        }
+    }
+
+    private static void add(ZipOutputStream zip, Path vaultFile, Path file) throws IOException {
+        zip.putNextEntry(new ZipEntry(vaultFile.getParent().relativize(file).toString()));
+        Files.copy(file, zip);
+        zip.closeEntry();
+    }
+
+    private static boolean isPart(Path vaultFile, Path file) {
+        String name = file.getFileName().toString();
+        return VaultPaths.shardDirectoryFor(vaultFile).normalize().equals(file.getParent())
+                && (name.endsWith(PART_SUFFIX) || name.endsWith(LOG_SUFFIX));
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static boolean isBundled(Path vaultFile, Path file) {
+        return file.equals(vaultFile.normalize()) || file.equals(VaultPaths.keyFileFor(vaultFile).normalize());
+    }
+
+    private static boolean isVaultTemp(Path vaultFile, Path temp) {
+        return temp.getFileName().toString().equals(vaultFile.getFileName() + TEMP_SUFFIX);
+    }
+}
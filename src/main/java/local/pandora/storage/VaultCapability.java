@@ -0,0 +1,17 @@
+package local.pandora.storage;
+
+// What the format of a vault file offers, as told by its header; see VaultFile for the formats
+public enum VaultCapability {
+    SEALED_RECORDS, // every entry sealed on its own, so one is read without decrypting the others
+    SORTED_INDEX, // names sorted in an encrypted index, found by binary search
+    NAME_FILTER, // keyed Bloom filter answering for names the vault does not hold
+    CHANGE_LOG, // changes appended to a log next to the file instead of rewriting it
+    COMPRESSION, // records and index compressed
+    BLOCK_CHECKSUMS, // Merkle tree over the blocks of the file
+    TAG_INDEX, // tags and folders of the entries inverted in the index
+    BLIND_INDEX, // keyed tokens of usernames and name words inverted in the index
+    NAME_SEARCH, // trigrams of the names inverted, sealed on their own
+    PAGED, // B+tree of pages, changed in place
+    SHARDED, // entries kept in shard files
+    NAMESPACED // entries kept in a file per namespace
+}
@@ -1,15 +1,38 @@
 package local.pandora.storage;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
 
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Set;
+
 @Setter
 @Getter
-@AllArgsConstructor
 @NoArgsConstructor
 public class VaultContainer {
-    private String salt; // Base64-encoded
-    private String encryptedData; // AES/GCM-encrypted JSON of Vault
+    private int formatVersion; // 0 for the legacy JSON container
+    private int flags; // binary format: header flags, compression in the low byte and features in the high one
+    private Set<VaultCapability> capabilities; // what the format of the file offers, from its version and flags
+    private int kdf; // where the key of the vault comes from, see VaultFile: a data key, or PBKDF2 of the password
+    private int kdfIterations;
+    private byte[] salt;
+    private byte[] iv; // binary format only; legacy ciphertext carries its IV in front
+    private byte[] header; // binary format: header bytes authenticated along with the ciphertext
+    private ByteBuffer encryptedData; // binary format: memory-mapped ciphertext and tag of the vault (v1), its index (v2 and v3) or its namespaces (v6)
+    private ByteBuffer records; // v2 and v3: memory-mapped sealed entry records, addressed by file offset; v4: the whole file
+    private ByteBuffer filter; // v3: memory-mapped Bloom filter over the entry names
+    private int filterHashes; // v3: positions set per name in the filter
+    private byte[] filterMac; // v3: HMAC over the header and filter
+    private ByteBuffer nameSearch; // v3 with name search: memory-mapped sealed trigrams of the names
+    private byte[] checksumHeader; // v3 with block checksums: the header up to and including the Merkle root
+    private byte[] checksumMac; // v3 with block checksums: HMAC over the checksum header
+    private int checksumBlockSize; // v3 with block checksums: bytes per block
+    private ByteBuffer checksummed; // v3 with block checksums: memory-mapped blocks, from the end of the header to the checksums
+    private ByteBuffer checksums; // v3 with block checksums: memory-mapped hash of every block
+    private int compression; // v3: codec of the index and of records that start with a codec byte
+    private int shardCount; // v5: number of shard files holding the entries
+    private Path source; // file the container was read from; for the legacy format, the one holding the Base64 ciphertext
+    private long dataOffset; // legacy format: position of the Base64 ciphertext within source
 }
@@ -1,23 +1,124 @@
 package local.pandora.storage;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import lombok.Getter;
-import lombok.Setter;
 
-@Setter
-@Getter
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+// Immutable, so entries can be shared between the snapshots of a vault; a change replaces the entry.
+// The password is kept off the heap and handed out as a copy, which callers clear once done with it.
+// Earlier versions of the entry travel with it, see EntryHistory, and so do its tags and folder.
 @JsonAutoDetect
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class VaultEntry {
-    private String username;
-    private String password;
+    @Getter
+    private final String username;
+    private final Secret password;
+    private final EntryHistory history;
+    // Sorted, and empty for none
+    private final List<String> tags;
+    // Slash-separated path, or null
+    private final String folder;
+
+    // Copies the password, which the caller still has to clear
+    public VaultEntry(String username, char[] password) {
+        this(username, password, null, null, null);
+    }
 
-    public VaultEntry() {}
+    VaultEntry(String username, char[] password, EntryHistory history, List<String> tags, String folder) {
+        this(username, password == null ? null : Secret.of(password), history, tags, folder);
+    }
 
-    public VaultEntry(String username, String password) {
+    VaultEntry(String username, Secret password) {
+        this(username, password, null, null, null);
+    }
+
+    private VaultEntry(String username, Secret password, EntryHistory history, List<String> tags, String folder) {
         this.username = username;
         this.password = password;
+        this.history = history;
+        this.tags = tags == null ? List.of() : List.copyOf(tags);
+        this.folder = folder;
     }
 
+    // Clears the password Jackson decoded once it is copied
+    @JsonCreator
+    private static VaultEntry read(@JsonProperty("username") String username, @JsonProperty("password") char[] password,
+                                   @JsonProperty("history") EntryHistory history, @JsonProperty("tags") List<String> tags,
+                                   @JsonProperty("folder") String folder) {
+        try {
+            return new VaultEntry(username, password, history, tags, folder);
+        } finally {
+            if (password != null) {
+                Arrays.fill(password, '\0');
+            }
+        }
+    }
+
+    @JsonSerialize(using = ClearingSerializer.class)
+    public char[] getPassword() {
+        return password == null ? null : password.reveal();
+    }
+
+    Secret getSecret() {
+        return password;
+    }
+
+    @JsonProperty("history")
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    EntryHistory getHistory() {
+        return history;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    public List<String> getTags() {
+        return tags;
+    }
+
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    public String getFolder() {
+        return folder;
+    }
+
+    // Just a username and password, with no history, tags or folder
+    boolean isBare() {
+        return history == null && tags.isEmpty() && folder == null;
+    }
+
+    // The entry with other tags and folder, sharing its password and history
+    VaultEntry withLabels(List<String> tags, String folder) {
+        return new VaultEntry(username, password, history, tags, folder);
+    }
+
+    // Wipes the password and its history; the entry can no longer be read afterwards
+    void destroy() {
+        if (password != null) {
+            password.destroy();
+        }
+        if (history != null) {
+            history.destroy();
+        }
+    }
+
+    // Writes the copy getPassword made and clears it
+    static class ClearingSerializer extends JsonSerializer<char[]> {
+        @Override
+        public void serialize(char[] value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            try {
+                generator.writeString(value, 0, value.length);
+            } finally {
+                Arrays.fill(value, '\0');
+            }
+        }
+    }
 }
@@ -1,44 +1,737 @@
 package local.pandora.storage;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import local.pandora.config.VaultConfig;
 import local.pandora.crypto.CryptoUtils;
+import local.pandora.crypto.KeyDerivation;
 import local.pandora.exception.InvalidMasterPasswordException;
 import local.pandora.exception.PandoraException;
+import local.pandora.logging.VaultLogger;
+import org.bouncycastle.crypto.io.InvalidCipherTextIOException;
 
-import javax.crypto.AEADBadTagException;
 import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Base64;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
 
 public class VaultFile {
 
     private VaultFile() {}
 
-    private static final ObjectMapper mapper = new ObjectMapper();
+    // Stream lifetimes are managed here: the cipher streams must only be closed once everything is written/read
+    private static final ObjectMapper mapper = new ObjectMapper()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    // Binary container, all integers big-endian. Both versions share the first part of the header:
+    //   magic "PNDR" | version u16 | flags u16 | kdf id u8 | kdf iterations u32 | salt (16) | iv (12)
+    // The kdf id tells where the key of the vault comes from: 1 for PBKDF2 of the master password with
+    // the salt and iterations of the header, in vaults that predate data keys, and 0, with no iterations,
+    // for a random data key that only the key file holds, see VaultKeyFile.
+    // Version 1 continues with the length of a single ciphertext holding the whole vault as JSON:
+    //   | ciphertext length u64 | ciphertext and GCM tag
+    // and authenticates everything before the length as associated data.
+    // Version 2 stores every entry as its own sealed record, followed by an encrypted index of them:
+    //   | index offset u64 | index length u64 | records | index ciphertext and GCM tag
+    // The whole version 2 header is the associated data of the index.
+    // Version 3 sorts records by name and adds a keyed Bloom filter over the names in front of the index:
+    //   | index offset u64 | index length u64 | filter offset u64 | filter length u32 | filter hashes u8
+    //   | filter MAC (32) | records | filter | index ciphertext and GCM tag
+    // The MAC covers the header before it and the filter; the whole header is the associated data of the index.
+    // The low byte of the flags names the compression of a version 3 file, see Compression. With it
+    // set, the index is a compressed block, and so is every record whose plain text starts with the codec.
+    // The high byte of the flags names features: a reader ignores those of bits 8 to 11 it does not know,
+    // and refuses a file with one of bits 12 to 15 it does not know, as it would misread it.
+    // Flag 0x200 marks a version 3 file whose index goes on with the tags and folders of its entries,
+    // see TagIndex; a reader that does not know it stops reading the index after the names.
+    // Flag 0x400 marks one whose index then goes on with the blind index of its entries, see BlindIndex.
+    // Flag 0x800 marks one with the trigrams of its names sealed between the filter and the index, as
+    //   iv | ciphertext of the TokenSets of NameSearch | GCM tag
+    // authenticated along with the IV of the index; a reader that does not know it skips them.
+    // Flag 0x100 marks a version 3 file with block checksums, see BlockChecksums. Its header goes on
+    //   | checksums offset u64 | block size u32 | Merkle root (32) | checksum MAC (32)
+    // and the file ends in the hash of every block from the end of the header up to the checksums.
+    // The MAC covers the header before it; the index and filter authenticate the header without these
+    // fields as before, so the root can cover them.
+    // Version 4 is a paged B+tree with the common header at the start of its superblocks, see PagedStore.
+    // Version 5 marks a sharded vault, whose entries are kept in shard files, see VaultShards:
+    //   | shard count u16 | GCM tag
+    // The tag is computed over no data with the whole header as associated data, which verifies the key.
+    // Version 6 marks a namespaced vault, whose entries are kept in a file per namespace, see VaultNamespaces:
+    //   | namespaces length u32 | namespaces ciphertext and GCM tag
+    // The namespaces decrypt to count u32 | count of (length u16 | UTF-8 namespace), with the whole
+    // header as associated data.
+    private static final int MAGIC = 0x504E4452; // "PNDR"
+    private static final int WHOLE_VAULT_VERSION = 1;
+    private static final int SEALED_RECORDS_VERSION = 2;
+    private static final int SORTED_INDEX_VERSION = 3;
+    static final int PAGED_VERSION = 4;
+    private static final int SHARDED_VERSION = 5;
+    private static final int NAMESPACED_VERSION = 6;
+    static final int KDF_DATA_KEY = 0;
+    static final int KDF_PBKDF2_HMAC_SHA256 = 1;
+    private static final int COMPRESSION_FLAGS = 0xFF;
+    private static final int CHECKSUMS_FLAG = 0x100;
+    private static final int TAGS_FLAG = 0x200;
+    private static final int BLIND_FLAG = 0x400;
+    private static final int SEARCH_FLAG = 0x800;
+    private static final int REQUIRED_FLAGS = 0xF000;
+    private static final int KNOWN_REQUIRED_FLAGS = 0;
+    static final int COMMON_HEADER_SIZE = 4 + 2 + 2 + 1 + 4 + KeyDerivation.SALT_LENGTH + CryptoUtils.GCM_IV_LENGTH;
+    private static final int WHOLE_VAULT_HEADER_SIZE = COMMON_HEADER_SIZE + 8;
+    private static final int SEALED_RECORDS_HEADER_SIZE = COMMON_HEADER_SIZE + 8 + 8;
+    private static final int SORTED_INDEX_HEADER_SIZE = SEALED_RECORDS_HEADER_SIZE + 8 + 4 + 1 + NameFilter.MAC_LENGTH;
+    private static final int CHECKSUMMED_HEADER_SIZE = SORTED_INDEX_HEADER_SIZE + BlockChecksums.HEADER_SIZE;
+    private static final int SHARDED_HEADER_SIZE = COMMON_HEADER_SIZE + 2;
+    private static final int NAMESPACED_HEADER_SIZE = COMMON_HEADER_SIZE + 4;
+    private static final int MAX_SHARDS = 1024;
+
+    private static final String TEMP_SUFFIX = ".tmp";
+    // Property the entries of a JSON vault are written under, see Vault.getAllEntries
+    private static final String ENTRIES_FIELD = "allEntries";
 
     public static void saveVault(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        validateInputs(vault, path, key, salt);
+        withFeed(vault, path, key, salt, () -> saveUnfed(vault, path, key, salt));
+    }
+
+    private static void saveUnfed(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        if (isNamespaced()) {
+            saveNamespaced(vault, path, key, salt);
+            return;
+        }
+        int shardCount = getShardCount();
+        if (shardCount > 1) {
+            saveSharded(vault, path, key, salt, shardCount);
+            return;
+        }
+        save(vault, path, key, salt);
+    }
+
+    // Folds the log of the vault file into a full save, so the file alone holds every change. The vault
+    // is read and written with the file locked, so no change another process appends meanwhile is lost.
+    public static void compactVault(Path path, SecretKey key, byte[] salt) throws PandoraException {
+        try (VaultLock lock = VaultLock.acquire(path);
+             Vault vault = decryptVault(loadVaultContainer(path), key)) {
+            saveVault(vault, path, key, salt);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to compact vault file", e);
+        }
+    }
+
+    // Writes every file of the vault again under another key and salt, with a header naming a data key.
+    // The entries are read under the old key into a vault of their own, so no record sealed under it is
+    // copied over, and saved in full. Logs and parts the new files do not name go, and the change feed
+    // and use counts are sealed again under the new key.
+    static void rewrite(Path path, SecretKey key, SecretKey newKey, byte[] newSalt) throws PandoraException {
+        try (VaultLock lock = VaultLock.acquire(path)) {
+            VaultContainer container = loadVaultContainer(path);
+            try (Vault old = decryptVault(container, key)) {
+                Map<String, VaultEntry> entries = new HashMap<>(old.getAllEntries());
+                try (Vault rewritten = new Vault()) {
+                    rewritten.setAllEntries(entries);
+                    saveUnfed(rewritten, path, newKey, newSalt);
+                    deleteUnnamedParts(path, rewritten.getParts());
+                }
+            }
+            EntryUsage.rekey(path, key, container.getSalt(), newKey, newSalt);
+            if (Files.exists(VaultPaths.changesFileFor(path))) {
+                ChangeFeed.reset(path, newKey, newSalt);
+            }
+        } catch (IOException e) {
+            throw new PandoraException("Failed to rewrite vault file", e);
+        }
+    }
+
+    // Files in the directory of the parts other than those of the parts given and their logs and locks
+    private static void deleteUnnamedParts(Path path, VaultParts parts) throws IOException {
+        Path directory = VaultPaths.shardDirectoryFor(path);
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Set<Path> named = new HashSet<>();
+        if (parts != null) {
+            for (Path part : parts.files()) {
+                named.add(part);
+                named.add(VaultPaths.logFileFor(part));
+                named.add(VaultPaths.lockFileFor(part));
+            }
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(file -> !named.contains(file)).toList()) {
+                Files.delete(file);
+            }
+        }
+        if (parts == null) {
+            Files.delete(directory);
+        }
+    }
+
+    // Writes the changes made to the vault since it was loaded without rewriting the whole file: a paged
+    // vault copies the pages on their paths, a sealed one appends them to its log, and a sharded or
+    // namespaced one commits every shard or namespace it read. Vaults in another format than the
+    // configured storage engine, shard count or namespacing, and ones due for compaction, are saved in
+    // full instead.
+    //
+    // Safe to call from several threads sharing a vault. Commits are grouped: one thread at a time
+    // writes and syncs every change recorded so far, and a thread whose changes were part of an earlier
+    // thread's write returns without syncing again. Sealed vaults keep accepting changes while the log
+    // is synced, so these pile up for the next write.
+    public static void commitVault(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        validateInputs(vault, path, key, salt);
+        withFeed(vault, path, key, salt, () -> commitUnfed(vault, path, key, salt));
+    }
+
+    private static void commitUnfed(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        boolean namespaced = isNamespaced();
+        VaultNamespaces namespaces = vault.getNamespaces();
+        if (namespaced || namespaces != null) {
+            if (!namespaced || namespaces == null) {
+                resave(vault, path, key, salt);
+                return;
+            }
+            writeNamespaces(namespaces, path, key, salt, false);
+            return;
+        }
+
+        int shardCount = getShardCount();
+        VaultShards shards = vault.getShards();
+        if (shardCount > 1 || shards != null) {
+            if (shards == null || shards.getCount() != shardCount) {
+                resave(vault, path, key, salt);
+                return;
+            }
+            commitShards(shards, key, salt);
+            return;
+        }
+        commit(vault, path, key, salt);
+    }
+
+    private static void commitShards(VaultShards shards, SecretKey key, byte[] salt) {
+        for (int i = 0; i < shards.getCount(); i++) {
+            Vault shard = shards.getLoaded(i);
+            if (shard != null) {
+                commit(shard, shards.getPath(i), key, salt);
+            }
+        }
+    }
+
+    // Saves a vault whose shard count or namespacing is no longer the configured one in full, on top
+    // of whatever other processes wrote since it was read. A sharded or namespaced vault commits the
+    // parts it read first, which catch up on their own; a vault in one file starts over from the file
+    // when it moved, and is committed again if that turned out partitioned. Called with the vault file
+    // locked, as by withFeed, so nothing is written meanwhile.
+    private static void resave(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        if (Files.exists(path)) {
+            try {
+                synchronized (vault.getCommitLock()) {
+                    synchronized (vault) {
+                        if (vault.getParts() == null && catchUp(vault, path, key) && vault.getParts() != null) {
+                            commitUnfed(vault, path, key, salt);
+                            return;
+                        }
+                    }
+                }
+                if (vault.getParts() != null && !isCurrent(vault, path)) {
+                    throw new PandoraException("Vault was converted by another process meanwhile, try again");
+                }
+            } catch (IOException e) {
+                throw new PandoraException("Failed to commit vault file", e);
+            }
+            if (vault.getShards() != null) {
+                commitShards(vault.getShards(), key, salt);
+            } else if (vault.getNamespaces() != null) {
+                writeNamespaces(vault.getNamespaces(), path, key, salt, false);
+            }
+        }
+        saveUnfed(vault, path, key, salt);
+    }
+
+    // Appends the entries changed since the vault was last written to its change feed, then writes it,
+    // both with the vault file locked, so a reader holding the lock finds what the feed names written;
+    // see ChangeFeed. Changes are handed back for the next write to feed unless this one succeeds.
+    private static void withFeed(Vault vault, Path path, SecretKey key, byte[] salt, Runnable write) {
+        Vault.FeedChanges changes = vault.takeFeedChanges();
         try {
-            validateInputs(vault, path, key, salt);
-            
-            String json = mapper.writeValueAsString(vault);
-            String encrypted = CryptoUtils.encrypt(json, key);
-            VaultContainer container = new VaultContainer(Base64.getEncoder().encodeToString(salt), encrypted);
-            String containerJson = mapper.writeValueAsString(container);
-            
             Files.createDirectories(path.getParent());
-            Files.writeString(path, containerJson);
+            try (VaultLock lock = VaultLock.acquire(path)) {
+                if (!changes.isEmpty()) {
+                    ChangeFeed.append(path, vault, key, salt, changes);
+                }
+                write.run();
+            }
+        } catch (IOException e) {
+            vault.returnFeedChanges(changes);
+            throw new PandoraException("Failed to write change feed", e);
+        } catch (RuntimeException e) {
+            vault.returnFeedChanges(changes);
+            throw e;
+        }
+    }
+
+    // Saves a vault, or a single shard, into one file
+    private static void save(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        try {
+            Files.createDirectories(path.getParent());
+
+            // Other processes wait until the new file is in place
+            try (VaultLock lock = VaultLock.acquire(path)) {
+                if (VaultConfig.isPagedStorage()) {
+                    savePaged(vault, path, key, salt);
+                } else {
+                    saveSorted(vault, path, key, salt);
+                }
+            }
+        } catch (Exception e) {
+            throw new PandoraException("Failed to save vault file", e);
+        }
+    }
+
+    // Unchanged records are copied from the mapping of the current file, so the new file is written
+    // next to it and only then moved into place
+    private static void savePaged(Vault vault, Path path, SecretKey key, byte[] salt) throws IOException {
+        synchronized (vault) {
+            VaultParts formerParts = unpartition(vault);
+            Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writePaged(vault, channel, key, salt);
+                channel.force(true);
+            }
+            replace(temp, path, formerParts);
+            vault.getPendingChanges().clear();
+            vault.setDurableChanges(vault.getRecordedChanges());
+            vault.setStore(PagedStore.open(loadVaultContainer(path), key, VaultConfig.getPageCachePages()));
+        }
+    }
+
+    // Writes a snapshot taken with the vault locked, which holds every change recorded before it, while
+    // the vault goes on changing; changes made meanwhile are left for the log of the new file
+    private static void saveSorted(Vault vault, Path path, SecretKey key, byte[] salt) throws IOException {
+        VaultParts formerParts;
+        Vault.Snapshot snapshot;
+        int compression;
+        int kdf;
+        synchronized (vault) {
+            formerParts = unpartition(vault);
+            snapshot = vault.snapshot();
+            compression = vault.getCompression();
+            kdf = vault.getKdf();
+        }
+
+        int codec = Compression.configuredCodec();
+        // Records sealed under another compression setting are sealed again, so the file matches the setting
+        boolean reseal = codec != compression;
+        Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        byte[] snapshotId;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            snapshotId = writeSortedIndex(snapshot, codec, reseal, kdf, channel, key, salt);
+            channel.force(true);
+        }
+        replace(temp, path, formerParts);
+        vault.saved(snapshot, new VaultLog(snapshotId), reseal ? openIndex(loadVaultContainer(path), key) : null, codec);
+    }
+
+    // Writes the vault in the configured format into a file of its own and syncs it, without touching the
+    // file the vault was read from or its log
+    static void writeFile(Vault vault, Path target, SecretKey key, byte[] salt) throws IOException {
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (VaultConfig.isPagedStorage()) {
+                writePaged(vault, channel, key, salt);
+            } else {
+                int codec = Compression.configuredCodec();
+                writeSortedIndex(vault.snapshot(), codec, codec != vault.getCompression(), vault.getKdf(), channel,
+                        key, salt);
+            }
+            channel.force(true);
+        }
+    }
+
+    // Puts a file written by writeFile in place of the vault file, whose log it already holds
+    static void install(Path file, Path path) throws IOException {
+        replace(file, path, null);
+    }
+
+    private static VaultParts unpartition(Vault vault) {
+        VaultParts parts = vault.getParts();
+        if (parts != null) {
+            vault.unpartition();
+        }
+        return parts;
+    }
+
+    // A crash leaves either the old file or the complete new one, and the rename itself only survives
+    // one once the directory is synced. Everything logged so far is part of the new snapshot, which a
+    // leftover log no longer matches.
+    private static void replace(Path temp, Path path, VaultParts formerParts) throws IOException {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.getParent());
+        if (formerParts != null) {
+            formerParts.deleteFiles();
+        }
+        Files.deleteIfExists(VaultPaths.logFileFor(path));
+    }
+
+    // Whether the files still hold what the vault was read from or last wrote. A vault without a log or
+    // store of its own, as read from a file in an older format, goes by the IV of that file; a sharded or
+    // namespaced one only by whether the file still has its layout, as its parts tell for themselves.
+    // One given all its entries anew replaces whatever is there.
+    private static boolean isCurrent(Vault vault, Path path) throws IOException {
+        if (vault.getStore() != null) {
+            return vault.getStore().isCurrent(path);
+        }
+        if (vault.getLog() == null) {
+            if (vault.getSourceId() == null) {
+                return true;
+            }
+            VaultContainer container = loadVaultContainer(path);
+            if (vault.getShards() != null) {
+                return container.getFormatVersion() == SHARDED_VERSION
+                        && container.getShardCount() == vault.getShards().getCount();
+            }
+            if (vault.getNamespaces() != null) {
+                return container.getFormatVersion() == NAMESPACED_VERSION;
+            }
+            return Arrays.equals(vault.getSourceId(), container.getIv());
+        }
+        VaultContainer container = loadVaultContainer(path);
+        return container.getFormatVersion() == SORTED_INDEX_VERSION
+                && vault.getLog().isCurrent(container.getIv(), VaultPaths.logFileFor(path));
+    }
+
+    private static boolean isBehind(Vault vault, Path path) throws IOException {
+        if (vault.getStore() != null || vault.getLog() == null) {
+            return false;
+        }
+        VaultContainer container = loadVaultContainer(path);
+        return container.getFormatVersion() == SORTED_INDEX_VERSION
+                && vault.getLog().isBehind(container.getIv(), VaultPaths.logFileFor(path));
+    }
+
+    // Saves the shards with changes not yet on disk, so a save only rewrites the shards that were changed.
+    // A vault not yet split into this many shards is split first, and the vault file, which only names
+    // the shard count, is replaced once every shard is written.
+    private static void saveSharded(Vault vault, Path path, SecretKey key, byte[] salt, int count) throws PandoraException {
+        VaultShards shards = vault.getShards();
+        if (shards != null && shards.getCount() == count) {
+            for (int i = 0; i < count; i++) {
+                Vault shard = shards.getLoaded(i);
+                if (shard != null && shard.getDurableChanges() < shard.getRecordedChanges()) {
+                    save(shard, shards.getPath(i), key, salt);
+                }
+            }
+            return;
+        }
+
+        try (VaultLock lock = VaultLock.acquire(path)) {
+            synchronized (vault) {
+                VaultShards split = new VaultShards(path, count, key, salt);
+                List<Map<String, VaultEntry>> parts = new ArrayList<>();
+                for (int i = 0; i < count; i++) {
+                    parts.add(new HashMap<>());
+                }
+                vault.getAllEntries().forEach((name, entry) -> parts.get(split.shardOf(name)).put(name, entry));
+
+                Files.createDirectories(VaultPaths.shardDirectoryFor(path));
+                for (int i = 0; i < count; i++) {
+                    Vault shard = new Vault();
+                    shard.setKey(key);
+                    shard.setKdf(vault.getKdf());
+                    shard.setAllEntries(parts.get(i));
+                    save(shard, split.getPath(i), key, salt);
+                    split.setLoaded(i, shard);
+                }
+                forceDirectory(VaultPaths.shardDirectoryFor(path));
+
+                Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    writeShardManifest(channel, count, vault.getKdf(), key, salt);
+                    channel.force(true);
+                }
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                forceDirectory(path.getParent());
+
+                Files.deleteIfExists(VaultPaths.logFileFor(path));
+                if (vault.getParts() != null) {
+                    vault.getParts().deleteFiles();
+                }
+                vault.setParts(split);
+                vault.getPendingChanges().clear();
+                vault.setDurableChanges(vault.getRecordedChanges());
+            }
+        } catch (PandoraException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new PandoraException("Failed to save vault file", e);
+        }
+    }
+
+    // Saves the namespaces with changes not yet on disk. A vault not yet namespaced is split into its
+    // namespaces first, and the vault file, which only lists them, is replaced once every namespace is written.
+    private static void saveNamespaced(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        VaultNamespaces namespaces = vault.getNamespaces();
+        if (namespaces != null) {
+            writeNamespaces(namespaces, path, key, salt, true);
+            return;
+        }
+
+        try (VaultLock lock = VaultLock.acquire(path)) {
+            synchronized (vault) {
+                VaultNamespaces split = new VaultNamespaces(path, List.of(), key, salt);
+                Map<String, Map<String, VaultEntry>> parts = new TreeMap<>();
+                parts.put("", new HashMap<>());
+                vault.getAllEntries().forEach((name, entry) -> parts
+                        .computeIfAbsent(VaultNamespaces.namespaceOf(name), namespace -> new HashMap<>())
+                        .put(name, entry));
+
+                Files.createDirectories(VaultPaths.shardDirectoryFor(path));
+                for (Map.Entry<String, Map<String, VaultEntry>> part : parts.entrySet()) {
+                    Vault namespace = new Vault();
+                    namespace.setKey(key);
+                    namespace.setKdf(vault.getKdf());
+                    namespace.setAllEntries(part.getValue());
+                    save(namespace, split.getPath(part.getKey()), key, salt);
+                    split.setLoaded(part.getKey(), namespace);
+                }
+                forceDirectory(VaultPaths.shardDirectoryFor(path));
+                replaceNamespaceList(path, parts.keySet(), vault.getKdf(), key, salt);
+                split.setListed(parts.keySet());
+
+                Files.deleteIfExists(VaultPaths.logFileFor(path));
+                if (vault.getParts() != null) {
+                    vault.getParts().deleteFiles();
+                }
+                vault.setParts(split);
+                vault.getPendingChanges().clear();
+                vault.setDurableChanges(vault.getRecordedChanges());
+            }
+        } catch (PandoraException e) {
+            throw e;
         } catch (Exception e) {
             throw new PandoraException("Failed to save vault file", e);
         }
     }
 
+    // Writes the namespaces read so far: commits them, or with full set saves those with changes not
+    // yet on disk in full. Namespaces changed for the first time are listed in the vault file before
+    // their files are written, so a crash in between leaves a listed namespace without a file, which
+    // reads as empty.
+    private static void writeNamespaces(VaultNamespaces namespaces, Path path, SecretKey key, byte[] salt,
+                                        boolean full) throws PandoraException {
+        try {
+            listNamespaces(namespaces, path, key, salt);
+            for (Map.Entry<String, Vault> loaded : namespaces.getLoaded().entrySet()) {
+                String namespace = loaded.getKey();
+                Vault vault = loaded.getValue();
+                Path file = namespaces.getPath(namespace);
+                if (!namespaces.isCreated(namespace)) {
+                    writeNamespace(vault, file, key, salt, full);
+                    continue;
+                }
+                if (vault.getRecordedChanges() == 0) {
+                    continue;
+                }
+                // A namespace that had no file may have been written by another process since, in
+                // which case the changes made here go on top of what it wrote
+                synchronized (vault.getCommitLock()) {
+                    try (VaultLock lock = VaultLock.acquire(file)) {
+                        if (Files.exists(file)) {
+                            Vault written = decryptVault(loadVaultContainer(file), key);
+                            synchronized (vault) {
+                                vault.rebase(written);
+                            }
+                        }
+                        writeNamespace(vault, file, key, salt, full);
+                        if (Files.exists(file)) {
+                            namespaces.setWritten(namespace);
+                        }
+                    }
+                }
+            }
+        } catch (PandoraException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new PandoraException("Failed to save vault file", e);
+        }
+    }
+
+    private static void writeNamespace(Vault vault, Path file, SecretKey key, byte[] salt, boolean full) {
+        if (!full) {
+            commit(vault, file, key, salt);
+        } else if (vault.getDurableChanges() < vault.getRecordedChanges()) {
+            save(vault, file, key, salt);
+        }
+    }
+
+    // Adds the namespaces changed for the first time to the vault file's list, along with those other
+    // processes listed since it was read
+    private static void listNamespaces(VaultNamespaces namespaces, Path path, SecretKey key, byte[] salt) throws IOException {
+        Set<String> unlisted = namespaces.getUnlisted();
+        if (unlisted.isEmpty()) {
+            return;
+        }
+        try (VaultLock lock = VaultLock.acquire(path)) {
+            VaultContainer container = loadVaultContainer(path);
+            if (container.getFormatVersion() != NAMESPACED_VERSION) {
+                throw new PandoraException("Vault was converted by another process meanwhile, try again");
+            }
+            Set<String> listed = new TreeSet<>(readNamespaces(container, key));
+            listed.addAll(unlisted);
+            replaceNamespaceList(path, listed, container.getKdf(), key, salt);
+            namespaces.setListed(listed);
+        }
+    }
+
+    private static void replaceNamespaceList(Path path, Collection<String> namespaces, int kdf, SecretKey key,
+                                             byte[] salt) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeNamespaceList(channel, namespaces, kdf, key, salt);
+            channel.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.getParent());
+    }
+
+    private static void commit(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
+        long target;
+        synchronized (vault) {
+            target = vault.getRecordedChanges();
+        }
+
+        synchronized (vault.getCommitLock()) {
+            if (vault.getDurableChanges() >= target) {
+                return;
+            }
+
+            try (VaultLock lock = VaultLock.acquire(path)) {
+                commitLocked(vault, path, key, salt);
+            } catch (IOException e) {
+                throw new PandoraException("Failed to commit vault file", e);
+            }
+        }
+    }
+
+    // Another process committed since the vault was read: catch up with what it appended to the log,
+    // or start over from what it wrote. Returns whether the vault started over. Called with the vault
+    // and its file locked.
+    private static boolean catchUp(Vault vault, Path path, SecretKey key) throws IOException {
+        if (isBehind(vault, path)) {
+            vault.catchUp(VaultPaths.logFileFor(path));
+            return false;
+        }
+        if (isCurrent(vault, path)) {
+            return false;
+        }
+        VaultLogger.info("Vault was changed by another process, re-applying "
+                + vault.getPendingChanges().size() + " changes");
+        vault.rebase(decryptVault(loadVaultContainer(path), key));
+        return true;
+    }
+
+    private static void commitLocked(Vault vault, Path path, SecretKey key, byte[] salt) throws IOException {
+        boolean paged = VaultConfig.isPagedStorage();
+        VaultLog log;
+        List<VaultLog.Change> batch;
+        long last;
+        synchronized (vault) {
+            if (catchUp(vault, path, key) && vault.getParts() != null) {
+                commitVault(vault, path, key, salt);
+                return;
+            }
+
+            if (paged ? vault.getStore() == null : vault.getLog() == null) {
+                save(vault, path, key, salt);
+                return;
+            }
+
+            if (paged) {
+                PagedStore store = vault.getStore();
+                try {
+                    store.commit(path);
+                    vault.getPendingChanges().clear();
+                    vault.setDurableChanges(vault.getRecordedChanges());
+                } catch (Exception e) {
+                    throw new PandoraException("Failed to save vault file", e);
+                }
+                if (store.needsCompaction()) {
+                    VaultLogger.info("Compacting paged vault");
+                    save(vault, path, key, salt);
+                }
+                return;
+            }
+
+            log = vault.getLog();
+            batch = new ArrayList<>(vault.getPendingChanges());
+            vault.getPendingChanges().clear();
+            last = vault.getRecordedChanges();
+        }
+
+        try {
+            log.append(VaultPaths.logFileFor(path), batch, key);
+            vault.setDurableChanges(last);
+        } catch (Exception e) {
+            // Left for the next commit to write
+            synchronized (vault) {
+                vault.getPendingChanges().addAll(0, batch);
+            }
+            throw new PandoraException("Failed to append to vault log", e);
+        }
+
+        if (log.getLength() > VaultConfig.getLogCompactionBytes()
+                || log.getRecords() > VaultConfig.getLogCompactionRecords()) {
+            VaultLogger.info("Compacting vault log of " + log.getRecords() + " records, " + log.getLength() + " bytes");
+            save(vault, path, key, salt);
+        }
+    }
+
     public static VaultContainer loadVaultContainer(Path path) throws PandoraException {
         try {
             validatePath(path);
-            String containerJson = Files.readString(path);
-            return mapper.readValue(containerJson, VaultContainer.class);
+
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (mapped.remaining() > 0 && mapped.get(0) == LegacyVaultFile.FIRST_BYTE) {
+                    return LegacyVaultFile.loadVaultContainer(path);
+                }
+                VaultContainer container = readHeader(mapped);
+                container.setSource(path);
+                return container;
+            }
+        } catch (PandoraException e) {
+            throw e;
         } catch (IOException e) {
             throw new PandoraException("Failed to read vault file: " + path, e);
         } catch (Exception e) {
@@ -49,13 +742,526 @@ public class VaultFile {
     public static Vault decryptVault(VaultContainer container, SecretKey key) throws PandoraException {
         try {
             validateContainer(container);
-            String decryptedJson = CryptoUtils.decrypt(container.getEncryptedData(), key);
-            return mapper.readValue(decryptedJson, Vault.class);
+
+            Vault vault = switch (container.getFormatVersion()) {
+                case LegacyVaultFile.FORMAT_VERSION -> LegacyVaultFile.decryptVault(container, key);
+                case WHOLE_VAULT_VERSION -> {
+                    // The mapped ciphertext is fed to the cipher a chunk at a time, never copied out whole
+                    InputStream encrypted = new ByteBufferInputStream(container.getEncryptedData().duplicate());
+                    yield readVault(CryptoUtils.newDecryptingStream(encrypted, key, container.getIv(), container.getHeader()));
+                }
+                case SEALED_RECORDS_VERSION -> readSealedRecords(container, key);
+                case SORTED_INDEX_VERSION -> readSortedIndex(container, key);
+                case SHARDED_VERSION -> {
+                    // Throws for a wrong master password before any shard is read
+                    CryptoUtils.open(container.getEncryptedData(), key, container.getIv(), container.getHeader());
+                    Vault sharded = new Vault();
+                    sharded.setParts(new VaultShards(container.getSource(), container.getShardCount(), key,
+                            container.getSalt()));
+                    yield sharded;
+                }
+                case NAMESPACED_VERSION -> {
+                    // Authenticating the list of namespaces verifies the master password
+                    Vault namespaced = new Vault();
+                    namespaced.setParts(new VaultNamespaces(container.getSource(), readNamespaces(container, key), key,
+                            container.getSalt()));
+                    yield namespaced;
+                }
+                default -> {
+                    Vault paged = new Vault();
+                    paged.setStore(PagedStore.open(container, key, VaultConfig.getPageCachePages()));
+                    yield paged;
+                }
+            };
+            vault.setKey(key);
+            vault.setCompression(container.getCompression());
+            vault.setKdf(container.getKdf());
+            vault.setSourceId(container.getIv());
+            if (container.getFormatVersion() == SORTED_INDEX_VERSION) {
+                VaultLog log = new VaultLog(container.getIv());
+                if (container.getSource() != null) {
+                    log.replay(VaultPaths.logFileFor(container.getSource()), vault, key);
+                }
+                vault.setLog(log);
+            }
+            return vault;
+        } catch (InvalidMasterPasswordException e) {
+            throw e;
         } catch (Exception e) {
             throw new PandoraException("Failed to decrypt vault file", e);
         }
     }
 
+    // Entries of a version 0 or 1 vault one at a time as its JSON is decrypted, without ever holding the
+    // whole vault. The tag is only checked once the last entry is passed on, so nothing passed on may be
+    // trusted before this returns.
+    static void forEachJsonEntry(VaultContainer container, SecretKey key, BiConsumer<String, VaultEntry> action)
+            throws IOException {
+        try {
+            if (container.getFormatVersion() == LegacyVaultFile.FORMAT_VERSION) {
+                LegacyVaultFile.forEachEntry(container, key, action);
+            } else {
+                InputStream encrypted = new ByteBufferInputStream(container.getEncryptedData().duplicate());
+                readEntries(CryptoUtils.newDecryptingStream(encrypted, key, container.getIv(), container.getHeader()),
+                        action);
+            }
+        } catch (InvalidCipherTextIOException e) {
+            throw new InvalidMasterPasswordException(e);
+        }
+    }
+
+    static void readEntries(InputStream decrypted, BiConsumer<String, VaultEntry> action) throws IOException {
+        JsonParser parser = mapper.createParser(decrypted);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new PandoraException("Vault is not a JSON object");
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            if (parser.nextToken() == JsonToken.START_OBJECT && ENTRIES_FIELD.equals(field)) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    parser.nextToken();
+                    action.accept(name, parser.readValueAs(VaultEntry.class));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+        decrypted.transferTo(OutputStream.nullOutputStream());
+    }
+
+    static Vault readVault(InputStream decrypted) throws IOException {
+        Vault vault = mapper.readValue(decrypted, Vault.class);
+        // Reaching EOF is what verifies the GCM tag
+        decrypted.transferTo(OutputStream.nullOutputStream());
+        return vault;
+    }
+
+    // Returns the IV of the index, which identifies the snapshot to its log. Every record is sealed
+    // again with reseal set, otherwise only those that changed.
+    private static byte[] writeSortedIndex(Vault.Snapshot snapshot, int codec, boolean reseal, int kdf,
+                                           FileChannel channel, SecretKey key, byte[] salt) throws IOException {
+        List<NamedRecord> records = new ArrayList<>(snapshot.size());
+        snapshot.forEach((name, record) -> records.add(new NamedRecord(name.getBytes(StandardCharsets.UTF_8), record)));
+        records.sort((a, b) -> Arrays.compareUnsigned(a.name(), b.name()));
+        List<byte[]> names = new ArrayList<>(records.size());
+        for (NamedRecord record : records) {
+            names.add(record.name());
+        }
+
+        NameFilter filter = NameFilter.create(names.size(), key, salt);
+        long[] offsets = new long[names.size()];
+        int[] lengths = new int[names.size()];
+
+        channel.position(CHECKSUMMED_HEADER_SIZE);
+        OutputStream out = new BufferedOutputStream(new NonClosingOutputStream(Channels.newOutputStream(channel)));
+        long offset = CHECKSUMMED_HEADER_SIZE;
+        byte[] scratch = new byte[1024];
+        TagIndex.Builder tags = new TagIndex.Builder();
+        TokenSets.Builder blind = new TokenSets.Builder();
+        TokenSets.Builder trigrams = new TokenSets.Builder();
+        BlindIndex.Tokenizer tokenizer = new BlindIndex.Tokenizer(key, salt);
+        NameIndex file = snapshot.file();
+        boolean indexed = file != null && file.tags() != null && file.blind() != null;
+        for (int i = 0; i < names.size(); i++) {
+            VaultRecords.Record record = records.get(i).record();
+            String name = new String(names.get(i), StandardCharsets.UTF_8);
+            VaultEntry entry = record.getEntry();
+            int length;
+            if (record.isChanged() || reseal) {
+                entry = record.open(name, key);
+                byte[] sealed = VaultRecords.seal(name, entry, key, codec);
+                out.write(sealed);
+                length = sealed.length;
+            } else {
+                // Records that did not change are written back exactly as they were read
+                ByteBuffer sealed = record.getSealed().duplicate();
+                length = sealed.remaining();
+                if (scratch.length < length) {
+                    scratch = new byte[length];
+                }
+                sealed.get(scratch, 0, length);
+                out.write(scratch, 0, length);
+            }
+
+            // Tags and tokens of unchanged records come from the index of the file they were read from,
+            // and only a file without them has its records opened for them
+            int row = entry == null && indexed ? file.rowOf(record) : -1;
+            if (row >= 0) {
+                tags.add(i, file.tags().tagsOf(row), file.tags().folderOf(row));
+                blind.add(i, file.blind().tokensOf(row));
+            } else {
+                entry = entry != null ? entry : record.open(name, key);
+                tags.add(i, entry.getTags(), entry.getFolder());
+                blind.add(i, tokenizer.row(name, entry.getUsername()));
+            }
+            trigrams.add(i, NameSearch.trigrams(name));
+            filter.add(names.get(i));
+            offsets[i] = offset;
+            lengths[i] = length;
+            offset += length;
+        }
+
+        byte[] filterBits = filter.getBits();
+        long filterOffset = offset;
+        out.write(filterBits);
+        byte[] iv = CryptoUtils.generateIv();
+        TokenSets search = trigrams.build();
+        ByteBuffer plainSearch = ByteBuffer.allocate(search.encodedSize());
+        search.encode(plainSearch);
+        byte[] searchBytes = plainSearch.array();
+        if (codec != Compression.NONE) {
+            searchBytes = Compression.compress(searchBytes, null);
+        }
+        byte[] sealedSearch = CryptoUtils.seal(searchBytes, key, NameIndex.searchData(iv));
+        out.write(sealedSearch);
+        long indexOffset = filterOffset + filterBits.length + sealedSearch.length;
+        byte[] index = NameIndex.build(names, offsets, lengths, tags.build(), blind.build());
+        if (codec != Compression.NONE) {
+            index = Compression.compress(index, null);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(CHECKSUMMED_HEADER_SIZE);
+        putCommonHeader(header, SORTED_INDEX_VERSION, codec | CHECKSUMS_FLAG | TAGS_FLAG | BLIND_FLAG | SEARCH_FLAG,
+                kdf, salt, iv);
+        header.putLong(indexOffset)
+                .putLong(index.length + CryptoUtils.GCM_TAG_LENGTH / 8)
+                .putLong(filterOffset)
+                .putInt(filterBits.length)
+                .put((byte) filter.getHashes());
+        header.put(filter.authenticate(Arrays.copyOf(header.array(), header.position())));
+
+        try (OutputStream encrypted = CryptoUtils.newEncryptingStream(out, key, iv,
+                Arrays.copyOf(header.array(), SORTED_INDEX_HEADER_SIZE))) {
+            encrypted.write(index);
+        }
+        out.flush();
+
+        // Blocks are hashed back from the page cache, on all cores
+        long checksumsOffset = channel.position();
+        byte[] leaves = BlockChecksums.leaves(channel.map(FileChannel.MapMode.READ_ONLY, CHECKSUMMED_HEADER_SIZE,
+                checksumsOffset - CHECKSUMMED_HEADER_SIZE), BlockChecksums.BLOCK_SIZE);
+        channel.write(ByteBuffer.wrap(leaves), checksumsOffset);
+        header.putLong(checksumsOffset)
+                .putInt(BlockChecksums.BLOCK_SIZE)
+                .put(BlockChecksums.root(leaves));
+        header.put(BlockChecksums.authenticate(Arrays.copyOf(header.array(), header.position()), key, salt));
+        channel.write(header.flip(), 0);
+        return iv;
+    }
+
+    private static void writeShardManifest(FileChannel channel, int count, int kdf, SecretKey key, byte[] salt)
+            throws IOException {
+        byte[] iv = CryptoUtils.generateIv();
+        ByteBuffer header = ByteBuffer.allocate(SHARDED_HEADER_SIZE);
+        putCommonHeader(header, SHARDED_VERSION, 0, kdf, salt, iv);
+        header.putShort((short) count);
+
+        OutputStream out = new NonClosingOutputStream(Channels.newOutputStream(channel));
+        out.write(header.array());
+        try (OutputStream encrypted = CryptoUtils.newEncryptingStream(out, key, iv, header.array())) {
+            encrypted.flush(); // nothing to encrypt, closing writes the tag
+        }
+    }
+
+    private static void writeNamespaceList(FileChannel channel, Collection<String> namespaces, int kdf, SecretKey key,
+                                           byte[] salt) throws IOException {
+        List<byte[]> names = new ArrayList<>(namespaces.size());
+        int length = 4;
+        for (String namespace : namespaces) {
+            byte[] name = namespace.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                throw new PandoraException("Namespace name is too long");
+            }
+            names.add(name);
+            length += 2 + name.length;
+        }
+        ByteBuffer list = ByteBuffer.allocate(length).putInt(names.size());
+        for (byte[] name : names) {
+            list.putShort((short) name.length).put(name);
+        }
+
+        byte[] iv = CryptoUtils.generateIv();
+        ByteBuffer header = ByteBuffer.allocate(NAMESPACED_HEADER_SIZE);
+        putCommonHeader(header, NAMESPACED_VERSION, 0, kdf, salt, iv);
+        header.putInt(length + CryptoUtils.GCM_TAG_LENGTH / 8);
+
+        OutputStream out = new NonClosingOutputStream(Channels.newOutputStream(channel));
+        out.write(header.array());
+        try (OutputStream encrypted = CryptoUtils.newEncryptingStream(out, key, iv, header.array())) {
+            encrypted.write(list.array());
+        }
+    }
+
+    private static List<String> readNamespaces(VaultContainer container, SecretKey key) {
+        ByteBuffer list = ByteBuffer.wrap(CryptoUtils.open(container.getEncryptedData(), key, container.getIv(),
+                container.getHeader()));
+        int count = list.getInt();
+        List<String> namespaces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[Short.toUnsignedInt(list.getShort())];
+            list.get(name);
+            namespaces.add(new String(name, StandardCharsets.UTF_8));
+        }
+        return namespaces;
+    }
+
+    private static boolean isNamespaced() {
+        if (VaultConfig.isNamespaced() && getShardCount() > 1) {
+            throw new PandoraException("Namespaces cannot be combined with more than one shard");
+        }
+        return VaultConfig.isNamespaced();
+    }
+
+    private static int getShardCount() {
+        int count = VaultConfig.getShardCount();
+        if (count < 1 || count > MAX_SHARDS) {
+            throw new PandoraException("Shard count must be between 1 and " + MAX_SHARDS + ": " + count);
+        }
+        return count;
+    }
+
+    private static void writePaged(Vault vault, FileChannel channel, SecretKey key, byte[] salt) throws IOException {
+        PagedStore.Builder builder = new PagedStore.Builder(channel, key, salt, vault.getKdf());
+        try {
+            vault.forEachSorted((name, entry) -> {
+                try {
+                    builder.add(name, entry);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        builder.finish();
+    }
+
+    private static Vault readSealedRecords(VaultContainer container, SecretKey key) {
+        // The index is authenticated in full before any of it is trusted, which also tells
+        // a wrong master password apart from a damaged record
+        ByteBuffer index = ByteBuffer.wrap(CryptoUtils.open(container.getEncryptedData(), key,
+                container.getIv(), container.getHeader()));
+        ByteBuffer records = container.getRecords();
+
+        int count = index.getInt();
+        VaultTable.Builder table = new VaultTable.Builder(count);
+        for (int i = 0; i < count; i++) {
+            int nameLength = Short.toUnsignedInt(index.getShort());
+            int nameOffset = index.position();
+            index.position(nameOffset + nameLength);
+            long offset = index.getLong();
+            int length = index.getInt();
+            table.addSealed(index.array(), nameOffset, nameLength, records, (int) offset, length, null);
+        }
+        Vault vault = new Vault();
+        vault.setTable(table.build());
+        return vault;
+    }
+
+    private static Vault readSortedIndex(VaultContainer container, SecretKey key) {
+        Vault vault = new Vault();
+        vault.setIndex(openIndex(container, key));
+        return vault;
+    }
+
+    private static NameIndex openIndex(VaultContainer container, SecretKey key) {
+        byte[] header = container.getHeader();
+        NameFilter filter = NameFilter.open(container.getFilter(), container.getFilterHashes(),
+                Arrays.copyOf(header, header.length - NameFilter.MAC_LENGTH), container.getFilterMac(),
+                key, container.getSalt());
+        if (filter == null) {
+            throw new InvalidMasterPasswordException();
+        }
+        return new NameIndex(filter, container, key);
+    }
+
+    private static VaultContainer readHeader(ByteBuffer mapped) throws PandoraException {
+        if (mapped.remaining() < COMMON_HEADER_SIZE || mapped.getInt(0) != MAGIC) {
+            throw new PandoraException("Unrecognized vault file format");
+        }
+
+        ByteBuffer header = mapped.duplicate();
+        header.position(4);
+        int version = Short.toUnsignedInt(header.getShort());
+        int flags = Short.toUnsignedInt(header.getShort());
+        int kdf = Byte.toUnsignedInt(header.get());
+        int iterations = header.getInt();
+        if (version < WHOLE_VAULT_VERSION || version > NAMESPACED_VERSION) {
+            throw new PandoraException("Unsupported vault format version " + version + ", written by a newer pandora");
+        }
+        if ((flags & REQUIRED_FLAGS & ~KNOWN_REQUIRED_FLAGS) != 0) {
+            throw new PandoraException("Unsupported vault features 0x" + Integer.toHexString(flags & REQUIRED_FLAGS)
+                    + ", written by a newer pandora");
+        }
+        if (kdf != KDF_DATA_KEY && kdf != KDF_PBKDF2_HMAC_SHA256) {
+            throw new PandoraException("Unsupported key derivation function: " + kdf);
+        }
+        int compression = flags & COMPRESSION_FLAGS;
+        if (!Compression.isSupported(compression)) {
+            throw new PandoraException("Unsupported vault compression: " + compression);
+        }
+        int headerSize = switch (version) {
+            case WHOLE_VAULT_VERSION -> WHOLE_VAULT_HEADER_SIZE;
+            case SEALED_RECORDS_VERSION -> SEALED_RECORDS_HEADER_SIZE;
+            case SORTED_INDEX_VERSION -> (flags & CHECKSUMS_FLAG) != 0 ? CHECKSUMMED_HEADER_SIZE : SORTED_INDEX_HEADER_SIZE;
+            case SHARDED_VERSION -> SHARDED_HEADER_SIZE + CryptoUtils.GCM_TAG_LENGTH / 8;
+            case NAMESPACED_VERSION -> NAMESPACED_HEADER_SIZE;
+            default -> 2 * PagedStore.PAGE_SIZE;
+        };
+        if (mapped.remaining() < headerSize) {
+            throw new PandoraException("Vault file is truncated or corrupted");
+        }
+
+        byte[] salt = new byte[KeyDerivation.SALT_LENGTH];
+        byte[] iv = new byte[CryptoUtils.GCM_IV_LENGTH];
+        header.get(salt).get(iv);
+
+        VaultContainer container = new VaultContainer();
+        container.setFormatVersion(version);
+        container.setFlags(flags);
+        container.setCapabilities(capabilities(version, flags));
+        container.setKdf(kdf);
+        container.setKdfIterations(iterations);
+        container.setCompression(compression);
+        container.setSalt(salt);
+        container.setIv(iv);
+        if (version == SHARDED_VERSION) {
+            int shardCount = Short.toUnsignedInt(header.getShort());
+            if (shardCount < 1 || shardCount > MAX_SHARDS) {
+                throw new PandoraException("Vault file is truncated or corrupted");
+            }
+            container.setShardCount(shardCount);
+            container.setHeader(copyOf(mapped, SHARDED_HEADER_SIZE));
+            container.setEncryptedData(mapped.slice(SHARDED_HEADER_SIZE, CryptoUtils.GCM_TAG_LENGTH / 8));
+        } else if (version == NAMESPACED_VERSION) {
+            long length = Integer.toUnsignedLong(header.getInt());
+            checkBounds(mapped, headerSize, length);
+            container.setHeader(copyOf(mapped, headerSize));
+            container.setEncryptedData(mapped.slice(headerSize, (int) length));
+        } else if (version == PAGED_VERSION) {
+            // Superblocks and pages are all read through the mapping of the whole file
+            container.setHeader(copyOf(mapped, COMMON_HEADER_SIZE));
+            container.setEncryptedData(mapped);
+            container.setRecords(mapped);
+        } else if (version == WHOLE_VAULT_VERSION) {
+            long length = header.getLong();
+            checkBounds(mapped, headerSize, length);
+            container.setHeader(copyOf(mapped, COMMON_HEADER_SIZE));
+            container.setEncryptedData(mapped.slice(headerSize, (int) length));
+        } else {
+            long indexOffset = header.getLong();
+            long indexLength = header.getLong();
+            checkBounds(mapped, indexOffset, indexLength);
+            container.setHeader(copyOf(mapped, Math.min(headerSize, SORTED_INDEX_HEADER_SIZE)));
+            container.setEncryptedData(mapped.slice((int) indexOffset, (int) indexLength));
+            container.setRecords(mapped.slice(0, (int) indexOffset));
+            if (version == SORTED_INDEX_VERSION) {
+                long filterOffset = header.getLong();
+                int filterLength = header.getInt();
+                int hashes = Byte.toUnsignedInt(header.get());
+                checkBounds(mapped, filterOffset, filterLength);
+                if (hashes == 0 || filterOffset + filterLength > indexOffset) {
+                    throw new PandoraException("Vault file is truncated or corrupted");
+                }
+                byte[] filterMac = new byte[NameFilter.MAC_LENGTH];
+                header.get(filterMac);
+                container.setFilter(mapped.slice((int) filterOffset, filterLength));
+                long filterEnd = filterOffset + filterLength;
+                if ((flags & SEARCH_FLAG) != 0 && filterEnd < indexOffset) {
+                    container.setNameSearch(mapped.slice((int) filterEnd, (int) (indexOffset - filterEnd)));
+                }
+                container.setFilterHashes(hashes);
+                container.setFilterMac(filterMac);
+                if ((flags & CHECKSUMS_FLAG) != 0) {
+                    readChecksums(mapped, header, indexOffset + indexLength, container);
+                }
+            }
+        }
+        return container;
+    }
+
+    private static Set<VaultCapability> capabilities(int version, int flags) {
+        Set<VaultCapability> capabilities = EnumSet.noneOf(VaultCapability.class);
+        switch (version) {
+            case SEALED_RECORDS_VERSION -> capabilities.add(VaultCapability.SEALED_RECORDS);
+            case SORTED_INDEX_VERSION -> {
+                capabilities.addAll(List.of(VaultCapability.SEALED_RECORDS, VaultCapability.SORTED_INDEX,
+                        VaultCapability.NAME_FILTER, VaultCapability.CHANGE_LOG));
+                if ((flags & COMPRESSION_FLAGS) != Compression.NONE) {
+                    capabilities.add(VaultCapability.COMPRESSION);
+                }
+                if ((flags & CHECKSUMS_FLAG) != 0) {
+                    capabilities.add(VaultCapability.BLOCK_CHECKSUMS);
+                }
+                if ((flags & SEARCH_FLAG) != 0) {
+                    capabilities.add(VaultCapability.NAME_SEARCH);
+                }
+                if ((flags & BLIND_FLAG) != 0) {
+                    capabilities.add(VaultCapability.BLIND_INDEX);
+                }
+                if ((flags & TAGS_FLAG) != 0) {
+                    capabilities.add(VaultCapability.TAG_INDEX);
+                }
+            }
+            case PAGED_VERSION -> capabilities.add(VaultCapability.PAGED);
+            case SHARDED_VERSION -> capabilities.add(VaultCapability.SHARDED);
+            case NAMESPACED_VERSION -> capabilities.add(VaultCapability.NAMESPACED);
+            default -> { }
+        }
+        return capabilities;
+    }
+
+    private static void readChecksums(ByteBuffer mapped, ByteBuffer header, long indexEnd, VaultContainer container) {
+        long checksumsOffset = header.getLong();
+        int blockSize = header.getInt();
+        if (blockSize <= 0 || checksumsOffset < indexEnd) {
+            throw new PandoraException("Vault file is truncated or corrupted");
+        }
+        long checksumsLength = (long) BlockChecksums.blockCount(checksumsOffset - CHECKSUMMED_HEADER_SIZE, blockSize)
+                * BlockChecksums.HASH_LENGTH;
+        checkBounds(mapped, checksumsOffset, checksumsLength);
+        byte[] checksumMac = new byte[BlockChecksums.MAC_LENGTH];
+        header.position(CHECKSUMMED_HEADER_SIZE - BlockChecksums.MAC_LENGTH).get(checksumMac);
+        container.setChecksumHeader(copyOf(mapped, CHECKSUMMED_HEADER_SIZE - BlockChecksums.MAC_LENGTH));
+        container.setChecksumMac(checksumMac);
+        container.setChecksumBlockSize(blockSize);
+        container.setChecksummed(mapped.slice(CHECKSUMMED_HEADER_SIZE, (int) (checksumsOffset - CHECKSUMMED_HEADER_SIZE)));
+        container.setChecksums(mapped.slice((int) checksumsOffset, (int) checksumsLength));
+    }
+
+    static void putCommonHeader(ByteBuffer header, int version, int flags, int kdf, byte[] salt, byte[] iv) {
+        header.putInt(MAGIC)
+                .putShort((short) version)
+                .putShort((short) flags)
+                .put((byte) kdf)
+                .putInt(kdf == KDF_PBKDF2_HMAC_SHA256 ? KeyDerivation.DEFAULT_ITERATIONS : 0)
+                .put(salt)
+                .put(iv);
+    }
+
+    private static void checkBounds(ByteBuffer mapped, long offset, long length) throws PandoraException {
+        if (offset < 0 || length <= 0 || offset + length > mapped.limit()) {
+            throw new PandoraException("Vault file is truncated or corrupted");
+        }
+    }
+
+    private static byte[] copyOf(ByteBuffer buffer, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(0, bytes);
+        return bytes;
+    }
+
+    // Makes a file created, renamed or deleted in the directory survive a crash. Not every platform
+    // can open a directory; there the rename is as durable as the platform makes it.
+    static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            VaultLogger.debug("Could not sync directory " + directory + ": " + e.getMessage());
+        }
+    }
+
     private static void validateInputs(Vault vault, Path path, SecretKey key, byte[] salt) throws PandoraException {
         if (vault == null) {
             throw new PandoraException("Vault cannot be null");
@@ -66,8 +1272,8 @@ public class VaultFile {
         if (key == null) {
             throw new PandoraException("Key cannot be null");
         }
-        if (salt == null || salt.length == 0) {
-            throw new PandoraException("Salt cannot be null or empty");
+        if (salt == null || salt.length != KeyDerivation.SALT_LENGTH) {
+            throw new PandoraException("Salt must be " + KeyDerivation.SALT_LENGTH + " bytes");
         }
     }
 
@@ -87,11 +1293,59 @@ public class VaultFile {
         if (container == null) {
             throw new PandoraException("VaultContainer cannot be null");
         }
-        if (container.getSalt() == null || container.getSalt().trim().isEmpty()) {
+        if (container.getSalt() == null || container.getSalt().length == 0) {
             throw new PandoraException("Container salt cannot be null or empty");
         }
-        if (container.getEncryptedData() == null || container.getEncryptedData().trim().isEmpty()) {
+        boolean legacy = container.getFormatVersion() == LegacyVaultFile.FORMAT_VERSION;
+        if (legacy ? container.getSource() == null : container.getEncryptedData() == null) {
             throw new PandoraException("Container encrypted data cannot be null or empty");
         }
     }
+
+    // Keeps the cipher stream's close() from closing the channel underneath it
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+
+    private record NamedRecord(byte[] name, VaultRecords.Record record) {}
 }
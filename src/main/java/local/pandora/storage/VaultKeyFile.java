@@ -0,0 +1,295 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Random data key of a vault, wrapped under a key derived from the master password. Every vault file,
+// log, index and subkey is under the data key, so changing the password or the key derivation only
+// rewraps the data key. Kept next to the vault file as
+//   magic "PNDK" | version u16 | kdf id u8 | kdf iterations u32 | kdf memory KiB u32 | kdf lanes u8
+//   | salt (16) | iv | ciphertext of the data key | GCM tag
+// with everything before the IV as associated data; iterations are the passes of Argon2id, and memory
+// and lanes are 0 and 1 for PBKDF2. Version 1 files lack memory and lanes, and are PBKDF2 only. The
+// file is replaced whole on every change. A vault without one predates data keys: the key derived
+// from the password with the salt and iterations of its header is its data key, until changing the
+// password moves it to a random one, see rekey. The header of a vault under a data key names no key
+// derivation, so a missing key file is told apart from a wrong password.
+public final class VaultKeyFile {
+
+    private static final int MAGIC = 0x504E444B; // "PNDK"
+    private static final int PBKDF2_VERSION = 1;
+    private static final int VERSION = 2;
+    private static final int PBKDF2_HEADER_SIZE = 4 + 2 + 1 + 4 + KeyDerivation.SALT_LENGTH;
+    private static final int HEADER_SIZE = 4 + 2 + 1 + 4 + 4 + 1 + KeyDerivation.SALT_LENGTH;
+    private static final int DATA_KEY_LENGTH = 32;
+    private static final int SEALED_SIZE = CryptoUtils.GCM_IV_LENGTH + DATA_KEY_LENGTH + CryptoUtils.GCM_TAG_LENGTH / 8;
+    private static final String KEY_ALGORITHM = "AES";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private VaultKeyFile() {}
+
+    // Key derivation the master password of a vault goes through, as its key file or header names it
+    public record Kdf(KeyDerivation.Parameters parameters, byte[] salt) {}
+
+    // The data key of the vault, unwrapped with the password; fails as a wrong password would
+    public static SecretKey unlock(Path vaultFile, VaultContainer container, char[] password) throws Exception {
+        byte[] file = read(vaultFile, container);
+        if (file == null) {
+            return KeyDerivation.deriveKey(password, container.getSalt(), container.getKdfIterations());
+        }
+        Kdf kdf = kdf(file);
+        SecretKey passwordKey = KeyDerivation.deriveKey(password, kdf.salt(), kdf.parameters());
+        int headerSize = file.length - SEALED_SIZE;
+        byte[] dataKey = CryptoUtils.open(ByteBuffer.wrap(file, headerSize, SEALED_SIZE), passwordKey,
+                Arrays.copyOf(file, headerSize));
+        try {
+            if (dataKey.length != DATA_KEY_LENGTH) {
+                throw new InvalidMasterPasswordException();
+            }
+            return new SecretKeySpec(dataKey, KEY_ALGORITHM);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+    }
+
+    // Wraps the data key under the password, with a fresh salt, replacing the key file of the vault
+    public static void wrap(Path vaultFile, SecretKey dataKey, char[] password, KeyDerivation.Parameters parameters)
+            throws Exception {
+        byte[] file = seal(dataKey, password, parameters);
+        try (VaultLock lock = VaultLock.acquire(vaultFile)) {
+            write(VaultPaths.keyFileFor(vaultFile), file);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to write vault key file", e);
+        }
+    }
+
+    // Moves a vault whose key is derived from its master password, see isPasswordDerived, to a new
+    // random data key wrapped under the password, so neither the old password nor the salt in its
+    // header opens it any longer. With the vault locked, the new key file is staged, every file of the
+    // vault is written again under the data key, and so is every backup the derived key opens, each
+    // given a copy of the key file; a backup that cannot be written again is deleted rather than left
+    // to the old password. Only then does the key file go in place, and until it does, a vault whose
+    // header names a data key opens with the staged one.
+    public static Rekeyed rekey(Path vaultFile, SecretKey derivedKey, List<Path> backups, char[] password,
+                                KeyDerivation.Parameters parameters) throws Exception {
+        SecretKey dataKey = generateDataKey();
+        byte[] file = seal(dataKey, password, parameters);
+        Path keyFile = VaultPaths.keyFileFor(vaultFile);
+        Path staged = staged(keyFile);
+        int rewritten = 0;
+        List<Path> dropped = new ArrayList<>();
+        try (VaultLock lock = VaultLock.acquire(vaultFile)) {
+            try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                channel.write(ByteBuffer.wrap(file));
+                channel.force(true);
+            }
+            VaultFile.forceDirectory(staged.getParent());
+            VaultFile.rewrite(vaultFile, derivedKey, dataKey, KeyDerivation.generateSalt());
+
+            for (Path backup : backups) {
+                if (!opens(backup, derivedKey)) {
+                    // Under another key, which the old password does not give away
+                    continue;
+                }
+                try {
+                    VaultFile.rewrite(backup, derivedKey, dataKey, KeyDerivation.generateSalt());
+                    write(VaultPaths.keyFileFor(backup), file);
+                    rewritten++;
+                } catch (PandoraException | IOException e) {
+                    deleteBackup(backup);
+                    dropped.add(backup);
+                }
+            }
+
+            Files.move(staged, keyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            VaultFile.forceDirectory(keyFile.getParent());
+        } catch (IOException e) {
+            throw new PandoraException("Failed to move vault to a data key", e);
+        }
+        return new Rekeyed(dataKey, rewritten, dropped);
+    }
+
+    // The data key a vault was moved to, with how many backups were written again under it and those
+    // deleted instead
+    public record Rekeyed(SecretKey dataKey, int backups, List<Path> dropped) {}
+
+    // A new random data key, for a new vault
+    public static SecretKey generateDataKey() throws Exception {
+        return CryptoUtils.generateAesKey();
+    }
+
+    // The key derivation in force for the vault: that of its key file, or of its header without one
+    public static Kdf kdf(Path vaultFile, VaultContainer container) {
+        byte[] file = read(vaultFile, container);
+        return file == null
+                ? new Kdf(KeyDerivation.pbkdf2(container.getKdfIterations()), container.getSalt())
+                : kdf(file);
+    }
+
+    // Whether the header of the vault derives its key from a master password, as for vaults that predate
+    // data keys. Vaults written before headers named data keys say so as well.
+    public static boolean isPasswordDerived(VaultContainer container) {
+        return container.getKdf() == VaultFile.KDF_PBKDF2_HMAC_SHA256;
+    }
+
+    public static boolean exists(Path vaultFile) {
+        return Files.exists(VaultPaths.keyFileFor(vaultFile));
+    }
+
+    // Header and data key sealed under the password, as the key file holds them
+    private static byte[] seal(SecretKey dataKey, char[] password, KeyDerivation.Parameters parameters)
+            throws Exception {
+        byte[] salt = KeyDerivation.generateSalt();
+        SecretKey passwordKey = KeyDerivation.deriveKey(password, salt, parameters);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putShort((short) VERSION)
+                .put((byte) parameters.function())
+                .putInt(parameters.iterations())
+                .putInt(parameters.memoryKiB())
+                .put((byte) parameters.lanes())
+                .put(salt);
+        byte[] encoded = dataKey.getEncoded();
+        try {
+            byte[] sealed = CryptoUtils.seal(encoded, passwordKey, header.array());
+            return ByteBuffer.allocate(HEADER_SIZE + sealed.length).put(header.array()).put(sealed).array();
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+        }
+    }
+
+    private static void write(Path keyFile, byte[] file) throws IOException {
+        Path temp = staged(keyFile);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap(file));
+            channel.force(true);
+        }
+        Files.move(temp, keyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        VaultFile.forceDirectory(keyFile.getParent());
+    }
+
+    private static Path staged(Path keyFile) {
+        return keyFile.resolveSibling(keyFile.getFileName() + TEMP_SUFFIX);
+    }
+
+    // Whether the key opens the backup; one it does not open, or that fails to read at all, is no
+    // more open to the old password after the rekey than before
+    private static boolean opens(Path backup, SecretKey key) {
+        try (Vault vault = VaultFile.decryptVault(VaultFile.loadVaultContainer(backup), key)) {
+            return true;
+        } catch (PandoraException e) {
+            return false;
+        }
+    }
+
+    private static void deleteBackup(Path backup) throws IOException {
+        for (Path file : List.of(backup, VaultPaths.logFileFor(backup), VaultPaths.keyFileFor(backup),
+                VaultPaths.lockFileFor(backup), VaultPaths.usageFileFor(backup), VaultPaths.changesFileFor(backup))) {
+            Files.deleteIfExists(file);
+        }
+        Path parts = VaultPaths.shardDirectoryFor(backup);
+        if (Files.isDirectory(parts)) {
+            try (Stream<Path> files = Files.list(parts)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(parts);
+        }
+    }
+
+    private static Kdf kdf(byte[] file) {
+        ByteBuffer header = ByteBuffer.wrap(file);
+        int version = Short.toUnsignedInt(header.position(4).getShort());
+        int function = Byte.toUnsignedInt(header.get());
+        int iterations = header.getInt();
+        int memoryKiB = version == PBKDF2_VERSION ? 0 : header.getInt();
+        int lanes = version == PBKDF2_VERSION ? 1 : Byte.toUnsignedInt(header.get());
+        byte[] salt = new byte[KeyDerivation.SALT_LENGTH];
+        header.get(salt);
+
+        KeyDerivation.Parameters parameters = new KeyDerivation.Parameters(function, iterations, memoryKiB, lanes);
+        if (function == KeyDerivation.ARGON2ID) {
+            if (version == PBKDF2_VERSION || iterations <= 0 || lanes == 0 || memoryKiB < 8 * lanes
+                    || memoryKiB > KeyDerivation.MAX_MEMORY_KIB) {
+                throw new PandoraException("Vault key file is corrupted");
+            }
+            // Fails plainly rather than running out of memory halfway
+            if (memoryKiB * 1024L > Runtime.getRuntime().maxMemory()) {
+                throw new PandoraException("Unlocking the vault needs " + memoryKiB / 1024 + " MiB of memory, more than the "
+                        + Runtime.getRuntime().maxMemory() / 1024 / 1024 + " MiB the JVM may use; raise -Xmx");
+            }
+        } else if (function != KeyDerivation.PBKDF2_HMAC_SHA256) {
+            throw new PandoraException("Unsupported key derivation function: " + function);
+        } else if (iterations <= 0) {
+            throw new PandoraException("Vault key file is corrupted");
+        }
+        return new Kdf(parameters, salt);
+    }
+
+    // The key file, checked for magic, version and size, or null for a vault that predates data keys.
+    // A vault whose header says it is under a data key cannot be opened without one, whatever the password.
+    private static byte[] read(Path vaultFile, VaultContainer container) {
+        byte[] file;
+        try {
+            file = Files.readAllBytes(VaultPaths.keyFileFor(vaultFile));
+        } catch (NoSuchFileException e) {
+            if (container.getKdf() == VaultFile.KDF_DATA_KEY) {
+                // A rekey cut short after the vault was written, but before its key file went in place
+                Path staged = staged(VaultPaths.keyFileFor(vaultFile));
+                if (Files.exists(staged)) {
+                    return check(readStaged(staged));
+                }
+                throw new PandoraException("Vault key file " + VaultPaths.keyFileFor(vaultFile).getFileName()
+                        + " is missing; the vault cannot be opened without it");
+            }
+            return null;
+        } catch (IOException e) {
+            throw new PandoraException("Failed to read vault key file", e);
+        }
+        return check(file);
+    }
+
+    private static byte[] readStaged(Path staged) {
+        try {
+            return Files.readAllBytes(staged);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to read vault key file", e);
+        }
+    }
+
+    // The key file, once checked for magic, version and size
+    private static byte[] check(byte[] file) {
+        ByteBuffer header = ByteBuffer.wrap(file);
+        if (file.length < 6 || header.getInt() != MAGIC) {
+            throw new PandoraException("Vault key file is corrupted");
+        }
+        int version = Short.toUnsignedInt(header.getShort());
+        if (version != PBKDF2_VERSION && version != VERSION) {
+            throw new PandoraException("Unsupported vault key file version, written by a newer pandora");
+        }
+        if (file.length != (version == PBKDF2_VERSION ? PBKDF2_HEADER_SIZE : HEADER_SIZE) + SEALED_SIZE) {
+            throw new PandoraException("Vault key file is corrupted");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,62 @@
+package local.pandora.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Lock on a vault file held while it is written, so processes sharing the vault take turns. The lock
+// is taken on a file next to the vault, as the vault file itself is replaced by full saves. File
+// locks belong to the whole process, so threads first take a lock of their own, which also lets a
+// thread holding the lock take it again.
+class VaultLock implements AutoCloseable {
+
+    private static final Map<Path, ReentrantLock> threadLocks = new ConcurrentHashMap<>();
+
+    private final ReentrantLock threadLock;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+
+    private VaultLock(ReentrantLock threadLock, FileChannel channel, FileLock fileLock) {
+        this.threadLock = threadLock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    static VaultLock acquire(Path vaultFile) throws IOException {
+        Path lockFile = VaultPaths.lockFileFor(vaultFile).toAbsolutePath();
+        ReentrantLock threadLock = threadLocks.computeIfAbsent(lockFile, path -> new ReentrantLock());
+        threadLock.lock();
+        if (threadLock.getHoldCount() > 1) {
+            return new VaultLock(threadLock, null, null);
+        }
+
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            return new VaultLock(threadLock, channel, channel.lock());
+        } catch (IOException | RuntimeException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            threadLock.unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+                channel.close();
+            }
+        } finally {
+            threadLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package local.pandora.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.exception.PandoraException;
+import local.pandora.security.SecurityUtils;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+// Append-only log of the changes made since a snapshot was written, kept next to the vault file:
+//   magic "PNDW" | version u16 | snapshot id (12) | records
+// where each record is
+//   length u32 | iv | ciphertext of (op u8 | name length u16 | name | entry JSON) | GCM tag
+// The snapshot id is the IV of the snapshot's index, so a log left behind by an older snapshot is
+// ignored. Every record is authenticated together with the log header and its position in the log,
+// so records cannot be reordered or moved between logs. A crash can only leave a torn last record,
+// which replay drops and the next append overwrites.
+class VaultLog {
+
+    private static final int MAGIC = 0x504E4457; // "PNDW"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 2 + CryptoUtils.GCM_IV_LENGTH;
+    private static final int MIN_RECORD_SIZE = CryptoUtils.GCM_IV_LENGTH + CryptoUtils.GCM_TAG_LENGTH / 8;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final byte[] header;
+    private long length; // end of the last intact record, 0 while the log does not exist
+    private int records;
+
+    VaultLog(byte[] snapshotId) {
+        this.header = ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putShort((short) VERSION)
+                .put(snapshotId)
+                .array();
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    int getRecords() {
+        return records;
+    }
+
+    // Whether the vault file still holds the snapshot this log belongs to, and the log file ends where
+    // this log was last read or appended to; otherwise another process wrote the vault since
+    boolean isCurrent(byte[] snapshotId, Path path) throws IOException {
+        long onDisk = Files.exists(path) ? Files.size(path) : 0;
+        return Arrays.equals(header, 4 + 2, HEADER_SIZE, snapshotId, 0, snapshotId.length) && onDisk == length;
+    }
+
+    // Whether the log file belongs to the same snapshot but another process appended to it since
+    boolean isBehind(byte[] snapshotId, Path path) throws IOException {
+        long onDisk = Files.exists(path) ? Files.size(path) : 0;
+        return Arrays.equals(header, 4 + 2, HEADER_SIZE, snapshotId, 0, snapshotId.length) && onDisk > length;
+    }
+
+    // Applies the records past the end of what was read so far, so a log read before is only caught up
+    void replay(Path path, Vault vault, SecretKey key) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (log.limit() < HEADER_SIZE || !log.slice(0, HEADER_SIZE).equals(ByteBuffer.wrap(header))) {
+                return; // written for another snapshot, already folded into this one
+            }
+
+            long position = Math.max(length, HEADER_SIZE);
+            int sequence = records;
+            while (log.limit() - position >= 4) {
+                int recordLength = log.getInt((int) position);
+                long end = position + 4 + recordLength;
+                if (recordLength < MIN_RECORD_SIZE || end > log.limit()) {
+                    break;
+                }
+
+                byte[] plainText;
+                try {
+                    plainText = CryptoUtils.open(log.slice((int) position + 4, recordLength), key, associatedData(sequence));
+                } catch (RuntimeException e) {
+                    if (end == log.limit()) {
+                        break; // torn last record
+                    }
+                    throw new PandoraException("Vault log is corrupted", e);
+                }
+                try {
+                    vault.apply(decode(plainText));
+                } finally {
+                    SecurityUtils.secureClear(plainText);
+                }
+                position = end;
+                sequence++;
+            }
+            length = position;
+            records = sequence;
+        }
+    }
+
+    // Writes all changes with a single write and forces them to disk before returning, along with the
+    // directory entry of a log it creates
+    void append(Path path, List<Change> changes, SecretKey key) throws IOException {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        if (length == 0) {
+            out.write(header);
+        }
+        int sequence = records;
+        for (Change change : changes) {
+            byte[] plainText = encode(change);
+            byte[] sealed;
+            try {
+                sealed = CryptoUtils.seal(plainText, key, associatedData(sequence++));
+            } finally {
+                SecurityUtils.secureClear(plainText);
+            }
+            out.writeInt(sealed.length);
+            out.write(sealed);
+        }
+
+        long position;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            // Anything past the last intact record is a torn write, or a log of an older snapshot
+            channel.truncate(length);
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            position = length;
+            while (bytes.hasRemaining()) {
+                position += channel.write(bytes, position);
+            }
+            channel.force(false);
+        }
+        if (length == 0) {
+            VaultFile.forceDirectory(path.getParent());
+        }
+        length = position;
+        records = sequence;
+    }
+
+    private byte[] associatedData(int sequence) {
+        return ByteBuffer.allocate(HEADER_SIZE + 8).put(header).putLong(sequence).array();
+    }
+
+    // Written straight into an array of the exact size, leaving no other copies of the entry to clear
+    private static byte[] encode(Change change) throws IOException {
+        byte[] name = change.name == null ? new byte[0] : change.name.getBytes(StandardCharsets.UTF_8);
+        byte[] entry = change.entry == null ? new byte[0] : mapper.writeValueAsBytes(change.entry);
+        try {
+            return ByteBuffer.allocate(1 + 2 + name.length + entry.length)
+                    .put((byte) change.op)
+                    .putShort((short) name.length)
+                    .put(name)
+                    .put(entry)
+                    .array();
+        } finally {
+            SecurityUtils.secureClear(entry);
+        }
+    }
+
+    private static Change decode(byte[] plainText) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(plainText);
+        int op = Byte.toUnsignedInt(in.get());
+        byte[] name = new byte[Short.toUnsignedInt(in.getShort())];
+        in.get(name);
+        String entryName = new String(name, StandardCharsets.UTF_8);
+        return switch (op) {
+            case Change.PUT -> Change.put(entryName, mapper.readValue(
+                    plainText, in.position(), plainText.length - in.position(), VaultEntry.class));
+            case Change.REMOVE -> Change.remove(entryName);
+            case Change.CLEAR -> Change.clear();
+            default -> throw new PandoraException("Unknown vault log operation: " + op);
+        };
+    }
+
+    static class Change {
+        static final int PUT = 1;
+        static final int REMOVE = 2;
+        static final int CLEAR = 3;
+
+        final int op;
+        final String name;
+        final VaultEntry entry;
+
+        private Change(int op, String name, VaultEntry entry) {
+            this.op = op;
+            this.name = name;
+            this.entry = entry;
+        }
+
+        static Change put(String name, VaultEntry entry) {
+            return new Change(PUT, name, entry);
+        }
+
+        static Change remove(String name) {
+            return new Change(REMOVE, name, null);
+        }
+
+        static Change clear() {
+            return new Change(CLEAR, null, null);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package local.pandora.storage;
+
+import local.pandora.config.VaultConfig;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+// Rewrites the files of a vault in the format the configuration asks for, one file at a time: the
+// vault file, or each shard or namespace file of a split vault. A file is written next to the old one,
+// verified, and only then renamed over it, with the file locked so no change goes astray meanwhile;
+// readers go on with the old file until then, and with any mix of old and new files. Files already
+// in the configured format are left alone, so a migration cut short picks up where it stopped.
+// Sealed records are copied as they are, and entries that are not sealed, from JSON or paged files,
+// are sealed one at a time into a spill file first, so only names and offsets are held in memory.
+public class VaultMigration {
+
+    private static final String TEMP_SUFFIX = ".migrating";
+    private static final String SPILL_SUFFIX = ".spill";
+
+    private VaultMigration() {}
+
+    public record FileFormat(Path file, int version, Set<VaultCapability> capabilities, boolean current) {}
+
+    public record Migrated(Path file, int fromVersion, int toVersion, int entries, long bytesRead, long bytesWritten,
+                           long millis) {}
+
+    // Format of every file of the vault. Throws InvalidMasterPasswordException if the key does not open
+    // a split vault, whose files are only known to the key.
+    public static List<FileFormat> status(Path vaultFile, SecretKey key) throws PandoraException {
+        List<FileFormat> formats = new ArrayList<>();
+        for (Path file : files(vaultFile, key)) {
+            VaultContainer container = VaultFile.loadVaultContainer(file);
+            formats.add(new FileFormat(file, container.getFormatVersion(), container.getCapabilities(),
+                    isCurrent(container, file.equals(vaultFile))));
+        }
+        return formats;
+    }
+
+    // Migrates every file not in the configured format, reporting each as it is done
+    public static List<Migrated> migrate(Path vaultFile, SecretKey key, byte[] salt, Consumer<Migrated> progress)
+            throws PandoraException {
+        List<Migrated> migrated = new ArrayList<>();
+        for (Path file : files(vaultFile, key)) {
+            Migrated done = migrateFile(file, key, salt, file.equals(vaultFile));
+            if (done != null) {
+                migrated.add(done);
+                progress.accept(done);
+            }
+        }
+        return migrated;
+    }
+
+    // The vault file, and the parts of a split vault
+    private static List<Path> files(Path vaultFile, SecretKey key) {
+        List<Path> files = new ArrayList<>();
+        files.add(vaultFile);
+        VaultContainer container = VaultFile.loadVaultContainer(vaultFile);
+        if (container.getCapabilities().contains(VaultCapability.SHARDED)
+                || container.getCapabilities().contains(VaultCapability.NAMESPACED)) {
+            Vault vault = VaultFile.decryptVault(container, key);
+            files.addAll(vault.getParts().files());
+        }
+        return files;
+    }
+
+    // Sharded and namespaced vault files only list their parts, which are migrated on their own
+    private static boolean isCurrent(VaultContainer container, boolean vaultFile) {
+        Set<VaultCapability> capabilities = container.getCapabilities();
+        if (vaultFile && (capabilities.contains(VaultCapability.SHARDED)
+                || capabilities.contains(VaultCapability.NAMESPACED))) {
+            return true;
+        }
+        if (VaultConfig.isPagedStorage()) {
+            return capabilities.contains(VaultCapability.PAGED);
+        }
+        return capabilities.contains(VaultCapability.SORTED_INDEX)
+                && capabilities.contains(VaultCapability.BLOCK_CHECKSUMS)
+                && capabilities.contains(VaultCapability.TAG_INDEX)
+                && capabilities.contains(VaultCapability.BLIND_INDEX)
+                && capabilities.contains(VaultCapability.NAME_SEARCH)
+                && container.getCompression() == Compression.configuredCodec();
+    }
+
+    private static Migrated migrateFile(Path file, SecretKey key, byte[] salt, boolean vaultFile) {
+        Path temp = file.resolveSibling(file.getFileName() + TEMP_SUFFIX);
+        Path spill = file.resolveSibling(file.getFileName() + SPILL_SUFFIX);
+        try (VaultLock lock = VaultLock.acquire(file)) {
+            VaultContainer container = VaultFile.loadVaultContainer(file);
+            if (isCurrent(container, vaultFile)) {
+                return null;
+            }
+
+            long started = System.nanoTime();
+            Path log = VaultPaths.logFileFor(file);
+            long bytesRead = Files.size(file) + (Files.exists(log) ? Files.size(log) : 0);
+            Vault source = open(container, key, spill);
+            try {
+                VaultFile.writeFile(source, temp, key, salt);
+                int entries = verify(temp, source, key);
+                VaultFile.install(temp, file);
+                VaultContainer migrated = VaultFile.loadVaultContainer(file);
+                return new Migrated(file, container.getFormatVersion(), migrated.getFormatVersion(), entries,
+                        bytesRead, Files.size(file), (System.nanoTime() - started) / 1_000_000);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            throw new PandoraException("Failed to migrate vault file: " + file, e);
+        } finally {
+            try {
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(spill);
+            } catch (IOException e) {
+                // left for the next migration to overwrite
+            }
+        }
+    }
+
+    // The entries of the file, with their records sealed: those of sealed files straight from the
+    // mapped file, the others sealed into the spill file
+    private static Vault open(VaultContainer container, SecretKey key, Path spill) throws IOException {
+        Set<VaultCapability> capabilities = container.getCapabilities();
+        if (capabilities.contains(VaultCapability.SEALED_RECORDS)
+                || capabilities.contains(VaultCapability.PAGED) && VaultConfig.isPagedStorage()) {
+            return VaultFile.decryptVault(container, key);
+        }
+
+        int codec = Compression.configuredCodec();
+        try (FileChannel channel = FileChannel.open(spill, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Spill records = new Spill(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+            BiConsumer<String, VaultEntry> seal = (name, entry) -> {
+                try {
+                    records.add(name, VaultRecords.seal(name, entry, key, codec));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    entry.destroy();
+                }
+            };
+            try {
+                if (capabilities.contains(VaultCapability.PAGED)) {
+                    PagedStore.open(container, key, VaultConfig.getPageCachePages()).forEach(seal);
+                } else {
+                    VaultFile.forEachJsonEntry(container, key, seal);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            records.out.flush();
+
+            Vault vault = new Vault();
+            vault.setTable(records.table(channel.map(FileChannel.MapMode.READ_ONLY, 0, records.length)));
+            vault.setKey(key);
+            vault.setCompression(codec);
+            vault.setKdf(container.getKdf());
+            return vault;
+        }
+    }
+
+    // Reads the new file back, which checks every block or page of it, and compares its names with
+    // those of the entries it was written from
+    private static int verify(Path temp, Vault source, SecretKey key) {
+        for (VaultVerifier.Result result : VaultVerifier.verify(temp, key, List.of(), false)) {
+            if (!result.isIntact()) {
+                throw new PandoraException("Migrated vault file failed verification: "
+                        + String.join(", ", result.problems()));
+            }
+        }
+        Vault written = VaultFile.decryptVault(VaultFile.loadVaultContainer(temp), key);
+        try {
+            Iterator<String> expected = source.getEntryNames(null, null);
+            Iterator<String> actual = written.getEntryNames(null, null);
+            int entries = 0;
+            while (expected.hasNext() && actual.hasNext()) {
+                if (!Objects.equals(expected.next(), actual.next())) {
+                    throw new PandoraException("Migrated vault file does not hold the same entries");
+                }
+                entries++;
+            }
+            if (expected.hasNext() || actual.hasNext()) {
+                throw new PandoraException("Migrated vault file does not hold the same entries");
+            }
+            return entries;
+        } finally {
+            written.close();
+        }
+    }
+
+    // Sealed records appended to a file, along with their names and where they went
+    private static final class Spill {
+        private final OutputStream out;
+        private final List<byte[]> names = new ArrayList<>();
+        private int[] offsets = new int[1024];
+        private int[] lengths = new int[1024];
+        private long length;
+
+        Spill(OutputStream out) {
+            this.out = out;
+        }
+
+        void add(String name, byte[] sealed) throws IOException {
+            // Records are addressed through a single mapping
+            if (length + sealed.length > Integer.MAX_VALUE) {
+                throw new PandoraException("Vault file is too large to migrate in one piece; split it into shards first");
+            }
+            if (names.size() == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            }
+            out.write(sealed);
+            offsets[names.size()] = (int) length;
+            lengths[names.size()] = sealed.length;
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+            length += sealed.length;
+        }
+
+        VaultTable table(ByteBuffer records) {
+            VaultTable.Builder table = new VaultTable.Builder(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                byte[] name = names.get(i);
+                table.addSealed(name, 0, name.length, records, offsets[i], lengths[i], null);
+            }
+            return table.build();
+        }
+    }
+}
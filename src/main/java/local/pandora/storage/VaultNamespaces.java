@@ -0,0 +1,193 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+
+// Namespaces of a namespaced vault. An entry named ns/name belongs to namespace ns, and one without a
+// slash to the root namespace "". Every namespace is a vault file of its own, with its own log, kept
+// along with shard files and named by an HMAC of the namespace under a key derived from the master
+// key; the vault file lists the namespaces, encrypted. A namespace is only read once one of its
+// entries is asked for, so a command touching a single namespace never decrypts the others.
+class VaultNamespaces extends VaultParts {
+
+    private static final String PLACEMENT_INFO = "pandora namespace placement";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String FILE_PREFIX = "ns-";
+    private static final int FILE_ID_LENGTH = 16;
+
+    private final Path directory;
+    private final SecretKey key;
+    private final Mac placement;
+    // Namespaces the vault file lists, as last read or written
+    private final Set<String> listed = ConcurrentHashMap.newKeySet();
+    private final Map<String, Vault> namespaces = new ConcurrentHashMap<>();
+    private final Map<String, Object> locks = new ConcurrentHashMap<>();
+    // Namespaces that had no file when read, which another process may have written since
+    private final Set<String> created = ConcurrentHashMap.newKeySet();
+
+    VaultNamespaces(Path vaultFile, Collection<String> listed, SecretKey key, byte[] salt) {
+        this.directory = VaultPaths.shardDirectoryFor(vaultFile);
+        this.key = key;
+        this.listed.addAll(listed);
+        try {
+            placement = Mac.getInstance(MAC_ALGORITHM);
+            placement.init(KeyDerivation.deriveSubkey(key, salt, PLACEMENT_INFO, MAC_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new PandoraException("Failed to set up vault namespaces", e);
+        }
+    }
+
+    static String namespaceOf(String name) {
+        int slash = name.indexOf('/');
+        return slash < 0 ? "" : name.substring(0, slash);
+    }
+
+    synchronized Path getPath(String namespace) {
+        byte[] mac = placement.doFinal(namespace.getBytes(StandardCharsets.UTF_8));
+        return directory.resolve(FILE_PREFIX + HexFormat.of().formatHex(mac, 0, FILE_ID_LENGTH) + ".enc");
+    }
+
+    @Override
+    Vault forName(String name) {
+        return get(namespaceOf(name));
+    }
+
+    // Reads the namespace unless it already was; a namespace without a file is empty
+    Vault get(String namespace) {
+        synchronized (locks.computeIfAbsent(namespace, ns -> new Object())) {
+            Vault vault = namespaces.get(namespace);
+            if (vault == null) {
+                vault = load(namespace);
+                namespaces.put(namespace, vault);
+            }
+            return vault;
+        }
+    }
+
+    void setLoaded(String namespace, Vault vault) {
+        synchronized (locks.computeIfAbsent(namespace, ns -> new Object())) {
+            namespaces.put(namespace, vault);
+            created.remove(namespace);
+        }
+    }
+
+    // Every namespace listed or read so far, in order
+    Set<String> getNamespaces() {
+        Set<String> all = new TreeSet<>(listed);
+        all.addAll(namespaces.keySet());
+        return all;
+    }
+
+    @Override
+    List<Vault> all() {
+        List<String> all = new ArrayList<>(getNamespaces());
+        all.parallelStream().forEach(this::get);
+        return all.stream().map(namespaces::get).toList();
+    }
+
+    // Only the namespace of a prefix with a slash, otherwise the root and the namespaces that start with it
+    @Override
+    List<Vault> withPrefix(String prefix) {
+        if (prefix == null) {
+            return all();
+        }
+        if (prefix.indexOf('/') >= 0) {
+            return List.of(get(namespaceOf(prefix)));
+        }
+        List<String> matching = new ArrayList<>();
+        for (String namespace : getNamespaces()) {
+            if (namespace.isEmpty() || namespace.startsWith(prefix)) {
+                matching.add(namespace);
+            }
+        }
+        return matching.stream().map(this::get).toList();
+    }
+
+    @Override
+    void forEachLoaded(BiConsumer<Vault, Path> action) {
+        getLoaded().forEach((namespace, vault) -> action.accept(vault, getPath(namespace)));
+    }
+
+    // The namespaces read so far, in order
+    Map<String, Vault> getLoaded() {
+        return new TreeMap<>(namespaces);
+    }
+
+    // Namespaces changed while the vault file does not list them yet
+    Set<String> getUnlisted() {
+        Set<String> unlisted = new TreeSet<>();
+        namespaces.forEach((namespace, vault) -> {
+            if (!listed.contains(namespace) && vault.getRecordedChanges() > 0) {
+                unlisted.add(namespace);
+            }
+        });
+        return unlisted;
+    }
+
+    void setListed(Collection<String> namespaces) {
+        listed.addAll(namespaces);
+    }
+
+    boolean isCreated(String namespace) {
+        return created.contains(namespace);
+    }
+
+    // The namespace's file exists now, so whatever is written to it later builds on what it holds
+    void setWritten(String namespace) {
+        created.remove(namespace);
+    }
+
+    @Override
+    List<Path> files() {
+        return getNamespaces().stream().map(this::getPath).filter(Files::exists).toList();
+    }
+
+    @Override
+    void deleteFiles() throws IOException {
+        for (String namespace : getNamespaces()) {
+            Path path = getPath(namespace);
+            Files.deleteIfExists(path);
+            Files.deleteIfExists(VaultPaths.logFileFor(path));
+            Files.deleteIfExists(VaultPaths.lockFileFor(path));
+        }
+        // Unless it holds the files replacing these
+        if (Files.isDirectory(directory)) {
+            try (Stream<Path> rest = Files.list(directory)) {
+                if (rest.findAny().isEmpty()) {
+                    Files.delete(directory);
+                }
+            }
+        }
+    }
+
+    private Vault load(String namespace) {
+        Path path = getPath(namespace);
+        if (Files.exists(path)) {
+            return VaultFile.decryptVault(VaultFile.loadVaultContainer(path), key);
+        }
+        // New, or listed by a save that did not get to write it
+        created.add(namespace);
+        Vault vault = new Vault();
+        vault.setKey(key);
+        return vault;
+    }
+}
@@ -0,0 +1,35 @@
+package local.pandora.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+// Files the entries of a vault are split over, see VaultShards and VaultNamespaces. Every part is a
+// vault of its own, read on first use, and the vault that was split hands each entry to its part.
+abstract class VaultParts {
+
+    // The part the name belongs to, read unless it already was
+    abstract Vault forName(String name);
+
+    // Every part, reading those not read yet in parallel
+    abstract List<Vault> all();
+
+    // The parts that may hold names starting with the prefix, or every part for null
+    List<Vault> withPrefix(String prefix) {
+        return all();
+    }
+
+    // The parts read so far, along with their files
+    abstract void forEachLoaded(BiConsumer<Vault, Path> action);
+
+    // Files of the parts that have one, whether read or not
+    abstract List<Path> files();
+
+    abstract void deleteFiles() throws IOException;
+
+    // Closes the parts read so far
+    void close() {
+        forEachLoaded((part, path) -> part.close());
+    }
+}
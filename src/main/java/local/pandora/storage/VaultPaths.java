@@ -8,7 +8,54 @@ public class VaultPaths {
 
     public static final Path PANDORA_FILE = PANDORA_DIR.resolve("pandora.enc");
 
+    // Changes appended since pandora.enc was last written
+    public static final Path PANDORA_LOG = PANDORA_DIR.resolve("pandora.wal");
+
+    // Shard files of a sharded vault, whose pandora.enc only names their number
+    public static final Path PANDORA_SHARDS = PANDORA_DIR.resolve("pandora.shards");
+
+    // Socket of the key agent, in a directory only its user can enter
+    public static final Path AGENT_SOCKET = PANDORA_DIR.resolve("agent").resolve("agent.sock");
+
     public static final Path BACKUP_DIR = PANDORA_DIR.resolve("backups");
 
     public static final Path DRIVE_OAUTH_CREDENTIALS = PANDORA_DIR.resolve("credentials.json");
+
+    // Log kept next to a vault file: pandora.enc -> pandora.wal
+    public static Path logFileFor(Path vaultFile) {
+        return vaultFile.resolveSibling(baseName(vaultFile) + ".wal");
+    }
+
+    // Lock taken while a vault file is written: pandora.enc -> pandora.lock
+    public static Path lockFileFor(Path vaultFile) {
+        return vaultFile.resolveSibling(baseName(vaultFile) + ".lock");
+    }
+
+    // Data key of a vault file wrapped under its master password, see VaultKeyFile: pandora.enc -> pandora.key
+    public static Path keyFileFor(Path vaultFile) {
+        return vaultFile.resolveSibling(baseName(vaultFile) + ".key");
+    }
+
+    // Encrypted use counts of the entries of a vault file, see EntryUsage: pandora.enc -> pandora.usage
+    public static Path usageFileFor(Path vaultFile) {
+        return vaultFile.resolveSibling(baseName(vaultFile) + ".usage");
+    }
+
+    // Sequence-numbered feed of the entries changed in a vault file, see ChangeFeed: pandora.enc -> pandora.changes
+    public static Path changesFileFor(Path vaultFile) {
+        return vaultFile.resolveSibling(baseName(vaultFile) + ".changes");
+    }
+
+    // Directory of the shards of a vault file: pandora.enc -> pandora.shards
+    public static Path shardDirectoryFor(Path vaultFile) {
+        return vaultFile.resolveSibling(baseName(vaultFile) + ".shards");
+    }
+
+    private static String baseName(Path vaultFile) {
+        String name = vaultFile.getFileName().toString();
+        if (name.endsWith(".enc")) {
+            name = name.substring(0, name.length() - ".enc".length());
+        }
+        return name;
+    }
 }
@@ -0,0 +1,119 @@
+package local.pandora.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import local.pandora.config.VaultConfig;
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.exception.PandoraException;
+import local.pandora.security.SecurityUtils;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Each entry is sealed on its own with AES/GCM and its name as associated data, so a record
+// can neither be read nor moved to another name without the tag failing. With compression on,
+// entries of at least the configured size are sealed as a compressed block wherever that is smaller.
+class VaultRecords {
+
+    private VaultRecords() {}
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    static byte[] seal(String name, VaultEntry entry, SecretKey key, int codec) {
+        try {
+            byte[] plainText = mapper.writeValueAsBytes(entry);
+            if (codec != Compression.NONE && plainText.length >= VaultConfig.getCompressionThreshold()) {
+                byte[] compressed = Compression.compress(plainText, Compression.RECORD_DICTIONARY);
+                if (compressed.length < plainText.length) {
+                    SecurityUtils.secureClear(plainText);
+                    plainText = compressed;
+                } else {
+                    SecurityUtils.secureClear(compressed);
+                }
+            }
+            try {
+                return CryptoUtils.seal(plainText, key, name.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                SecurityUtils.secureClear(plainText);
+            }
+        } catch (IOException e) {
+            throw new PandoraException("Failed to encode entry: " + name, e);
+        }
+    }
+
+    static VaultEntry open(String name, ByteBuffer sealed, SecretKey key) {
+        byte[] plainText = CryptoUtils.open(sealed, key, name.getBytes(StandardCharsets.UTF_8));
+        if (Compression.isCompressed(plainText)) {
+            byte[] compressed = plainText;
+            plainText = Compression.decompress(compressed, Compression.RECORD_DICTIONARY);
+            SecurityUtils.secureClear(compressed);
+        }
+        try {
+            return mapper.readValue(plainText, VaultEntry.class);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to decode entry: " + name, e);
+        } finally {
+            SecurityUtils.secureClear(plainText);
+        }
+    }
+
+    // One entry as held by Vault: where its record lies in the buffer it was read into, until the entry
+    // changes, and the decrypted entry once somebody asked for it. Records are shared by the states of a
+    // vault and read without locking; entries are immutable, so readers that decrypt one at once do no harm.
+    static class Record {
+        private final ByteBuffer source;
+        private final int offset;
+        private final int length;
+        private VaultEntry entry;
+
+        Record(ByteBuffer source, int offset, int length, VaultEntry entry) {
+            this.source = source;
+            this.offset = offset;
+            this.length = length;
+            this.entry = entry;
+        }
+
+        Record(VaultEntry entry) {
+            this(null, 0, 0, entry);
+        }
+
+        ByteBuffer getSealed() {
+            return source.slice(offset, length);
+        }
+
+        ByteBuffer getSource() {
+            return source;
+        }
+
+        int getOffset() {
+            return offset;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        // The entry if it was decrypted or changed, otherwise null
+        VaultEntry getEntry() {
+            return entry;
+        }
+
+        boolean isChanged() {
+            return source == null;
+        }
+
+        VaultEntry open(String name, SecretKey key) {
+            if (entry == null) {
+                entry = VaultRecords.open(name, getSealed(), key);
+            }
+            return entry;
+        }
+
+        void destroy() {
+            if (entry != null) {
+                entry.destroy();
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+// Shards of a sharded vault. An entry lives in the shard picked by an HMAC of its name under a key
+// derived from the master key, so which names share a shard says nothing to whoever lacks the key.
+// Every shard is a vault file of its own, with its own log, and is only read on first use.
+class VaultShards extends VaultParts {
+
+    private static final String PLACEMENT_INFO = "pandora shard placement";
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private final Path directory;
+    private final int count;
+    private final SecretKey key;
+    private final Mac placement;
+    private final Vault[] shards;
+    private final Object[] locks;
+
+    VaultShards(Path vaultFile, int count, SecretKey key, byte[] salt) {
+        this.directory = VaultPaths.shardDirectoryFor(vaultFile);
+        this.count = count;
+        this.key = key;
+        this.shards = new Vault[count];
+        this.locks = new Object[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new Object();
+        }
+        try {
+            placement = Mac.getInstance(MAC_ALGORITHM);
+            placement.init(KeyDerivation.deriveSubkey(key, salt, PLACEMENT_INFO, MAC_ALGORITHM));
+        } catch (GeneralSecurityException e) {
+            throw new PandoraException("Failed to set up vault shards", e);
+        }
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    Path getPath(int shard) {
+        return directory.resolve(String.format("%d-%03d.enc", count, shard));
+    }
+
+    synchronized int shardOf(String name) {
+        byte[] mac = placement.doFinal(name.getBytes(StandardCharsets.UTF_8));
+        return Integer.remainderUnsigned(ByteBuffer.wrap(mac).getInt(), count);
+    }
+
+    @Override
+    Vault forName(String name) {
+        return get(shardOf(name));
+    }
+
+    // Reads the shard unless it already was
+    Vault get(int shard) {
+        synchronized (locks[shard]) {
+            if (shards[shard] == null) {
+                shards[shard] = load(shard);
+            }
+            return shards[shard];
+        }
+    }
+
+    // The shard if it was read, otherwise null
+    Vault getLoaded(int shard) {
+        synchronized (locks[shard]) {
+            return shards[shard];
+        }
+    }
+
+    void setLoaded(int shard, Vault vault) {
+        synchronized (locks[shard]) {
+            shards[shard] = vault;
+        }
+    }
+
+    // Every shard in order, reading those not read yet in parallel
+    @Override
+    List<Vault> all() {
+        IntStream.range(0, count).parallel().forEach(this::get);
+        List<Vault> all = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            all.add(getLoaded(i));
+        }
+        return all;
+    }
+
+    @Override
+    void forEachLoaded(BiConsumer<Vault, Path> action) {
+        for (int i = 0; i < count; i++) {
+            Vault shard = getLoaded(i);
+            if (shard != null) {
+                action.accept(shard, getPath(i));
+            }
+        }
+    }
+
+    @Override
+    List<Path> files() {
+        return IntStream.range(0, count).mapToObj(this::getPath).filter(Files::exists).toList();
+    }
+
+    @Override
+    void deleteFiles() throws IOException {
+        for (int i = 0; i < count; i++) {
+            Files.deleteIfExists(getPath(i));
+            Files.deleteIfExists(VaultPaths.logFileFor(getPath(i)));
+            Files.deleteIfExists(VaultPaths.lockFileFor(getPath(i)));
+        }
+        // Unless it holds the shards replacing these
+        try (Stream<Path> rest = Files.list(directory)) {
+            if (rest.findAny().isEmpty()) {
+                Files.delete(directory);
+            }
+        }
+    }
+
+    private Vault load(int shard) {
+        Path path = getPath(shard);
+        if (!Files.exists(path)) {
+            throw new PandoraException("Vault shard is missing: " + path);
+        }
+        return VaultFile.decryptVault(VaultFile.loadVaultContainer(path), key);
+    }
+}
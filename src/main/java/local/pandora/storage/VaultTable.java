@@ -0,0 +1,358 @@
+package local.pandora.storage;
+
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+// Records of a vault laid out in columns instead of as objects of their own, which Vault keeps its
+// latest changes on top of. Rows are in the order of their UTF-8 names, and row i holds:
+//   names      the UTF-8 name, ending at nameEnds[i] and starting where the row before ends
+//   users      for an entry, its username as an index into usernames, so a username is kept once
+//              for a sealed record, -1 - the index of the buffer holding it among the sources
+//   locations  for an entry, the index of the chunk holding its password among the sources << 32
+//              and the password's offset there, or -1 without a password
+//              for a sealed record, its offset << 32 and its length
+// Rows are found through slots, an open addressing hash table of row + 1 by name (0 for none). The
+// bits of a slot that row numbers leave unused hold the same bits of the name's hash, so probing
+// past other names mostly stays within the slots.
+// Passwords stay where their secrets put them, so a row holds no copy of its own. Sealed records
+// are only opened when asked for, and the entry one opened to is kept, as is an entry with more than a password. Tables never change
+// otherwise, so they are read without locking.
+final class VaultTable {
+
+    static final VaultTable EMPTY = new Builder().build();
+
+    private static final long NO_PASSWORD = -1;
+
+    private final byte[] names;
+    private final int[] nameEnds;
+    private final int[] users;
+    private final long[] locations;
+    private final String[] usernames;
+    private final Object[] sources;
+    // Entries the sealed records were opened to, allocated once the first one is
+    private volatile VaultEntry[] opened;
+    private final int[] slots;
+    private final int rowMask;
+    private final int size;
+
+    private VaultTable(Builder builder) {
+        this.size = builder.size;
+        this.names = Arrays.copyOf(builder.names, builder.namesLength);
+        this.nameEnds = Arrays.copyOf(builder.nameEnds, size);
+        this.users = Arrays.copyOf(builder.users, size);
+        this.locations = Arrays.copyOf(builder.locations, size);
+        this.opened = builder.anyOpened ? Arrays.copyOf(builder.opened, size) : null;
+        this.usernames = builder.usernames.toArray(new String[0]);
+        this.sources = builder.sources.toArray();
+
+        // At most half full
+        this.slots = new int[Math.max(2, Integer.highestOneBit(Math.max(1, size * 2 - 1)) << 1)];
+        this.rowMask = -1 >>> Integer.numberOfLeadingZeros(Math.max(1, size));
+        int mask = slots.length - 1;
+        for (int row = 0; row < size; row++) {
+            int hash = hash(names, start(row), nameEnds[row]);
+            int slot = hash & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = (hash & ~rowMask) | (row + 1);
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Row holding the name, or -1
+    int find(String name) {
+        byte[] target = name.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(target, 0, target.length);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            if (((slots[slot] ^ hash) & ~rowMask) != 0) {
+                continue;
+            }
+            int row = (slots[slot] & rowMask) - 1;
+            if (Arrays.equals(names, start(row), nameEnds[row], target, 0, target.length)) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    String name(int row) {
+        return new String(names, start(row), nameEnds[row] - start(row), StandardCharsets.UTF_8);
+    }
+
+    byte[] nameBytes(int row) {
+        return Arrays.copyOfRange(names, start(row), nameEnds[row]);
+    }
+
+    int compareName(int row, byte[] name) {
+        return Arrays.compareUnsigned(names, start(row), nameEnds[row], name, 0, name.length);
+    }
+
+    VaultRecords.Record record(int row) {
+        int user = users[row];
+        if (user < 0) {
+            long location = locations[row];
+            return new VaultRecords.Record((ByteBuffer) sources[-1 - user], (int) (location >>> 32), (int) location,
+                    opened(row));
+        }
+        return new VaultRecords.Record(entry(row));
+    }
+
+    VaultEntry open(int row, String name, SecretKey key) {
+        if (users[row] >= 0) {
+            return entry(row);
+        }
+        VaultEntry entry = opened(row);
+        if (entry == null) {
+            long location = locations[row];
+            entry = VaultRecords.open(name, ((ByteBuffer) sources[-1 - users[row]]).slice((int) (location >>> 32),
+                    (int) location), key);
+            VaultEntry[] cache = opened;
+            if (cache == null) {
+                synchronized (this) {
+                    if (opened == null) {
+                        opened = new VaultEntry[size];
+                    }
+                    cache = opened;
+                }
+            }
+            cache[row] = entry;
+        }
+        return entry;
+    }
+
+    // Rows changed since their records were read, whose entries the table holds instead
+    void forEachChanged(BiConsumer<String, VaultRecords.Record> action) {
+        for (int row = 0; row < size; row++) {
+            if (users[row] >= 0) {
+                action.accept(name(row), record(row));
+            }
+        }
+    }
+
+    // Wipes the password of every entry in the table
+    void destroy() {
+        for (int row = 0; row < size; row++) {
+            VaultEntry entry = users[row] >= 0 ? entry(row) : opened(row);
+            if (entry != null) {
+                entry.destroy();
+            }
+        }
+    }
+
+    private VaultEntry entry(int row) {
+        VaultEntry kept = opened(row);
+        if (kept != null) {
+            return kept;
+        }
+        long location = locations[row];
+        Secret password = location == NO_PASSWORD ? null
+                : Secret.at((Secret.Chunk) sources[(int) (location >>> 32)], (int) location);
+        return new VaultEntry(usernames[users[row]], password);
+    }
+
+    private VaultEntry opened(int row) {
+        VaultEntry[] cache = opened;
+        return cache == null ? null : cache[row];
+    }
+
+    private int start(int row) {
+        return row == 0 ? 0 : nameEnds[row - 1];
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 1;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        // Both the low bits picking the slot and the high bits kept in it depend on every byte
+        hash = (hash ^ (hash >>> 16)) * 0x85EBCA6B;
+        hash = (hash ^ (hash >>> 13)) * 0xC2B2AE35;
+        return hash ^ (hash >>> 16);
+    }
+
+    // Takes each name at most once. Rows added out of name order are sorted when the table is built.
+    static final class Builder {
+        private byte[] names;
+        private int namesLength;
+        private int[] nameEnds;
+        private int[] users;
+        private long[] locations;
+        private VaultEntry[] opened;
+        private boolean anyOpened;
+        private boolean sorted = true;
+        private int size;
+
+        private final List<String> usernames = new ArrayList<>();
+        private final Map<String, Integer> usernameIndex = new HashMap<>();
+        private final List<Object> sources = new ArrayList<>();
+        private final Map<Object, Integer> sourceIndex = new IdentityHashMap<>();
+
+        // Indexes of the usernames and sources of the table rows were last copied from, by theirs there
+        private VaultTable copiedFrom;
+        private int[] copiedUsernames;
+        private int[] copiedSources;
+
+        Builder() {
+            this(16);
+        }
+
+        // Sized for about as many rows
+        Builder(int rows) {
+            int capacity = Math.max(16, rows);
+            names = new byte[capacity * 16];
+            nameEnds = new int[capacity];
+            users = new int[capacity];
+            locations = new long[capacity];
+            opened = new VaultEntry[capacity];
+        }
+
+        Builder add(String name, VaultRecords.Record record) {
+            return add(name.getBytes(StandardCharsets.UTF_8), record);
+        }
+
+        Builder add(byte[] nameBytes, VaultRecords.Record record) {
+            if (record.isChanged()) {
+                VaultEntry entry = record.getEntry();
+                Secret password = entry.getSecret();
+                long location = password == null ? NO_PASSWORD
+                        : (long) source(password.getChunk()) << 32 | password.getOffset();
+                return add(nameBytes, 0, nameBytes.length, username(entry.getUsername()), location,
+                        entry.isBare() ? null : entry);
+            }
+            return addSealed(nameBytes, 0, nameBytes.length, record.getSource(), record.getOffset(),
+                    record.getLength(), record.getEntry());
+        }
+
+        Builder addSealed(byte[] name, int nameOffset, int nameLength, ByteBuffer source, int offset, int length,
+                          VaultEntry entry) {
+            return add(name, nameOffset, nameLength, -1 - source(source), (long) offset << 32 | length, entry);
+        }
+
+        // Copies a row of another table as it is
+        Builder add(VaultTable table, int row) {
+            if (copiedFrom != table) {
+                copiedFrom = table;
+                copiedUsernames = new int[table.usernames.length];
+                copiedSources = new int[table.sources.length];
+                Arrays.fill(copiedUsernames, -1);
+                Arrays.fill(copiedSources, -1);
+            }
+
+            int user = table.users[row];
+            long location = table.locations[row];
+            if (user < 0) {
+                user = -1 - copiedSource(table, -1 - user);
+            } else {
+                if (copiedUsernames[user] < 0) {
+                    copiedUsernames[user] = username(table.usernames[user]);
+                }
+                user = copiedUsernames[user];
+                if (location != NO_PASSWORD) {
+                    location = (long) copiedSource(table, (int) (location >>> 32)) << 32 | (int) location;
+                }
+            }
+            int start = table.start(row);
+            return add(table.names, start, table.nameEnds[row] - start, user, location, table.opened(row));
+        }
+
+        VaultTable build() {
+            if (!sorted) {
+                sort();
+            }
+            return new VaultTable(this);
+        }
+
+        private Builder add(byte[] name, int nameOffset, int nameLength, int user, long location, VaultEntry entry) {
+            if (size == nameEnds.length) {
+                int capacity = size * 2;
+                nameEnds = Arrays.copyOf(nameEnds, capacity);
+                users = Arrays.copyOf(users, capacity);
+                locations = Arrays.copyOf(locations, capacity);
+                opened = Arrays.copyOf(opened, capacity);
+            }
+            if (namesLength + nameLength > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + nameLength));
+            }
+            if (sorted && size > 0) {
+                int previous = size == 1 ? 0 : nameEnds[size - 2];
+                sorted = Arrays.compareUnsigned(names, previous, namesLength, name, nameOffset, nameOffset + nameLength) < 0;
+            }
+            System.arraycopy(name, nameOffset, names, namesLength, nameLength);
+            namesLength += nameLength;
+            nameEnds[size] = namesLength;
+            users[size] = user;
+            locations[size] = location;
+            opened[size] = entry;
+            anyOpened |= entry != null;
+            size++;
+            return this;
+        }
+
+        // Puts the rows in name order
+        private void sort() {
+            Integer[] order = new Integer[size];
+            for (int row = 0; row < size; row++) {
+                order[row] = row;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(names, a == 0 ? 0 : nameEnds[a - 1], nameEnds[a],
+                    names, b == 0 ? 0 : nameEnds[b - 1], nameEnds[b]));
+
+            byte[] sortedNames = new byte[namesLength];
+            int[] sortedEnds = new int[size];
+            int[] sortedUsers = new int[size];
+            long[] sortedLocations = new long[size];
+            VaultEntry[] sortedOpened = new VaultEntry[size];
+            int end = 0;
+            for (int i = 0; i < size; i++) {
+                int row = order[i];
+                int start = row == 0 ? 0 : nameEnds[row - 1];
+                System.arraycopy(names, start, sortedNames, end, nameEnds[row] - start);
+                end += nameEnds[row] - start;
+                sortedEnds[i] = end;
+                sortedUsers[i] = users[row];
+                sortedLocations[i] = locations[row];
+                sortedOpened[i] = opened[row];
+            }
+            names = sortedNames;
+            nameEnds = sortedEnds;
+            users = sortedUsers;
+            locations = sortedLocations;
+            opened = sortedOpened;
+            sorted = true;
+        }
+
+        private int copiedSource(VaultTable table, int source) {
+            if (copiedSources[source] < 0) {
+                copiedSources[source] = source(table.sources[source]);
+            }
+            return copiedSources[source];
+        }
+
+        private int username(String username) {
+            return usernameIndex.computeIfAbsent(username, name -> {
+                usernames.add(name);
+                return usernames.size() - 1;
+            });
+        }
+
+        private int source(Object source) {
+            return sourceIndex.computeIfAbsent(source, key -> {
+                sources.add(key);
+                return sources.size() - 1;
+            });
+        }
+    }
+}
@@ -0,0 +1,371 @@
+package local.pandora.storage;
+
+import local.pandora.config.VaultConfig;
+import local.pandora.exception.InvalidMasterPasswordException;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+// Checks a vault file, its log and the files its entries are split over. Files with block checksums
+// are hashed on all cores and damage is located to the block; with repair set, a damaged block is
+// replaced by the same block of a copy of the file, such as a backup, whose hash matches its
+// checksum. Paged files are checked page by page and older files by opening every entry.
+public class VaultVerifier {
+
+    private VaultVerifier() {}
+
+    // What was found in one file: problems is empty for an intact file, entries names the entries
+    // the damage reaches, where known
+    public record Result(Path file, String checked, List<String> problems, List<String> entries, int repaired) {
+
+        public boolean isIntact() {
+            return problems.isEmpty();
+        }
+    }
+
+    // Copies are vault files holding earlier states of the same vault, along with their logs and
+    // parts. Throws InvalidMasterPasswordException if the key does not open the vault file.
+    public static List<Result> verify(Path vaultFile, SecretKey key, List<Path> copies, boolean repair)
+            throws PandoraException {
+        List<Result> results = new ArrayList<>();
+        List<Path> parts = new ArrayList<>();
+        results.add(check(vaultFile, key, copies, repair, parts, true));
+        for (Path part : parts) {
+            List<Path> partCopies = copies.stream()
+                    .map(copy -> VaultPaths.shardDirectoryFor(copy).resolve(part.getFileName()))
+                    .toList();
+            results.add(check(part, key, partCopies, repair, null, false));
+        }
+        return results;
+    }
+
+    private static Result check(Path file, SecretKey key, List<Path> copies, boolean repair, List<Path> parts,
+                                boolean first) {
+        try {
+            VaultContainer container;
+            try {
+                container = VaultFile.loadVaultContainer(file);
+            } catch (PandoraException e) {
+                return repairHeader(file, key, copies, repair, first, describe(e));
+            }
+            if (container.getChecksums() != null) {
+                return checkBlocks(file, container, key, copies, repair, first);
+            }
+            if (container.getFormatVersion() == VaultFile.PAGED_VERSION) {
+                return checkPages(file, container, key);
+            }
+            return checkEntries(file, container, key, parts);
+        } catch (InvalidMasterPasswordException e) {
+            if (first) {
+                throw e;
+            }
+            return damaged(file, "does not authenticate with the vault key");
+        } catch (RuntimeException e) {
+            return damaged(file, describe(e));
+        }
+    }
+
+    private static Result checkBlocks(Path file, VaultContainer container, SecretKey key, List<Path> copies,
+                                      boolean repair, boolean first) {
+        byte[] checksumHeader = container.getChecksumHeader();
+        if (!MessageDigest.isEqual(container.getChecksumMac(),
+                BlockChecksums.authenticate(checksumHeader, key, container.getSalt()))) {
+            return repairHeader(file, key, copies, repair, first, null);
+        }
+
+        byte[] root = Arrays.copyOfRange(checksumHeader, checksumHeader.length - BlockChecksums.HASH_LENGTH,
+                checksumHeader.length);
+        int blockSize = container.getChecksumBlockSize();
+        ByteBuffer blocks = container.getChecksummed();
+        long start = checksumHeader.length + BlockChecksums.MAC_LENGTH;
+        byte[] actual = BlockChecksums.leaves(blocks, blockSize);
+        byte[] stored = new byte[container.getChecksums().remaining()];
+        container.getChecksums().get(0, stored);
+
+        // Checksums that do not add up to the root are damaged themselves, and the blocks are then
+        // checked against those of an intact copy of the same file
+        byte[] trusted = stored;
+        if (!Arrays.equals(BlockChecksums.root(stored), root)) {
+            trusted = Arrays.equals(BlockChecksums.root(actual), root) ? actual
+                    : copiedChecksums(copies, start + blocks.limit(), stored.length, root);
+        }
+        if (trusted == null) {
+            return damaged(file, "blocks and their checksums are damaged");
+        }
+
+        List<Integer> damagedBlocks = new ArrayList<>();
+        for (int i = 0; i < actual.length / BlockChecksums.HASH_LENGTH; i++) {
+            if (!Arrays.equals(actual, i * BlockChecksums.HASH_LENGTH, (i + 1) * BlockChecksums.HASH_LENGTH,
+                    trusted, i * BlockChecksums.HASH_LENGTH, (i + 1) * BlockChecksums.HASH_LENGTH)) {
+                damagedBlocks.add(i);
+            }
+        }
+        boolean checksumsDamaged = trusted != stored;
+
+        int repaired = 0;
+        if (repair && (checksumsDamaged || !damagedBlocks.isEmpty())) {
+            repaired = repair(file, checksumHeader, start, blocks.limit(), blockSize, damagedBlocks, trusted,
+                    checksumsDamaged, copies);
+            if (repaired > 0) {
+                Result after = check(file, key, copies, false, null, first);
+                return new Result(file, after.checked(), after.problems(), after.entries(), repaired);
+            }
+        }
+
+        List<String> problems = new ArrayList<>();
+        List<String> entries = List.of();
+        if (!damagedBlocks.isEmpty()) {
+            problems.add(damagedBlocks.size() + " of " + actual.length / BlockChecksums.HASH_LENGTH + " blocks damaged");
+            entries = damagedEntries(container, key, start, blockSize, damagedBlocks, problems);
+        }
+        if (checksumsDamaged) {
+            problems.add("block checksums damaged");
+        }
+        String log = checkLog(file, container, key, problems);
+        return new Result(file, actual.length / BlockChecksums.HASH_LENGTH + " blocks" + log, problems, entries, 0);
+    }
+
+    // Names of the entries whose records lie in the damaged blocks, as far as the index can still tell
+    private static List<String> damagedEntries(VaultContainer container, SecretKey key, long start, int blockSize,
+                                               List<Integer> damagedBlocks, List<String> problems) {
+        NameFilter filter = NameFilter.open(container.getFilter(), container.getFilterHashes(),
+                Arrays.copyOf(container.getHeader(), container.getHeader().length - NameFilter.MAC_LENGTH),
+                container.getFilterMac(), key, container.getSalt());
+        if (filter == null) {
+            problems.add("name filter damaged");
+        }
+
+        NameIndex index = new NameIndex(filter, container, key);
+        List<String> entries = new ArrayList<>();
+        try {
+            for (int i = 0; i < index.size(); i++) {
+                long from = (index.recordOffset(i) - start) / blockSize;
+                long to = (index.recordOffset(i) + index.recordLength(i) - 1 - start) / blockSize;
+                int found = Collections.binarySearch(damagedBlocks, (int) from);
+                int next = found >= 0 ? found : -found - 1;
+                if (found >= 0 || next < damagedBlocks.size() && damagedBlocks.get(next) <= to) {
+                    entries.add(new String(index.name(i), StandardCharsets.UTF_8));
+                }
+            }
+        } catch (RuntimeException e) {
+            problems.add("index damaged");
+        }
+        return entries;
+    }
+
+    // Writes the blocks of copies that match the checksums over the damaged ones, with the file locked
+    // and only if it is still the file that was checked; returns the number of blocks written
+    private static int repair(Path file, byte[] checksumHeader, long start, long length, int blockSize,
+                              List<Integer> damagedBlocks, byte[] trusted, boolean checksumsDamaged,
+                              List<Path> copies) {
+        try (VaultLock lock = VaultLock.acquire(file);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            if (!Arrays.equals(checksumHeader, VaultFile.loadVaultContainer(file).getChecksumHeader())) {
+                return 0;
+            }
+
+            Map<Path, ByteBuffer> mapped = new HashMap<>();
+            int repaired = 0;
+            for (int block : damagedBlocks) {
+                long offset = start + (long) block * blockSize;
+                int blockLength = (int) Math.min(blockSize, start + length - offset);
+                for (Path copy : copies) {
+                    ByteBuffer copied = mapped.computeIfAbsent(copy, VaultVerifier::map);
+                    if (copied == null || copied.limit() < offset + blockLength) {
+                        continue;
+                    }
+                    ByteBuffer candidate = copied.slice((int) offset, blockLength);
+                    if (Arrays.equals(BlockChecksums.leaf(candidate), 0, BlockChecksums.HASH_LENGTH, trusted,
+                            block * BlockChecksums.HASH_LENGTH, (block + 1) * BlockChecksums.HASH_LENGTH)) {
+                        channel.write(candidate, offset);
+                        repaired++;
+                        break;
+                    }
+                }
+            }
+            if (checksumsDamaged) {
+                channel.write(ByteBuffer.wrap(trusted), start + length);
+                repaired++;
+            }
+            channel.force(true);
+            return repaired;
+        } catch (IOException e) {
+            throw new PandoraException("Failed to repair vault file: " + file, e);
+        }
+    }
+
+    // A header that does not authenticate is either damaged or under another key, which only a copy of
+    // the same file can tell apart: its header authenticates and its root covers the blocks of this file
+    private static Result repairHeader(Path file, SecretKey key, List<Path> copies, boolean repair, boolean first,
+                                       String problem) {
+        ByteBuffer damaged = map(file);
+        byte[] header = damaged == null ? null : copiedHeader(damaged, key, copies);
+        if (header == null) {
+            if (first && problem == null) {
+                throw new InvalidMasterPasswordException();
+            }
+            return damaged(file, problem == null ? "header does not authenticate with the vault key" : problem);
+        }
+        if (!repair) {
+            return damaged(file, "header damaged");
+        }
+
+        try (VaultLock lock = VaultLock.acquire(file);
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(header), 0);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new PandoraException("Failed to repair vault file: " + file, e);
+        }
+        Result after = check(file, key, copies, false, null, first);
+        return new Result(file, after.checked(), after.problems(), after.entries(), 1);
+    }
+
+    private static byte[] copiedHeader(ByteBuffer damaged, SecretKey key, List<Path> copies) {
+        for (Path copy : copies) {
+            try {
+                VaultContainer container = VaultFile.loadVaultContainer(copy);
+                byte[] checksumHeader = container.getChecksumHeader();
+                if (checksumHeader == null || Files.size(copy) != damaged.limit() || !MessageDigest.isEqual(
+                        container.getChecksumMac(), BlockChecksums.authenticate(checksumHeader, key, container.getSalt()))) {
+                    continue;
+                }
+                int start = checksumHeader.length + BlockChecksums.MAC_LENGTH;
+                byte[] leaves = BlockChecksums.leaves(damaged.slice(start, container.getChecksummed().limit()),
+                        container.getChecksumBlockSize());
+                if (Arrays.equals(BlockChecksums.root(leaves), 0, BlockChecksums.HASH_LENGTH, checksumHeader,
+                        checksumHeader.length - BlockChecksums.HASH_LENGTH, checksumHeader.length)) {
+                    byte[] header = new byte[start];
+                    map(copy).get(0, header);
+                    return header;
+                }
+            } catch (IOException | RuntimeException e) {
+                // not a copy of this file
+            }
+        }
+        return null;
+    }
+
+    // Checksums at the same place in a copy that add up to the root, or null
+    private static byte[] copiedChecksums(List<Path> copies, long offset, int length, byte[] root) {
+        for (Path copy : copies) {
+            ByteBuffer copied = map(copy);
+            if (copied != null && copied.limit() >= offset + length) {
+                byte[] checksums = new byte[length];
+                copied.get((int) offset, checksums);
+                if (Arrays.equals(BlockChecksums.root(checksums), root)) {
+                    return checksums;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Result checkPages(Path file, VaultContainer container, SecretKey key) {
+        PagedStore store = PagedStore.open(container, key, VaultConfig.getPageCachePages());
+        List<Long> damagedPages = new ArrayList<>();
+        long checked = store.checkPages(damagedPages);
+        if (damagedPages.isEmpty()) {
+            return new Result(file, checked + " pages", List.of(), List.of(), 0);
+        }
+        Collections.sort(damagedPages);
+        return new Result(file, checked + " pages", List.of(damagedPages.size() + " pages damaged: " + damagedPages),
+                List.of(), 0);
+    }
+
+    // Files without block checksums are checked by opening every entry, in parallel; the vault file of
+    // a sharded or namespaced vault only lists its parts, which are checked on their own
+    private static Result checkEntries(Path file, VaultContainer container, SecretKey key, List<Path> parts) {
+        Vault vault = VaultFile.decryptVault(container, key);
+        try {
+            if (vault.getParts() != null) {
+                List<Path> files = vault.getParts().files();
+                if (parts != null) {
+                    parts.addAll(files);
+                }
+                return new Result(file, files.size() + " parts", List.of(), List.of(), 0);
+            }
+
+            List<String> names = new ArrayList<>();
+            for (Iterator<String> it = vault.getEntryNames(null, null); it.hasNext(); ) {
+                names.add(it.next());
+            }
+            TreeSet<String> damagedEntries = new TreeSet<>();
+            names.parallelStream().forEach(name -> {
+                try {
+                    vault.getEntry(name);
+                } catch (RuntimeException e) {
+                    synchronized (damagedEntries) {
+                        damagedEntries.add(name);
+                    }
+                }
+            });
+            List<String> problems = damagedEntries.isEmpty() ? List.of()
+                    : List.of(damagedEntries.size() + " of " + names.size() + " entries damaged");
+            return new Result(file, names.size() + " entries", problems, List.copyOf(damagedEntries), 0);
+        } finally {
+            vault.close();
+        }
+    }
+
+    // Replays the log of a version 3 file on its own; returns what was checked, for the summary
+    private static String checkLog(Path file, VaultContainer container, SecretKey key, List<String> problems) {
+        Path logFile = VaultPaths.logFileFor(file);
+        if (!Files.exists(logFile)) {
+            return "";
+        }
+        VaultLog log = new VaultLog(container.getIv());
+        Vault scratch = new Vault();
+        try {
+            log.replay(logFile, scratch, key);
+            return log.getRecords() > 0 ? ", " + log.getRecords() + " logged changes" : "";
+        } catch (IOException | RuntimeException e) {
+            problems.add("log damaged: " + describe(e));
+            return "";
+        } finally {
+            scratch.close();
+        }
+    }
+
+    private static Result damaged(Path file, String problem) {
+        return new Result(file, "nothing", List.of(problem), List.of(), 0);
+    }
+
+    private static ByteBuffer map(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String describe(Throwable e) {
+        String message = e.getMessage();
+        while (e.getCause() != null && e.getCause() != e) {
+            e = e.getCause();
+            if (e.getMessage() != null) {
+                message = message + ": " + e.getMessage();
+            }
+        }
+        return message;
+    }
+}
@@ -0,0 +1,69 @@
+package local.pandora.crypto;
+
+import org.bouncycastle.crypto.generators.Argon2BytesGenerator;
+import org.bouncycastle.crypto.params.Argon2Parameters;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+// The Argon2id that fills lanes in parallel against the Argon2 of BouncyCastle, which fills them one
+// after another, over lanes, passes and memory sizes that do and do not divide into whole segments
+class Argon2idTest {
+
+    private static final byte[] SALT = "pandora salt 16b".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void matchesBouncyCastle() {
+        byte[] password = "correct horse battery staple".getBytes(StandardCharsets.UTF_8);
+        for (int lanes : new int[]{1, 2, 4, 8}) {
+            // The floor of 8 blocks a lane, a size one block past it, and sizes whose blocks are not a
+            // multiple of four a lane, so their remainder goes unused
+            for (int memoryKiB : new int[]{8 * lanes, 8 * lanes + 1, 67, 257, 1031}) {
+                for (int passes = 1; passes <= 3; passes++) {
+                    assertArrayEquals(bouncyCastle(password, memoryKiB, passes, lanes, 32),
+                            Argon2id.derive(password, SALT, memoryKiB, passes, lanes, 32),
+                            "lanes " + lanes + ", " + memoryKiB + " KiB, " + passes + " passes");
+                }
+            }
+        }
+    }
+
+    // Outputs past 64 bytes go through the variable-length hash, and the password through the prehash
+    @Test
+    void matchesBouncyCastleForOtherLengthsAndPasswords() {
+        for (byte[] password : new byte[][]{new byte[0], "p".getBytes(StandardCharsets.UTF_8),
+                "pässwörd".repeat(40).getBytes(StandardCharsets.UTF_8)}) {
+            for (int length : new int[]{4, 16, 64, 65, 100}) {
+                assertArrayEquals(bouncyCastle(password, 64, 2, 2, length),
+                        Argon2id.derive(password, SALT, 64, 2, 2, length),
+                        password.length + " byte password, " + length + " byte output");
+            }
+        }
+    }
+
+    // Memory as pandora calibrates it, up to a few MiB, over every lane count
+    @Test
+    void matchesBouncyCastleAtCalibratedSizes() {
+        byte[] password = "calibration".getBytes(StandardCharsets.UTF_8);
+        for (int lanes : new int[]{1, 2, 4, 8}) {
+            assertArrayEquals(bouncyCastle(password, 4 * 1024 + 3, 1, lanes, 32),
+                    Argon2id.derive(password, SALT, 4 * 1024 + 3, 1, lanes, 32), "lanes " + lanes);
+        }
+    }
+
+    private static byte[] bouncyCastle(byte[] password, int memoryKiB, int passes, int lanes, int length) {
+        Argon2BytesGenerator generator = new Argon2BytesGenerator();
+        generator.init(new Argon2Parameters.Builder(Argon2Parameters.ARGON2_id)
+                .withVersion(Argon2Parameters.ARGON2_VERSION_13)
+                .withMemoryAsKB(memoryKiB)
+                .withIterations(passes)
+                .withParallelism(lanes)
+                .withSalt(SALT)
+                .build());
+        byte[] out = new byte[length];
+        generator.generateBytes(password, out);
+        return out;
+    }
+}
@@ -0,0 +1,121 @@
+package local.pandora.security;
+
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.exception.PandoraException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The key agent: keys stored, handed out and locked over its socket, and forgotten once idle or held
+// for the maximum time
+class KeyAgentTest {
+
+    @TempDir
+    Path directory;
+
+    private Path socket;
+
+    @AfterEach
+    void stopAgent() {
+        if (socket != null) {
+            KeyAgent.stop(socket);
+        }
+    }
+
+    @Test
+    void keysAreHandedOutUntilLocked() throws Exception {
+        start(Duration.ofMinutes(5), Duration.ofHours(1));
+        SecretKey first = CryptoUtils.generateAesKey();
+        SecretKey second = CryptoUtils.generateAesKey();
+        KeyAgent.store(socket, "vault-a", first);
+        KeyAgent.store(socket, "vault-b", second);
+
+        assertArrayEquals(first.getEncoded(), KeyAgent.fetch(socket, "vault-a").getEncoded());
+        assertArrayEquals(second.getEncoded(), KeyAgent.fetch(socket, "vault-b").getEncoded());
+        assertNull(KeyAgent.fetch(socket, "vault-c"));
+        assertEquals(new KeyAgent.Status(2, Duration.ofMinutes(5), Duration.ofHours(1)), KeyAgent.status(socket));
+
+        // A key stored again replaces the one held
+        KeyAgent.store(socket, "vault-a", second);
+        assertArrayEquals(second.getEncoded(), KeyAgent.fetch(socket, "vault-a").getEncoded());
+
+        assertEquals(Integer.valueOf(2), KeyAgent.lock(socket));
+        assertNull(KeyAgent.fetch(socket, "vault-a"));
+        assertEquals(0, KeyAgent.status(socket).keys());
+
+        // The agent answers before it stops listening and removes its socket
+        assertTrue(KeyAgent.stop(socket));
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (Files.exists(socket)) {
+            assertTrue(System.currentTimeMillis() < deadline, "agent did not remove its socket");
+            Thread.sleep(10);
+        }
+        assertFalse(KeyAgent.isRunning(socket));
+        assertNull(KeyAgent.fetch(socket, "vault-a"));
+        assertNull(KeyAgent.lock(socket));
+        // Without an agent a key handed over is dropped
+        KeyAgent.store(socket, "vault-a", first);
+    }
+
+    @Test
+    void secondAgentOnTheSameSocketIsRefused() {
+        start(Duration.ofMinutes(5), Duration.ofHours(1));
+        assertThrows(PandoraException.class, () -> KeyAgent.serve(socket, Duration.ofMinutes(5), Duration.ofHours(1)));
+        assertTrue(KeyAgent.isRunning(socket));
+    }
+
+    // Every use puts off the idle time, so a key in use lasts until it goes unused
+    @Test
+    void keyUnusedForTheIdleTimeIsForgotten() throws Exception {
+        start(Duration.ofMillis(400), Duration.ofHours(1));
+        KeyAgent.store(socket, "vault", CryptoUtils.generateAesKey());
+        for (int i = 0; i < 6; i++) {
+            Thread.sleep(150);
+            assertTrue(KeyAgent.fetch(socket, "vault") != null, "used every 150 ms");
+        }
+        Thread.sleep(600);
+        assertNull(KeyAgent.fetch(socket, "vault"));
+    }
+
+    @Test
+    void keyHeldForTheMaximumTimeIsForgottenThoughInUse() throws Exception {
+        start(Duration.ofMinutes(5), Duration.ofMillis(600));
+        KeyAgent.store(socket, "vault", CryptoUtils.generateAesKey());
+        assertTrue(KeyAgent.fetch(socket, "vault") != null);
+        long stored = System.currentTimeMillis();
+        while (System.currentTimeMillis() - stored < 800) {
+            Thread.sleep(100);
+            KeyAgent.fetch(socket, "vault");
+        }
+        assertNull(KeyAgent.fetch(socket, "vault"));
+
+        // The sweep wipes it from memory as well
+        Thread.sleep(1500);
+        assertEquals(0, KeyAgent.status(socket).keys());
+    }
+
+    // Serves in the background, on a socket in a directory of its own, until the agent answers
+    private void start(Duration idle, Duration max) {
+        socket = directory.resolve("agent").resolve("agent.sock");
+        Thread agent = new Thread(() -> KeyAgent.serve(socket, idle, max), "test-agent");
+        agent.setDaemon(true);
+        agent.start();
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!KeyAgent.isRunning(socket)) {
+            assertTrue(System.currentTimeMillis() < deadline, "agent did not start");
+            Thread.onSpinWait();
+        }
+    }
+}
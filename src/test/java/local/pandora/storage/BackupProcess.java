@@ -0,0 +1,34 @@
+package local.pandora.storage;
+
+import local.pandora.backup.VaultBackup;
+import local.pandora.config.VaultConfig;
+import local.pandora.exception.PandoraException;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.util.Base64;
+
+// One VaultBackup call of VaultKeyFileTest, run through main in a process whose user.home is a directory
+// of the test, since the vault and backup paths follow the home directory the JVM started with. Prints
+// what the call returned, or the error it failed with, on the last line:
+//   BackupProcess <config file> <key, Base64> <salt, Base64> rewrap | restore <backup file name>
+final class BackupProcess {
+
+    private BackupProcess() {}
+
+    public static void main(String[] args) {
+        VaultConfig.loadConfig(args[0]);
+        SecretKey key = new SecretKeySpec(Base64.getDecoder().decode(args[1]), "AES");
+        byte[] salt = Base64.getDecoder().decode(args[2]);
+        try {
+            Object result = switch (args[3]) {
+                case "rewrap" -> VaultBackup.rewrapBackups(key);
+                case "restore" -> VaultBackup.restoreBackup(args[4], key, salt);
+                default -> throw new IllegalArgumentException("Unknown call: " + args[3]);
+            };
+            System.out.println(result);
+        } catch (PandoraException e) {
+            System.out.println("error: " + e.getMessage());
+        }
+    }
+}
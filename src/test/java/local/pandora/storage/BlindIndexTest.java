@@ -0,0 +1,134 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// search --user/--name: the words and keyed tokens of the blind index, and searches over every layout
+// before and after entries change
+class BlindIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void configure() throws Exception {
+        TestVaults.configure(directory);
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void namesSplitIntoLowerCasedWords() {
+        assertEquals(List.of("team", "a", "github", "com"), BlindIndex.words("team-a/GitHub.com"));
+        assertEquals(List.of("mail2", "b"), BlindIndex.words("  Mail2__b  "));
+        assertEquals(List.of("über", "straße"), BlindIndex.words("Über/Straße"));
+        assertEquals(List.of(), BlindIndex.words("--/."));
+    }
+
+    // Tokens depend on the key and salt, and a username never passes for a word of a name
+    @Test
+    void tokensAreKeyedAndKeptApart() throws Exception {
+        BlindIndex.Tokenizer tokenizer = new BlindIndex.Tokenizer(key, salt);
+        assertEquals(tokenizer.word("github"), new BlindIndex.Tokenizer(key, salt).word("github"));
+        assertNotEquals(tokenizer.word("github"), tokenizer.user("github"));
+        assertNotEquals(tokenizer.word("github"), new BlindIndex.Tokenizer(TestVaults.newKey(), salt).word("github"));
+        assertNotEquals(tokenizer.word("github"), new BlindIndex.Tokenizer(key, TestVaults.newSalt()).word("github"));
+    }
+
+    @Test
+    void searchesMatchTheEntriesInEveryLayout() throws IOException {
+        for (List<String> layout : TestVaults.LAYOUTS) {
+            TestVaults.configure(directory, layout.toArray(String[]::new));
+            Path file = directory.resolve(layout.isEmpty() ? "sealed" : layout.get(0).replaceAll("\\W", ""))
+                    .resolve("pandora.enc");
+            Map<String, String> model = new TreeMap<>();
+            try (Vault vault = new Vault()) {
+                for (int i = 0; i < 90; i++) {
+                    vault.addEntry(name(i), username(i), "password-" + i);
+                    model.put(name(i), username(i));
+                }
+                VaultFile.saveVault(vault, file, key, salt);
+            }
+
+            // Through the tokens of the file, then with changes made since it was read on top
+            try (Vault vault = TestVaults.load(file, key)) {
+                assertSearches(vault, model, layout);
+                for (int i = 0; i < 90; i += 4) {
+                    vault.updateEntry(name(i), username(i + 1), "changed-" + i);
+                    model.put(name(i), username(i + 1));
+                }
+                for (int i = 1; i < 90; i += 9) {
+                    vault.removeEntry(name(i));
+                    model.remove(name(i));
+                }
+                vault.addEntry("ns1/GitHub.com backup", "Carol", "added");
+                model.put("ns1/GitHub.com backup", "Carol");
+                assertSearches(vault, model, layout);
+                VaultFile.commitVault(vault, file, key, salt);
+            }
+            try (Vault vault = TestVaults.load(file, key)) {
+                assertSearches(vault, model, layout);
+                assertThrows(PandoraException.class, () -> vault.searchEntries(null, "--"));
+            }
+        }
+    }
+
+    private static String name(int i) {
+        String[] sites = {"GitHub.com", "mail.example.org", "team-a/github", "Bank"};
+        return "ns" + i % 3 + "/" + sites[i % sites.length] + " " + i;
+    }
+
+    // Usernames differing in case only belong to the same user
+    private static String username(int i) {
+        return switch (i % 5) {
+            case 0 -> "alice";
+            case 1 -> "Alice";
+            case 2 -> "bob@example.com";
+            case 3 -> "carol";
+            default -> "dave";
+        };
+    }
+
+    private static void assertSearches(Vault vault, Map<String, String> model, List<String> layout) {
+        for (String user : new String[]{null, "alice", "ALICE", "bob@example.com", "carol", "nobody"}) {
+            for (String words : new String[]{null, "github", "GitHub com", "example", "bank 8", "missing"}) {
+                if (user == null && words == null) {
+                    continue;
+                }
+                List<String> wanted = words == null ? List.of() : BlindIndex.words(words);
+                List<String> expected = new ArrayList<>();
+                model.forEach((name, username) -> {
+                    if (BlindIndex.words(name).containsAll(wanted) && (user == null
+                            || username.toLowerCase(Locale.ROOT).equals(user.toLowerCase(Locale.ROOT)))) {
+                        expected.add(name);
+                    }
+                });
+                assertEquals(expected, vault.searchEntries(user, words), layout + " --user " + user + " --name " + words);
+            }
+        }
+    }
+}
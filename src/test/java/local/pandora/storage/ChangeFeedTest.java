@@ -0,0 +1,192 @@
+package local.pandora.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// changes --since: the feed a vault starts on first read, the changes read after a sequence number, and
+// feeds cut short by a crash, started over under another key or compacted
+class ChangeFeedTest {
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void configure() throws Exception {
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    // A change as read, with the password the entry has now, or null once deleted; a clear has no name
+    private record Seen(long sequence, String name, String password) {}
+
+    @Test
+    void readsTheLastChangeOfEveryEntrySinceInEveryLayout() throws IOException {
+        for (List<String> layout : TestVaults.LAYOUTS) {
+            TestVaults.configure(directory, layout.toArray(String[]::new));
+            Path file = directory.resolve(layout.isEmpty() ? "sealed" : layout.get(0).replaceAll("\\W", ""))
+                    .resolve("pandora.enc");
+            try (Vault vault = new Vault()) {
+                for (String name : List.of("a", "b", "c", "ns1/d", "ns2/e")) {
+                    vault.addEntry(name, "user", "first " + name);
+                }
+                VaultFile.saveVault(vault, file, key, salt);
+            }
+
+            // The first read starts from every entry
+            List<Seen> all = read(file, 0);
+            assertEquals(List.of("a", "b", "c", "ns1/d", "ns2/e"), all.stream().map(Seen::name).sorted().toList(),
+                    layout.toString());
+            assertAscending(all);
+            long start = all.get(all.size() - 1).sequence();
+
+            try (Vault vault = TestVaults.load(file, key)) {
+                vault.updateEntry("a", "user", "second a");
+                VaultFile.commitVault(vault, file, key, salt);
+                vault.updateEntry("a", "user", "third a");
+                vault.removeEntry("b");
+                vault.addEntry("ns1/f", "user", "first ns1/f");
+                VaultFile.commitVault(vault, file, key, salt);
+            }
+            assertEquals(List.of(new Seen(start + 2, "a", "third a"), new Seen(start + 3, "b", null),
+                    new Seen(start + 4, "ns1/f", "first ns1/f")), read(file, start), layout.toString());
+            assertEquals(List.of(new Seen(start + 4, "ns1/f", "first ns1/f")), read(file, start + 3));
+            assertEquals(List.of(), read(file, start + 4));
+
+            // A vault emptied reads as a clear, with what changed after it
+            try (Vault vault = TestVaults.load(file, key)) {
+                vault.clearEntries();
+                vault.addEntry("g", "user", "first g");
+                VaultFile.commitVault(vault, file, key, salt);
+            }
+            List<Seen> cleared = read(file, start + 1);
+            assertEquals(new Seen(start + 5, null, null), cleared.get(0), layout.toString());
+            assertEquals(List.of("g"), cleared.stream().skip(1).map(Seen::name).toList(), layout.toString());
+        }
+    }
+
+    // A frame torn by a crash is left out and written over; the vault was never written with it
+    @Test
+    void tornFrameIsWrittenOver() throws IOException {
+        save("a", "b");
+        long start = last(read(path, 0));
+        byte[] torn = new byte[40];
+        new Random(7).nextBytes(torn);
+        Files.write(VaultPaths.changesFileFor(path), torn, StandardOpenOption.APPEND);
+
+        assertEquals(List.of(), read(path, start));
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.updateEntry("a", "user", "changed");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+        assertEquals(List.of(new Seen(start + 1, "a", "changed")), read(path, start));
+        assertEquals(2, read(path, 0).size());
+    }
+
+    // A feed that does not open under the key, as after restoring another vault, starts over with a
+    // clear and numbers going on, and a reader asking past its end reads it from the last clear
+    @Test
+    void feedOfAnotherKeyStartsOver() throws Exception {
+        save("a", "b", "c");
+        long start = last(read(path, 0));
+        key = TestVaults.newKey();
+        save("x", "y");
+
+        List<Seen> restarted = read(path, start);
+        assertEquals(new Seen(start + 1, null, null), restarted.get(0));
+        assertEquals(List.of("x", "y"), restarted.stream().skip(1).map(Seen::name).sorted().toList());
+
+        assertEquals(restarted, read(path, start + 100));
+
+        ChangeFeed.reset(path, key, salt);
+        List<Seen> reset = read(path, start + 3);
+        assertEquals(new Seen(start + 4, null, null), reset.get(0));
+        assertEquals(List.of("x", "y"), reset.stream().skip(1).map(Seen::name).sorted().toList());
+
+        // A feed lost altogether starts from 1 again, after a clear numbered 0 for those further on
+        Files.delete(VaultPaths.changesFileFor(path));
+        List<Seen> lost = read(path, start + 3);
+        assertEquals(List.of(new Seen(0, null, null), new Seen(1, "x", "first x"), new Seen(2, "y", "first y")), lost);
+    }
+
+    // Past a multiple of the compaction interval only the last frame of every name is kept, and reads
+    // since any number still see every change after it
+    @Test
+    void compactedFeedKeepsTheLastChangeOfEveryName() throws IOException {
+        String[] names = new String[2500];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "entry-" + i;
+        }
+        save(names);
+        long start = last(read(path, 0));
+        long size = Files.size(VaultPaths.changesFileFor(path));
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            for (String name : names) {
+                vault.updateEntry(name, "user", "changed " + name);
+            }
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        assertTrue(Files.size(VaultPaths.changesFileFor(path)) < size * 1.2);
+        List<Seen> changes = read(path, start);
+        assertEquals(names.length, changes.size());
+        assertAscending(changes);
+        assertTrue(changes.stream().allMatch(seen -> seen.password().equals("changed " + seen.name())));
+        Set<String> seen = new TreeSet<>();
+        read(path, 0).forEach(change -> assertTrue(seen.add(change.name())));
+        assertEquals(new TreeSet<>(List.of(names)), seen);
+    }
+
+    private void save(String... names) {
+        try (Vault vault = new Vault()) {
+            for (String name : names) {
+                vault.addEntry(name, "user", "first " + name);
+            }
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+    }
+
+    private List<Seen> read(Path file, long since) {
+        List<Seen> seen = new ArrayList<>();
+        ChangeFeed.read(file, key, salt, since, change -> seen.add(new Seen(change.sequence(), change.name(),
+                change.entry() == null ? null : new String(change.entry().getPassword()))));
+        return seen;
+    }
+
+    private static long last(List<Seen> changes) {
+        return changes.get(changes.size() - 1).sequence();
+    }
+
+    private static void assertAscending(List<Seen> changes) {
+        for (int i = 1; i < changes.size(); i++) {
+            assertTrue(changes.get(i - 1).sequence() < changes.get(i).sequence());
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+import local.pandora.security.SecurityUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntryHistoryTest {
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void configure() throws Exception {
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void updatesKeepEarlierVersionsNewestFirst() {
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "correct horse battery staple");
+            vault.updateEntry("mail", "alice", "correct horse battery stapler");
+            vault.updateEntry("mail", "alice", "Correct horse, battery staple");
+            vault.updateEntry("mail", "alice@example.com", "Correct horse, battery staple");
+            vault.updateEntry("mail", "alice", "x");
+
+            assertEquals(List.of(
+                    "alice@example.com:Correct horse, battery staple",
+                    "alice:Correct horse, battery staple",
+                    "alice:correct horse battery stapler",
+                    "alice:correct horse battery staple"), versions(vault, "mail"));
+            List<EntryHistory.Revision> revisions = vault.getHistory("mail");
+            assertEquals(1, revisions.get(0).number());
+            assertEquals(4, revisions.get(3).number());
+        }
+    }
+
+    @Test
+    void entryWithoutUpdatesHasNoHistory() {
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "password");
+
+            assertEquals(List.of(), vault.getHistory("mail"));
+            assertNull(vault.getHistory("other"));
+            assertThrows(PandoraException.class, () -> vault.revertEntry("mail", 1));
+        }
+    }
+
+    @Test
+    void historyIsWrittenWithTheEntry() {
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "first");
+            vault.updateEntry("mail", "alice", "second");
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.updateEntry("mail", "bob", "third");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        // Read back through the log, then from a full save
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(List.of("alice:second", "alice:first"), versions(vault, "mail"));
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(List.of("alice:second", "alice:first"), versions(vault, "mail"));
+        }
+    }
+
+    @Test
+    void historyIsKeptByThePagedEngine() throws IOException {
+        TestVaults.configure(directory, "storage_engine: paged");
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "first");
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.updateEntry("mail", "alice", "second");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(List.of("alice:first"), versions(vault, "mail"));
+        }
+    }
+
+    @Test
+    void revertRestoresAVersionAndKeepsTheOneItReplaces() {
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "first");
+            vault.updateEntry("mail", "alice", "second");
+            vault.updateEntry("mail", "bob", "third");
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.revertEntry("mail", 2);
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals("alice", vault.getEntry("mail").getUsername());
+            assertEquals("first", TestVaults.password(vault, "mail"));
+            assertEquals(List.of("bob:third", "alice:second", "alice:first"), versions(vault, "mail"));
+
+            // And back again
+            vault.revertEntry("mail", 1);
+            assertEquals("bob", vault.getEntry("mail").getUsername());
+            assertEquals("third", TestVaults.password(vault, "mail"));
+        }
+    }
+
+    @Test
+    void revertToAMissingVersionFails() {
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "first");
+            vault.updateEntry("mail", "alice", "second");
+
+            assertThrows(PandoraException.class, () -> vault.revertEntry("mail", 0));
+            assertThrows(PandoraException.class, () -> vault.revertEntry("mail", 2));
+            assertThrows(PandoraException.class, () -> vault.revertEntry("other", 1));
+            assertEquals("second", TestVaults.password(vault, "mail"));
+        }
+    }
+
+    @Test
+    void historyKeepsTheConfiguredNumberOfVersions() throws IOException {
+        TestVaults.configureYaml(directory, "history_versions: 2\n");
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "v1");
+            for (int i = 2; i <= 5; i++) {
+                vault.updateEntry("mail", "alice", "v" + i);
+            }
+
+            assertEquals(List.of("alice:v4", "alice:v3"), versions(vault, "mail"));
+        }
+    }
+
+    // As update does when both prompts are left blank; the history keeps its real versions instead
+    @Test
+    void updateOrRevertChangingNothingAddsNoVersion() throws IOException {
+        TestVaults.configureYaml(directory, "history_versions: 2\n");
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "first");
+            vault.updateEntry("mail", "alice", "second");
+            vault.updateEntry("mail", "alice", "first");
+            long changes = vault.getRecordedChanges();
+
+            assertFalse(vault.updateEntry("mail", "alice", "first"));
+            assertFalse(vault.revertEntry("mail", 2));
+
+            assertEquals(changes, vault.getRecordedChanges());
+            assertEquals(List.of("alice:second", "alice:first"), versions(vault, "mail"));
+            assertTrue(vault.updateEntry("mail", "bob", "first"));
+            assertEquals(List.of("alice:first", "alice:second"), versions(vault, "mail"));
+        }
+    }
+
+    @Test
+    void noHistoryIsKeptWhenTurnedOff() throws IOException {
+        TestVaults.configureYaml(directory, "history_versions: 0\n");
+        try (Vault vault = new Vault()) {
+            vault.addEntry("mail", "alice", "v1");
+            vault.updateEntry("mail", "alice", "v2");
+
+            assertTrue(vault.getHistory("mail").isEmpty());
+        }
+    }
+
+    // Earlier versions of the entry, newest first, as username:password
+    private static List<String> versions(Vault vault, String name) {
+        List<String> versions = new ArrayList<>();
+        for (EntryHistory.Revision revision : vault.getHistory(name)) {
+            char[] password = revision.entry().getPassword();
+            try {
+                versions.add(revision.entry().getUsername() + ":" + new String(password));
+            } finally {
+                SecurityUtils.secureClear(password);
+                revision.entry().destroy();
+            }
+        }
+        return versions;
+    }
+}
@@ -0,0 +1,87 @@
+package local.pandora.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Writers sharing one vault, each adding an entry and committing it. Grouped is how commitVault runs
+// them, a commit covering every change recorded before it; serial holds a lock from the change to the
+// end of its commit, so that every change is synced on its own. Throughput gives commits per second,
+// sample time the latency of a commit; the number of writers is changed with -t.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class GroupCommitBenchmark {
+
+    @Param({"grouped", "serial"})
+    public String commits;
+
+    @Param({"sealed", "paged"})
+    public String engine;
+
+    private Path directory;
+    private Path path;
+    private SecretKey key;
+    private byte[] salt;
+    private Vault vault;
+    private final Object serialLock = new Object();
+    private final AtomicLong names = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void createVault() throws Exception {
+        directory = Files.createTempDirectory("pandora-bench");
+        TestVaults.configure(directory, "storage_engine: " + engine);
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+        try (Vault created = new Vault()) {
+            VaultFile.saveVault(created, path, key, salt);
+        }
+        vault = TestVaults.load(path, key);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVault() throws IOException {
+        vault.close();
+        TestVaults.delete(directory);
+    }
+
+    @Benchmark
+    public void addAndCommit() {
+        if (commits.equals("serial")) {
+            synchronized (serialLock) {
+                addAndCommitEntry();
+            }
+        } else {
+            addAndCommitEntry();
+        }
+    }
+
+    private void addAndCommitEntry() {
+        long i = names.getAndIncrement();
+        vault.addEntry("entry-" + i, "user" + i, "password-" + i);
+        VaultFile.commitVault(vault, path, key, salt);
+    }
+}
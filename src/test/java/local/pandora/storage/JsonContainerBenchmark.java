@@ -0,0 +1,97 @@
+package local.pandora.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Reading the JSON containers, whole against streamed entry by entry, and a full save. Run with -prof gc
+// for the bytes allocated per operation; the peak heap each needs is found by lowering -Xmx through
+// -jvmArgsAppend until it fails, e.g.
+//   mvn -Pbenchmark test-compile exec:exec -Dbenchmark.args="JsonContainer -prof gc -jvmArgsAppend -Xmx64m"
+// The JSON formats are only read now, so saves are of the current format.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JsonContainerBenchmark {
+
+    @Param({"legacy", "whole"})
+    public String format;
+
+    @Param({"200000"})
+    public int entries;
+
+    private Path directory;
+    private Path path;
+    private Path saved;
+    private SecretKey key;
+    private byte[] salt;
+    private Vault vault;
+
+    @Setup(Level.Trial)
+    public void createVault() throws Exception {
+        directory = Files.createTempDirectory("pandora-bench");
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        saved = directory.resolve("saved.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+        Map<String, String> all = new TreeMap<>();
+        for (int i = 0; i < entries; i++) {
+            all.put("entry-" + i, "password-" + i);
+        }
+        if (format.equals("legacy")) {
+            OldVaultFiles.writeLegacy(path, all, key, salt);
+        } else {
+            OldVaultFiles.writeWholeVault(path, all, key, salt);
+        }
+        vault = TestVaults.load(path, key);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVault() throws IOException {
+        vault.close();
+        TestVaults.delete(directory);
+    }
+
+    @Benchmark
+    public int load() {
+        try (Vault loaded = TestVaults.load(path, key)) {
+            return loaded.getEntryCount();
+        }
+    }
+
+    @Benchmark
+    public void stream(Blackhole blackhole) throws IOException {
+        VaultFile.forEachJsonEntry(VaultFile.loadVaultContainer(path), key, (name, entry) -> {
+            blackhole.consume(name);
+            entry.destroy();
+        });
+    }
+
+    @Benchmark
+    public void save() {
+        VaultFile.saveVault(vault, saved, key, salt);
+    }
+}
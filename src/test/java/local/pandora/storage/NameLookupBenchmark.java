@@ -0,0 +1,144 @@
+package local.pandora.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Lookups by name in a sorted vault against one read whole, as a version 1 file was. The open* benchmarks
+// load the file and look up one name, as a command does; hit and miss look up in a vault already open,
+// with its index decrypted. The false positive rate of the name filter is printed during setup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NameLookupBenchmark {
+
+    private static final int NAMES = 1024;
+
+    @Param({"sorted", "whole"})
+    public String format;
+
+    @Param({"10000", "100000", "1000000"})
+    public int entries;
+
+    private Path directory;
+    private Path path;
+    private SecretKey key;
+    private Vault vault;
+    private String[] present;
+    private String[] absent;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createVault() throws Exception {
+        directory = Files.createTempDirectory("pandora-bench");
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        byte[] salt = TestVaults.newSalt();
+        Map<String, String> all = new TreeMap<>();
+        for (int i = 0; i < entries; i++) {
+            all.put(name(i), "password-" + i);
+        }
+        if (format.equals("sorted")) {
+            try (Vault created = new Vault()) {
+                all.forEach((name, password) -> created.addEntry(name, OldVaultFiles.username(name), password));
+                VaultFile.saveVault(created, path, key, salt);
+            }
+        } else {
+            OldVaultFiles.writeWholeVault(path, all, key, salt);
+        }
+
+        present = new String[NAMES];
+        absent = new String[NAMES];
+        for (int i = 0; i < NAMES; i++) {
+            present[i] = name((int) ((long) i * entries / NAMES));
+            absent[i] = "absent-" + i;
+        }
+        vault = TestVaults.load(path, key);
+        printFalsePositiveRate(key, salt);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVault() throws IOException {
+        vault.close();
+        TestVaults.delete(directory);
+    }
+
+    @Benchmark
+    public boolean openAndHit() {
+        try (Vault loaded = TestVaults.load(path, key)) {
+            return loaded.hasEntry(nextName(present));
+        }
+    }
+
+    @Benchmark
+    public boolean openAndMiss() {
+        try (Vault loaded = TestVaults.load(path, key)) {
+            return loaded.hasEntry(nextName(absent));
+        }
+    }
+
+    @Benchmark
+    public VaultEntry openAndGet() {
+        try (Vault loaded = TestVaults.load(path, key)) {
+            return loaded.getEntry(nextName(present));
+        }
+    }
+
+    @Benchmark
+    public boolean hit() {
+        return vault.hasEntry(nextName(present));
+    }
+
+    @Benchmark
+    public boolean miss() {
+        return vault.hasEntry(nextName(absent));
+    }
+
+    private String nextName(String[] names) {
+        next = (next + 1) & (NAMES - 1);
+        return names[next];
+    }
+
+    // Of as many names not in the filter as are in it
+    private void printFalsePositiveRate(SecretKey key, byte[] salt) {
+        NameFilter filter = NameFilter.create(entries, key, salt);
+        for (int i = 0; i < entries; i++) {
+            filter.add(name(i).getBytes(StandardCharsets.UTF_8));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < entries; i++) {
+            if (filter.mightContain(("absent-" + i).getBytes(StandardCharsets.UTF_8))) {
+                falsePositives++;
+            }
+        }
+        System.out.printf("%nName filter false positive rate at %d names: %.3f%%%n", entries,
+                100.0 * falsePositives / entries);
+    }
+
+    private static String name(int i) {
+        return String.format("service-%07d", i);
+    }
+}
@@ -0,0 +1,146 @@
+package local.pandora.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// find: how names match a query, how matches rank, use counts, and finds through the trigrams of the
+// file in every layout before and after entries change
+class NameSearchTest {
+
+    private static final List<String> NAMES = List.of("GitHub", "github-work", "work/GitHub", "gitlab", "bitbucket",
+            "mail", "Mailbox", "gmail", "email/old", "bank", "banking/savings", "a", "ab", "x/a", "Straße");
+
+    @TempDir
+    Path directory;
+
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void configure() throws Exception {
+        TestVaults.configure(directory);
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void namesMatchByKindCaseAside() {
+        assertEquals(NameSearch.EXACT, NameSearch.match("GitHub", "github").kind());
+        assertEquals(NameSearch.PREFIX, NameSearch.match("github-work", "GIT").kind());
+        assertEquals(NameSearch.SUBSTRING, NameSearch.match("work/GitHub", "hub").kind());
+        assertEquals(NameSearch.FUZZY, NameSearch.match("github", "gthub").kind());
+        assertEquals(NameSearch.FUZZY, NameSearch.match("Mailbox", "mailbx").kind());
+        assertNull(NameSearch.match("bank", "github"));
+        // Two chars are too few for a near miss
+        assertNull(NameSearch.match("bank", "bx"));
+    }
+
+    @Test
+    void matchesRankByKindThenUseThenSimilarityThenName() {
+        List<NameSearch.Found> found = List.of(
+                new NameSearch.Found("b-prefix", NameSearch.PREFIX, 0),
+                new NameSearch.Found("a-prefix", NameSearch.PREFIX, 0),
+                new NameSearch.Found("used-substring", NameSearch.SUBSTRING, 0),
+                new NameSearch.Found("near", NameSearch.FUZZY, 0.5),
+                new NameSearch.Found("nearer", NameSearch.FUZZY, 0.9),
+                new NameSearch.Found("exact", NameSearch.EXACT, 0),
+                // Found twice, it ranks by the better match
+                new NameSearch.Found("a-prefix", NameSearch.FUZZY, 0.4),
+                new NameSearch.Found("used-prefix", NameSearch.PREFIX, 0));
+        Map<String, Double> scores = Map.of("used-prefix", 2.0, "used-substring", 5.0);
+
+        assertEquals(List.of("exact", "used-prefix", "a-prefix", "b-prefix", "used-substring", "nearer", "near"),
+                NameSearch.rank(found, scores, 10));
+        assertEquals(List.of("exact", "used-prefix", "a-prefix"), NameSearch.rank(found, scores, 3));
+    }
+
+    @Test
+    void usesAreCountedUnderTheVaultKey() throws Exception {
+        Path file = directory.resolve("pandora.enc");
+        EntryUsage usage = EntryUsage.load(file, key, salt);
+        usage.recordUse("mail");
+        usage.recordUse("mail");
+        usage.recordUse("bank");
+
+        Map<String, Double> scores = EntryUsage.load(file, key, salt).scores();
+        assertEquals(Set.of("mail", "bank"), scores.keySet());
+        assertTrue(scores.get("mail") > scores.get("bank"));
+        // Under another key the counts are unreadable, and ranking starts over
+        assertTrue(EntryUsage.load(file, TestVaults.newKey(), salt).scores().isEmpty());
+    }
+
+    @Test
+    void findsMatchTheNamesInEveryLayout() throws IOException {
+        for (List<String> layout : TestVaults.LAYOUTS) {
+            TestVaults.configure(directory, layout.toArray(String[]::new));
+            Path file = directory.resolve(layout.isEmpty() ? "sealed" : layout.get(0).replaceAll("\\W", ""))
+                    .resolve("pandora.enc");
+            TreeSet<String> names = new TreeSet<>(NAMES);
+            for (int i = 0; i < 60; i++) {
+                names.add("filler-" + i);
+            }
+            try (Vault vault = new Vault()) {
+                names.forEach(name -> vault.addEntry(name, "user", "password"));
+                VaultFile.saveVault(vault, file, key, salt);
+            }
+
+            // Through the trigrams of the file, then with changes made since it was read on top
+            try (Vault vault = TestVaults.load(file, key)) {
+                assertFinds(vault, names, layout);
+                vault.removeEntry("gitlab");
+                vault.removeEntry("Mailbox");
+                vault.addEntry("GitHub-new", "user", "password");
+                vault.addEntry("mailer", "user", "password");
+                names.removeAll(List.of("gitlab", "Mailbox"));
+                names.addAll(List.of("GitHub-new", "mailer"));
+                assertFinds(vault, names, layout);
+                VaultFile.commitVault(vault, file, key, salt);
+            }
+            try (Vault vault = TestVaults.load(file, key)) {
+                assertFinds(vault, names, layout);
+            }
+        }
+    }
+
+    // Every query, with and without use counts, against ranking all names that match it
+    private static void assertFinds(Vault vault, Set<String> names, List<String> layout) {
+        Map<String, Double> scores = Map.of("work/GitHub", 3.0, "gmail", 1.0, "gitlab", 2.0);
+        for (String query : new String[]{"github", "GIT", "hub", "gthub", "mail", "mailbx", "bank", "a", "x", "ab",
+                "STRASSE", "straße", "zzz"}) {
+            for (Map<String, Double> used : List.of(Map.<String, Double>of(), scores)) {
+                List<NameSearch.Found> all = new ArrayList<>();
+                for (String name : names) {
+                    NameSearch.Found match = NameSearch.match(name, query);
+                    // Queries of one char only find the names they start
+                    if (match != null && (query.length() > 1 || match.kind() <= NameSearch.PREFIX)) {
+                        all.add(match);
+                    }
+                }
+                for (int limit : new int[]{3, 100}) {
+                    assertEquals(NameSearch.rank(all, used, limit), vault.findEntries(query, limit, used),
+                            layout + " find " + query + " limit " + limit + " scores " + used);
+                }
+            }
+        }
+    }
+}
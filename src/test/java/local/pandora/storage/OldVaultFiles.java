@@ -0,0 +1,113 @@
+package local.pandora.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import local.pandora.crypto.CryptoUtils;
+
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Vault files in the formats pandora only reads now, written as the versions that wrote them did, for
+// migrations to start from. Entries are given as name to password, with a username derived from the name.
+final class OldVaultFiles {
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private OldVaultFiles() {}
+
+    // The original JSON container: {"salt": Base64, "encryptedData": Base64 of IV | ciphertext | tag}
+    static void writeLegacy(Path path, Map<String, String> entries, SecretKey key, byte[] salt) throws IOException {
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        try (OutputStream out = CryptoUtils.newEncryptingStream(encrypted, key)) {
+            out.write(json(entries));
+        }
+        Map<String, String> container = new LinkedHashMap<>();
+        container.put("salt", Base64.getEncoder().encodeToString(salt));
+        container.put("encryptedData", Base64.getEncoder().encodeToString(encrypted.toByteArray()));
+        Files.write(path, mapper.writeValueAsBytes(container));
+    }
+
+    // Version 1: the whole vault as a single JSON ciphertext after the common header
+    static void writeWholeVault(Path path, Map<String, String> entries, SecretKey key, byte[] salt)
+            throws IOException {
+        byte[] iv = CryptoUtils.generateIv();
+        ByteBuffer header = ByteBuffer.allocate(VaultFile.COMMON_HEADER_SIZE);
+        VaultFile.putCommonHeader(header, 1, 0, VaultFile.KDF_PBKDF2_HMAC_SHA256, salt, iv);
+        byte[] cipherText = encrypt(json(entries), key, iv, header.array());
+
+        ByteBuffer file = ByteBuffer.allocate(VaultFile.COMMON_HEADER_SIZE + 8 + cipherText.length)
+                .put(header.array())
+                .putLong(cipherText.length)
+                .put(cipherText);
+        Files.write(path, file.array());
+    }
+
+    // Version 2: every entry sealed on its own, in no particular order, followed by an encrypted index of
+    //   count u32 | (name length u16 | name | record offset u64 | record length u32)*
+    static void writeSealedRecords(Path path, Map<String, String> entries, SecretKey key, byte[] salt)
+            throws IOException {
+        int headerSize = VaultFile.COMMON_HEADER_SIZE + 8 + 8;
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        index.write(ByteBuffer.allocate(4).putInt(entries.size()).array());
+        List<String> names = new ArrayList<>(entries.keySet());
+        // Records of a version 2 file follow no order of name, so these are written in reverse
+        for (int i = names.size() - 1; i >= 0; i--) {
+            String name = names.get(i);
+            byte[] sealed = VaultRecords.seal(name, entry(name, entries.get(name)), key, Compression.NONE);
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            index.write(ByteBuffer.allocate(2 + nameBytes.length + 8 + 4)
+                    .putShort((short) nameBytes.length)
+                    .put(nameBytes)
+                    .putLong(headerSize + records.size())
+                    .putInt(sealed.length)
+                    .array());
+            records.write(sealed);
+        }
+
+        byte[] iv = CryptoUtils.generateIv();
+        int indexLength = index.size() + CryptoUtils.GCM_TAG_LENGTH / 8;
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        VaultFile.putCommonHeader(header, 2, 0, VaultFile.KDF_PBKDF2_HMAC_SHA256, salt, iv);
+        header.putLong(headerSize + records.size()).putLong(indexLength);
+        byte[] cipherText = encrypt(index.toByteArray(), key, iv, header.array());
+
+        ByteBuffer file = ByteBuffer.allocate(headerSize + records.size() + cipherText.length)
+                .put(header.array())
+                .put(records.toByteArray())
+                .put(cipherText);
+        Files.write(path, file.array());
+    }
+
+    static String username(String name) {
+        return "user-" + name;
+    }
+
+    private static VaultEntry entry(String name, String password) {
+        return new VaultEntry(username(name), password.toCharArray());
+    }
+
+    private static byte[] json(Map<String, String> entries) throws IOException {
+        Map<String, VaultEntry> all = new LinkedHashMap<>();
+        entries.forEach((name, password) -> all.put(name, entry(name, password)));
+        return mapper.writeValueAsBytes(Map.of("allEntries", all));
+    }
+
+    private static byte[] encrypt(byte[] plainText, SecretKey key, byte[] iv, byte[] aad) throws IOException {
+        ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        try (OutputStream out = CryptoUtils.newEncryptingStream(cipherText, key, iv, aad)) {
+            out.write(plainText);
+        }
+        return cipherText.toByteArray();
+    }
+}
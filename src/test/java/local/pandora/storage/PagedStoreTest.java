@@ -0,0 +1,216 @@
+package local.pandora.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PagedStoreTest {
+
+    // Enough for inner nodes to split as well, giving a tree of three levels
+    private static final int ENTRIES = 20_000;
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void configurePaged() throws Exception {
+        TestVaults.configure(directory, "storage_engine: paged");
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void insertsInAnyOrderSplitNodesAndKeepNamesSorted() {
+        List<String> names = names(ENTRIES);
+        List<String> shuffled = new ArrayList<>(names);
+        Collections.shuffle(shuffled, new Random(1));
+        try (Vault vault = new Vault()) {
+            for (String name : shuffled) {
+                vault.addEntry(name, "user", password(name));
+            }
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            List<Long> damaged = new ArrayList<>();
+            long pages = vault.getStore().checkPages(damaged);
+            assertTrue(damaged.isEmpty());
+            assertTrue(pages > 1 + 1 + ENTRIES / 200, "expected a tree of three levels, read " + pages + " pages");
+            assertEquals(ENTRIES, vault.getEntryCount());
+            assertEquals(names, list(vault.getEntryNames(null, null)));
+            for (String name : List.of(names.get(0), names.get(ENTRIES / 2), names.get(ENTRIES - 1))) {
+                assertEquals(password(name), TestVaults.password(vault, name));
+            }
+        }
+    }
+
+    @Test
+    void commitsInsertIntoFullLeavesAndSurviveReopening() {
+        create(names(2_000));
+        List<String> added = new ArrayList<>();
+        try (Vault vault = TestVaults.load(path, key)) {
+            // Between existing names, so the leaves holding them fill up and split
+            for (int i = 0; i < 2_000; i += 2) {
+                String name = String.format("entry-%05d-b", i);
+                added.add(name);
+                vault.addEntry(name, "user", password(name));
+            }
+            vault.updateEntry("entry-00010", "user", "changed");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        TreeSet<String> expected = new TreeSet<>(names(2_000));
+        expected.addAll(added);
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(new ArrayList<>(expected), list(vault.getEntryNames(null, null)));
+            assertEquals("changed", TestVaults.password(vault, "entry-00010"));
+            assertEquals(password("entry-01000-b"), TestVaults.password(vault, "entry-01000-b"));
+            List<Long> damaged = new ArrayList<>();
+            vault.getStore().checkPages(damaged);
+            assertTrue(damaged.isEmpty());
+        }
+    }
+
+    @Test
+    void deletesEmptyLeavesWithoutLosingTheirNeighbours() {
+        List<String> names = names(5_000);
+        create(names);
+        List<String> kept = new ArrayList<>();
+        try (Vault vault = TestVaults.load(path, key)) {
+            for (int i = 0; i < names.size(); i++) {
+                // Whole runs go, leaving leaves empty, along with scattered single names
+                if (i / 500 % 2 == 1 || i % 7 == 0) {
+                    vault.removeEntry(names.get(i));
+                } else {
+                    kept.add(names.get(i));
+                }
+            }
+            vault.removeEntry("no-such-entry");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(kept.size(), vault.getEntryCount());
+            assertEquals(kept, list(vault.getEntryNames(null, null)));
+            assertFalse(vault.hasEntry(names.get(700)));
+            assertEquals(kept.subList(kept.indexOf("entry-01002"), kept.size()),
+                    list(vault.getEntryNames("entry-01000", null)));
+
+            // Names removed can be inserted again, into leaves that are empty now
+            vault.addEntry(names.get(700), "user", "again");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals("again", TestVaults.password(vault, names.get(700)));
+            assertEquals(kept.size() + 1, vault.getEntryCount());
+        }
+    }
+
+    @Test
+    void clearedTreeStartsOverFromAnEmptyLeaf() {
+        create(names(1_000));
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.clearEntries();
+            vault.addEntry("only", "user", "password");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(Set.of("only"), vault.getEntryNames());
+        }
+    }
+
+    @Test
+    void namesAfterAndWithPrefixCrossLeafBoundaries() {
+        List<String> names = names(3_000);
+        create(names);
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(names.subList(1_235, 3_000), list(vault.getEntryNames("entry-01234", null)));
+            assertEquals(names.subList(1_000, 2_000), list(vault.getEntryNames(null, "entry-01")));
+            assertEquals(names.subList(1_500, 2_000), list(vault.getEntryNames("entry-01499", "entry-01")));
+            assertFalse(vault.getEntryNames(null, "other").hasNext());
+        }
+    }
+
+    @Test
+    void tornSuperblockFallsBackToThePreviousCommit() throws IOException {
+        create(names(100));
+        byte[] before = Files.readAllBytes(path);
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.addEntry("later", "user", "password");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        // The commit rewrote one of the two superblocks; tearing it leaves the other, older one
+        byte[] after = Files.readAllBytes(path);
+        int slot = Arrays.equals(before, 0, PagedStore.PAGE_SIZE, after, 0, PagedStore.PAGE_SIZE) ? 1 : 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(64), (long) slot * PagedStore.PAGE_SIZE + VaultFile.COMMON_HEADER_SIZE);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertFalse(vault.hasEntry("later"));
+            assertEquals(100, vault.getEntryCount());
+        }
+    }
+
+    private void create(List<String> names) {
+        try (Vault vault = new Vault()) {
+            for (String name : names) {
+                vault.addEntry(name, "user", password(name));
+            }
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+    }
+
+    private static List<String> names(int count) {
+        List<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(String.format("entry-%05d", i));
+        }
+        return names;
+    }
+
+    private static String password(String name) {
+        return "password-" + name;
+    }
+
+    private static List<String> list(Iterator<String> names) {
+        List<String> list = new ArrayList<>();
+        names.forEachRemaining(list::add);
+        return list;
+    }
+}
@@ -0,0 +1,147 @@
+package local.pandora.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// The sealed engine against the paged B+tree: a full save, opening the file for one lookup, lookups in
+// an open vault and committing a single change. Setup prints the heap an open vault holds on to, and
+// every iteration of commit the bytes it added to the vault file and log per commit, unless the
+// iteration compacted them.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StorageEngineBenchmark {
+
+    @Param({"sealed", "paged"})
+    public String engine;
+
+    @Param({"100000", "1000000"})
+    public int entries;
+
+    private Path directory;
+    private Path path;
+    private Path saved;
+    private SecretKey key;
+    private byte[] salt;
+    private Vault vault;
+    private Vault saving;
+    private final SplittableRandom random = new SplittableRandom(1);
+    private long sizeBefore;
+    private long commits;
+
+    @Setup(Level.Trial)
+    public void createVault() throws Exception {
+        directory = Files.createTempDirectory("pandora-bench");
+        TestVaults.configure(directory, "storage_engine: " + engine);
+        path = directory.resolve("pandora.enc");
+        saved = directory.resolve("saved.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+        try (Vault created = new Vault()) {
+            for (int i = 0; i < entries; i++) {
+                created.addEntry(name(i), "user" + i, "password-" + i);
+            }
+            VaultFile.saveVault(created, path, key, salt);
+        }
+
+        System.out.printf("%n%s vault of %d entries: %d bytes on disk, %d bytes of heap held open%n", engine,
+                entries, Files.size(path), heapHeldOpen());
+        vault = TestVaults.load(path, key);
+        saving = TestVaults.load(path, key);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVault() throws IOException {
+        vault.close();
+        saving.close();
+        TestVaults.delete(directory);
+    }
+
+    @Setup(Level.Iteration)
+    public void startCounting() throws IOException {
+        sizeBefore = diskSize();
+        commits = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void printBytesPerCommit() throws IOException {
+        long added = diskSize() - sizeBefore;
+        if (commits > 0 && added >= 0) {
+            System.out.printf("%n%d bytes per commit%n", added / commits);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void save() {
+        VaultFile.saveVault(saving, saved, key, salt);
+    }
+
+    @Benchmark
+    public VaultEntry openAndGet() {
+        try (Vault loaded = TestVaults.load(path, key)) {
+            return loaded.getEntry(name(random.nextInt(entries)));
+        }
+    }
+
+    @Benchmark
+    public VaultEntry get() {
+        return vault.getEntry(name(random.nextInt(entries)));
+    }
+
+    @Benchmark
+    public void commit() {
+        int i = random.nextInt(entries);
+        vault.updateEntry(name(i), "user" + i, "changed-" + commits);
+        VaultFile.commitVault(vault, path, key, salt);
+        commits++;
+    }
+
+    private long diskSize() throws IOException {
+        Path log = VaultPaths.logFileFor(path);
+        return Files.size(path) + (Files.exists(log) ? Files.size(log) : 0);
+    }
+
+    // Heap in use with a vault open after a lookup, less that once it is closed and collected
+    private long heapHeldOpen() {
+        Vault open = TestVaults.load(path, key);
+        open.getEntry(name(0));
+        long held = usedHeap();
+        open.close();
+        open = null;
+        return held - usedHeap();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static String name(int i) {
+        return String.format("entry-%07d", i);
+    }
+}
@@ -0,0 +1,228 @@
+package local.pandora.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Tags and folders: the sets of rows they are kept as, the index of a file, and list --tag/--folder
+// over every layout, before and after entries change
+class TagIndexTest {
+
+    @TempDir
+    Path directory;
+
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void configure() throws Exception {
+        TestVaults.configure(directory);
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    // Sparse groups are kept as arrays and dense ones as bitmaps, so sets of both and of mixed groups
+    // are intersected, united and encoded against plain sorted sets
+    @Test
+    void idSetsMatchSortedSets() {
+        Random random = new Random(42);
+        List<TreeSet<Integer>> models = new ArrayList<>();
+        for (int density : new int[]{4, 60, 2000}) {
+            for (int i = 0; i < 2; i++) {
+                TreeSet<Integer> model = new TreeSet<>();
+                for (int id = random.nextInt(density); id < 200_000; id += 1 + random.nextInt(density)) {
+                    model.add(id);
+                }
+                models.add(model);
+            }
+        }
+        models.add(new TreeSet<>());
+
+        List<IdSet> sets = models.stream().map(TagIndexTest::idSet).toList();
+        for (int i = 0; i < sets.size(); i++) {
+            IdSet set = sets.get(i);
+            assertEquals(models.get(i), ids(set));
+            assertEquals(models.get(i).size(), set.cardinality());
+            ByteBuffer encoded = ByteBuffer.allocate(set.encodedSize());
+            set.encode(encoded);
+            assertFalse(encoded.hasRemaining());
+            assertEquals(models.get(i), ids(IdSet.decode(encoded.flip())));
+            for (int id : new int[]{0, 1, 4095, 65_535, 65_536, 131_072, 199_999}) {
+                assertEquals(models.get(i).contains(id), set.contains(id));
+            }
+
+            for (int j = 0; j < sets.size(); j++) {
+                TreeSet<Integer> both = new TreeSet<>(models.get(i));
+                both.retainAll(models.get(j));
+                assertEquals(both, ids(set.and(sets.get(j))));
+                TreeSet<Integer> either = new TreeSet<>(models.get(i));
+                either.addAll(models.get(j));
+                assertEquals(either, ids(set.or(sets.get(j))));
+            }
+        }
+        TreeSet<Integer> all = new TreeSet<>();
+        models.forEach(all::addAll);
+        assertEquals(all, ids(IdSet.union(sets)));
+    }
+
+    // Tags are matched as written, and a folder holds the folders below it but not those it only starts
+    @Test
+    void indexSelectsTagsAsWrittenAndWholeFolders() {
+        TagIndex index = new TagIndex.Builder()
+                .add(0, List.of("prod"), "work")
+                .add(1, List.of("Prod"), "workshop")
+                .add(2, List.of("db", "prod"), "work/db")
+                .add(3, List.of(), "workshop/tools")
+                .add(4, List.of("db"), null)
+                .build();
+        ByteBuffer encoded = ByteBuffer.allocate(index.encodedSize());
+        index.encode(encoded);
+
+        for (TagIndex read : List.of(index, TagIndex.decode(encoded.flip()))) {
+            assertEquals(Set.of(0, 2), ids(read.select(List.of("prod"), null)));
+            assertEquals(Set.of(1), ids(read.select(List.of("Prod"), null)));
+            assertEquals(Set.of(), ids(read.select(List.of("PROD"), null)));
+            assertEquals(Set.of(2), ids(read.select(List.of("db", "prod"), null)));
+            assertEquals(Set.of(0, 2), ids(read.select(List.of(), "work")));
+            assertEquals(Set.of(1, 3), ids(read.select(List.of(), "workshop")));
+            assertEquals(Set.of(2), ids(read.select(List.of(), "work/db")));
+            assertEquals(Set.of(), ids(read.select(List.of(), "wor")));
+            assertEquals(Set.of(2), ids(read.select(List.of("db"), "work")));
+            assertEquals(Set.of(), ids(read.select(List.of("prod", "missing"), null)));
+            assertEquals(List.of("db", "prod"), read.tagsOf(2));
+            assertEquals("workshop/tools", read.folderOf(3));
+            assertNull(read.folderOf(4));
+        }
+    }
+
+    @Test
+    void filteredListingsMatchTheEntriesInEveryLayout() throws IOException {
+        for (List<String> layout : TestVaults.LAYOUTS) {
+            TestVaults.configure(directory, layout.toArray(String[]::new));
+            Path file = directory.resolve(layout.isEmpty() ? "sealed" : layout.get(0).replaceAll("\\W", ""))
+                    .resolve("pandora.enc");
+            Map<String, Labels> model = new TreeMap<>();
+            try (Vault vault = new Vault()) {
+                for (int i = 0; i < 120; i++) {
+                    String name = "ns" + i % 3 + "/entry-" + i;
+                    Labels labels = labels(i);
+                    vault.addEntry(name, "user" + i, ("password-" + i).toCharArray(), labels.tags(), labels.folder());
+                    model.put(name, labels);
+                }
+                VaultFile.saveVault(vault, file, key, salt);
+            }
+
+            // From the index of the file, then with changes made since it was read on top
+            try (Vault vault = TestVaults.load(file, key)) {
+                assertListings(vault, model, layout);
+                for (int i = 0; i < 120; i += 7) {
+                    String name = "ns" + i % 3 + "/entry-" + i;
+                    Labels labels = labels(i + 1);
+                    vault.labelEntry(name, labels.tags(), labels.folder());
+                    model.put(name, labels);
+                }
+                for (int i = 1; i < 120; i += 11) {
+                    vault.removeEntry("ns" + i % 3 + "/entry-" + i);
+                    model.remove("ns" + i % 3 + "/entry-" + i);
+                }
+                vault.addEntry("ns0/added", "added", "added".toCharArray(), List.of("Prod", "db"), "workshop");
+                model.put("ns0/added", new Labels(List.of("Prod", "db"), "workshop"));
+                assertListings(vault, model, layout);
+                VaultFile.commitVault(vault, file, key, salt);
+            }
+            try (Vault vault = TestVaults.load(file, key)) {
+                assertListings(vault, model, layout);
+            }
+        }
+    }
+
+    private record Labels(List<String> tags, String folder) {}
+
+    // Tags in both cases, and folders where one name starts another
+    private static Labels labels(int i) {
+        List<String> tags = new ArrayList<>();
+        if (i % 2 == 0) {
+            tags.add("prod");
+        }
+        if (i % 5 == 0) {
+            tags.add("Prod");
+        }
+        if (i % 3 == 0) {
+            tags.add("db");
+        }
+        String folder = switch (i % 4) {
+            case 0 -> "work";
+            case 1 -> "workshop";
+            case 2 -> "work/db";
+            default -> null;
+        };
+        return new Labels(tags, folder);
+    }
+
+    private static void assertListings(Vault vault, Map<String, Labels> model, List<String> layout) {
+        List<List<String>> tagQueries = List.of(List.of(), List.of("prod"), List.of("Prod"), List.of("db", "prod"),
+                List.of("missing"));
+        for (List<String> tags : tagQueries) {
+            for (String folder : new String[]{null, "work", "workshop", "work/db", "wor"}) {
+                if (tags.isEmpty() && folder == null) {
+                    continue;
+                }
+                List<String> expected = new ArrayList<>();
+                model.forEach((name, labels) -> {
+                    if (labels.tags().containsAll(tags) && (folder == null || folder.equals(labels.folder())
+                            || labels.folder() != null && labels.folder().startsWith(folder + "/"))) {
+                        expected.add(name);
+                    }
+                });
+                assertEquals(expected, names(vault.getEntryNames(null, null, tags, folder)),
+                        layout + " --tag " + tags + " --folder " + folder);
+                // Paged on from a name, and within a prefix
+                List<String> later = expected.stream().filter(name -> name.compareTo("ns1") > 0).toList();
+                assertEquals(later, names(vault.getEntryNames("ns1", null, tags, folder)), layout + " after ns1");
+                List<String> prefixed = expected.stream().filter(name -> name.startsWith("ns2/")).toList();
+                assertEquals(prefixed, names(vault.getEntryNames(null, "ns2/", tags, folder)), layout + " in ns2/");
+            }
+        }
+    }
+
+    private static List<String> names(Iterator<String> names) {
+        List<String> list = new ArrayList<>();
+        names.forEachRemaining(list::add);
+        return list;
+    }
+
+    private static IdSet idSet(Collection<Integer> ids) {
+        return IdSet.of(ids.stream().mapToInt(Integer::intValue).toArray(), ids.size());
+    }
+
+    private static TreeSet<Integer> ids(IdSet set) {
+        TreeSet<Integer> ids = new TreeSet<>();
+        set.forEach(id -> assertTrue(ids.add(id)));
+        return ids;
+    }
+}
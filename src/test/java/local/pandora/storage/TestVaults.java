@@ -0,0 +1,86 @@
+package local.pandora.storage;
+
+import local.pandora.config.VaultConfig;
+import local.pandora.crypto.CryptoUtils;
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.security.SecurityUtils;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Vaults for tests: a fresh key and salt in place of a master password, and the performance settings a
+// test runs under, loaded from a config file in its temporary directory since VaultConfig is global
+final class TestVaults {
+
+    // Performance settings of every layout a vault is written in, as configure takes them: sealed
+    // records, the paged engine, deflated records, shards and namespaces
+    static final List<List<String>> LAYOUTS = List.of(
+            List.of(),
+            List.of("storage_engine: paged"),
+            List.of("compression: deflate", "compression_threshold: 0"),
+            List.of("shards: 4"),
+            List.of("namespaces: true"));
+
+    private TestVaults() {}
+
+    // Loads a config of just these performance settings, written as in config.yaml, e.g. "shards: 4";
+    // none gives the defaults
+    static void configure(Path directory, String... performance) throws IOException {
+        StringBuilder yaml = new StringBuilder();
+        if (performance.length == 0) {
+            yaml.append("{}\n");
+        } else {
+            yaml.append("performance:\n");
+            for (String setting : performance) {
+                yaml.append("  ").append(setting).append('\n');
+            }
+        }
+        configureYaml(directory, yaml.toString());
+    }
+
+    // Loads a config of the given YAML, for settings outside the performance section
+    static void configureYaml(Path directory, String yaml) throws IOException {
+        Path file = directory.resolve("config.yaml");
+        Files.writeString(file, yaml);
+        VaultConfig.loadConfig(file.toString());
+    }
+
+    // Removes a directory the way @TempDir does, for benchmarks that make their own
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    static SecretKey newKey() throws Exception {
+        return CryptoUtils.generateAesKey();
+    }
+
+    static byte[] newSalt() throws Exception {
+        return KeyDerivation.generateSalt();
+    }
+
+    static Vault load(Path path, SecretKey key) {
+        return VaultFile.decryptVault(VaultFile.loadVaultContainer(path), key);
+    }
+
+    static String password(Vault vault, String name) {
+        VaultEntry entry = vault.getEntry(name);
+        if (entry == null) {
+            return null;
+        }
+        char[] password = entry.getPassword();
+        try {
+            return new String(password);
+        } finally {
+            SecurityUtils.secureClear(password);
+        }
+    }
+}
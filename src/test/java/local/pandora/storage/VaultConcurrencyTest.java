@@ -0,0 +1,220 @@
+package local.pandora.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Several writers, each with a vault of its own loaded from the same file, commit at once; every entry
+// any of them added and did not remove has to be in the file afterwards, with the password it was given.
+class VaultConcurrencyTest {
+
+    private static final int WRITERS = 8;
+    private static final int COMMITS = 25;
+    private static final int PROCESSES = 4;
+    private static final int PROCESS_COMMITS = 20;
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void sealedWritersLoseNoChanges() throws Exception {
+        // A log this short is compacted every few commits, so writers keep finding the file rewritten
+        // under them as well as the log appended to
+        TestVaults.configure(directory, "wal_max_records: 16");
+        writeConcurrently();
+    }
+
+    @Test
+    void pagedWritersLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "storage_engine: paged");
+        writeConcurrently();
+    }
+
+    @Test
+    void shardedWritersLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "shards: 4", "wal_max_records: 16");
+        writeConcurrently();
+    }
+
+    @Test
+    void namespacedWritersLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "namespaces: true", "wal_max_records: 16");
+        writeConcurrently();
+    }
+
+    // Files in the older formats have no log; writers that read one go by the file they read, and only
+    // the first to commit may write it in full
+    @Test
+    void legacyJsonWritersLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "wal_max_records: 16");
+        writeConcurrently(OldVaultFiles::writeLegacy);
+    }
+
+    @Test
+    void wholeVaultWritersLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "wal_max_records: 16");
+        writeConcurrently(OldVaultFiles::writeWholeVault);
+    }
+
+    @Test
+    void sealedRecordsWritersLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "wal_max_records: 16");
+        writeConcurrently(OldVaultFiles::writeSealedRecords);
+    }
+
+    @Test
+    void oldFormatWritersSplittingIntoShardsLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "shards: 4", "wal_max_records: 16");
+        writeConcurrently(OldVaultFiles::writeSealedRecords);
+    }
+
+    @Test
+    void oldFormatWritersSplittingIntoNamespacesLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "namespaces: true", "wal_max_records: 16");
+        writeConcurrently(OldVaultFiles::writeWholeVault);
+    }
+
+    // Two vaults read from the same file in every older format, each committing an entry of its own in turn
+    @Test
+    void oldFormatVaultsCommittedInTurnKeepBothEntries() throws Exception {
+        for (OldFormat format : List.<OldFormat>of(OldVaultFiles::writeLegacy, OldVaultFiles::writeWholeVault,
+                OldVaultFiles::writeSealedRecords)) {
+            Path path = directory.resolve("pandora.enc");
+            TestVaults.configure(directory);
+            SecretKey key = TestVaults.newKey();
+            byte[] salt = TestVaults.newSalt();
+            format.write(path, Map.of("seed", "seed"), key, salt);
+
+            try (Vault first = TestVaults.load(path, key); Vault second = TestVaults.load(path, key)) {
+                first.addEntry("one", "one", "one");
+                second.addEntry("two", "two", "two");
+                VaultFile.commitVault(first, path, key, salt);
+                VaultFile.commitVault(second, path, key, salt);
+            }
+
+            try (Vault vault = TestVaults.load(path, key)) {
+                assertEquals(Set.of("seed", "one", "two"), vault.getEntryNames());
+            }
+            Files.deleteIfExists(VaultPaths.logFileFor(path));
+            Files.delete(path);
+        }
+    }
+
+    // File locks only keep processes apart, so writers in processes of their own go through them
+    @Test
+    void writerProcessesLoseNoChanges() throws Exception {
+        TestVaults.configure(directory, "wal_max_records: 16");
+        Path path = directory.resolve("pandora.enc");
+        SecretKey key = TestVaults.newKey();
+        byte[] salt = TestVaults.newSalt();
+        create(path, key, salt);
+
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processes = new ArrayList<>();
+        for (int writer = 0; writer < PROCESSES; writer++) {
+            processes.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    VaultWriter.class.getName(), path.toString(), directory.resolve("config.yaml").toString(),
+                    Base64.getEncoder().encodeToString(key.getEncoded()), Base64.getEncoder().encodeToString(salt),
+                    Integer.toString(writer), Integer.toString(PROCESS_COMMITS))
+                    .inheritIO()
+                    .start());
+        }
+        for (Process process : processes) {
+            assertTrue(process.waitFor(2, TimeUnit.MINUTES), "writer process did not finish");
+            assertEquals(0, process.exitValue(), "writer process failed");
+        }
+
+        assertWritten(path, key, PROCESSES, PROCESS_COMMITS);
+    }
+
+    private void writeConcurrently() throws Exception {
+        writeConcurrently((path, entries, key, salt) -> create(path, key, salt));
+    }
+
+    private void writeConcurrently(OldFormat format) throws Exception {
+        Path path = directory.resolve("pandora.enc");
+        SecretKey key = TestVaults.newKey();
+        byte[] salt = TestVaults.newSalt();
+        format.write(path, Map.of("seed", "seed"), key, salt);
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            CyclicBarrier start = new CyclicBarrier(WRITERS);
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < WRITERS; writer++) {
+                int number = writer;
+                writers.add(executor.submit(() -> {
+                    start.await();
+                    VaultWriter.write(path, key, salt, number, COMMITS);
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get(2, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertWritten(path, key, WRITERS, COMMITS);
+    }
+
+    // Writes the first file of the vault, holding the given entries
+    private interface OldFormat {
+        void write(Path path, Map<String, String> entries, SecretKey key, byte[] salt) throws IOException;
+    }
+
+    private static void create(Path path, SecretKey key, byte[] salt) {
+        try (Vault vault = new Vault()) {
+            vault.addEntry("seed", "seed", "seed");
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+    }
+
+    private static void assertWritten(Path path, SecretKey key, int writers, int commits) {
+        Set<String> expected = new HashSet<>(Set.of("seed"));
+        for (int writer = 0; writer < writers; writer++) {
+            for (int commit = 0; commit < commits; commit++) {
+                if (!VaultWriter.isRemoved(commit, commits)) {
+                    expected.add(VaultWriter.name(writer, commit));
+                }
+            }
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(expected, vault.getEntryNames());
+            for (int writer = 0; writer < writers; writer++) {
+                for (int commit = 0; commit < commits; commit++) {
+                    if (!VaultWriter.isRemoved(commit, commits)) {
+                        assertEquals(VaultWriter.password(writer, commit),
+                                TestVaults.password(vault, VaultWriter.name(writer, commit)));
+                    }
+                }
+            }
+        }
+    }
+}
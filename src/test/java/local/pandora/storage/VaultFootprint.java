@@ -0,0 +1,147 @@
+package local.pandora.storage;
+
+import javax.crypto.SecretKey;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+// Heap and direct memory held by a vault of many entries, and the time the collector spends on it,
+// against the same entries kept as plain strings the way VaultEntry once held them. Each layout is
+// measured built in memory, and the vault also once loaded from its file with every password read:
+//   mvn -Pbenchmark test-compile exec:exec -Dbenchmark.main=local.pandora.storage.VaultFootprint \
+//       -Dbenchmark.args="1000000"
+final class VaultFootprint {
+
+    // Usernames repeat, the way service accounts do
+    private static final int USERNAMES = 1_000;
+
+    private VaultFootprint() {}
+
+    public static void main(String[] args) throws Exception {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Path directory = Files.createTempDirectory("pandora-footprint");
+        try {
+            TestVaults.configure(directory);
+            Path path = directory.resolve("pandora.enc");
+            SecretKey key = TestVaults.newKey();
+            byte[] salt = TestVaults.newSalt();
+
+            // Each in a method of its own, so nothing of one is still referenced from this frame in the next
+            measureStrings(entries);
+            measureBuilt(entries, path, key, salt);
+            measureLoaded(entries, path, key);
+        } finally {
+            TestVaults.delete(directory);
+        }
+    }
+
+    private static void measureStrings(int entries) throws InterruptedException {
+        Measurement measurement = Measurement.start();
+        Map<String, String[]> plain = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            plain.put(name(i), new String[] {username(i), password(i)});
+        }
+        measurement.report("strings", entries);
+        Reference.reachabilityFence(plain);
+    }
+
+    private static void measureBuilt(int entries, Path path, SecretKey key, byte[] salt) throws InterruptedException {
+        Measurement measurement = Measurement.start();
+        try (Vault vault = new Vault()) {
+            for (int i = 0; i < entries; i++) {
+                vault.addEntry(name(i), username(i), password(i));
+            }
+            measurement.report("vault built", entries);
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+    }
+
+    private static void measureLoaded(int entries, Path path, SecretKey key) throws InterruptedException {
+        Measurement measurement = Measurement.start();
+        try (Vault vault = TestVaults.load(path, key)) {
+            for (int i = 0; i < entries; i++) {
+                TestVaults.password(vault, name(i));
+            }
+            measurement.report("vault loaded", entries);
+        }
+    }
+
+    private static String name(int i) {
+        return "service/entry-" + i;
+    }
+
+    private static String username(int i) {
+        return "svc-account-" + i % USERNAMES;
+    }
+
+    private static String password(int i) {
+        return "P4ssw0rd!" + Integer.toHexString(i * 0x9E3779B9);
+    }
+
+    // Memory in use and collector time since start, with what was in use at start taken off
+    private record Measurement(long heap, long direct, long gcTime, long gcCount) {
+
+        static Measurement start() throws InterruptedException {
+            collect();
+            return new Measurement(heapUsed(), directUsed(), collectionTime(), collectionCount());
+        }
+
+        void report(String layout, int entries) throws InterruptedException {
+            long time = collectionTime() - gcTime;
+            long count = collectionCount() - gcCount;
+            long fullGcStart = System.nanoTime();
+            System.gc();
+            long fullGc = (System.nanoTime() - fullGcStart) / 1_000_000;
+            collect();
+            long heapHeld = heapUsed() - heap;
+            long directHeld = directUsed() - direct;
+            System.out.printf("%-13s %,14d bytes heap (%,d per entry) %,14d bytes direct (%,d per entry)"
+                            + "  %,d collections in %,d ms, full collection %,d ms%n", layout, heapHeld,
+                    heapHeld / entries, directHeld, directHeld / entries, count, time, fullGc);
+        }
+
+        // Direct memory is freed in two steps: a collection has the cleaner of a secrets chunk wipe it on a
+        // thread of its own, and only the next one finds the buffer of the chunk unreachable
+        private static void collect() throws InterruptedException {
+            for (int i = 0; i < 3; i++) {
+                System.gc();
+                Thread.sleep(100);
+            }
+        }
+
+        private static long heapUsed() {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+
+        private static long directUsed() {
+            long used = 0;
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+                if (pool.getName().equals("direct")) {
+                    used += pool.getMemoryUsed();
+                }
+            }
+            return used;
+        }
+
+        private static long collectionTime() {
+            long time = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                time += Math.max(0, collector.getCollectionTime());
+            }
+            return time;
+        }
+
+        private static long collectionCount() {
+            long count = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, collector.getCollectionCount());
+            }
+            return count;
+        }
+    }
+}
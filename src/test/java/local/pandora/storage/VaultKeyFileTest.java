@@ -0,0 +1,313 @@
+package local.pandora.storage;
+
+import local.pandora.crypto.KeyDerivation;
+import local.pandora.exception.InvalidMasterPasswordException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Key files of vaults and their backups, and the move of a vault whose key is derived from its master
+// password to a random data key
+class VaultKeyFileTest {
+
+    private static final char[] OLD_PASSWORD = "old password".toCharArray();
+    private static final char[] NEW_PASSWORD = "new password".toCharArray();
+    private static final char[] OTHER_PASSWORD = "other password".toCharArray();
+    private static final String SAME_KEY_BACKUP = "pandora_backup_20260101_000000.enc";
+    private static final String OTHER_KEY_BACKUP = "pandora_backup_20250101_000000.enc";
+    private static final KeyDerivation.Parameters PARAMETERS = KeyDerivation.pbkdf2(KeyDerivation.DEFAULT_ITERATIONS);
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private Path backup;
+    private byte[] salt;
+    private SecretKey derivedKey;
+    private Map<String, String> entries;
+
+    @BeforeEach
+    void configure() throws Exception {
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        Files.createDirectories(directory.resolve("backups"));
+        backup = directory.resolve("backups").resolve("pandora_backup_20260101_000000.enc");
+        salt = TestVaults.newSalt();
+        derivedKey = KeyDerivation.deriveKey(OLD_PASSWORD, salt, KeyDerivation.DEFAULT_ITERATIONS);
+        entries = new TreeMap<>();
+        for (int i = 0; i < 50; i++) {
+            entries.put("ns" + i % 3 + "/entry-" + i, "password-" + i);
+        }
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    // Costs calibrated for this host go into the key file, and the password goes through them to the
+    // data key again
+    @Test
+    void calibratedKeyFileUnlocksWithItsPasswordOnly() throws Exception {
+        for (int function : new int[]{KeyDerivation.ARGON2ID, KeyDerivation.PBKDF2_HMAC_SHA256}) {
+            SecretKey dataKey = VaultKeyFile.generateDataKey();
+            try (Vault vault = new Vault()) {
+                vault.addEntry("entry", "user", "secret");
+                VaultFile.saveVault(vault, path, dataKey, salt);
+            }
+            KeyDerivation.Parameters parameters = KeyDerivation.calibrate(function, Duration.ofMillis(50));
+
+            VaultKeyFile.wrap(path, dataKey, NEW_PASSWORD, parameters);
+
+            VaultContainer container = VaultFile.loadVaultContainer(path);
+            assertEquals(parameters, VaultKeyFile.kdf(path, container).parameters());
+            assertArrayEquals(dataKey.getEncoded(), VaultKeyFile.unlock(path, container, NEW_PASSWORD).getEncoded());
+            assertThrows(InvalidMasterPasswordException.class, () -> VaultKeyFile.unlock(path, container, OLD_PASSWORD));
+            try (Vault vault = TestVaults.load(path, VaultKeyFile.unlock(path, container, NEW_PASSWORD))) {
+                assertEquals("secret", TestVaults.password(vault, "entry"));
+            }
+        }
+    }
+
+    @Test
+    void passwordDerivedVaultWithALogMovesToADataKey() throws Exception {
+        try (Vault vault = new Vault()) {
+            vault.setKdf(VaultFile.KDF_PBKDF2_HMAC_SHA256);
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                vault.addEntry(entry.getKey(), OldVaultFiles.username(entry.getKey()), entry.getValue());
+            }
+            VaultFile.saveVault(vault, path, derivedKey, salt);
+        }
+        try (Vault vault = TestVaults.load(path, derivedKey)) {
+            vault.addEntry("logged", OldVaultFiles.username("logged"), "logged");
+            VaultFile.commitVault(vault, path, derivedKey, salt);
+        }
+        entries.put("logged", "logged");
+        assertTrue(Files.exists(VaultPaths.logFileFor(path)));
+        copyVault(path, backup);
+
+        VaultKeyFile.Rekeyed rekeyed = VaultKeyFile.rekey(path, derivedKey, List.of(backup), NEW_PASSWORD, PARAMETERS);
+
+        assertEquals(1, rekeyed.backups());
+        assertTrue(rekeyed.dropped().isEmpty());
+        assertFalse(Files.exists(VaultPaths.logFileFor(path)));
+        assertRetired(path, rekeyed.dataKey());
+        assertRetired(backup, rekeyed.dataKey());
+    }
+
+    @Test
+    void legacyVaultMovesToADataKey() throws Exception {
+        OldVaultFiles.writeSealedRecords(path, entries, derivedKey, salt);
+        assertTrue(VaultKeyFile.isPasswordDerived(VaultFile.loadVaultContainer(path)));
+
+        VaultKeyFile.Rekeyed rekeyed = VaultKeyFile.rekey(path, derivedKey, List.of(), NEW_PASSWORD, PARAMETERS);
+
+        assertRetired(path, rekeyed.dataKey());
+    }
+
+    @Test
+    void namespacedVaultMovesToADataKeyWithoutItsOldFiles() throws Exception {
+        TestVaults.configure(directory, "namespaces: true");
+        OldVaultFiles.writeSealedRecords(path, entries, derivedKey, salt);
+        try (Vault vault = TestVaults.load(path, derivedKey)) {
+            vault.addEntry("ns1/logged", OldVaultFiles.username("ns1/logged"), "logged");
+            VaultFile.commitVault(vault, path, derivedKey, salt);
+        }
+        entries.put("ns1/logged", "logged");
+        List<Path> before = files(VaultPaths.shardDirectoryFor(path));
+
+        VaultKeyFile.Rekeyed rekeyed = VaultKeyFile.rekey(path, derivedKey, List.of(), NEW_PASSWORD, PARAMETERS);
+
+        // Namespace files are named under the key, so those under the derived key are gone
+        List<Path> after = files(VaultPaths.shardDirectoryFor(path));
+        assertEquals(before.size(), after.size());
+        assertTrue(after.stream().noneMatch(before::contains));
+        assertRetired(path, rekeyed.dataKey());
+    }
+
+    @Test
+    void backupUnderAnotherKeyIsLeftAlone() throws Exception {
+        OldVaultFiles.writeSealedRecords(path, entries, derivedKey, salt);
+        SecretKey otherKey = TestVaults.newKey();
+        OldVaultFiles.writeWholeVault(backup, Map.of("other", "other"), otherKey, salt);
+
+        VaultKeyFile.Rekeyed rekeyed = VaultKeyFile.rekey(path, derivedKey, List.of(backup), NEW_PASSWORD, PARAMETERS);
+
+        assertEquals(0, rekeyed.backups());
+        assertTrue(rekeyed.dropped().isEmpty());
+        try (Vault vault = TestVaults.load(backup, otherKey)) {
+            assertEquals("other", TestVaults.password(vault, "other"));
+        }
+    }
+
+    @Test
+    void rekeyCutShortOpensWithTheStagedKeyFile() throws Exception {
+        OldVaultFiles.writeSealedRecords(path, entries, derivedKey, salt);
+        VaultKeyFile.rekey(path, derivedKey, List.of(), NEW_PASSWORD, PARAMETERS);
+        Path keyFile = VaultPaths.keyFileFor(path);
+        Files.move(keyFile, keyFile.resolveSibling(keyFile.getFileName() + ".tmp"), StandardCopyOption.ATOMIC_MOVE);
+
+        SecretKey key = VaultKeyFile.unlock(path, VaultFile.loadVaultContainer(path), NEW_PASSWORD);
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(entries.size(), vault.getAllEntries().size());
+        }
+    }
+
+    // After passwd, backups under the data key of the vault take the new password only, while one under
+    // another data key keeps the key file it came with
+    @Test
+    void passwdGivesBackupsUnderTheDataKeyTheNewKeyFile() throws Exception {
+        Path home = directory.resolve("home");
+        Path vaultFile = home.resolve(".pandora").resolve("pandora.enc");
+        Path backups = vaultFile.resolveSibling("backups");
+        SecretKey dataKey = VaultKeyFile.generateDataKey();
+        SecretKey otherKey = VaultKeyFile.generateDataKey();
+        saveWrapped(vaultFile, entries, dataKey, OLD_PASSWORD);
+        Files.createDirectories(backups);
+        Files.copy(vaultFile, backups.resolve(SAME_KEY_BACKUP));
+        Files.copy(VaultPaths.keyFileFor(vaultFile), VaultPaths.keyFileFor(backups.resolve(SAME_KEY_BACKUP)));
+        saveWrapped(backups.resolve(OTHER_KEY_BACKUP), Map.of("other", "other"), otherKey, OTHER_PASSWORD);
+
+        VaultKeyFile.wrap(vaultFile, dataKey, NEW_PASSWORD, PARAMETERS);
+        assertEquals("1", callBackup(home, dataKey, "rewrap"));
+
+        Path sameKey = backups.resolve(SAME_KEY_BACKUP);
+        VaultContainer container = VaultFile.loadVaultContainer(sameKey);
+        assertArrayEquals(dataKey.getEncoded(), VaultKeyFile.unlock(sameKey, container, NEW_PASSWORD).getEncoded());
+        assertThrows(InvalidMasterPasswordException.class, () -> VaultKeyFile.unlock(sameKey, container, OLD_PASSWORD));
+        Path otherKeyBackup = backups.resolve(OTHER_KEY_BACKUP);
+        assertArrayEquals(otherKey.getEncoded(), VaultKeyFile.unlock(otherKeyBackup,
+                VaultFile.loadVaultContainer(otherKeyBackup), OTHER_PASSWORD).getEncoded());
+    }
+
+    // A backup under the data key keeps the key file of the vault, and with it the password of now
+    @Test
+    void restoredBackupUnderTheDataKeyTakesThePasswordOfNow() throws Exception {
+        Path home = directory.resolve("home");
+        Path vaultFile = home.resolve(".pandora").resolve("pandora.enc");
+        Path backup = vaultFile.resolveSibling("backups").resolve(SAME_KEY_BACKUP);
+        SecretKey dataKey = VaultKeyFile.generateDataKey();
+        saveWrapped(backup, entries, dataKey, OLD_PASSWORD);
+        saveWrapped(vaultFile, Map.of("current", "current"), dataKey, NEW_PASSWORD);
+
+        assertEquals("true", callBackup(home, dataKey, "restore", SAME_KEY_BACKUP));
+
+        VaultContainer container = VaultFile.loadVaultContainer(vaultFile);
+        assertThrows(InvalidMasterPasswordException.class, () -> VaultKeyFile.unlock(vaultFile, container, OLD_PASSWORD));
+        try (Vault vault = TestVaults.load(vaultFile, VaultKeyFile.unlock(vaultFile, container, NEW_PASSWORD))) {
+            assertEquals(entries.keySet(), vault.getAllEntries().keySet());
+        }
+    }
+
+    // A backup under another data key, as from before the vault was initialized again, brings its key
+    // file along and opens with the password it was made under; the vault it replaced is backed up
+    // first, and a backup without a key file cannot be restored at all
+    @Test
+    void restoredBackupUnderAnotherDataKeyBringsItsKeyFile() throws Exception {
+        Path home = directory.resolve("home");
+        Path vaultFile = home.resolve(".pandora").resolve("pandora.enc");
+        Path backups = vaultFile.resolveSibling("backups");
+        SecretKey dataKey = VaultKeyFile.generateDataKey();
+        SecretKey otherKey = VaultKeyFile.generateDataKey();
+        saveWrapped(vaultFile, entries, dataKey, NEW_PASSWORD);
+        saveWrapped(backups.resolve(OTHER_KEY_BACKUP), Map.of("other", "other"), otherKey, OTHER_PASSWORD);
+        String keyless = "pandora_backup_20240101_000000.enc";
+        Files.copy(backups.resolve(OTHER_KEY_BACKUP), backups.resolve(keyless));
+
+        assertTrue(callBackup(home, dataKey, "restore", keyless).startsWith("error: Backup is not under the key"));
+        assertEquals("false", callBackup(home, dataKey, "restore", OTHER_KEY_BACKUP));
+
+        VaultContainer container = VaultFile.loadVaultContainer(vaultFile);
+        assertThrows(InvalidMasterPasswordException.class, () -> VaultKeyFile.unlock(vaultFile, container, NEW_PASSWORD));
+        try (Vault vault = TestVaults.load(vaultFile, VaultKeyFile.unlock(vaultFile, container, OTHER_PASSWORD))) {
+            assertEquals("other", TestVaults.password(vault, "other"));
+            assertEquals(1, vault.getAllEntries().size());
+        }
+        List<Path> made = files(backups).stream().filter(file -> file.toString().endsWith(".enc"))
+                .filter(file -> !file.endsWith(OTHER_KEY_BACKUP) && !file.endsWith(keyless)).toList();
+        assertEquals(1, made.size());
+        VaultContainer replaced = VaultFile.loadVaultContainer(made.get(0));
+        try (Vault vault = TestVaults.load(made.get(0), VaultKeyFile.unlock(made.get(0), replaced, NEW_PASSWORD))) {
+            assertEquals(entries.keySet(), vault.getAllEntries().keySet());
+        }
+    }
+
+    // Neither the old password nor the key derived from it opens the vault any longer; the new password
+    // gives the data key it was moved to, with every entry
+    private void assertRetired(Path vaultFile, SecretKey dataKey) throws Exception {
+        VaultContainer container = VaultFile.loadVaultContainer(vaultFile);
+        assertEquals(VaultFile.KDF_DATA_KEY, container.getKdf());
+        assertFalse(VaultKeyFile.isPasswordDerived(container));
+        assertThrows(InvalidMasterPasswordException.class, () -> TestVaults.load(vaultFile, derivedKey));
+        assertThrows(InvalidMasterPasswordException.class, () -> VaultKeyFile.unlock(vaultFile, container, OLD_PASSWORD));
+        assertThrows(InvalidMasterPasswordException.class, () -> TestVaults.load(vaultFile,
+                KeyDerivation.deriveKey(OLD_PASSWORD, container.getSalt(), KeyDerivation.DEFAULT_ITERATIONS)));
+
+        SecretKey key = VaultKeyFile.unlock(vaultFile, container, NEW_PASSWORD);
+        assertArrayEquals(dataKey.getEncoded(), key.getEncoded());
+        try (Vault vault = TestVaults.load(vaultFile, key)) {
+            assertEquals(entries.size(), vault.getAllEntries().size());
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                assertEquals(entry.getValue(), TestVaults.password(vault, entry.getKey()));
+            }
+        }
+    }
+
+    private void saveWrapped(Path vaultFile, Map<String, String> passwords, SecretKey dataKey, char[] password)
+            throws Exception {
+        Files.createDirectories(vaultFile.getParent());
+        try (Vault vault = new Vault()) {
+            passwords.forEach((name, secret) -> vault.addEntry(name, "user", secret));
+            VaultFile.saveVault(vault, vaultFile, dataKey, salt);
+        }
+        VaultKeyFile.wrap(vaultFile, dataKey, password, PARAMETERS);
+    }
+
+    // What the VaultBackup call returned, run in a process whose home directory is the given one
+    private String callBackup(Path home, SecretKey key, String... call) throws Exception {
+        List<String> command = new ArrayList<>(List.of(
+                Path.of(System.getProperty("java.home"), "bin", "java").toString(), "-Duser.home=" + home,
+                "-cp", System.getProperty("java.class.path"), BackupProcess.class.getName(),
+                directory.resolve("config.yaml").toString(), Base64.getEncoder().encodeToString(key.getEncoded()),
+                Base64.getEncoder().encodeToString(salt)));
+        command.addAll(List.of(call));
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        List<String> output = new String(process.getInputStream().readAllBytes()).lines().toList();
+        assertTrue(process.waitFor(1, TimeUnit.MINUTES), "backup process did not finish");
+        assertEquals(0, process.exitValue(), "backup process failed");
+        return output.get(output.size() - 1);
+    }
+
+    private static List<Path> files(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.sorted().toList();
+        }
+    }
+
+    private static void copyVault(Path source, Path target) throws IOException {
+        Files.copy(source, target);
+        Files.copy(VaultPaths.logFileFor(source), VaultPaths.logFileFor(target));
+    }
+}
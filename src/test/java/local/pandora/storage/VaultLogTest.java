@@ -0,0 +1,173 @@
+package local.pandora.storage;
+
+import local.pandora.exception.PandoraException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VaultLogTest {
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private Path logPath;
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void createVault() throws Exception {
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        logPath = VaultPaths.logFileFor(path);
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+        try (Vault vault = new Vault()) {
+            vault.addEntry("alpha", "alice", "alpha-1");
+            vault.addEntry("beta", "bob", "beta-1");
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void commitsAreAppendedToTheLogAndReplayedOnLoad() throws Exception {
+        byte[] snapshot = Files.readAllBytes(path);
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.addEntry("gamma", "carol", "gamma-1");
+            VaultFile.commitVault(vault, path, key, salt);
+            vault.updateEntry("alpha", "alice", "alpha-2");
+            VaultFile.commitVault(vault, path, key, salt);
+            vault.removeEntry("beta");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        assertArrayEquals(snapshot, Files.readAllBytes(path));
+        assertTrue(Files.size(logPath) > 0);
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(Set.of("alpha", "gamma"), vault.getEntryNames());
+            assertEquals("alpha-2", TestVaults.password(vault, "alpha"));
+            assertEquals("gamma-1", TestVaults.password(vault, "gamma"));
+        }
+    }
+
+    @Test
+    void tornLastRecordIsDroppedAndOverwrittenByTheNextCommit() throws Exception {
+        commit("gamma");
+        commit("delta");
+        truncateLog(Files.size(logPath) - 5);
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertTrue(vault.hasEntry("gamma"));
+            assertFalse(vault.hasEntry("delta"));
+            vault.addEntry("epsilon", "eve", "epsilon-1");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(Set.of("alpha", "beta", "gamma", "epsilon"), vault.getEntryNames());
+            assertEquals("epsilon-1", TestVaults.password(vault, "epsilon"));
+        }
+    }
+
+    @Test
+    void logCutInsideItsHeaderIsIgnored() throws Exception {
+        commit("gamma");
+        truncateLog(6);
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(Set.of("alpha", "beta"), vault.getEntryNames());
+        }
+    }
+
+    @Test
+    void corruptedRecordBeforeTheLastFailsTheLoad() throws Exception {
+        commit("gamma");
+        commit("delta");
+        // Inside the ciphertext of the first record: log header, record length, IV
+        int position = 4 + 2 + 12 + 4 + 12 + 1;
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer original = ByteBuffer.allocate(1);
+            channel.read(original, position);
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) (original.get(0) ^ 0x01)}), position);
+        }
+
+        assertThrows(PandoraException.class, () -> TestVaults.load(path, key));
+    }
+
+    @Test
+    void logOfAnEarlierSnapshotIsIgnored() throws Exception {
+        commit("gamma");
+        Path stale = directory.resolve("stale.wal");
+        Files.copy(logPath, stale);
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.removeEntry("gamma");
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+        Files.copy(stale, logPath, StandardCopyOption.REPLACE_EXISTING);
+
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(Set.of("alpha", "beta"), vault.getEntryNames());
+        }
+    }
+
+    @Test
+    void logIsFoldedIntoTheVaultFilePastItsRecordLimit() throws Exception {
+        TestVaults.configure(directory, "wal_max_records: 3");
+        byte[] snapshot = Files.readAllBytes(path);
+        try (Vault vault = TestVaults.load(path, key)) {
+            for (int i = 0; i < 3; i++) {
+                vault.addEntry("entry" + i, "user", "password" + i);
+                VaultFile.commitVault(vault, path, key, salt);
+            }
+            assertArrayEquals(snapshot, Files.readAllBytes(path));
+
+            vault.addEntry("entry3", "user", "password3");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+
+        assertFalse(Arrays.equals(snapshot, Files.readAllBytes(path)));
+        // The log left behind belongs to the snapshot replaced, so the file alone holds every entry
+        Files.deleteIfExists(logPath);
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(Set.of("alpha", "beta", "entry0", "entry1", "entry2", "entry3"), vault.getEntryNames());
+            assertEquals("password3", TestVaults.password(vault, "entry3"));
+        }
+    }
+
+    private void commit(String name) {
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.addEntry(name, "user", name + "-1");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+    }
+
+    private void truncateLog(long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package local.pandora.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Migrations from every container version pandora reads into the formats the configuration asks for
+class VaultMigrationTest {
+
+    private static final int ENTRIES = 300;
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private SecretKey key;
+    private byte[] salt;
+    private Map<String, String> entries;
+
+    @BeforeEach
+    void configure() throws Exception {
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+        entries = new TreeMap<>();
+        for (int i = 0; i < ENTRIES; i++) {
+            entries.put("ns" + i % 3 + "/entry-" + i, "password-" + i);
+        }
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void legacyJsonVaultMigratesToTheSortedFormat() throws IOException {
+        OldVaultFiles.writeLegacy(path, entries, key, salt);
+
+        migrateAndCheck(0, 3);
+    }
+
+    @Test
+    void wholeVaultMigratesToTheSortedFormat() throws IOException {
+        OldVaultFiles.writeWholeVault(path, entries, key, salt);
+
+        migrateAndCheck(1, 3);
+    }
+
+    @Test
+    void sealedRecordsMigrateToTheSortedFormat() throws IOException {
+        OldVaultFiles.writeSealedRecords(path, entries, key, salt);
+
+        migrateAndCheck(2, 3);
+    }
+
+    @Test
+    void sortedVaultWithALogMigratesToPagedAndBack() throws IOException {
+        OldVaultFiles.writeSealedRecords(path, entries, key, salt);
+        migrateAndCheck(2, 3);
+        // Changes still in the log go along into the new file
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.addEntry("ns0/logged", OldVaultFiles.username("ns0/logged"), "logged");
+            vault.removeEntry("ns1/entry-1");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+        entries.put("ns0/logged", "logged");
+        entries.remove("ns1/entry-1");
+
+        TestVaults.configure(directory, "storage_engine: paged");
+        migrateAndCheck(3, 4);
+
+        TestVaults.configure(directory);
+        migrateAndCheck(4, 3);
+    }
+
+    @Test
+    void compressionSettingChangeRewritesTheFile() throws IOException {
+        OldVaultFiles.writeWholeVault(path, entries, key, salt);
+        migrateAndCheck(1, 3);
+
+        TestVaults.configure(directory, "compression: deflate");
+        migrateAndCheck(3, 3);
+        assertTrue(VaultFile.loadVaultContainer(path).getCapabilities().contains(VaultCapability.COMPRESSION));
+    }
+
+    @Test
+    void shardFilesMigrateOneByOne() throws IOException {
+        TestVaults.configure(directory, "shards: 4");
+        save();
+        List<VaultMigration.FileFormat> before = VaultMigration.status(path, key);
+        assertEquals(5, before.size());
+        assertEquals(5, before.get(0).version());
+        before.forEach(format -> assertTrue(format.current()));
+
+        TestVaults.configure(directory, "shards: 4", "storage_engine: paged");
+        List<VaultMigration.Migrated> migrated = VaultMigration.migrate(path, key, salt, done -> { });
+
+        assertEquals(4, migrated.size());
+        migrated.forEach(done -> assertEquals(4, done.toVersion()));
+        assertEquals(ENTRIES, migrated.stream().mapToInt(VaultMigration.Migrated::entries).sum());
+        assertCurrent();
+        assertEntries();
+    }
+
+    @Test
+    void namespaceFilesMigrateOneByOne() throws IOException {
+        TestVaults.configure(directory, "namespaces: true", "storage_engine: paged");
+        save();
+        List<VaultMigration.FileFormat> before = VaultMigration.status(path, key);
+        assertEquals(6, before.get(0).version());
+
+        TestVaults.configure(directory, "namespaces: true");
+        List<VaultMigration.Migrated> migrated = VaultMigration.migrate(path, key, salt, done -> { });
+
+        // Every namespace file, the vault file only listing them
+        assertEquals(before.size() - 1, migrated.size());
+        assertEquals(ENTRIES, migrated.stream().mapToInt(VaultMigration.Migrated::entries).sum());
+        migrated.forEach(done -> assertEquals(4, done.fromVersion()));
+        migrated.forEach(done -> assertEquals(3, done.toVersion()));
+        assertCurrent();
+        assertEntries();
+    }
+
+    @Test
+    void leftoverOfAnInterruptedMigrationIsOverwritten() throws IOException {
+        OldVaultFiles.writeLegacy(path, entries, key, salt);
+        // What an interrupted migration leaves behind is overwritten
+        Files.writeString(path.resolveSibling(path.getFileName() + ".migrating"), "partial");
+
+        migrateAndCheck(0, 3);
+        try (Stream<Path> files = Files.list(directory)) {
+            assertFalse(files.anyMatch(file -> file.toString().endsWith(".migrating")
+                    || file.toString().endsWith(".spill")));
+        }
+    }
+
+    private void migrateAndCheck(int fromVersion, int toVersion) {
+        List<VaultMigration.FileFormat> before = VaultMigration.status(path, key);
+        assertEquals(fromVersion, before.get(0).version());
+        assertFalse(before.get(0).current());
+
+        List<VaultMigration.Migrated> migrated = new ArrayList<>();
+        VaultMigration.migrate(path, key, salt, migrated::add);
+
+        assertEquals(1, migrated.size());
+        assertEquals(fromVersion, migrated.get(0).fromVersion());
+        assertEquals(toVersion, migrated.get(0).toVersion());
+        assertEquals(entries.size(), migrated.get(0).entries());
+        assertCurrent();
+        if (toVersion == 3) {
+            assertTrue(VaultFile.loadVaultContainer(path).getCapabilities().containsAll(EnumSet.of(
+                    VaultCapability.SORTED_INDEX, VaultCapability.BLOCK_CHECKSUMS, VaultCapability.TAG_INDEX,
+                    VaultCapability.BLIND_INDEX, VaultCapability.NAME_SEARCH)));
+        }
+        assertEntries();
+        // Nothing is left to do once every file is in the configured format
+        assertTrue(VaultMigration.migrate(path, key, salt, done -> { }).isEmpty());
+    }
+
+    private void save() {
+        try (Vault vault = new Vault()) {
+            entries.forEach((name, password) -> vault.addEntry(name, OldVaultFiles.username(name), password));
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+    }
+
+    private void assertCurrent() {
+        VaultMigration.status(path, key).forEach(format -> assertTrue(format.current(), format.file().toString()));
+    }
+
+    private void assertEntries() {
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(entries.keySet(), vault.getEntryNames());
+            entries.forEach((name, password) -> {
+                assertEquals(password, TestVaults.password(vault, name));
+                assertEquals(OldVaultFiles.username(name), vault.getEntry(name).getUsername());
+            });
+        }
+    }
+}
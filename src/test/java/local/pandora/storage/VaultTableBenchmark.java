@@ -0,0 +1,118 @@
+package local.pandora.storage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// The columnar table a vault reads its file into, against a HashMap of every entry as Vault used to
+// hold them: loading the whole vault, and looking names up in it once loaded. Setup prints the heap
+// each layout holds per entry.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class VaultTableBenchmark {
+
+    // Usernames repeat, the way service accounts do
+    private static final int USERNAMES = 1_000;
+
+    @Param({"table", "map"})
+    public String layout;
+
+    @Param({"1000000"})
+    public int entries;
+
+    private Path directory;
+    private Path path;
+    private SecretKey key;
+    private Vault vault;
+    private Map<String, VaultEntry> map;
+    private final SplittableRandom random = new SplittableRandom(1);
+
+    @Setup(Level.Trial)
+    public void createVault() throws Exception {
+        directory = Files.createTempDirectory("pandora-bench");
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        try (Vault created = new Vault()) {
+            for (int i = 0; i < entries; i++) {
+                created.addEntry(name(i), "svc-account-" + i % USERNAMES, "password-" + i);
+            }
+            VaultFile.saveVault(created, path, key, TestVaults.newSalt());
+        }
+
+        long heapBefore = usedHeap();
+        vault = TestVaults.load(path, key);
+        if (layout.equals("table")) {
+            vault.getEntryNames();
+        } else {
+            map = new HashMap<>(vault.getAllEntries());
+        }
+        long held = usedHeap() - heapBefore;
+        System.out.printf("%n%s of %d entries: %d bytes of heap, %d per entry%n", layout, entries, held,
+                held / entries);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteVault() throws IOException {
+        vault.close();
+        TestVaults.delete(directory);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int load() {
+        try (Vault loaded = TestVaults.load(path, key)) {
+            if (layout.equals("table")) {
+                return loaded.getEntryNames().size();
+            }
+            return new HashMap<>(loaded.getAllEntries()).size();
+        }
+    }
+
+    @Benchmark
+    public boolean hasEntry() {
+        String name = name(random.nextInt(entries));
+        return layout.equals("table") ? vault.hasEntry(name) : map.containsKey(name);
+    }
+
+    @Benchmark
+    public VaultEntry getEntry() {
+        String name = name(random.nextInt(entries));
+        return layout.equals("table") ? vault.getEntry(name) : map.get(name);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static String name(int i) {
+        return "service/entry-" + i;
+    }
+}
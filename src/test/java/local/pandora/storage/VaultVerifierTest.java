@@ -0,0 +1,194 @@
+package local.pandora.storage;
+
+import local.pandora.exception.InvalidMasterPasswordException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class VaultVerifierTest {
+
+    // Records over several checksum blocks
+    private static final int ENTRIES = 3_000;
+
+    @TempDir
+    Path directory;
+
+    private Path path;
+    private Path backup;
+    private SecretKey key;
+    private byte[] salt;
+
+    @BeforeEach
+    void createVault() throws Exception {
+        TestVaults.configure(directory);
+        path = directory.resolve("pandora.enc");
+        key = TestVaults.newKey();
+        salt = TestVaults.newSalt();
+        try (Vault vault = new Vault()) {
+            for (int i = 0; i < ENTRIES; i++) {
+                vault.addEntry(String.format("entry-%05d", i), "user" + i, "password-" + i);
+            }
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+        Files.createDirectories(directory.resolve("backups"));
+        backup = directory.resolve("backups").resolve("pandora.enc");
+        Files.copy(path, backup);
+    }
+
+    @AfterEach
+    void resetConfig() throws IOException {
+        TestVaults.configure(directory);
+    }
+
+    @Test
+    void intactVaultHasNoProblems() {
+        List<VaultVerifier.Result> results = VaultVerifier.verify(path, key, List.of(), false);
+
+        assertEquals(1, results.size());
+        assertTrue(results.get(0).isIntact(), results.get(0).problems().toString());
+    }
+
+    @Test
+    void damagedBlockIsLocatedToTheEntriesInIt() throws IOException {
+        flip(blockStart(1) + 100);
+
+        VaultVerifier.Result result = VaultVerifier.verify(path, key, List.of(), false).get(0);
+
+        assertFalse(result.isIntact());
+        assertTrue(result.problems().get(0).startsWith("1 of "), result.problems().toString());
+        assertFalse(result.entries().isEmpty());
+        assertEquals(0, result.repaired());
+    }
+
+    @Test
+    void repairCopiesDamagedBlocksFromABackup() throws IOException {
+        flip(blockStart(0) + 10);
+        flip(blockStart(2) + 10);
+
+        VaultVerifier.Result result = VaultVerifier.verify(path, key, List.of(backup), true).get(0);
+
+        assertTrue(result.isIntact(), result.problems().toString());
+        assertEquals(2, result.repaired());
+        assertArrayEquals(Files.readAllBytes(backup), Files.readAllBytes(path));
+        try (Vault vault = TestVaults.load(path, key)) {
+            assertEquals(ENTRIES, vault.getEntryCount());
+            assertEquals("password-1500", TestVaults.password(vault, "entry-01500"));
+        }
+    }
+
+    @Test
+    void repairSkipsACopyOfAnotherState() throws IOException {
+        Path other = directory.resolve("backups").resolve("other.enc");
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.updateEntry("entry-00000", "user0", "changed");
+            VaultFile.saveVault(vault, other, key, salt);
+        }
+        flip(blockStart(1) + 10);
+
+        VaultVerifier.Result result = VaultVerifier.verify(path, key, List.of(other), true).get(0);
+
+        assertFalse(result.isIntact());
+        assertEquals(0, result.repaired());
+    }
+
+    @Test
+    void damagedChecksumsAreRewrittenFromTheBlocks() throws IOException {
+        VaultContainer container = VaultFile.loadVaultContainer(path);
+        long checksums = blockStart(0) + container.getChecksummed().limit();
+        flip(checksums + 5);
+
+        VaultVerifier.Result damaged = VaultVerifier.verify(path, key, List.of(), false).get(0);
+        assertEquals(List.of("block checksums damaged"), damaged.problems());
+
+        VaultVerifier.Result repaired = VaultVerifier.verify(path, key, List.of(), true).get(0);
+        assertTrue(repaired.isIntact(), repaired.problems().toString());
+        assertArrayEquals(Files.readAllBytes(backup), Files.readAllBytes(path));
+    }
+
+    @Test
+    void damagedHeaderIsRestoredFromABackup() throws IOException {
+        // Inside the salt, which the checksum header is authenticated under
+        flip(4 + 2 + 2 + 1 + 4 + 3);
+
+        VaultVerifier.Result damaged = VaultVerifier.verify(path, key, List.of(backup), false).get(0);
+        assertEquals(List.of("header damaged"), damaged.problems());
+
+        VaultVerifier.Result repaired = VaultVerifier.verify(path, key, List.of(backup), true).get(0);
+        assertTrue(repaired.isIntact(), repaired.problems().toString());
+        assertEquals(1, repaired.repaired());
+        assertArrayEquals(Files.readAllBytes(backup), Files.readAllBytes(path));
+    }
+
+    @Test
+    void damagedLogIsReported() throws IOException {
+        try (Vault vault = TestVaults.load(path, key)) {
+            vault.addEntry("first", "user", "password");
+            VaultFile.commitVault(vault, path, key, salt);
+            vault.addEntry("second", "user", "password");
+            VaultFile.commitVault(vault, path, key, salt);
+        }
+        Path log = VaultPaths.logFileFor(path);
+        flip(log, 4 + 2 + 12 + 4 + 12 + 1);
+
+        VaultVerifier.Result result = VaultVerifier.verify(path, key, List.of(), false).get(0);
+
+        assertFalse(result.isIntact());
+        assertTrue(result.problems().get(0).startsWith("log damaged"), result.problems().toString());
+    }
+
+    @Test
+    void wrongKeyIsRefused() throws Exception {
+        SecretKey other = TestVaults.newKey();
+
+        assertThrows(InvalidMasterPasswordException.class, () -> VaultVerifier.verify(path, other, List.of(), false));
+    }
+
+    @Test
+    void damagedPageIsReported() throws Exception {
+        TestVaults.configure(directory, "storage_engine: paged");
+        try (Vault vault = TestVaults.load(path, key)) {
+            VaultFile.saveVault(vault, path, key, salt);
+        }
+        flip(5L * PagedStore.PAGE_SIZE + 100);
+
+        VaultVerifier.Result result = VaultVerifier.verify(path, key, List.of(), false).get(0);
+
+        assertEquals(List.of("1 pages damaged: [5]"), result.problems());
+    }
+
+    // Offset in the vault file of a checksummed block
+    private long blockStart(int block) {
+        VaultContainer container = VaultFile.loadVaultContainer(path);
+        assertTrue(container.getChecksummed().limit() > 3L * container.getChecksumBlockSize());
+        return container.getChecksumHeader().length + BlockChecksums.MAC_LENGTH
+                + (long) block * container.getChecksumBlockSize();
+    }
+
+    private void flip(long position) throws IOException {
+        flip(path, position);
+    }
+
+    private static void flip(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer original = ByteBuffer.allocate(1);
+            channel.read(original, position);
+            channel.write(ByteBuffer.wrap(new byte[] {(byte) (original.get(0) ^ 0x01)}), position);
+        }
+    }
+}
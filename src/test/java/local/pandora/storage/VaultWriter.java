@@ -0,0 +1,50 @@
+package local.pandora.storage;
+
+import local.pandora.config.VaultConfig;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.file.Path;
+import java.util.Base64;
+
+// One writer of VaultConcurrencyTest: loads the vault on its own and commits an entry at a time, and
+// every fifth commit removes the entry it added four commits before. Run in a thread, or through main
+// in a process of its own:
+//   VaultWriter <vault file> <config file> <key, Base64> <salt, Base64> <writer> <commits>
+final class VaultWriter {
+
+    private VaultWriter() {}
+
+    public static void main(String[] args) {
+        VaultConfig.loadConfig(args[1]);
+        SecretKey key = new SecretKeySpec(Base64.getDecoder().decode(args[2]), "AES");
+        write(Path.of(args[0]), key, Base64.getDecoder().decode(args[3]), Integer.parseInt(args[4]),
+                Integer.parseInt(args[5]));
+    }
+
+    static void write(Path path, SecretKey key, byte[] salt, int writer, int commits) {
+        try (Vault vault = TestVaults.load(path, key)) {
+            for (int i = 0; i < commits; i++) {
+                vault.addEntry(name(writer, i), "writer" + writer, password(writer, i));
+                if (i >= 4 && (i - 4) % 5 == 0) {
+                    vault.removeEntry(name(writer, i - 4));
+                }
+                VaultFile.commitVault(vault, path, key, salt);
+            }
+        }
+    }
+
+    // Whether the entry a writer added in the given commit is gone once it made all of them
+    static boolean isRemoved(int commit, int commits) {
+        return commit % 5 == 0 && commit + 4 < commits;
+    }
+
+    // Spread over namespaces, so a namespaced vault has several to commit
+    static String name(int writer, int commit) {
+        return "ns" + commit % 3 + "/writer" + writer + "-" + commit;
+    }
+
+    static String password(int writer, int commit) {
+        return "password-" + writer + "-" + commit;
+    }
+}